@@ -0,0 +1,126 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads N and then 10N products with OrderService.createEntityBatched and reports how the heap it keeps
+ * grows with the size of the load.  The products are made as the load asks for them, so the list itself
+ * takes no heap, and the heap in use once the garbage has been collected is sampled SAMPLES times during each
+ * load, straight after a chunk has been flushed and cleared.  A straight line is fitted through the samples
+ * of each load after the first, and the growth it gives over the whole load is reported, with the mean heap
+ * of each load.  With the chunks cleared, neither should be more than a few megabytes apart between N and
+ * 10N; keeping even a tenth of what a product takes in a persistence context would grow the heap by several
+ * times that over a load of a hundred thousand.  The heap after a collection wanders by a megabyte or two
+ * either way.  CreateEntityBatchedTest checks that every entity is written.
+ * <p>
+ * The database is on disk, so that the rows written do not grow the heap themselves.  Run it with
+ * </p>
+ * <pre>
+ *    java -cp target/benchmarks.jar csulb.cecs323.bench.BatchedPersistFootprint [N [chunkSize]]
+ * </pre>
+ */
+public class BatchedPersistFootprint {
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final int SAMPLES = 10;
+
+   private final OrderService orderService;
+   private final int chunkSize;
+
+   /** The next product number to load, so that each load has products of its own. */
+   private int nextProduct;
+
+   private BatchedPersistFootprint(EntityManagerFactory factory, int chunkSize) {
+      this.orderService = new OrderService(factory, 1);
+      this.chunkSize = chunkSize;
+   }
+
+   public static void main(String[] args) throws IOException {
+      int n = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+      int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : OrderService.DEFAULT_CHUNK_SIZE;
+      APPLICATION_LOGGER.setLevel(Level.WARNING);
+
+      Path directory = Files.createTempDirectory("batched-persist-footprint");
+      EntityManagerFactory factory = BenchmarkDatabase.createOnDisk(directory);
+      BatchedPersistFootprint footprint = new BatchedPersistFootprint(factory, chunkSize);
+      try {
+         System.out.printf("%10s %10s %12s %14s %14s %12s%n", "products", "chunk", "rows/s", "mean heap KB",
+                 "bytes/product", "growth KB");
+         // Warm up, so that neither the classes loaded and compiled on the way nor Derby's page cache filling
+         // up, which it does over the first hundred thousand rows or so, are counted against the N load.
+         footprint.load(n);
+         double small = footprint.load(n);
+         double large = footprint.load(10 * n);
+         System.out.printf("10N took %.0f KB more heap than N on average%n", (large - small) / 1024);
+      } finally {
+         footprint.orderService.close();
+         BenchmarkDatabase.dropOnDisk(factory, directory);
+      }
+   }
+
+   /**
+    * Loads products in one createEntityBatched call, sampling the heap as it goes.
+    * @param count   How many products to load.
+    * @return        The mean heap in use.
+    */
+   private double load(int count) {
+      // A multiple of the chunk size, so that each sample is taken just after a flush and clear.
+      int sampleEvery = Math.max(1, count / SAMPLES / this.chunkSize) * this.chunkSize;
+      int first = this.nextProduct;
+      this.nextProduct += count;
+      List<long[]> samples = new ArrayList<>();
+
+      List<Products> products = new AbstractList<Products>() {
+         @Override
+         public Products get(int index) {
+            if (index > 0 && index % sampleEvery == 0) {
+               samples.add(new long[] {index, HeapSamples.usedHeap()});
+            }
+            return BenchmarkDatabase.product(first + index);
+         }
+
+         @Override
+         public int size() {
+            return count;
+         }
+      };
+
+      long start = System.nanoTime();
+      this.orderService.createEntityBatched(products, this.chunkSize);
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      double mean = 0;
+      for (long[] sample : samples) {
+         mean += sample[1];
+      }
+      mean /= Math.max(1, samples.size());
+      double slope = HeapSamples.slope(samples.subList(Math.min(1, samples.size()), samples.size()));
+      System.out.printf("%10d %10d %12.0f %14.0f %14.2f %12.0f%n", count, this.chunkSize, count / seconds,
+              mean / 1024, slope, slope * count / 1024);
+      return mean;
+   }
+}
@@ -0,0 +1,273 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.Orders;
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Builds the CustomerOrders persistence unit on an in-memory Derby database and seeds it with a generated
+ * catalog and customer list, so that benchmarks never touch the on-disk database.
+ */
+public final class BenchmarkDatabase {
+   /** Every seeded product starts with this much stock, enough that benchmarks never run out. */
+   public static final int STOCK = 1_000_000_000;
+
+   private BenchmarkDatabase() {}
+
+   /**
+    * Creates an EntityManagerFactory on a fresh in-memory database.
+    * @param name       The name of the in-memory database.  Use a different one for each open factory.
+    * @return           The factory, with the schema already created.
+    */
+   public static EntityManagerFactory create(String name) {
+      Map<String, String> properties = new HashMap<>();
+      properties.put("javax.persistence.jdbc.url", "jdbc:derby:memory:" + name + ";create=true");
+      properties.put("eclipselink.logging.level", "OFF");
+      return Persistence.createEntityManagerFactory("CustomerOrders", properties);
+   }
+
+   /**
+    * Creates an EntityManagerFactory on a fresh database on disk, for data sets too big to keep in memory.
+    * Derby is told not to sync its log, which is fine for data that is thrown away afterwards.
+    * @param directory  An empty directory for the database.
+    * @return           The factory, with the schema already created.
+    */
+   public static EntityManagerFactory createOnDisk(Path directory) {
+      return createOnDisk(directory, false);
+   }
+
+   /**
+    * Creates an EntityManagerFactory on a fresh database on disk.
+    * @param directory  An empty directory for the database.
+    * @param durable    Whether Derby syncs its log on every commit, as it does by default.  If not, it is told
+    *                   not to, for the whole JVM.
+    * @return           The factory, with the schema already created.
+    */
+   public static EntityManagerFactory createOnDisk(Path directory, boolean durable) {
+      if (!durable) {
+         System.setProperty("derby.system.durability", "test");
+      }
+      Map<String, String> properties = new HashMap<>();
+      properties.put("javax.persistence.jdbc.url", url(directory) + ";create=true");
+      properties.put("eclipselink.logging.level", "OFF");
+      return Persistence.createEntityManagerFactory("CustomerOrders", properties);
+   }
+
+   /**
+    * @param directory  The directory passed to createOnDisk.
+    * @return           The JDBC URL of the database in it.
+    */
+   public static String url(Path directory) {
+      return "jdbc:derby:" + directory.resolve("database").toAbsolutePath();
+   }
+
+   /**
+    * Closes the factory and shuts its on-disk database down, so that another JVM can open it.
+    * @param factory    The factory returned by createOnDisk.
+    * @param directory  The directory that was passed to createOnDisk.
+    */
+   public static void closeOnDisk(EntityManagerFactory factory, Path directory) {
+      factory.close();
+      try {
+         DriverManager.getConnection(url(directory) + ";shutdown=true").close();
+      } catch (SQLException expected) {
+         // Derby reports a successful shutdown by throwing an exception.
+      }
+   }
+
+   /**
+    * Closes the factory, shuts its on-disk database down and deletes it.
+    * @param factory    The factory returned by createOnDisk.
+    * @param directory  The directory that was passed to createOnDisk.
+    */
+   public static void dropOnDisk(EntityManagerFactory factory, Path directory) throws IOException {
+      closeOnDisk(factory, directory);
+      dropDirectory(directory);
+   }
+
+   /**
+    * Deletes a directory and everything in it.
+    * @param directory  The directory.
+    */
+   public static void dropDirectory(Path directory) throws IOException {
+      try (Stream<Path> paths = Files.walk(directory)) {
+         paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+   }
+
+   /**
+    * Closes the factory and throws away its in-memory database.
+    * @param factory    The factory returned by create.
+    * @param name       The name that was passed to create.
+    */
+   public static void drop(EntityManagerFactory factory, String name) {
+      factory.close();
+      try {
+         DriverManager.getConnection("jdbc:derby:memory:" + name + ";drop=true").close();
+      } catch (SQLException expected) {
+         // Derby reports a successful drop by throwing an exception.
+      }
+   }
+
+   /**
+    * @param i    The number of a seeded product.
+    * @return     The UPC of that product.
+    */
+   public static String upc(int i) {
+      return String.format("%012d", i);
+   }
+
+   /**
+    * @param i    The number of a seeded product.
+    * @return     A new, not yet persisted, product.
+    */
+   public static Products product(int i) {
+      return new Products(upc(i), "Product " + i, "Manufacturer " + (i % 100), "M" + i,
+              100 + (i % 1000) * 10, STOCK);
+   }
+
+   /**
+    * Seeds the database with products numbered 0 to productCount - 1 and customers named Last0, Last1, ...
+    * @param orderService     An OrderService on the factory.
+    * @param productCount     How many products to create.
+    * @param customerCount    How many customers to create.
+    */
+   public static void seed(OrderService orderService, int productCount, int customerCount) {
+      List<Products> products = new ArrayList<>(productCount);
+      for (int i = 0; i < productCount; i++) {
+         products.add(product(i));
+      }
+      List<Customers> customers = new ArrayList<>(customerCount);
+      for (int i = 0; i < customerCount; i++) {
+         customers.add(new Customers("Last" + i, "First" + i, i + " Main St", "90840",
+                 String.format("562-%03d-%04d", i / 10000 % 1000, i % 10000)));
+      }
+
+      orderService.createEntityBatched(products, OrderService.DEFAULT_CHUNK_SIZE);
+      orderService.createEntityBatched(customers, OrderService.DEFAULT_CHUNK_SIZE);
+   }
+
+   /**
+    * Writes orders for every seeded customer straight through JDBC, since going through JPA would take far
+    * longer than most measurements.  Each customer gets ordersPerCustomer orders one day apart, starting at
+    * firstOrder, of linesPerOrder different products each.  Their order ids are taken from the SEQUENCE
+    * table in one block, so that orders placed through JPA afterwards do not collide with them.
+    * @param connection          A connection to the database, which must already have been seeded.
+    * @param customerCount       How many customers were seeded.
+    * @param ordersPerCustomer   How many orders to write for each customer.
+    * @param linesPerOrder       How many lines each order has.  No more than productCount.
+    * @param productCount        How many products were seeded.
+    * @param firstOrder          When each customer's first order was placed.
+    * @return                    The lowest customer id; the customers' ids follow on from it.
+    */
+   public static long seedOrders(Connection connection, int customerCount, int ordersPerCustomer,
+                                 int linesPerOrder, int productCount, LocalDateTime firstOrder)
+           throws SQLException {
+      long firstCustomerId;
+      try (Statement query = connection.createStatement();
+           ResultSet first = query.executeQuery("SELECT MIN(CUSTOMER_ID) FROM CUSTOMERS")) {
+         first.next();
+         firstCustomerId = first.getLong(1);
+      }
+
+      connection.setAutoCommit(false);
+      long orderId = allocateIds(connection, Orders.ID_SEQUENCE, (long) customerCount * ordersPerCustomer);
+      try (PreparedStatement order = connection.prepareStatement(
+              "INSERT INTO ORDERS (ORDER_ID, CUSTOMER_ID, ORDER_DATE, SOLD_BY) VALUES (?, ?, ?, ?)");
+           PreparedStatement line = connection.prepareStatement(
+                   "INSERT INTO ORDERLINES (ORDER_ID, PRODUCT_UPC, QUANTITY, UNIT_SALE_PRICE) " +
+                           "VALUES (?, ?, ?, ?)")) {
+         int batched = 0;
+         for (int c = 0; c < customerCount; c++) {
+            long customerId = firstCustomerId + c;
+            for (int o = 0; o < ordersPerCustomer; o++, orderId++) {
+               order.setLong(1, orderId);
+               order.setLong(2, customerId);
+               order.setTimestamp(3, Timestamp.valueOf(firstOrder.plusDays(o)));
+               order.setString(4, OrderService.DEFAULT_SOLD_BY);
+               order.addBatch();
+               for (int l = 0; l < linesPerOrder; l++) {
+                  int product = (c * 31 + o * linesPerOrder + l) % productCount;
+                  line.setLong(1, orderId);
+                  line.setString(2, upc(product));
+                  line.setInt(3, 1 + l);
+                  line.setLong(4, product(product).getUnit_list_price());
+                  line.addBatch();
+               }
+               if (++batched == OrderService.DEFAULT_CHUNK_SIZE) {
+                  order.executeBatch();
+                  line.executeBatch();
+                  connection.commit();
+                  batched = 0;
+               }
+            }
+         }
+         order.executeBatch();
+         line.executeBatch();
+         connection.commit();
+      } finally {
+         connection.setAutoCommit(true);
+      }
+      return firstCustomerId;
+   }
+
+   /**
+    * Takes a block of ids from a row of the SEQUENCE table the way EclipseLink does, in the connection's
+    * current transaction.
+    * @param connection    A connection with auto-commit off.
+    * @param sequence      The SEQ_NAME of the row, such as Orders.ID_SEQUENCE.
+    * @param count         How many ids are wanted.
+    * @return              The first of count consecutive ids that nobody else will be given.
+    */
+   public static long allocateIds(Connection connection, String sequence, long count) throws SQLException {
+      try (PreparedStatement increment = connection.prepareStatement(
+              "UPDATE SEQUENCE SET SEQ_COUNT = SEQ_COUNT + ? WHERE SEQ_NAME = ?");
+           PreparedStatement read = connection.prepareStatement(
+                   "SELECT SEQ_COUNT FROM SEQUENCE WHERE SEQ_NAME = ?")) {
+         increment.setLong(1, count);
+         increment.setString(2, sequence);
+         if (increment.executeUpdate() != 1) {
+            throw new SQLException("There is no " + sequence + " row in the SEQUENCE table");
+         }
+         read.setString(1, sequence);
+         try (ResultSet last = read.executeQuery()) {
+            last.next();
+            return last.getLong(1) - count + 1;
+         }
+      }
+   }
+}
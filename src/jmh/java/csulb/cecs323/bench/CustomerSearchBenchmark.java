@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.CustomerOrders;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.CustomerSummary;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Latency of the three customer searches, as the number of customers grows.  Each search is timed for a
+ * random customer's page, and the last name prefix search for the page after a random customer among all of
+ * them as well, which is as deep as paging through every customer named "Last..." gets: with an OFFSET that
+ * page would cost more the more customers there are, and with the keyset it should not.  The database is on
+ * disk in a temporary directory, as a million customers take a while to seed and a lot of heap in memory.
+ * <pre>
+ *    java -jar target/benchmarks.jar CustomerSearch
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CustomerSearchBenchmark {
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   /** How many customers there are. */
+   @Param({"10000", "100000", "1000000"})
+   public int customerCount;
+
+   private Path directory;
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+   private long firstCustomerId;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.directory = Files.createTempDirectory("customer-search");
+      this.factory = BenchmarkDatabase.createOnDisk(this.directory);
+      this.orderService = new OrderService(this.factory, 1);
+      BenchmarkDatabase.seed(this.orderService, 1, this.customerCount);
+      this.firstCustomerId = this.orderService.findCustomersByName("Last0", "First0", null, 1)
+              .get(0).getCustomer_id();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws IOException {
+      this.orderService.close();
+      BenchmarkDatabase.dropOnDisk(this.factory, this.directory);
+   }
+
+   /** @return The summary of a random seeded customer, as BenchmarkDatabase.seed made it. */
+   private CustomerSummary randomCustomer() {
+      int i = ThreadLocalRandom.current().nextInt(this.customerCount);
+      return new CustomerSummary(this.firstCustomerId + i, "Last" + i, "First" + i,
+              String.format("562-%03d-%04d", i / 10000 % 1000, i % 10000));
+   }
+
+   @Benchmark
+   public List<CustomerSummary> findCustomersByPhone() {
+      return this.orderService.findCustomersByPhone(randomCustomer().getPhone(), null,
+              CustomerOrders.CUSTOMER_PAGE_SIZE);
+   }
+
+   @Benchmark
+   public List<CustomerSummary> findCustomersByName() {
+      CustomerSummary customer = randomCustomer();
+      return this.orderService.findCustomersByName(customer.getLast_name(), customer.getFirst_name(), null,
+              CustomerOrders.CUSTOMER_PAGE_SIZE);
+   }
+
+   /** The first page of a last name prefix that matches about one customer in a thousand. */
+   @Benchmark
+   public List<CustomerSummary> findCustomersByLastNamePrefix() {
+      return this.orderService.findCustomersByLastNamePrefix(
+              "Last" + ThreadLocalRandom.current().nextInt(1000), null, CustomerOrders.CUSTOMER_PAGE_SIZE);
+   }
+
+   /** The page after a random customer of those whose last name starts with "Last", which is all of them. */
+   @Benchmark
+   public List<CustomerSummary> findCustomersByLastNamePrefixDeepPage() {
+      return this.orderService.findCustomersByLastNamePrefix("Last", randomCustomer(),
+              CustomerOrders.CUSTOMER_PAGE_SIZE);
+   }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Cart;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.OrderLines;
+import csulb.cecs323.model.Orders;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Reads placed orders back with each of the fetch plans: cart display, order summary and full order
+ * detail.  Each benchmark also prints the SQL statements it issued per operation at the end of the trial,
+ * counting the lazy loads that touching the fetched associations would set off.  FetchPlanTest checks
+ * that each of them takes exactly one statement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FetchPlanBenchmark {
+   private static final String DATABASE = "fetch-plans";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   /** The number of lines on the large order, and the number of orders the customer has placed. */
+   @Param({"50"})
+   public int lineCount;
+
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+   private StatementCounter counter;
+   /** How many times the benchmark methods have run, for the statements per operation. */
+   private final LongAdder operations = new LongAdder();
+   private long customerId;
+   /** The order_id of the order of lineCount lines. */
+   private long largeOrder;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.factory = BenchmarkDatabase.create(DATABASE);
+      this.orderService = new OrderService(this.factory, 1);
+      BenchmarkDatabase.seed(this.orderService, this.lineCount, 1);
+      placeOrders();
+      this.counter = StatementCounter.install(this.factory);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      System.out.printf("%nSQL statements per operation: %.2f%n",
+              (double) this.counter.getCount() / Math.max(this.operations.sum(), 1));
+      this.orderService.close();
+      BenchmarkDatabase.drop(this.factory, DATABASE);
+   }
+
+   @Benchmark
+   public void cartDisplay(Blackhole blackhole) {
+      List<OrderLines> lines = this.orderService.getCartLines(this.largeOrder);
+      touchCart(lines);
+      this.operations.increment();
+      blackhole.consume(lines);
+   }
+
+   @Benchmark
+   public void orderSummary(Blackhole blackhole) {
+      List<Orders> orders = this.orderService.getOrderSummaries(this.customerId);
+      touchSummary(orders);
+      this.operations.increment();
+      blackhole.consume(orders);
+   }
+
+   @Benchmark
+   public void orderDetail(Blackhole blackhole) {
+      List<OrderLines> lines = this.orderService.getOrderDetail(this.largeOrder);
+      touchDetail(lines);
+      this.operations.increment();
+      blackhole.consume(lines);
+   }
+
+   /** Places lineCount orders of lineCount lines each for the first seeded customer. */
+   private void placeOrders() {
+      this.customerId = this.orderService.findCustomersByLastNamePrefix("Last0", null, 1).get(0).getCustomer_id();
+      Customers customer = this.orderService.getCustomer(this.customerId);
+      LocalDateTime start = LocalDateTime.of(2021, 1, 1, 12, 0);
+      for (int i = 0; i < this.lineCount; i++) {
+         Cart cart = new Cart(new Orders(customer, start.plusMinutes(i), OrderService.DEFAULT_SOLD_BY));
+         for (int line = 0; line < this.lineCount; line++) {
+            this.orderService.addLine(cart, BenchmarkDatabase.upc(line), 1);
+         }
+         this.orderService.placeOrder(cart);
+         this.largeOrder = cart.getOrder().getOrder_id();
+      }
+   }
+
+   /** Uses everything the cart display is meant to fetch. */
+   private static void touchCart(List<OrderLines> lines) {
+      for (OrderLines line : lines) {
+         line.getProduct().getProd_name();
+      }
+   }
+
+   /** Uses everything the order detail is meant to fetch. */
+   private static void touchDetail(List<OrderLines> lines) {
+      for (OrderLines line : lines) {
+         line.getProduct().getProd_name();
+         line.getOrder().getCustomer().getLast_name();
+      }
+   }
+
+   /** Uses everything the order summaries are meant to fetch. */
+   private static void touchSummary(List<Orders> orders) {
+      for (Orders order : orders) {
+         order.getCustomer().getLast_name();
+      }
+   }
+}
@@ -0,0 +1,61 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.List;
+
+/**
+ * Samples of the heap in use, taken as some piece of work goes on, and the straight line fitted through them,
+ * for the checks that the heap stays flat.
+ */
+final class HeapSamples {
+   private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+   private HeapSamples() {}
+
+   /** @return The bytes of heap in use once the garbage has been collected. */
+   static long usedHeap() {
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+      }
+      return MEMORY.getHeapMemoryUsage().getUsed();
+   }
+
+   /**
+    * @param samples    How much work had been done and the heap used then, in that order.
+    * @return           The least squares slope of the heap used against the work done, in bytes per unit of
+    *                   work, or infinity if there are too few samples to fit a line through.
+    */
+   static double slope(List<long[]> samples) {
+      if (samples.size() < 3) {
+         return Double.POSITIVE_INFINITY;
+      }
+      double meanX = 0;
+      double meanY = 0;
+      for (long[] sample : samples) {
+         meanX += sample[0];
+         meanY += sample[1];
+      }
+      meanX /= samples.size();
+      meanY /= samples.size();
+      double covariance = 0;
+      double variance = 0;
+      for (long[] sample : samples) {
+         covariance += (sample[0] - meanX) * (sample[1] - meanY);
+         variance += (sample[0] - meanX) * (sample[0] - meanX);
+      }
+      return covariance / variance;
+   }
+}
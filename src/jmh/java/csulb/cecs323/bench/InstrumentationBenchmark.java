@@ -0,0 +1,113 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Cart;
+import csulb.cecs323.app.CustomerOrders;
+import csulb.cecs323.app.Instrumentation;
+import csulb.cecs323.app.LatencyStats;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.CustomerSummary;
+import csulb.cecs323.model.Customers;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * What the latency instrumentation costs, run with timing on and off.  Each business operation is timed
+ * once, and each query it runs once more by the session's QueryProfiler, except a find answered from the
+ * cache, which only the operation times.
+ * <ul>
+ *    <li>getCustomer: a find answered from the shared cache, the cheapest operation there is, so the one
+ *    whose time the instrumentation is the largest part of.  On a one-CPU VM where System.nanoTime takes
+ *    about 50 ns, timing every call cost about 0.10 us on 0.73 us, 14%, nearly all of it the two clock
+ *    reads.  Timing one call in 16 and only counting the rest brought that down to 0.646 us against
+ *    0.627 us, 3%, within the error of the run (-f 2 -wi 3 -i 5 -t 1).</li>
+ *    <li>findCustomersByLastNamePrefix: the first page of one indexed query.</li>
+ *    <li>placeOrder: a three line order from start to finish, with its holds, stock updates and commit.</li>
+ * </ul>
+ * Several threads run at once so that the counters they share are contended.  The statistics of the run
+ * are printed at the end of each trial with timing on, to show that it was being recorded.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class InstrumentationBenchmark {
+   private static final String DATABASE = "instrumentation";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final int PRODUCTS = 10_000;
+   private static final int CUSTOMERS = 10_000;
+
+   /** Whether queries and operations are timed. */
+   @Param({"true", "false"})
+   public boolean instrumented;
+
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.factory = BenchmarkDatabase.create(DATABASE);
+      this.orderService = new OrderService(this.factory, 1);
+      BenchmarkDatabase.seed(this.orderService, PRODUCTS, CUSTOMERS);
+      Instrumentation.setEnabled(this.instrumented);
+      Instrumentation.resetStatistics();
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      if (this.instrumented) {
+         for (LatencyStats stats : Instrumentation.getStats()) {
+            if (stats.getCount() > 0) {
+               System.out.println(stats);
+            }
+         }
+      }
+      this.orderService.close();
+      BenchmarkDatabase.drop(this.factory, DATABASE);
+      Instrumentation.setEnabled(true);
+   }
+
+   @Benchmark
+   public Customers getCustomer() {
+      return this.orderService.getCustomer(1 + ThreadLocalRandom.current().nextInt(CUSTOMERS));
+   }
+
+   @Benchmark
+   public List<CustomerSummary> findCustomersByLastNamePrefix() {
+      return this.orderService.findCustomersByLastNamePrefix("Last" + ThreadLocalRandom.current().nextInt(1000),
+              null, CustomerOrders.CUSTOMER_PAGE_SIZE);
+   }
+
+   @Benchmark
+   public Object placeOrder() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Cart cart = this.orderService.openCart(this.orderService.getCustomer(1 + random.nextInt(CUSTOMERS)));
+      for (int i = 0; i < 3; i++) {
+         this.orderService.addLine(cart, BenchmarkDatabase.upc(random.nextInt(PRODUCTS)), 1);
+      }
+      return this.orderService.placeOrder(cart);
+   }
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.InventoryEngine;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.app.UnitOfWork;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Measures InventoryEngine's throughput as 1, 8 and then 64 buyers race for a small catalog.  Each buyer
+ * runs transactions of one to three products, taken in UPC order as OrderService takes them; half of the
+ * transactions want all of each line or none of it (reserve) and half take what is left (reserveUpTo).
+ * There is more demand than stock, so the products sell out while buyers are still after them.  The
+ * transactions and units per second for each number of buyers are printed.  InventoryEngineTest runs the
+ * same race and checks that nothing is oversold.  Run it with
+ * <pre>
+ *    java -cp target/benchmarks.jar csulb.cecs323.bench.InventoryContention [transactions]
+ * </pre>
+ */
+public class InventoryContention {
+   private static final String DATABASE = "inventory-contention";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final int[] BUYERS = {1, 8, 64};
+   private static final int PRODUCTS = 20;
+   private static final int STOCK = 500;
+
+   private final int buyers;
+   private final EntityManagerFactory factory;
+   private final UnitOfWork unitOfWork;
+
+   /** Units given to buyers. */
+   private final LongAdder sold = new LongAdder();
+
+   private InventoryContention(int buyers, EntityManagerFactory factory) {
+      this.buyers = buyers;
+      this.factory = factory;
+      this.unitOfWork = new UnitOfWork(factory);
+   }
+
+   public static void main(String[] args) throws Exception {
+      int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+      APPLICATION_LOGGER.setLevel(Level.WARNING);
+
+      System.out.printf("%d products of %d units, %d transactions%n", PRODUCTS, STOCK, transactions);
+      System.out.printf("%8s %14s %10s %12s%n", "buyers", "transactions/s", "units/s", "units sold");
+      for (int buyers : BUYERS) {
+         EntityManagerFactory factory = BenchmarkDatabase.create(DATABASE);
+         try {
+            OrderService orderService = new OrderService(factory, 1);
+            BenchmarkDatabase.seed(orderService, PRODUCTS, 1);
+            orderService.close();
+            new InventoryContention(buyers, factory).run(transactions);
+         } finally {
+            BenchmarkDatabase.drop(factory, DATABASE);
+         }
+      }
+   }
+
+   private void run(int transactions) throws Exception {
+      this.unitOfWork.runInTransaction(manager -> {
+         manager.createNativeQuery("UPDATE PRODUCTS SET UNITS_IN_STOCK = " + STOCK).executeUpdate();
+      });
+      this.factory.getCache().evictAll();
+
+      ExecutorService pool = Executors.newFixedThreadPool(this.buyers);
+      List<Future<?>> work = new ArrayList<>(this.buyers);
+      long start = System.nanoTime();
+      for (int b = 0; b < this.buyers; b++) {
+         int buyer = b;
+         int share = transactions / this.buyers + (buyer < transactions % this.buyers ? 1 : 0);
+         work.add(pool.submit(() -> buy(buyer, share)));
+      }
+      for (Future<?> done : work) {
+         done.get();
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      pool.shutdown();
+      pool.awaitTermination(1, TimeUnit.MINUTES);
+
+      long sold = this.sold.sum();
+      System.out.printf("%8d %14.0f %10.0f %12d%n", this.buyers, transactions / seconds, sold / seconds, sold);
+   }
+
+   /** Runs one buyer's transactions. */
+   private void buy(int buyer, int transactions) {
+      Random random = new Random(buyer);
+      for (int t = 0; t < transactions; t++) {
+         TreeSet<Integer> products = new TreeSet<>();
+         int lines = 1 + random.nextInt(3);
+         while (products.size() < lines) {
+            products.add(random.nextInt(PRODUCTS));
+         }
+         boolean wantAll = random.nextBoolean();
+         int[] wanted = new int[lines];
+         for (int i = 0; i < lines; i++) {
+            wanted[i] = 1 + random.nextInt(8);
+         }
+
+         int filled = this.unitOfWork.inTransaction(manager -> {
+            InventoryEngine inventory = new InventoryEngine(manager);
+            int got = 0;
+            int i = 0;
+            for (int product : products) {
+               String upc = BenchmarkDatabase.upc(product);
+               got += wantAll
+                       ? (inventory.reserve(upc, wanted[i]) ? wanted[i] : 0)
+                       : inventory.reserveUpTo(upc, wanted[i]).getFilled();
+               i++;
+            }
+            return got;
+         });
+         this.sold.add(filled);
+      }
+   }
+}
@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.CustomerOrders;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManagerFactory;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What the three ways of reading the in-stock catalog cost in time and memory: the whole list at once
+ * (OrderService.getInventory), the first page (getInventoryPage) and a walk over every page
+ * (forEachInStock).  For each it reports
+ * <ul>
+ *    <li>how long it took until the first product could be shown, and until the read was done;</li>
+ *    <li>the bytes allocated by the reading thread, the same figure as JMH's {@code -prof gc} gives as
+ *    gc.alloc.rate.norm;</li>
+ *    <li>the heap in use while the products are in use, over what was in use before.  For the list and the
+ *    page that is with the result still live; for the walk it is the most the heap held at any point of
+ *    it, sampled every SAMPLE_EVERY products in a second walk.  Either way it includes what OrderService
+ *    kept in its product cache and EclipseLink in its shared cache.</li>
+ * </ul>
+ * Each way is run twice with a new OrderService and an empty shared cache, and the second run reported, so
+ * that the first pays for the JIT.  OrderPlacementBenchmark times the same three reads under JMH.  Run it with
+ * <pre>
+ *    java -cp target/benchmarks.jar csulb.cecs323.bench.InventoryFootprint [products [pageSize]]
+ * </pre>
+ */
+public class InventoryFootprint {
+   private static final String DATABASE = "inventory-footprint";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final com.sun.management.ThreadMXBean THREADS =
+           (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+   private static final int SAMPLE_EVERY = 5000;
+
+   private enum Mode {
+      LIST("getInventory"), FIRST_PAGE("getInventoryPage"), WALK("forEachInStock");
+
+      private final String label;
+
+      Mode(String label) {
+         this.label = label;
+      }
+   }
+
+   public static void main(String[] args) {
+      int products = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+      int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : CustomerOrders.INVENTORY_PAGE_SIZE;
+      APPLICATION_LOGGER.setLevel(Level.WARNING);
+
+      EntityManagerFactory factory = BenchmarkDatabase.create(DATABASE);
+      try {
+         OrderService orderService = new OrderService(factory, 1);
+         BenchmarkDatabase.seed(orderService, products, 1);
+         orderService.close();
+
+         System.out.printf("%d products, pages of %d%n", products, pageSize);
+         System.out.printf("%-18s %8s %14s %10s %14s %12s %14s%n", "read with", "rows", "first row ms",
+                 "total ms", "allocated KB", "bytes/row", "retained KB");
+         for (Mode mode : Mode.values()) {
+            run(factory, mode, pageSize);
+            System.out.println(run(factory, mode, pageSize));
+         }
+      } finally {
+         BenchmarkDatabase.drop(factory, DATABASE);
+      }
+   }
+
+   /**
+    * Reads the in-stock products one way with a new OrderService.
+    * @return     A line of the report.
+    */
+   private static String run(EntityManagerFactory factory, Mode mode, int pageSize) {
+      factory.getCache().evictAll();
+      OrderService orderService = new OrderService(factory, 1);
+      try {
+         long before = HeapSamples.usedHeap();
+         long[] firstRow = {0};
+         long thread = Thread.currentThread().getId();
+
+         long allocatedBefore = THREADS.getThreadAllocatedBytes(thread);
+         long start = System.nanoTime();
+         List<Products> read = null;
+         long rows;
+         switch (mode) {
+            case LIST:
+               read = orderService.getInventory();
+               rows = read.size();
+               break;
+            case FIRST_PAGE:
+               read = orderService.getInventoryPage(null, pageSize);
+               rows = read.size();
+               break;
+            default:
+               rows = orderService.forEachInStock(pageSize, product -> {
+                  if (firstRow[0] == 0) {
+                     firstRow[0] = System.nanoTime();
+                  }
+               });
+         }
+         long end = System.nanoTime();
+         long allocated = THREADS.getThreadAllocatedBytes(thread) - allocatedBefore;
+
+         long retained;
+         if (read != null) {
+            retained = HeapSamples.usedHeap() - before;
+            Reference.reachabilityFence(read);
+            firstRow[0] = end;
+         } else {
+            // The walk keeps nothing once it is done, so look at the heap while it is going on.
+            long[] peak = {before};
+            long[] seen = {0};
+            orderService.forEachInStock(pageSize, product -> {
+               if (++seen[0] % SAMPLE_EVERY == 0) {
+                  peak[0] = Math.max(peak[0], HeapSamples.usedHeap());
+               }
+            });
+            retained = peak[0] - before;
+         }
+
+         return String.format("%-18s %8d %14.1f %10.1f %14d %12d %14d", mode.label, rows,
+                 (firstRow[0] - start) / 1e6, (end - start) / 1e6, allocated / 1024,
+                 allocated / Math.max(1, rows), retained / 1024);
+      } finally {
+         orderService.close();
+      }
+   }
+}
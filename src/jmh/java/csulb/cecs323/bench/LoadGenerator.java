@@ -0,0 +1,384 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Cart;
+import csulb.cecs323.app.InventoryEngine;
+import csulb.cecs323.app.LatencyHistogram;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Puts load on OrderService the way the console's shoppers would, many at once, against an embedded
+ * in-memory Derby database.  Each shopper picks a customer, browses some pages of the inventory and then
+ * fills a cart, choosing products by a Zipf distribution so that the popular ones run out.  When the stock
+ * check says a product is short, the shopper either wants all of it anyway, which holds what is left, or
+ * none of it, as the console's "Want All" and "Want None" do.  Then the cart is ordered or aborted.
+ * Shoppers go round again until the time is up.
+ * <p>
+ * At the end it reports orders per second, the latency of each step at p50, p99 and p99.9, and how often
+ * shoppers ran out of stock, chose each way and aborted, and how many products sold out.
+ * StockReservationsTest checks that carts ordered and aborted this way neither lose stock nor sell it twice.
+ * The scenario is given as NAME=VALUE arguments; see Scenario for the names and defaults, e.g.
+ * </p>
+ * <pre>
+ *    java -cp target/benchmarks.jar csulb.cecs323.bench.LoadGenerator shoppers=64 seconds=60 zipf=1.2
+ * </pre>
+ */
+public class LoadGenerator {
+   private static final String DATABASE = "load-generator";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   /** What each shopper does, and how it chooses. */
+   static final class Scenario {
+      /** How many shoppers there are, each on a thread of its own. */
+      int shoppers = 32;
+      /** How long to run, after the warmup. */
+      int seconds = 30;
+      /** How long to run before the statistics are started again, so that the JIT has had its turn. */
+      int warmupSeconds = 5;
+      int products = 1_000;
+      int customers = 10_000;
+      /** The units in stock of every product at the start.  Low enough that popular products run out. */
+      int stock = 500;
+      /** The exponent of the Zipf distribution of product popularity; 0 makes every product as popular. */
+      double zipf = 1.0;
+      /** How many inventory pages each shopper looks through before filling the cart. */
+      int browsePages = 1;
+      int pageSize = 20;
+      /** How many products each shopper tries to put in the cart. */
+      int lines = 3;
+      /** The most units of a product a shopper asks for; each asks for 1 to this many. */
+      int maxQuantity = 3;
+      /** How likely a shopper told that a product is short is to want all of it anyway rather than none. */
+      double wantAll = 0.5;
+      /** How likely a shopper is to abort the cart rather than order it. */
+      double abort = 0.1;
+      /** How long a shopper pauses between steps. */
+      int thinkMillis = 0;
+
+      /**
+       * Sets the fields named by NAME=VALUE arguments.
+       * @param args    The arguments.
+       */
+      Scenario(String[] args) {
+         for (String arg : args) {
+            int equals = arg.indexOf('=');
+            if (equals < 0) {
+               throw new IllegalArgumentException("Expected NAME=VALUE, not " + arg);
+            }
+            set(arg.substring(0, equals).trim(), arg.substring(equals + 1).trim());
+         }
+      }
+
+      private void set(String name, String value) {
+         try {
+            Field field = Scenario.class.getDeclaredField(name);
+            if (field.getType() == int.class) {
+               field.setInt(this, Integer.parseInt(value));
+            } else {
+               field.setDouble(this, Double.parseDouble(value));
+            }
+         } catch (NoSuchFieldException e) {
+            throw new IllegalArgumentException("There is no scenario setting called " + name, e);
+         } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+
+      @Override
+      public String toString() {
+         Map<String, Object> settings = new LinkedHashMap<>();
+         for (Field field : Scenario.class.getDeclaredFields()) {
+            try {
+               settings.put(field.getName(), field.get(this));
+            } catch (IllegalAccessException e) {
+               throw new IllegalStateException(e);
+            }
+         }
+         return settings.toString();
+      }
+   }
+
+   /** The steps a shopper takes, each timed on its own. */
+   private enum Step {
+      SELECT_CUSTOMER("select customer"),
+      BROWSE("browse a page"),
+      CHECK_STOCK("check stock"),
+      ADD_LINE("add line"),
+      PLACE_ORDER("place order"),
+      ABORT("abort"),
+      SHOPPER("whole shopper");
+
+      private final String label;
+
+      Step(String label) {
+         this.label = label;
+      }
+   }
+
+   private final Scenario scenario;
+   private final EntityManagerFactory factory;
+   private final OrderService orderService;
+   private final ZipfDistribution popularity;
+
+   private volatile Map<Step, LatencyHistogram> latencies = newLatencies();
+   private volatile Tally tally = new Tally();
+
+   /** Units the shoppers were told were ordered of each product, by product number, warmup included. */
+   private final AtomicLongArray ordered;
+
+   private long firstCustomerId;
+
+   /** What the shoppers did, started again after the warmup. */
+   private static final class Tally {
+      final LongAdder orders = new LongAdder();
+      final LongAdder shortOrders = new LongAdder();
+      final LongAdder emptyOrders = new LongAdder();
+      final LongAdder aborts = new LongAdder();
+      final LongAdder outOfStock = new LongAdder();
+      final LongAdder wantedAll = new LongAdder();
+      final LongAdder wantedNone = new LongAdder();
+      final LongAdder shortHolds = new LongAdder();
+      final LongAdder errors = new LongAdder();
+   }
+
+   private LoadGenerator(Scenario scenario, EntityManagerFactory factory) {
+      this.scenario = scenario;
+      this.factory = factory;
+      this.orderService = new OrderService(factory, 1);
+      this.popularity = new ZipfDistribution(scenario.products, scenario.zipf);
+      this.ordered = new AtomicLongArray(scenario.products);
+   }
+
+   public static void main(String[] args) throws InterruptedException {
+      APPLICATION_LOGGER.setLevel(Level.WARNING);
+      Scenario scenario = new Scenario(args);
+      System.out.println("Scenario: " + scenario);
+      EntityManagerFactory factory = BenchmarkDatabase.create(DATABASE);
+      LoadGenerator generator = new LoadGenerator(scenario, factory);
+      try {
+         generator.seed();
+         generator.run();
+         generator.reportSoldOut();
+      } finally {
+         generator.orderService.close();
+         BenchmarkDatabase.drop(factory, DATABASE);
+      }
+   }
+
+   private void seed() {
+      BenchmarkDatabase.seed(this.orderService, this.scenario.products, this.scenario.customers);
+      update("UPDATE PRODUCTS SET UNITS_IN_STOCK = " + this.scenario.stock);
+      this.factory.getCache().evictAll();
+      this.firstCustomerId = count("SELECT MIN(CUSTOMER_ID) FROM CUSTOMERS");
+   }
+
+   private void run() throws InterruptedException {
+      long warmupEnds = System.nanoTime() + TimeUnit.SECONDS.toNanos(this.scenario.warmupSeconds);
+      long ends = warmupEnds + TimeUnit.SECONDS.toNanos(this.scenario.seconds);
+      List<Thread> shoppers = new ArrayList<>(this.scenario.shoppers);
+      for (int i = 0; i < this.scenario.shoppers; i++) {
+         Random random = new Random(i);
+         Thread shopper = new Thread(() -> {
+            while (System.nanoTime() < ends) {
+               try {
+                  shop(random);
+               } catch (RuntimeException e) {
+                  this.tally.errors.increment();
+                  APPLICATION_LOGGER.log(Level.WARNING, "A shopper failed", e);
+               } catch (InterruptedException e) {
+                  return;
+               }
+            }
+         }, "shopper-" + i);
+         shoppers.add(shopper);
+         shopper.start();
+      }
+
+      TimeUnit.NANOSECONDS.sleep(warmupEnds - System.nanoTime());
+      this.latencies = newLatencies();
+      this.tally = new Tally();
+      long start = System.nanoTime();
+      for (Thread shopper : shoppers) {
+         shopper.join();
+      }
+      report(System.nanoTime() - start);
+   }
+
+   /** One shopper, from choosing the customer to ordering or aborting the cart. */
+   private void shop(Random random) throws InterruptedException {
+      Map<Step, LatencyHistogram> latencies = this.latencies;
+      Tally tally = this.tally;
+      long shopperStart = System.nanoTime();
+
+      long start = System.nanoTime();
+      Cart cart = this.orderService.openCart(
+              this.orderService.getCustomer(this.firstCustomerId + random.nextInt(this.scenario.customers)));
+      latencies.get(Step.SELECT_CUSTOMER).recordSince(start);
+
+      String afterUPC = null;
+      for (int page = 0; page < this.scenario.browsePages; page++) {
+         think();
+         start = System.nanoTime();
+         List<Products> products = this.orderService.getInventoryPage(afterUPC, this.scenario.pageSize);
+         latencies.get(Step.BROWSE).recordSince(start);
+         if (products.isEmpty()) {
+            break;
+         }
+         afterUPC = products.get(products.size() - 1).getUPC();
+      }
+
+      for (int line = 0; line < this.scenario.lines; line++) {
+         think();
+         String upc = BenchmarkDatabase.upc(this.popularity.next(random));
+         int quantity = 1 + random.nextInt(this.scenario.maxQuantity);
+
+         start = System.nanoTime();
+         boolean inStock = this.orderService.checkInStock(upc, quantity + cart.quantityOf(upc));
+         latencies.get(Step.CHECK_STOCK).recordSince(start);
+         if (!inStock) {
+            tally.outOfStock.increment();
+            if (random.nextDouble() >= this.scenario.wantAll) {
+               tally.wantedNone.increment();
+               continue;
+            }
+            tally.wantedAll.increment();
+         }
+
+         start = System.nanoTime();
+         InventoryEngine.FillResult held = this.orderService.addLine(cart, upc, quantity);
+         latencies.get(Step.ADD_LINE).recordSince(start);
+         if (!held.isComplete()) {
+            tally.shortHolds.increment();
+         }
+      }
+
+      think();
+      if (cart.isEmpty() || random.nextDouble() < this.scenario.abort) {
+         start = System.nanoTime();
+         this.orderService.abort(cart);
+         latencies.get(Step.ABORT).recordSince(start);
+         tally.aborts.increment();
+      } else {
+         start = System.nanoTime();
+         List<InventoryEngine.FillResult> results = this.orderService.placeOrder(cart);
+         latencies.get(Step.PLACE_ORDER).recordSince(start);
+         boolean complete = true;
+         int filled = 0;
+         for (InventoryEngine.FillResult result : results) {
+            this.ordered.addAndGet(Integer.parseInt(result.getUPC()), result.getFilled());
+            complete &= result.isComplete();
+            filled += result.getFilled();
+         }
+         if (filled == 0) {
+            tally.emptyOrders.increment();
+         } else {
+            tally.orders.increment();
+            if (!complete) {
+               tally.shortOrders.increment();
+            }
+         }
+      }
+      latencies.get(Step.SHOPPER).recordSince(shopperStart);
+   }
+
+   private void think() throws InterruptedException {
+      if (this.scenario.thinkMillis > 0) {
+         Thread.sleep(this.scenario.thinkMillis);
+      }
+   }
+
+   private void report(long elapsedNanos) {
+      Tally tally = this.tally;
+      double seconds = elapsedNanos / 1e9;
+      long shoppers = tally.orders.sum() + tally.emptyOrders.sum() + tally.aborts.sum();
+      System.out.printf("%n%d shoppers in %.1f s: %.1f orders/s, %.1f shoppers/s%n",
+              shoppers, seconds, tally.orders.sum() / seconds, shoppers / seconds);
+      System.out.printf("orders %d (%d short, %d with nothing left to fill), aborts %d, errors %d%n",
+              tally.orders.sum(), tally.shortOrders.sum(), tally.emptyOrders.sum(), tally.aborts.sum(),
+              tally.errors.sum());
+      System.out.printf("out of stock %d: wanted all %d, wanted none %d; holds cut short %d%n%n",
+              tally.outOfStock.sum(), tally.wantedAll.sum(), tally.wantedNone.sum(), tally.shortHolds.sum());
+
+      System.out.printf("%-16s %10s %10s %10s %10s %10s%n", "step", "count", "p50 us", "p99 us", "p99.9 us",
+              "max us");
+      for (Map.Entry<Step, LatencyHistogram> step : this.latencies.entrySet()) {
+         LatencyHistogram latency = step.getValue();
+         System.out.printf("%-16s %10d %10.1f %10.1f %10.1f %10.1f%n", step.getKey().label, latency.getCount(),
+                 latency.getPercentile(50) / 1e3, latency.getPercentile(99) / 1e3,
+                 latency.getPercentile(99.9) / 1e3, latency.getMax() / 1e3);
+      }
+      System.out.println();
+   }
+
+   /** Reports how many products the shoppers were told were ordered all of. */
+   private void reportSoldOut() {
+      long soldOut = 0;
+      for (int i = 0; i < this.scenario.products; i++) {
+         soldOut += this.ordered.get(i) == this.scenario.stock ? 1 : 0;
+      }
+      System.out.printf("Products sold out: %d; the most popular had a %.1f%% chance of being picked%n",
+              soldOut, 100 * this.popularity.probabilityOf(0));
+   }
+
+   private static Map<Step, LatencyHistogram> newLatencies() {
+      Map<Step, LatencyHistogram> latencies = new EnumMap<>(Step.class);
+      for (Step step : Step.values()) {
+         latencies.put(step, new LatencyHistogram());
+      }
+      return latencies;
+   }
+
+   private long count(String sql) {
+      EntityManager manager = this.factory.createEntityManager();
+      try {
+         return ((Number) manager.createNativeQuery(sql).getSingleResult()).longValue();
+      } finally {
+         manager.close();
+      }
+   }
+
+   private void update(String sql) {
+      EntityManager manager = this.factory.createEntityManager();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         manager.createNativeQuery(sql).executeUpdate();
+         tx.commit();
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         manager.close();
+      }
+   }
+}
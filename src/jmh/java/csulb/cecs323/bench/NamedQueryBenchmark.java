@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.CustomerSummary;
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.Products;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Query;
+import javax.persistence.TypedQuery;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * The product and customer lookups as the JPQL named queries on Products and Customers, against the
+ * SELECT * native queries they replaced.  The native ones are registered on the factory under their old
+ * names with "Native" in front, with the SQL they had.  Each call opens an EntityManager, creates the
+ * named query, binds its parameters and reads the result, the way OrderService does.  The customer search
+ * has since become a CustomerSummary projection, so it is compared with the native query that read
+ * whole entities.
+ * <p>
+ * Run it with the GC profiler to see what each call allocates as well as how long it takes:
+ * </p>
+ * <pre>
+ *    java -jar target/benchmarks.jar NamedQueryBenchmark -prof gc
+ * </pre>
+ * gc.alloc.rate.norm is the bytes allocated per call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NamedQueryBenchmark {
+   private static final String DATABASE = "named-queries";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final int PRODUCTS = 10_000;
+   private static final int CUSTOMERS = 10_000;
+   private static final int PAGE_SIZE = 20;
+
+   /** Which of the two versions of the queries to run: "jpql" or "native". */
+   @Param({"jpql", "native"})
+   public String queries;
+
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+   private boolean nativeQueries;
+   private long firstCustomerId;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.factory = BenchmarkDatabase.create(DATABASE);
+      this.orderService = new OrderService(this.factory, 1);
+      BenchmarkDatabase.seed(this.orderService, PRODUCTS, CUSTOMERS);
+      this.nativeQueries = this.queries.equals("native");
+
+      EntityManager manager = this.factory.createEntityManager();
+      try {
+         this.firstCustomerId = ((Number) manager.createNativeQuery("SELECT MIN(CUSTOMER_ID) FROM CUSTOMERS")
+                 .getSingleResult()).longValue();
+         addNative(manager, "ReturnProduct", "SELECT * FROM products WHERE UPC = ? ", Products.class);
+         addNative(manager, "GetInventoryPage", "SELECT * FROM PRODUCTS " +
+                 "WHERE units_in_stock > 0 AND UPC > ? ORDER BY UPC", Products.class);
+         addNative(manager, "GetCustomer", "SELECT * FROM CUSTOMERS WHERE customer_id = ?", Customers.class);
+         addNative(manager, "FindCustomersByLastNamePrefix", "SELECT * FROM CUSTOMERS " +
+                 "WHERE last_name >= ? AND last_name < ? AND " +
+                 "(last_name > ? OR first_name > ? OR (first_name = ? AND customer_id > ?)) " +
+                 "ORDER BY last_name, first_name, customer_id",
+                 Customers.class);
+         this.factory.addNamedQuery("NativeStockOnHand", manager.createNativeQuery(
+                 "SELECT units_in_stock - units_held FROM PRODUCTS WHERE UPC = ? "));
+      } finally {
+         manager.close();
+      }
+   }
+
+   private void addNative(EntityManager manager, String name, String sql, Class<?> resultClass) {
+      this.factory.addNamedQuery("Native" + name, manager.createNativeQuery(sql, resultClass));
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      this.orderService.close();
+      BenchmarkDatabase.drop(this.factory, DATABASE);
+   }
+
+   @Benchmark
+   public Products returnProduct() {
+      String upc = BenchmarkDatabase.upc(ThreadLocalRandom.current().nextInt(PRODUCTS));
+      return run(manager -> bind(query(manager, "ReturnProduct", Products.class), 1, "upc", upc)
+              .getSingleResult());
+   }
+
+   @Benchmark
+   public List<Products> getInventoryPage() {
+      String afterUPC = BenchmarkDatabase.upc(ThreadLocalRandom.current().nextInt(PRODUCTS - PAGE_SIZE));
+      return run(manager -> bind(query(manager, "GetInventoryPage", Products.class), 1, "afterUPC", afterUPC)
+              .setMaxResults(PAGE_SIZE).getResultList());
+   }
+
+   @Benchmark
+   public Integer stockOnHand() {
+      String upc = BenchmarkDatabase.upc(ThreadLocalRandom.current().nextInt(PRODUCTS));
+      return run(manager -> {
+         Query query = manager.createNamedQuery(this.nativeQueries ? "NativeStockOnHand" : "StockOnHand");
+         return ((Number) bind(query, 1, "upc", upc).getSingleResult()).intValue();
+      });
+   }
+
+   @Benchmark
+   public Customers getCustomer() {
+      long customerId = this.firstCustomerId + ThreadLocalRandom.current().nextInt(CUSTOMERS);
+      return run(manager -> bind(query(manager, "GetCustomer", Customers.class), 1, "customerId", customerId)
+              .getSingleResult());
+   }
+
+   @Benchmark
+   public List<?> findCustomersByLastNamePrefix() {
+      String prefix = "Last" + ThreadLocalRandom.current().nextInt(1000);
+      return run(manager -> {
+         Class<?> resultClass = this.nativeQueries ? Customers.class : CustomerSummary.class;
+         TypedQuery<?> query = query(manager, "FindCustomersByLastNamePrefix", resultClass);
+         bind(query, 1, "afterLast", prefix);
+         bind(query, 2, "prefixEnd", prefix + Character.MAX_VALUE);
+         bind(query, 3, "afterLast", prefix);
+         bind(query, 4, "afterFirst", "");
+         bind(query, 5, "afterFirst", "");
+         return bind(query, 6, "afterId", Long.MIN_VALUE).setMaxResults(PAGE_SIZE).getResultList();
+      });
+   }
+
+   private <T> TypedQuery<T> query(EntityManager manager, String name, Class<T> resultClass) {
+      return manager.createNamedQuery(this.nativeQueries ? "Native" + name : name, resultClass);
+   }
+
+   /**
+    * Binds one parameter: by position on the native queries and by name on the JPQL ones.
+    */
+   private <Q extends Query> Q bind(Q query, int position, String name, Object value) {
+      if (this.nativeQueries) {
+         query.setParameter(position, value);
+      } else {
+         query.setParameter(name, value);
+      }
+      return query;
+   }
+
+   private <T> T run(Function<EntityManager, T> lookup) {
+      EntityManager manager = this.factory.createEntityManager();
+      try {
+         return lookup.apply(manager);
+      } finally {
+         manager.close();
+      }
+   }
+}
@@ -0,0 +1,114 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderHistoryPage;
+import csulb.cecs323.app.OrderService;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Latency of reading a customer's order history, at 10 million order lines by default.
+ * <p>
+ * The orders are spread evenly over the customers, LINES_PER_ORDER lines each, one day apart.  They are
+ * written by BenchmarkDatabase.seedOrders straight through JDBC.  The
+ * database is on disk in a temporary directory, as 10 million lines do not fit in memory.  Building it
+ * takes several minutes; pass -p orderLineCount=1000000 for a quicker run.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OrderHistoryBenchmark {
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final int LINES_PER_ORDER = 5;
+
+   /** The date of every customer's first order. */
+   private static final LocalDateTime FIRST_ORDER = LocalDateTime.of(2020, 1, 1, 9, 30);
+
+   /** How many order lines there are in all. */
+   @Param("10000000")
+   public int orderLineCount;
+
+   /** How many customers the orders are spread over. */
+   @Param("100000")
+   public int customerCount;
+
+   /** How many products there are to order. */
+   @Param("10000")
+   public int catalogSize;
+
+   /** How many orders make a page of history. */
+   @Param("10")
+   public int pageSize;
+
+   private Path directory;
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+   private long firstCustomerId;
+   private int ordersPerCustomer;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException, SQLException {
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.directory = Files.createTempDirectory("order-history");
+      this.factory = BenchmarkDatabase.createOnDisk(this.directory);
+      this.orderService = new OrderService(this.factory, 1);
+      BenchmarkDatabase.seed(this.orderService, this.catalogSize, this.customerCount);
+      this.ordersPerCustomer = Math.max(this.orderLineCount / (this.customerCount * LINES_PER_ORDER), 1);
+
+      try (Connection connection = DriverManager.getConnection(BenchmarkDatabase.url(this.directory))) {
+         this.firstCustomerId = BenchmarkDatabase.seedOrders(connection, this.customerCount,
+                 this.ordersPerCustomer, LINES_PER_ORDER, this.catalogSize, FIRST_ORDER);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws IOException {
+      this.orderService.close();
+      BenchmarkDatabase.dropOnDisk(this.factory, this.directory);
+   }
+
+   private long randomCustomer() {
+      return this.firstCustomerId + ThreadLocalRandom.current().nextInt(this.customerCount);
+   }
+
+   /** The most recent orders of a random customer: the "last N orders" that customer service asks for. */
+   @Benchmark
+   public OrderHistoryPage newestPage() {
+      return this.orderService.getOrderHistory(randomCustomer(), null, this.pageSize);
+   }
+
+   /** A page from the middle of a random customer's history, as reached by paging back. */
+   @Benchmark
+   public OrderHistoryPage olderPage() {
+      return this.orderService.getOrderHistory(randomCustomer(),
+              OrderHistoryPage.Position.before(FIRST_ORDER.plusDays(this.ordersPerCustomer / 2)), this.pageSize);
+   }
+}
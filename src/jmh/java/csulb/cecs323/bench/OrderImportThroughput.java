@@ -0,0 +1,188 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderImport;
+import csulb.cecs323.app.OrderService;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Imports a generated order file into an embedded in-memory Derby database with OrderImport and reports
+ * orders per second.  A hundred of the products have little stock, so orders for them run short; a few
+ * orders are for customers or products that do not exist, and a few lines cannot be parsed or have a
+ * negative price.  Run it with
+ * <pre>
+ *    java -cp target/benchmarks.jar csulb.cecs323.bench.OrderImportThroughput [orders [threads [batchSize]]]
+ * </pre>
+ * threads may be a list, such as 1,2,4,8, to import the same file once with each number of workers, with
+ * the orders deleted and the stock put back in between, after one import to warm up, and report the best
+ * throughput.  Workers only add throughput where there are cores for them and for Derby.  OrderImportTest
+ * checks that the orders are placed as reported.
+ */
+public class OrderImportThroughput {
+   private static final String DATABASE = "order-import-throughput";
+
+   /** Held here so that the level set on them is not lost if the loggers are garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+   private static final Logger IMPORT_LOGGER = Logger.getLogger(OrderImport.class.getName());
+
+   private static final int PRODUCTS = 10_000;
+   private static final int CUSTOMERS = 50_000;
+
+   /** The products numbered below this have only SHORT_STOCK units, so that orders for them run short. */
+   private static final int SHORT_PRODUCTS = 100;
+   private static final int SHORT_STOCK = 200;
+
+   private final EntityManagerFactory factory;
+
+   private OrderImportThroughput(EntityManagerFactory factory) {
+      this.factory = factory;
+   }
+
+   public static void main(String[] args) throws Exception {
+      int orders = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+      String threads = args.length > 1 ? args[1] : String.valueOf(Runtime.getRuntime().availableProcessors());
+      int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : OrderImport.DEFAULT_BATCH_SIZE;
+      APPLICATION_LOGGER.setLevel(Level.WARNING);
+      IMPORT_LOGGER.setLevel(Level.WARNING);
+
+      Path directory = Files.createTempDirectory("order-import");
+      EntityManagerFactory factory = BenchmarkDatabase.create(DATABASE);
+      OrderImportThroughput measurement = new OrderImportThroughput(factory);
+      try {
+         OrderService orderService = new OrderService(factory, 1);
+         BenchmarkDatabase.seed(orderService, PRODUCTS, CUSTOMERS);
+         orderService.close();
+         measurement.run(directory, orders, threads, batchSize);
+      } finally {
+         BenchmarkDatabase.drop(factory, DATABASE);
+         BenchmarkDatabase.dropDirectory(directory);
+      }
+   }
+
+   /** Imports the same file with each number of workers in threads, a comma separated list. */
+   private void run(Path directory, int orders, String threads, int batchSize)
+           throws IOException, SQLException, InterruptedException {
+      long firstCustomerId = count("SELECT MIN(CUSTOMER_ID) FROM CUSTOMERS");
+      Path file = directory.resolve("orders.csv");
+      long lines = write(file, orders, firstCustomerId);
+
+      double best = 0;
+      int bestThreads = 0;
+      String[] counts = threads.split(",");
+      // The first import pays for the JIT, so it is run once more before the ones that are compared.
+      for (int i = counts.length > 1 ? -1 : 0; i < counts.length; i++) {
+         int workers = Integer.parseInt(counts[Math.max(i, 0)].trim());
+         if (i < 0) {
+            System.out.println("Warming up:");
+         }
+         update("DELETE FROM ORDERLINES");
+         update("DELETE FROM ORDERS");
+         update("UPDATE PRODUCTS SET UNITS_IN_STOCK = CASE WHEN UPC < '" + BenchmarkDatabase.upc(SHORT_PRODUCTS) +
+                 "' THEN " + SHORT_STOCK + " ELSE " + BenchmarkDatabase.STOCK + " END");
+         double rate = importOnce(directory, file, lines, workers, batchSize);
+         if (i >= 0 && rate > best) {
+            best = rate;
+            bestThreads = workers;
+         }
+      }
+      System.out.printf("Best %.0f orders/s with %d workers on %d cores%n", best, bestThreads,
+              Runtime.getRuntime().availableProcessors());
+   }
+
+   /**
+    * Imports the file with a number of workers into a database with no orders.
+    * @return     The orders imported per second.
+    */
+   private double importOnce(Path directory, Path file, long lines, int threads, int batchSize)
+           throws IOException, SQLException, InterruptedException {
+      OrderImport importer = new OrderImport("jdbc:derby:memory:" + DATABASE, null, null, threads,
+              batchSize);
+      long start = System.nanoTime();
+      long read = importer.importOrders(file, directory.resolve("results.csv"));
+      double seconds = (System.nanoTime() - start) / 1e9;
+      System.out.printf("%d orders (%d lines) on %d threads in %.2f s: %.0f orders/s; %d accepted, " +
+                      "%d partially filled, %d rejected%n", read, lines, threads, seconds, read / seconds,
+              importer.getOrdersAccepted(), importer.getOrdersPartial(), importer.getOrdersRejected());
+      return read / seconds;
+   }
+
+   /**
+    * Writes an order file.  One order in a thousand is for a customer that does not exist, one line in a
+    * thousand is for a product that does not exist, and one in ten thousand cannot be parsed or has a price
+    * of -0.01, which must be rejected rather than taken for the list price.
+    * @return     The number of lines written, not counting the header.
+    */
+   private static long write(Path file, int orders, long firstCustomerId) throws IOException {
+      Random random = new Random(42);
+      long lines = 0;
+      try (BufferedWriter out = Files.newBufferedWriter(file)) {
+         out.write("customer_id,UPC,quantity,unit_price");
+         out.newLine();
+         for (int i = 0; i < orders; i++) {
+            long customerId = random.nextInt(1000) == 0 ? -1 : firstCustomerId + random.nextInt(CUSTOMERS);
+            int count = 1 + random.nextInt(4);
+            for (int j = 0; j < count; j++) {
+               String upc = random.nextInt(1000) == 0 ? "NOSUCHUPC"
+                       : BenchmarkDatabase.upc(random.nextInt(10) == 0 ? random.nextInt(SHORT_PRODUCTS)
+                               : random.nextInt(PRODUCTS));
+               String price = random.nextBoolean() ? "" : "," + (1 + random.nextInt(100)) + ".99";
+               out.write(customerId + "," + upc + "," + (1 + random.nextInt(5)) + price);
+               out.newLine();
+               lines++;
+               if (random.nextInt(10_000) == 0) {
+                  out.write(customerId + (random.nextBoolean() ? ",not a quantity" : "," + upc + ",1,-0.01"));
+                  out.newLine();
+                  lines++;
+               }
+            }
+         }
+      }
+      return lines;
+   }
+
+   private long count(String sql) {
+      EntityManager manager = this.factory.createEntityManager();
+      try {
+         return ((Number) manager.createNativeQuery(sql).getSingleResult()).longValue();
+      } finally {
+         manager.close();
+      }
+   }
+
+   private void update(String sql) {
+      EntityManager manager = this.factory.createEntityManager();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         manager.createNativeQuery(sql).executeUpdate();
+         tx.commit();
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         manager.close();
+      }
+   }
+}
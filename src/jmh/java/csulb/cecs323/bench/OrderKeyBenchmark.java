@@ -0,0 +1,266 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.Orders;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how fast orders can be inserted with the two ways Orders has been keyed:
+ * <ul>
+ *    <li>composite: the old (order_date, customer) key, which every ORDERLINES row and index repeats.</li>
+ *    <li>surrogate: a long order_id, taken from a block of ids reserved in the SEQUENCE table.</li>
+ * </ul>
+ * The old mapping is gone from the entities, so both schemes are written straight through JDBC to tables
+ * built the way EclipseLink generates them for each mapping.  Each operation is one transaction that
+ * inserts an order and its lines, from several threads at once.  Orders are dated to the millisecond, and
+ * under the composite key two orders for the same customer in the same millisecond collide; the
+ * collisions counter shows how often.  Try -p idBlockSize=1 to see the cost of taking one id per order:
+ * <pre>
+ *    java -jar target/benchmarks.jar OrderKey -p idBlockSize=1,1000
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class OrderKeyBenchmark {
+   private static final String URL = "jdbc:derby:memory:order-keys";
+
+   private static final int LINES_PER_ORDER = 5;
+
+   private static final String[] COMMON_DDL = {
+           "CREATE TABLE CUSTOMERS (CUSTOMER_ID BIGINT NOT NULL PRIMARY KEY)",
+           "CREATE TABLE PRODUCTS (UPC VARCHAR(30) NOT NULL PRIMARY KEY)",
+           "CREATE TABLE SEQUENCE (SEQ_NAME VARCHAR(50) NOT NULL PRIMARY KEY, SEQ_COUNT BIGINT)",
+           "INSERT INTO SEQUENCE VALUES ('" + Orders.ID_SEQUENCE + "', 0)"
+   };
+
+   private static final String[] COMPOSITE_DDL = {
+           "CREATE TABLE ORDERS (ORDER_DATE TIMESTAMP NOT NULL, CUSTOMER_ID BIGINT NOT NULL, " +
+                   "SOLD_BY VARCHAR(128) NOT NULL, PRIMARY KEY (ORDER_DATE, CUSTOMER_ID), " +
+                   "FOREIGN KEY (CUSTOMER_ID) REFERENCES CUSTOMERS (CUSTOMER_ID))",
+           "CREATE INDEX ORDERS_CUSTOMER_DATE ON ORDERS (CUSTOMER_ID, ORDER_DATE DESC)",
+           "CREATE TABLE ORDERLINES (ORDER_DATE TIMESTAMP NOT NULL, CUSTOMER_ID BIGINT NOT NULL, " +
+                   "PRODUCT_UPC VARCHAR(30) NOT NULL, QUANTITY INTEGER NOT NULL, UNIT_SALE_PRICE BIGINT NOT NULL, " +
+                   "PRIMARY KEY (ORDER_DATE, CUSTOMER_ID, PRODUCT_UPC), " +
+                   "FOREIGN KEY (ORDER_DATE, CUSTOMER_ID) REFERENCES ORDERS (ORDER_DATE, CUSTOMER_ID), " +
+                   "FOREIGN KEY (PRODUCT_UPC) REFERENCES PRODUCTS (UPC))",
+           "CREATE INDEX ORDERLINES_ORDER ON ORDERLINES (CUSTOMER_ID, ORDER_DATE)",
+           "CREATE INDEX ORDERLINES_PRODUCT ON ORDERLINES (PRODUCT_UPC)"
+   };
+
+   private static final String[] SURROGATE_DDL = {
+           "CREATE TABLE ORDERS (ORDER_ID BIGINT NOT NULL PRIMARY KEY, CUSTOMER_ID BIGINT NOT NULL, " +
+                   "ORDER_DATE TIMESTAMP NOT NULL, SOLD_BY VARCHAR(128) NOT NULL, " +
+                   "FOREIGN KEY (CUSTOMER_ID) REFERENCES CUSTOMERS (CUSTOMER_ID))",
+           "CREATE INDEX ORDERS_CUSTOMER_DATE ON ORDERS (CUSTOMER_ID, ORDER_DATE DESC, ORDER_ID DESC)",
+           "CREATE TABLE ORDERLINES (ORDER_ID BIGINT NOT NULL, PRODUCT_UPC VARCHAR(30) NOT NULL, " +
+                   "QUANTITY INTEGER NOT NULL, UNIT_SALE_PRICE BIGINT NOT NULL, " +
+                   "PRIMARY KEY (ORDER_ID, PRODUCT_UPC), " +
+                   "FOREIGN KEY (ORDER_ID) REFERENCES ORDERS (ORDER_ID), " +
+                   "FOREIGN KEY (PRODUCT_UPC) REFERENCES PRODUCTS (UPC))",
+           "CREATE INDEX ORDERLINES_PRODUCT ON ORDERLINES (PRODUCT_UPC)"
+   };
+
+   /** Which key the ORDERS and ORDERLINES tables have. */
+   @Param({"composite", "surrogate"})
+   public String keys;
+
+   /** How many order ids a session reserves at a time.  Only used by the surrogate key. */
+   @Param("1000")
+   public int idBlockSize;
+
+   /** How many customers place orders.  Fewer customers means more composite key collisions. */
+   @Param("1000")
+   public int customerCount;
+
+   /** How many products are in the catalog. */
+   @Param("10000")
+   public int catalogSize;
+
+   @Setup(Level.Trial)
+   public void setUp() throws SQLException {
+      try (Connection connection = DriverManager.getConnection(URL + ";create=true");
+           Statement statement = connection.createStatement()) {
+         connection.setAutoCommit(false);
+         for (String ddl : COMMON_DDL) {
+            statement.execute(ddl);
+         }
+         for (String ddl : "composite".equals(this.keys) ? COMPOSITE_DDL : SURROGATE_DDL) {
+            statement.execute(ddl);
+         }
+         try (PreparedStatement customer = connection.prepareStatement("INSERT INTO CUSTOMERS VALUES (?)")) {
+            for (int i = 0; i < this.customerCount; i++) {
+               customer.setLong(1, i);
+               customer.addBatch();
+            }
+            customer.executeBatch();
+         }
+         try (PreparedStatement product = connection.prepareStatement("INSERT INTO PRODUCTS VALUES (?)")) {
+            for (int i = 0; i < this.catalogSize; i++) {
+               product.setString(1, BenchmarkDatabase.upc(i));
+               product.addBatch();
+            }
+            product.executeBatch();
+         }
+         connection.commit();
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      try {
+         DriverManager.getConnection(URL + ";drop=true");
+      } catch (SQLException e) {
+         // Derby always reports a dropped database with an SQLException.
+      }
+   }
+
+   /**
+    * One client's connection and statements, and the block of order ids it is working through.
+    */
+   @State(Scope.Thread)
+   public static class Session {
+      private Connection connection;
+      /** Reserves blocks of ids and commits straight away, like EclipseLink's sequence connection pool. */
+      private Connection sequenceConnection;
+      private PreparedStatement insertOrder;
+      private PreparedStatement insertLine;
+      private PreparedStatement nextBlock;
+      private PreparedStatement readBlock;
+      private boolean composite;
+      private int idBlockSize;
+      private long nextId = 1;
+      private long lastId = 0;
+
+      @Setup(Level.Trial)
+      public void setUp(OrderKeyBenchmark benchmark) throws SQLException {
+         this.composite = "composite".equals(benchmark.keys);
+         this.idBlockSize = benchmark.idBlockSize;
+         this.connection = DriverManager.getConnection(URL);
+         this.connection.setAutoCommit(false);
+         if (this.composite) {
+            this.insertOrder = this.connection.prepareStatement(
+                    "INSERT INTO ORDERS (ORDER_DATE, CUSTOMER_ID, SOLD_BY) VALUES (?, ?, ?)");
+            this.insertLine = this.connection.prepareStatement(
+                    "INSERT INTO ORDERLINES (ORDER_DATE, CUSTOMER_ID, PRODUCT_UPC, QUANTITY, UNIT_SALE_PRICE) " +
+                            "VALUES (?, ?, ?, ?, ?)");
+         } else {
+            this.insertOrder = this.connection.prepareStatement(
+                    "INSERT INTO ORDERS (ORDER_ID, CUSTOMER_ID, ORDER_DATE, SOLD_BY) VALUES (?, ?, ?, ?)");
+            this.insertLine = this.connection.prepareStatement(
+                    "INSERT INTO ORDERLINES (ORDER_ID, PRODUCT_UPC, QUANTITY, UNIT_SALE_PRICE) VALUES (?, ?, ?, ?)");
+            this.sequenceConnection = DriverManager.getConnection(URL);
+            this.sequenceConnection.setAutoCommit(false);
+            this.nextBlock = this.sequenceConnection.prepareStatement(
+                    "UPDATE SEQUENCE SET SEQ_COUNT = SEQ_COUNT + ? WHERE SEQ_NAME = ?");
+            this.readBlock = this.sequenceConnection.prepareStatement(
+                    "SELECT SEQ_COUNT FROM SEQUENCE WHERE SEQ_NAME = ?");
+         }
+      }
+
+      @TearDown(Level.Trial)
+      public void tearDown() throws SQLException {
+         this.connection.close();
+         if (this.sequenceConnection != null) {
+            this.sequenceConnection.close();
+         }
+      }
+
+      private long nextOrderId() throws SQLException {
+         if (this.nextId > this.lastId) {
+            this.nextBlock.setInt(1, this.idBlockSize);
+            this.nextBlock.setString(2, Orders.ID_SEQUENCE);
+            this.nextBlock.executeUpdate();
+            this.readBlock.setString(1, Orders.ID_SEQUENCE);
+            try (ResultSet last = this.readBlock.executeQuery()) {
+               last.next();
+               this.lastId = last.getLong(1);
+            }
+            this.sequenceConnection.commit();
+            this.nextId = this.lastId - this.idBlockSize + 1;
+         }
+         return this.nextId++;
+      }
+   }
+
+   /** How many orders could not be inserted because their key was already taken. */
+   @State(Scope.Thread)
+   @AuxCounters(AuxCounters.Type.EVENTS)
+   public static class Outcome {
+      public long collisions;
+   }
+
+   /** Places one order of LINES_PER_ORDER different products for a random customer, in one transaction. */
+   @Benchmark
+   public void insertOrder(Session session, Outcome outcome) throws SQLException {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long customerId = random.nextInt(this.customerCount);
+      Timestamp orderDate = Timestamp.valueOf(LocalDateTime.now().truncatedTo(ChronoUnit.MILLIS));
+      int firstProduct = random.nextInt(this.catalogSize - LINES_PER_ORDER);
+      try {
+         if (session.composite) {
+            session.insertOrder.setTimestamp(1, orderDate);
+            session.insertOrder.setLong(2, customerId);
+            session.insertOrder.setString(3, OrderService.DEFAULT_SOLD_BY);
+            session.insertOrder.executeUpdate();
+            for (int i = 0; i < LINES_PER_ORDER; i++) {
+               session.insertLine.setTimestamp(1, orderDate);
+               session.insertLine.setLong(2, customerId);
+               session.insertLine.setString(3, BenchmarkDatabase.upc(firstProduct + i));
+               session.insertLine.setInt(4, 1);
+               session.insertLine.setLong(5, 999);
+               session.insertLine.addBatch();
+            }
+         } else {
+            long orderId = session.nextOrderId();
+            session.insertOrder.setLong(1, orderId);
+            session.insertOrder.setLong(2, customerId);
+            session.insertOrder.setTimestamp(3, orderDate);
+            session.insertOrder.setString(4, OrderService.DEFAULT_SOLD_BY);
+            session.insertOrder.executeUpdate();
+            for (int i = 0; i < LINES_PER_ORDER; i++) {
+               session.insertLine.setLong(1, orderId);
+               session.insertLine.setString(2, BenchmarkDatabase.upc(firstProduct + i));
+               session.insertLine.setInt(3, 1);
+               session.insertLine.setLong(4, 999);
+               session.insertLine.addBatch();
+            }
+         }
+         session.insertLine.executeBatch();
+         session.connection.commit();
+      } catch (SQLIntegrityConstraintViolationException e) {
+         session.insertLine.clearBatch();
+         session.connection.rollback();
+         outcome.collisions++;
+      }
+   }
+}
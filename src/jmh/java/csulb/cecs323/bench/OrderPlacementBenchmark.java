@@ -0,0 +1,155 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Cart;
+import csulb.cecs323.app.CustomerOrders;
+import csulb.cecs323.app.InventoryEngine;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.CustomerSummary;
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.Products;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Benchmarks for the steps a customer goes through to place an order, run against an in-memory Derby
+ * database.  The cart itself, which never touches the database, is covered by CartBenchmark.  The catalog
+ * and customer sizes are JMH parameters, for example:
+ * <pre>
+ *    java -jar target/benchmarks.jar OrderPlacement -p catalogSize=100000 -rf json -rff target/jmh-result.json
+ * </pre>
+ * getInventory, getInventoryFirstPage and streamInventory are the three ways of reading the catalog; run them
+ * with {@code -prof gc} to compare the bytes each allocates as well.  InventoryFootprint reports the heap each
+ * keeps.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderPlacementBenchmark {
+   private static final String DATABASE = "order-placement";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   /** How many products are in the catalog. */
+   @Param("10000")
+   public int catalogSize;
+
+   /** How many customers there are. */
+   @Param("10000")
+   public int customerCount;
+
+   /** How many products are written by each createEntity and createEntityBatched invocation. */
+   @Param("1000")
+   public int batchSize;
+
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+   /** The number of the next product that createEntity or createEntityBatched writes. */
+   private int nextProduct;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      // createEntityBatched logs its rows/sec on every call.
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.factory = BenchmarkDatabase.create(DATABASE);
+      this.orderService = new OrderService(this.factory, 1);
+      BenchmarkDatabase.seed(this.orderService, this.catalogSize, this.customerCount);
+      this.nextProduct = this.catalogSize;
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      this.orderService.close();
+      BenchmarkDatabase.drop(this.factory, DATABASE);
+   }
+
+   private String randomUPC() {
+      return BenchmarkDatabase.upc(ThreadLocalRandom.current().nextInt(this.catalogSize));
+   }
+
+   @Benchmark
+   public Products getProduct() {
+      return this.orderService.getProduct(randomUPC());
+   }
+
+   @Benchmark
+   public boolean checkInStock() {
+      return this.orderService.checkInStock(randomUPC(), 1);
+   }
+
+   @Benchmark
+   public List<Products> getInventory() {
+      return this.orderService.getInventory();
+   }
+
+   @Benchmark
+   public List<Products> getInventoryFirstPage() {
+      return this.orderService.getInventoryPage(null, CustomerOrders.INVENTORY_PAGE_SIZE);
+   }
+
+   /** Walks the whole in-stock catalog a page at a time, as a report or an export would. */
+   @Benchmark
+   public long streamInventory(Blackhole blackhole) {
+      return this.orderService.forEachInStock(CustomerOrders.INVENTORY_PAGE_SIZE, blackhole::consume);
+   }
+
+   @Benchmark
+   public List<CustomerSummary> findCustomersByLastNamePrefix() {
+      return this.orderService.findCustomersByLastNamePrefix("Last" + ThreadLocalRandom.current().nextInt(1000),
+              null, CustomerOrders.CUSTOMER_PAGE_SIZE);
+   }
+
+   /** Writes a batch of new products with createEntity, which persists them all before it flushes. */
+   @Benchmark
+   public void createEntity() {
+      this.orderService.createEntity(nextProducts());
+   }
+
+   /** Writes a batch of new products with createEntityBatched, flushing and clearing every chunk. */
+   @Benchmark
+   public void createEntityBatched() {
+      this.orderService.createEntityBatched(nextProducts(), OrderService.DEFAULT_CHUNK_SIZE);
+   }
+
+   /** @return batchSize new products, numbered on from the ones already written. */
+   private List<Products> nextProducts() {
+      List<Products> products = new ArrayList<>(this.batchSize);
+      for (int i = 0; i < this.batchSize; i++) {
+         products.add(BenchmarkDatabase.product(this.nextProduct++));
+      }
+      return products;
+   }
+
+   /** The whole "place an order" transaction for three random products. */
+   @Benchmark
+   public List<InventoryEngine.FillResult> placeOrder() {
+      Customers buyer = this.orderService.getCustomer(1 + ThreadLocalRandom.current().nextInt(this.customerCount));
+      Cart order = this.orderService.openCart(buyer);
+      for (int i = 0; i < 3; i++) {
+         this.orderService.addLine(order, randomUPC(), 1);
+      }
+      return this.orderService.placeOrder(order);
+   }
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Cart;
+import csulb.cecs323.app.ConnectionPoolCustomizer;
+import csulb.cecs323.app.MeteredConnectionPool;
+import csulb.cecs323.app.OrderService;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Orders placed per second through OrderService.submit, for different sizes of the service's thread pool,
+ * that is, for 1 to 64 buyers at once.
+ * Each invocation places a batch of orders concurrently and waits for all of them, so the score is in
+ * orders per second.  With more service threads than the connection pools allow connections, threads
+ * start waiting for connections; the pool statistics printed at the end of each trial show how long.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OrderServiceThroughputBenchmark {
+   private static final String DATABASE = "order-service-throughput";
+
+   /** How many orders each invocation places at once. */
+   private static final int ORDERS_PER_INVOCATION = 64;
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   /** The number of threads the OrderService runs orders on. */
+   @Param({"1", "2", "4", "8", "32", "64"})
+   public int serviceThreads;
+
+   /** How many products are in the catalog. */
+   @Param("10000")
+   public int catalogSize;
+
+   /** How many customers there are. */
+   @Param("10000")
+   public int customerCount;
+
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.factory = BenchmarkDatabase.create(DATABASE);
+      this.orderService = new OrderService(this.factory, this.serviceThreads);
+      BenchmarkDatabase.seed(this.orderService, this.catalogSize, this.customerCount);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      for (MeteredConnectionPool pool : ConnectionPoolCustomizer.getPools().values()) {
+         System.out.println(pool);
+      }
+      this.orderService.close();
+      BenchmarkDatabase.drop(this.factory, DATABASE);
+   }
+
+   /** One shopper: pick a customer, put three random products in the cart and place the order. */
+   private Object placeOneOrder() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Cart cart = this.orderService.openCart(this.orderService.getCustomer(1 + random.nextInt(this.customerCount)));
+      for (int i = 0; i < 3; i++) {
+         this.orderService.addLine(cart, BenchmarkDatabase.upc(random.nextInt(this.catalogSize)), 1);
+      }
+      return this.orderService.placeOrder(cart);
+   }
+
+   @Benchmark
+   @OperationsPerInvocation(ORDERS_PER_INVOCATION)
+   public void placeOrders() {
+      CompletableFuture<?>[] orders = new CompletableFuture<?>[ORDERS_PER_INVOCATION];
+      for (int i = 0; i < orders.length; i++) {
+         orders[i] = this.orderService.submit(this::placeOneOrder);
+      }
+      CompletableFuture.allOf(orders).join();
+   }
+}
@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.model.ProductSummary;
+import csulb.cecs323.model.Products;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.TypedQuery;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * What it costs to keep the whole catalog in one persistence context, read three ways: as managed Products
+ * entities (GetInventoryPage), as read-only entities (the same query with the read-only hint), and as
+ * ProductSummary projections (GetInventorySummaryPage).  For each it reports
+ * <ul>
+ *    <li>how long reading every product a page at a time took;</li>
+ *    <li>the heap still in use afterwards, over what was in use before, with the results and the
+ *    EntityManager still live, which includes any copies in EclipseLink's shared cache;</li>
+ *    <li>how long the transaction the products were read in took to commit, which is when EclipseLink
+ *    looks through the persistence context for changes to write.  Nothing was changed.</li>
+ * </ul>
+ * Each way is run twice and the second run reported, so that the first pays for the JIT.  The shared cache
+ * is emptied before each run.  Run it with
+ * <pre>
+ *    java -cp target/benchmarks.jar csulb.cecs323.bench.ProjectionFootprint [products [pageSize]]
+ * </pre>
+ */
+public class ProjectionFootprint {
+   private static final String DATABASE = "projection-footprint";
+
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+   private enum Mode {
+      ENTITIES("managed entities"), READ_ONLY("read-only entities"), SUMMARIES("ProductSummary");
+
+      private final String label;
+
+      Mode(String label) {
+         this.label = label;
+      }
+   }
+
+   public static void main(String[] args) {
+      int products = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+      int pageSize = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+      APPLICATION_LOGGER.setLevel(Level.WARNING);
+
+      EntityManagerFactory factory = BenchmarkDatabase.create(DATABASE);
+      try {
+         OrderService orderService = new OrderService(factory, 1);
+         BenchmarkDatabase.seed(orderService, products, 1);
+         orderService.close();
+
+         System.out.printf("%d products, read %d at a time%n", products, pageSize);
+         System.out.printf("%-20s %10s %14s %12s %12s%n", "read as", "read ms", "retained KB", "bytes/row",
+                 "commit ms");
+         for (Mode mode : Mode.values()) {
+            run(factory, mode, pageSize);
+            System.out.println(run(factory, mode, pageSize));
+         }
+      } finally {
+         BenchmarkDatabase.drop(factory, DATABASE);
+      }
+   }
+
+   /**
+    * Reads every in-stock product into one persistence context and commits the transaction it was read in.
+    * @return     A line of the report.
+    */
+   private static String run(EntityManagerFactory factory, Mode mode, int pageSize) {
+      factory.getCache().evictAll();
+      long before = usedHeap();
+
+      EntityManager manager = factory.createEntityManager();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         long start = System.nanoTime();
+         List<Object> read = new ArrayList<>();
+         String afterUPC = "";
+         while (true) {
+            List<?> page = page(manager, mode, afterUPC, pageSize).getResultList();
+            read.addAll(page);
+            if (page.size() < pageSize) {
+               break;
+            }
+            Object last = page.get(page.size() - 1);
+            afterUPC = last instanceof Products ? ((Products) last).getUPC() : ((ProductSummary) last).getUPC();
+         }
+         double readMillis = (System.nanoTime() - start) / 1e6;
+
+         long retained = usedHeap() - before;
+
+         start = System.nanoTime();
+         tx.commit();
+         double commitMillis = (System.nanoTime() - start) / 1e6;
+
+         return String.format("%-20s %10.0f %14d %12d %12.1f", mode.label, readMillis, retained / 1024,
+                 retained / read.size(), commitMillis);
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         manager.close();
+      }
+   }
+
+   private static TypedQuery<?> page(EntityManager manager, Mode mode, String afterUPC, int pageSize) {
+      TypedQuery<?> query = mode == Mode.SUMMARIES
+              ? manager.createNamedQuery("GetInventorySummaryPage", ProductSummary.class)
+              : manager.createNamedQuery("GetInventoryPage", Products.class);
+      if (mode == Mode.READ_ONLY) {
+         query.setHint(QueryHints.READ_ONLY, HintValues.TRUE);
+      }
+      return query.setParameter("afterUPC", afterUPC).setMaxResults(pageSize);
+   }
+
+   /** @return The bytes of heap in use once the garbage has been collected. */
+   private static long usedHeap() {
+      for (int i = 0; i < 3; i++) {
+         System.gc();
+      }
+      return MEMORY.getHeapMemoryUsage().getUsed();
+   }
+}
@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Startup;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Time from launching a JVM to it serving its first getInventory, in the development and production
+ * profiles, with and without an AppCDS archive.  Every invocation starts a new JVM running StartupProbe
+ * against an on-disk database in a temporary directory, so the score includes JVM startup, class loading,
+ * deploying the persistence unit and, in the development profile, recreating the schema.
+ * <p>
+ * The AppCDS archive is made in the trial set up by running the probe once with -XX:ArchiveClassesAtExit,
+ * which needs JDK 13 or later.  The probe is run from the benchmarks jar, which is also what the archive
+ * covers.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StartupBenchmark {
+   @Param({Startup.DEVELOPMENT, Startup.PRODUCTION})
+   public String profile;
+
+   /** Whether the probe runs with an AppCDS archive of the application and EclipseLink classes. */
+   @Param({"false", "true"})
+   public boolean appCds;
+
+   private Path directory;
+   private List<String> command;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException, InterruptedException {
+      this.directory = Files.createTempDirectory("startup-benchmark");
+      Path archive = this.directory.resolve("app.jsa");
+
+      // The production profile needs the tables to be there already.
+      run(probe(Startup.DEVELOPMENT, null));
+      this.command = probe(this.profile, null);
+      if (this.appCds) {
+         run(probe(this.profile, "-XX:ArchiveClassesAtExit=" + archive));
+         this.command = probe(this.profile, "-XX:SharedArchiveFile=" + archive);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws IOException {
+      try (Stream<Path> paths = Files.walk(this.directory)) {
+         paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+      }
+   }
+
+   @Benchmark
+   public void launchToFirstInventory() throws IOException, InterruptedException {
+      run(this.command);
+   }
+
+   /**
+    * @param profile    The profile to start the application in.
+    * @param option     An extra JVM option, or null.
+    * @return           The command that runs StartupProbe in a new JVM.
+    */
+   private List<String> probe(String profile, String option) {
+      List<String> command = new ArrayList<>();
+      command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+      if (option != null) {
+         command.add(option);
+      }
+      command.add("-D" + Startup.PROFILE_PROPERTY + "=" + profile);
+      command.add("-Djavax.persistence.jdbc.url=jdbc:derby:" + this.directory.resolve("database") + ";create=true");
+      command.add("-Declipselink.logging.level=OFF");
+      command.add("-cp");
+      command.add(absoluteClassPath());
+      command.add(StartupProbe.class.getName());
+      return command;
+   }
+
+   private void run(List<String> command) throws IOException, InterruptedException {
+      Process process = new ProcessBuilder(command)
+              .directory(this.directory.toFile())
+              .redirectErrorStream(true)
+              .redirectOutput(this.directory.resolve("probe.log").toFile())
+              .start();
+      int status = process.waitFor();
+      if (status != 0) {
+         throw new IllegalStateException("StartupProbe exited with status " + status + ":\n" +
+                 new String(Files.readAllBytes(this.directory.resolve("probe.log"))));
+      }
+   }
+
+   /** @return This JVM's class path, which may be relative, with every entry made absolute. */
+   static String absoluteClassPath() {
+      List<String> entries = new ArrayList<>();
+      for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+         entries.add(Paths.get(entry).toAbsolutePath().toString());
+      }
+      return String.join(File.pathSeparator, entries);
+   }
+}
@@ -0,0 +1,33 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.app.Startup;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Starts the application the way CustomerOrders does, serves one getInventory and exits.  StartupBenchmark
+ * launches this in a new JVM for every measurement.
+ */
+public class StartupProbe {
+   public static void main(String[] args) {
+      EntityManagerFactory factory = Startup.createEntityManagerFactory();
+      OrderService orderService = new OrderService(factory, 1);
+      orderService.getInventory();
+      Startup.logReady("getInventory");
+      orderService.close();
+      factory.close();
+   }
+}
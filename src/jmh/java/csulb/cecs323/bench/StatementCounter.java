@@ -0,0 +1,91 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.sessions.Record;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.eclipse.persistence.tools.profiler.PerformanceMonitor;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the SQL statements that EclipseLink sends to the database.  It is installed as the session's
+ * profiler, which EclipseLink tells about every statement it executes.  Nothing else is profiled.
+ */
+public class StatementCounter extends PerformanceMonitor {
+   private static final long serialVersionUID = 1L;
+
+   /** Shared with the copies that EclipseLink makes of the profiler for client sessions. */
+   private final LongAdder statements = new LongAdder();
+
+   /**
+    * Starts counting the statements that a persistence unit executes.
+    * @param factory    The persistence unit.
+    * @return           The counter.
+    */
+   public static StatementCounter install(EntityManagerFactory factory) {
+      StatementCounter counter = new StatementCounter();
+      JpaHelper.getServerSession(factory).setProfiler(counter);
+      return counter;
+   }
+
+   /** @return The number of statements executed since the counter was installed or last reset. */
+   public long getCount() {
+      return this.statements.sum();
+   }
+
+   public void reset() {
+      this.statements.reset();
+   }
+
+   @Override
+   public void startOperationProfile(String operationName, DatabaseQuery query, int weight) {
+      if (SessionProfiler.StatementExecute.equals(operationName)) {
+         this.statements.increment();
+      }
+   }
+
+   @Override
+   public void startOperationProfile(String operationName) {
+      startOperationProfile(operationName, null, SessionProfiler.ALL);
+   }
+
+   @Override
+   public void endOperationProfile(String operationName) {
+   }
+
+   @Override
+   public void endOperationProfile(String operationName, DatabaseQuery query, int weight) {
+   }
+
+   @Override
+   public Object profileExecutionOfQuery(DatabaseQuery query, Record row, AbstractSession session) {
+      return session.internalExecuteQuery(query, (org.eclipse.persistence.internal.sessions.AbstractRecord) row);
+   }
+
+   @Override
+   public void occurred(String operationName, AbstractSession session) {
+   }
+
+   @Override
+   public void occurred(String operationName, DatabaseQuery query, AbstractSession session) {
+   }
+
+   @Override
+   public void update(String operationName, Object value) {
+   }
+}
@@ -0,0 +1,177 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Cart;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.app.UnitOfWork;
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLTransactionRollbackException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a million operations through one OrderService, as the console would over a long day, and reports how
+ * the heap grows: with every operation's EntityManager closed, nothing it read should pile up.  Most
+ * operations look up a customer or a product or check stock; the rest page the catalog, search the
+ * customers, read order history, fill a cart and abort it, or place an order.  Every SIMULATED_EVERY
+ * operations a unit of work is made to fail with a deadlock on its first attempt, so that retries are part
+ * of the mix.  UnitOfWorkTest checks that they are retried and that no EntityManager is left open.
+ * <p>
+ * The database is on disk, so that the orders placed do not grow the heap themselves.  The heap in use once
+ * the garbage has been collected is sampled SAMPLES times over the run.  The first WARMUP_SAMPLES are left
+ * out, while the caches fill, and a straight line is fitted through the rest; its slope is reported in bytes
+ * per operation.  Even the smallest entity kept per operation would make it more than 16.  Run it with
+ * </p>
+ * <pre>
+ *    java -cp target/benchmarks.jar csulb.cecs323.bench.UnitOfWorkSoak [operations]
+ * </pre>
+ */
+public class UnitOfWorkSoak {
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final int PRODUCTS = 10_000;
+   private static final int CUSTOMERS = 10_000;
+   private static final int PAGE_SIZE = 20;
+
+   private static final int SAMPLES = 10;
+   private static final int WARMUP_SAMPLES = 2;
+   private static final int SIMULATED_EVERY = 10_000;
+
+   private final OrderService orderService;
+   private final UnitOfWork unitOfWork;
+   private final long firstCustomerId;
+   private final Random random = new Random(323);
+
+   private long ordersPlaced;
+
+   private UnitOfWorkSoak(EntityManagerFactory factory) {
+      this.orderService = new OrderService(factory, 1);
+      this.unitOfWork = new UnitOfWork(factory);
+      BenchmarkDatabase.seed(this.orderService, PRODUCTS, CUSTOMERS);
+      this.firstCustomerId = this.unitOfWork.read(manager -> ((Number) manager
+              .createNativeQuery("SELECT MIN(CUSTOMER_ID) FROM CUSTOMERS").getSingleResult()).longValue());
+   }
+
+   public static void main(String[] args) throws IOException {
+      int operations = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+      APPLICATION_LOGGER.setLevel(Level.WARNING);
+
+      Path directory = Files.createTempDirectory("unit-of-work-soak");
+      EntityManagerFactory factory = BenchmarkDatabase.createOnDisk(directory);
+      try {
+         UnitOfWorkSoak soak = new UnitOfWorkSoak(factory);
+         try {
+            soak.run(operations);
+         } finally {
+            soak.orderService.close();
+         }
+      } finally {
+         BenchmarkDatabase.dropOnDisk(factory, directory);
+      }
+   }
+
+   private void run(int operations) {
+      int sampleEvery = Math.max(1, operations / SAMPLES);
+      List<long[]> samples = new ArrayList<>();
+
+      System.out.printf("%12s %10s %14s %10s%n", "operations", "ops/s", "used heap KB", "orders");
+      long start = System.nanoTime();
+      long lap = start;
+      for (int i = 1; i <= operations; i++) {
+         operation(i);
+         if (i % sampleEvery == 0) {
+            long now = System.nanoTime();
+            long used = HeapSamples.usedHeap();
+            samples.add(new long[] {i, used});
+            System.out.printf("%12d %10.0f %14d %10d%n", i, sampleEvery / ((now - lap) / 1e9), used / 1024,
+                    this.ordersPlaced);
+            lap = System.nanoTime();
+         }
+      }
+      System.out.printf("%d operations in %d s%n", operations,
+              TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+
+      List<long[]> warm = samples.subList(Math.min(WARMUP_SAMPLES, samples.size()), samples.size());
+      double growth = HeapSamples.slope(warm);
+      System.out.printf("heap growth after warm-up: %.2f bytes per operation%n", growth);
+   }
+
+   /** Does the i'th operation of the soak. */
+   private void operation(int i) {
+      if (i % SIMULATED_EVERY == 0) {
+         simulateDeadlock();
+         return;
+      }
+      int kind = this.random.nextInt(100);
+      if (kind < 30) {
+         this.orderService.getCustomer(customerId());
+      } else if (kind < 60) {
+         this.orderService.getProduct(upc());
+      } else if (kind < 80) {
+         this.orderService.checkInStock(upc(), 1);
+      } else if (kind < 88) {
+         this.orderService.getInventorySummaryPage(upc(), PAGE_SIZE);
+      } else if (kind < 93) {
+         this.orderService.findCustomersByLastNamePrefix("Last" + this.random.nextInt(1000), null, PAGE_SIZE);
+      } else if (kind < 96) {
+         this.orderService.getOrderHistory(customerId(), null, PAGE_SIZE);
+      } else {
+         Cart cart = this.orderService.openCart(this.orderService.getCustomer(customerId()));
+         this.orderService.addLine(cart, upc(), 1 + this.random.nextInt(3));
+         this.orderService.addLine(cart, upc(), 1 + this.random.nextInt(3));
+         if (kind < 98) {
+            this.orderService.abort(cart);
+         } else {
+            this.orderService.placeOrder(cart);
+            this.ordersPlaced++;
+         }
+      }
+   }
+
+   /**
+    * Changes a product's name in a unit of work whose first attempt fails the way Derby reports a deadlock,
+    * after it has already written, so that the retry has to start again from a clean EntityManager.
+    */
+   private void simulateDeadlock() {
+      String upc = upc();
+      int[] attempts = {0};
+      this.unitOfWork.runInTransaction(manager -> {
+         Products product = manager.find(Products.class, upc);
+         product.setProd_name(product.getProd_name());
+         manager.flush();
+         if (attempts[0]++ == 0) {
+            throw new PersistenceException(new SQLTransactionRollbackException("Simulated deadlock", "40001"));
+         }
+      });
+   }
+
+   private long customerId() {
+      return this.firstCustomerId + this.random.nextInt(CUSTOMERS);
+   }
+
+   private String upc() {
+      return BenchmarkDatabase.upc(this.random.nextInt(PRODUCTS));
+   }
+}
@@ -0,0 +1,136 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import csulb.cecs323.app.Cart;
+import csulb.cecs323.app.InventoryEngine;
+import csulb.cecs323.app.OrderService;
+import csulb.cecs323.app.StockReservations;
+import org.openjdk.jmh.annotations.*;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Compares placing orders synchronously with placing them through the order journal, against a database on
+ * disk that syncs its log on every commit, as a real one would.
+ * <ul>
+ *    <li>acknowledge: how long placeOrder takes to return for a cart whose three lines are held, which is
+ *    what the shopper waits for.  The carts are filled before each call and that is not measured.</li>
+ *    <li>sustained: the time per order to fill and place ORDERS carts on the service's pool of threads and
+ *    then wait until every one of them is in the database, so that write-behind cannot win by leaving its
+ *    backlog unwritten.</li>
+ * </ul>
+ * Run it with, for example:
+ * <pre>
+ *    java -jar target/benchmarks.jar WriteBehind -p syncJournal=true
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class WriteBehindBenchmark {
+   /** Held here so that the level set on it is not lost if the logger is garbage collected. */
+   private static final Logger APPLICATION_LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   private static final int PRODUCTS = 10_000;
+   private static final int CUSTOMERS = 10_000;
+   private static final int THREADS = 8;
+
+   /** How many orders each sustained invocation places. */
+   private static final int ORDERS = 2_000;
+
+   /** Whether orders go through the journal. */
+   @Param({"false", "true"})
+   public boolean writeBehind;
+
+   /** Whether the journal forces each order to disk before acknowledging it. */
+   @Param("false")
+   public boolean syncJournal;
+
+   private Path directory;
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+
+   @Setup(Level.Trial)
+   public void setUp() throws IOException {
+      APPLICATION_LOGGER.setLevel(java.util.logging.Level.WARNING);
+      this.directory = Files.createTempDirectory("write-behind");
+      this.factory = BenchmarkDatabase.createOnDisk(this.directory.resolve("db"), true);
+      this.orderService = new OrderService(this.factory, THREADS,
+              new StockReservations(this.factory, OrderService.HOLD_TTL_SECONDS, OrderService.HOLD_SWEEP_SECONDS,
+                      TimeUnit.SECONDS),
+              this.writeBehind ? this.directory.resolve("journal") : null, this.syncJournal);
+      BenchmarkDatabase.seed(this.orderService, PRODUCTS, CUSTOMERS);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() throws IOException {
+      this.orderService.close();
+      BenchmarkDatabase.dropOnDisk(this.factory, this.directory.resolve("db"));
+      BenchmarkDatabase.dropDirectory(this.directory);
+   }
+
+   /** Each thread's next cart, filled before each acknowledge call. */
+   @State(Scope.Thread)
+   public static class FilledCart {
+      private Cart cart;
+
+      @Setup(Level.Invocation)
+      public void fill(WriteBehindBenchmark benchmark) {
+         this.cart = benchmark.fillCart();
+      }
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SampleTime)
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   @Threads(4)
+   public List<InventoryEngine.FillResult> acknowledge(FilledCart filled) {
+      return this.orderService.placeOrder(filled.cart);
+   }
+
+   @Benchmark
+   @BenchmarkMode(Mode.SingleShotTime)
+   @OutputTimeUnit(TimeUnit.MICROSECONDS)
+   @OperationsPerInvocation(ORDERS)
+   public void sustained() throws InterruptedException {
+      List<CompletableFuture<List<InventoryEngine.FillResult>>> orders = new ArrayList<>(ORDERS);
+      for (int i = 0; i < ORDERS; i++) {
+         orders.add(this.orderService.submit(() -> this.orderService.placeOrder(fillCart())));
+      }
+      CompletableFuture.allOf(orders.toArray(new CompletableFuture[0])).join();
+      if (this.writeBehind && !this.orderService.getOrderWriter().awaitWritten(5, TimeUnit.MINUTES)) {
+         throw new IllegalStateException("The orders were not written in five minutes");
+      }
+   }
+
+   /** @return A cart for a random customer with one unit each of three random products held. */
+   private Cart fillCart() {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Cart cart = this.orderService.openCart(this.orderService.getCustomer(1 + random.nextInt(CUSTOMERS)));
+      for (int i = 0; i < 3; i++) {
+         this.orderService.addLine(cart, BenchmarkDatabase.upc(random.nextInt(PRODUCTS)), 1);
+      }
+      return cart;
+   }
+}
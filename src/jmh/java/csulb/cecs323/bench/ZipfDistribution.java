@@ -0,0 +1,65 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.bench;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws ranks 0 to n - 1 with probability proportional to 1 / (rank + 1)^exponent, so that a few ranks
+ * are drawn most of the time and the rest now and then, the way a few products outsell all the others.
+ * An exponent of 0 draws every rank equally often; 1 is the classic Zipf's law.  The cumulative
+ * probabilities are worked out once, so each draw is a binary search.  Safe to share between threads.
+ */
+public class ZipfDistribution {
+   /** The probability of drawing each rank or any before it. */
+   private final double[] cumulative;
+
+   /**
+    * @param n          How many ranks there are.
+    * @param exponent   How steeply the probability falls with rank.  Not negative.
+    */
+   public ZipfDistribution(int n, double exponent) {
+      if (n <= 0 || exponent < 0) {
+         throw new IllegalArgumentException("n must be positive and exponent not negative: " + n + ", " + exponent);
+      }
+      this.cumulative = new double[n];
+      double total = 0;
+      for (int rank = 0; rank < n; rank++) {
+         total += 1 / Math.pow(rank + 1, exponent);
+         this.cumulative[rank] = total;
+      }
+      for (int rank = 0; rank < n; rank++) {
+         this.cumulative[rank] /= total;
+      }
+   }
+
+   /**
+    * @param random     Where the randomness comes from.
+    * @return           A rank, from 0 to n - 1.
+    */
+   public int next(Random random) {
+      int found = Arrays.binarySearch(this.cumulative, random.nextDouble());
+      // Not found gives -(insertion point) - 1, and the insertion point is the rank whose range it fell in.
+      int rank = found >= 0 ? found : -found - 1;
+      return Math.min(rank, this.cumulative.length - 1);
+   }
+
+   /**
+    * @param rank       A rank, from 0 to n - 1.
+    * @return           The probability of drawing it.
+    */
+   public double probabilityOf(int rank) {
+      return this.cumulative[rank] - (rank == 0 ? 0 : this.cumulative[rank - 1]);
+   }
+}
@@ -0,0 +1,606 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Customers;
+
+import javax.persistence.EntityManagerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Loads products or customers from a delimited text file straight into the database.
+ * <p>
+ * The JPA load script in persistence.xml needs one INSERT statement per line and goes through the whole
+ * entity machinery, which is fine for a handful of rows and far too slow for a real catalog.  This tool
+ * maps the file into memory a window at a time, so the file is never read onto the heap as a whole, and
+ * cuts it into chunks of whole lines.  A pool of workers parses the chunks in parallel, each on a JDBC
+ * connection of its own, and inserts the rows with batched prepared statements.  Progress and rows/sec are
+ * logged as it goes.
+ * </p>
+ * <p>
+ * Products files have the columns UPC, prod_name, mfgr, model, unit_list_price (in dollars, e.g. 9.97)
+ * and units_in_stock.  Customers files have last_name, first_name, street, zip and phone.  Fields are
+ * separated by commas unless another delimiter is given, and may be enclosed in double quotes, with "" for
+ * a quote inside one.  A first line that starts with the first column name is taken as a header.  Blank
+ * lines and lines that start with # are skipped.  Lines that cannot be parsed are counted and logged but do
+ * not stop the load.
+ * </p>
+ * <p>
+ * Each batch is committed on its own, so a load that fails part way leaves the batches before it in the
+ * database.  Rows are inserted around EclipseLink, so do not run the loader while the application is using
+ * the same tables.
+ * </p>
+ * Usage: BulkLoader products|customers file [threads [batchSize [delimiter]]]
+ * <p>
+ * The persistence unit is opened with Startup, so -Dcustomerorders.profile=production loads into the tables
+ * that are already there rather than creating them again.
+ * </p>
+ */
+public class BulkLoader {
+   private static final Logger LOGGER = Logger.getLogger(BulkLoader.class.getName());
+
+   /** The number of rows in each JDBC batch, and in each transaction. */
+   public static final int DEFAULT_BATCH_SIZE = OrderService.DEFAULT_CHUNK_SIZE;
+
+   /** How much of the file is mapped into memory at once.  No line may be longer than this. */
+   private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+   /** About how many bytes of the file a worker is handed at a time.  Chunks always end with a whole line. */
+   private static final int CHUNK_SIZE = 1024 * 1024;
+
+   /** How many chunks may be waiting for each worker before the reader waits for them to catch up. */
+   private static final int QUEUED_CHUNKS_PER_WORKER = 4;
+
+   /** How often, in seconds, progress is logged. */
+   private static final long PROGRESS_SECONDS = 2;
+
+   /** Only this many bad lines are logged; the rest are just counted. */
+   private static final int LOGGED_REJECTIONS = 10;
+
+   /**
+    * What can be loaded, and how one line of the file becomes one row of the table.
+    */
+   public enum Target {
+      PRODUCTS("UPC", 6,
+              "INSERT INTO PRODUCTS (UPC, PROD_NAME, MFGR, MODEL, UNIT_LIST_PRICE, UNITS_IN_STOCK, UNITS_HELD) " +
+                      "VALUES (?, ?, ?, ?, ?, ?, 0)") {
+         @Override
+         void bind(PreparedStatement insert, String[] fields, IdBlock ids) throws SQLException {
+            for (int i = 0; i < 4; i++) {
+               insert.setString(i + 1, fields[i]);
+            }
+            insert.setLong(5, Money.parse(fields[4]));
+            insert.setInt(6, Integer.parseInt(fields[5]));
+         }
+      },
+      CUSTOMERS("last_name", 5,
+              "INSERT INTO CUSTOMERS (CUSTOMER_ID, LAST_NAME, FIRST_NAME, STREET, ZIP, PHONE) " +
+                      "VALUES (?, ?, ?, ?, ?, ?)") {
+         @Override
+         void bind(PreparedStatement insert, String[] fields, IdBlock ids) throws SQLException {
+            for (int i = 0; i < 5; i++) {
+               insert.setString(i + 2, fields[i]);
+            }
+            insert.setLong(1, ids.next());
+         }
+      };
+
+      /** The name of the first column, which is how a header line is recognised. */
+      private final String header;
+      /** The number of fields on each line. */
+      private final int fieldCount;
+      private final String insertSql;
+
+      Target(String header, int fieldCount, String insertSql) {
+         this.header = header;
+         this.fieldCount = fieldCount;
+         this.insertSql = insertSql;
+      }
+
+      /**
+       * Sets the parameters of the INSERT statement from the fields of one line.
+       * @param insert     The INSERT statement for this target.
+       * @param fields     The fields of the line.  There are exactly fieldCount of them.
+       * @param ids        The ids this worker may hand out, for tables that need them.
+       * @throws SQLException           if a parameter cannot be set.
+       * @throws NumberFormatException  if a number field is not a number.
+       */
+      abstract void bind(PreparedStatement insert, String[] fields, IdBlock ids) throws SQLException;
+   }
+
+   /**
+    * Hands out ids from the same sequence table row that EclipseLink uses, so that rows the application
+    * creates later do not collide with the loaded ones.  Ids are taken a block at a time, the way
+    * EclipseLink preallocates them, so the sequence row is only locked once per block.
+    */
+   static class IdAllocator implements AutoCloseable {
+      private final Connection connection;
+      private final PreparedStatement increment;
+      private final PreparedStatement read;
+      private final String sequence;
+      private final int blockSize;
+
+      /**
+       * @param connection    A connection of the allocator's own, closed with it.
+       * @param sequence      The SEQ_NAME of the sequence row, such as Customers.ID_SEQUENCE.
+       * @param blockSize     How many ids to take at a time.
+       */
+      IdAllocator(Connection connection, String sequence, int blockSize) throws SQLException {
+         this.connection = connection;
+         this.connection.setAutoCommit(false);
+         this.increment = connection.prepareStatement(
+                 "UPDATE SEQUENCE SET SEQ_COUNT = SEQ_COUNT + ? WHERE SEQ_NAME = ?");
+         this.read = connection.prepareStatement("SELECT SEQ_COUNT FROM SEQUENCE WHERE SEQ_NAME = ?");
+         this.sequence = sequence;
+         this.blockSize = blockSize;
+      }
+
+      /**
+       * Reserves the next block of ids.
+       * @return     A block of blockSize ids that nobody else will be given.
+       */
+      synchronized IdBlock allocate() throws SQLException {
+         try {
+            this.increment.setInt(1, this.blockSize);
+            this.increment.setString(2, this.sequence);
+            if (this.increment.executeUpdate() != 1) {
+               throw new SQLException("There is no " + this.sequence + " row in the SEQUENCE table");
+            }
+            this.read.setString(1, this.sequence);
+            long last;
+            try (ResultSet result = this.read.executeQuery()) {
+               result.next();
+               last = result.getLong(1);
+            }
+            this.connection.commit();
+            // Like EclipseLink, the ids handed out are the ones the count has just moved past.
+            return new IdBlock(last - this.blockSize + 1, last);
+         } catch (SQLException e) {
+            this.connection.rollback();
+            throw e;
+         }
+      }
+
+      @Override
+      public void close() throws SQLException {
+         this.connection.close();
+      }
+   }
+
+   /**
+    * Ids that one worker hands out in turn.  Not safe to share between threads.
+    */
+   static class IdBlock {
+      private long next;
+      private final long last;
+
+      IdBlock(long first, long last) {
+         this.next = first;
+         this.last = last;
+      }
+
+      boolean isEmpty() {
+         return this.next > this.last;
+      }
+
+      long next() {
+         return this.next++;
+      }
+   }
+
+   /** A run of whole lines from the file, and where in the file it starts. */
+   private static class Chunk {
+      /** Tells a worker that there are no more chunks. */
+      private static final Chunk END = new Chunk(null, -1);
+
+      private final ByteBuffer bytes;
+      private final long offset;
+
+      private Chunk(ByteBuffer bytes, long offset) {
+         this.bytes = bytes;
+         this.offset = offset;
+      }
+   }
+
+   private final Target target;
+   private final String url;
+   private final String user;
+   private final String password;
+   private final int threads;
+   private final int batchSize;
+   private final char delimiter;
+
+   private final LongAdder rowsLoaded = new LongAdder();
+   private final LongAdder rowsRejected = new LongAdder();
+   private final AtomicLong bytesRead = new AtomicLong();
+   private final AtomicInteger rejectionsLogged = new AtomicInteger();
+
+   /**
+    * @param target     What the file holds.
+    * @param url        The JDBC URL of the database.
+    * @param user       The database user.
+    * @param password   The database user's password.
+    * @param threads    The number of workers, and so of database connections, to load with.
+    * @param batchSize  The number of rows in each JDBC batch and transaction.
+    * @param delimiter  The character between fields.
+    */
+   public BulkLoader(Target target, String url, String user, String password,
+                     int threads, int batchSize, char delimiter) {
+      if (threads <= 0) {
+         throw new IllegalArgumentException("threads must be positive: " + threads);
+      }
+      if (batchSize <= 0) {
+         throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+      }
+      this.target = target;
+      this.url = url;
+      this.user = user;
+      this.password = password;
+      this.threads = threads;
+      this.batchSize = batchSize;
+      this.delimiter = delimiter;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println("Usage: BulkLoader products|customers file [threads [batchSize [delimiter]]]");
+         System.exit(2);
+      }
+      Target target = Target.valueOf(args[0].toUpperCase());
+      Path file = Paths.get(args[1]);
+      int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+      int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BATCH_SIZE;
+      char delimiter = args.length > 4 ? args[4].charAt(0) : ',';
+
+      // Opening the persistence unit creates the schema, if the profile says to, and tells us where the database is.
+      EntityManagerFactory factory = Startup.createEntityManagerFactory();
+      try {
+         Map<String, Object> properties = factory.getProperties();
+         BulkLoader loader = new BulkLoader(target,
+                 (String) properties.get("javax.persistence.jdbc.url"),
+                 (String) properties.get("javax.persistence.jdbc.user"),
+                 (String) properties.get("javax.persistence.jdbc.password"),
+                 threads, batchSize, delimiter);
+         loader.load(file);
+      } finally {
+         factory.close();
+      }
+   }
+
+   /**
+    * Loads every line of the file.
+    * @param file       The file to load.
+    * @return           The number of rows inserted.
+    * @throws IOException   if the file cannot be read.
+    * @throws SQLException  if the database refuses a batch.  The batches before it stay committed.
+    */
+   public long load(Path file) throws IOException, SQLException, InterruptedException {
+      long start = System.nanoTime();
+      BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(this.threads * QUEUED_CHUNKS_PER_WORKER);
+      ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+      ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+      List<Future<?>> results = new ArrayList<>();
+
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+           IdAllocator ids = this.target == Target.CUSTOMERS
+                   ? new IdAllocator(connect(), Customers.ID_SEQUENCE, this.batchSize) : null) {
+         long size = channel.size();
+         progress.scheduleAtFixedRate(() -> logProgress(start, size),
+                 PROGRESS_SECONDS, PROGRESS_SECONDS, TimeUnit.SECONDS);
+         for (int i = 0; i < this.threads; i++) {
+            results.add(workers.submit(() -> {
+               work(chunks, ids);
+               return null;
+            }));
+         }
+
+         try {
+            read(channel, size, chunks, results);
+         } finally {
+            // Let every worker finish what is queued and stop, whether or not the reading went well.
+            for (int i = 0; i < this.threads; i++) {
+               while (!chunks.offer(Chunk.END, 1, TimeUnit.SECONDS)) {
+                  if (allDone(results)) {
+                     break;
+                  }
+               }
+            }
+         }
+         for (Future<?> result : results) {
+            try {
+               result.get();
+            } catch (ExecutionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof SQLException) {
+                  throw (SQLException) cause;
+               }
+               if (cause instanceof IOException) {
+                  throw (IOException) cause;
+               }
+               throw new IllegalStateException("A load worker failed", cause);
+            }
+         }
+      } finally {
+         progress.shutdownNow();
+         workers.shutdownNow();
+      }
+
+      long loaded = this.rowsLoaded.sum();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOGGER.info(String.format("Loaded %d rows into %s in %.3f s (%.0f rows/sec), %d lines rejected",
+              loaded, this.target, seconds, seconds > 0 ? loaded / seconds : 0.0,
+              this.rowsRejected.sum()));
+      return loaded;
+   }
+
+   /**
+    * Maps the file a window at a time and queues it for the workers in chunks of whole lines.
+    * @param channel    The open file.
+    * @param size       The size of the file.
+    * @param chunks     Where the chunks go.
+    * @param results    The workers, which are checked so that the reader stops if they all have.
+    */
+   private void read(FileChannel channel, long size, BlockingQueue<Chunk> chunks, List<Future<?>> results)
+           throws IOException, InterruptedException {
+      long position = 0;
+      while (position < size) {
+         int length = (int) Math.min(WINDOW_SIZE, size - position);
+         boolean last = position + length == size;
+         MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+         int start = 0;
+         while (start < length) {
+            int end = endOfLine(window, Math.min(start + CHUNK_SIZE, length) - 1, length);
+            if (end < 0) {
+               if (!last) {
+                  // The rest of the window is part of a line; it is mapped again at the start of the next one.
+                  break;
+               }
+               end = length;
+            }
+            ByteBuffer bytes = window.duplicate();
+            bytes.position(start).limit(end);
+            Chunk chunk = new Chunk(bytes.slice(), position + start);
+            while (!chunks.offer(chunk, 1, TimeUnit.SECONDS)) {
+               if (allDone(results)) {
+                  return;
+               }
+            }
+            start = end;
+         }
+         if (start == 0) {
+            throw new IOException("A line near byte " + position + " is longer than " + WINDOW_SIZE + " bytes");
+         }
+         position += start;
+      }
+   }
+
+   /**
+    * Finds the end of the line that a byte is on.
+    * @param bytes      Where to look.
+    * @param from       The index of the byte.
+    * @param limit      Where to stop looking.
+    * @return           The index just past the line's newline, or -1 if there is no newline before limit.
+    */
+   private static int endOfLine(ByteBuffer bytes, int from, int limit) {
+      for (int i = from; i < limit; i++) {
+         if (bytes.get(i) == '\n') {
+            return i + 1;
+         }
+      }
+      return -1;
+   }
+
+   private static boolean allDone(List<Future<?>> results) {
+      for (Future<?> result : results) {
+         if (!result.isDone()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * One worker: parses chunks and inserts their rows in batches until it is told to stop.
+    * @param chunks     Where the chunks come from.
+    * @param ids        Where customer ids come from, or null when loading products.
+    */
+   private void work(BlockingQueue<Chunk> chunks, IdAllocator ids) throws SQLException, InterruptedException {
+      try (Connection connection = connect();
+           PreparedStatement insert = connection.prepareStatement(this.target.insertSql)) {
+         connection.setAutoCommit(false);
+         String[] fields = new String[this.target.fieldCount];
+         IdBlock block = new IdBlock(1, 0);
+         int batched = 0;
+
+         for (Chunk chunk = chunks.take(); chunk != Chunk.END; chunk = chunks.take()) {
+            int length = chunk.bytes.remaining();
+            CharBuffer text = StandardCharsets.UTF_8.decode(chunk.bytes);
+            int lineStart = 0;
+            boolean header = chunk.offset == 0;
+            while (lineStart < text.length()) {
+               int lineEnd = lineStart;
+               while (lineEnd < text.length() && text.charAt(lineEnd) != '\n') {
+                  lineEnd++;
+               }
+               int next = lineEnd + 1;
+               if (lineEnd > lineStart && text.charAt(lineEnd - 1) == '\r') {
+                  lineEnd--;
+               }
+               if (lineEnd > lineStart && text.charAt(lineStart) != '#') {
+                  int count = split(text, lineStart, lineEnd, fields);
+                  if (header && count > 0 && fields[0].equalsIgnoreCase(this.target.header)) {
+                     // Column names, not a row.
+                  } else if (count != fields.length) {
+                     reject(chunk, text, lineStart, lineEnd, count < 0 ? "unclosed quote" :
+                             "expected " + fields.length + " fields but found " + count);
+                  } else {
+                     if (ids != null && block.isEmpty()) {
+                        block = ids.allocate();
+                     }
+                     try {
+                        this.target.bind(insert, fields, block);
+                        insert.addBatch();
+                        if (++batched == this.batchSize) {
+                           flush(connection, insert, batched);
+                           batched = 0;
+                        }
+                     } catch (NumberFormatException e) {
+                        reject(chunk, text, lineStart, lineEnd, e.getMessage());
+                     }
+                  }
+               }
+               header = false;
+               lineStart = next;
+            }
+            this.bytesRead.addAndGet(length);
+         }
+         if (batched > 0) {
+            flush(connection, insert, batched);
+         }
+      } catch (SQLException e) {
+         LOGGER.severe("Load failed: " + e.getMessage());
+         throw e;
+      }
+   }
+
+   private void flush(Connection connection, PreparedStatement insert, int batched) throws SQLException {
+      insert.executeBatch();
+      connection.commit();
+      this.rowsLoaded.add(batched);
+   }
+
+   /**
+    * Splits one line into fields.  A field may be enclosed in double quotes, with "" standing for a quote.
+    * @param text       The text the line is in.
+    * @param from       Where the line starts.
+    * @param to         Where the line ends, not counting the line terminator.
+    * @param fields     Where the fields go.  Fields past its end are counted but not kept.
+    * @return           The number of fields on the line, or -1 if a quote is not closed.
+    */
+   int split(CharSequence text, int from, int to, String[] fields) {
+      return split(text, from, to, this.delimiter, fields);
+   }
+
+   /**
+    * Splits one line into fields, as split does, for any delimiter.
+    * @param text       The text the line is in.
+    * @param from       Where the line starts.
+    * @param to         Where the line ends, not counting the line terminator.
+    * @param delimiter  The character between fields.
+    * @param fields     Where the fields go.  Fields past its end are counted but not kept.
+    * @return           The number of fields on the line, or -1 if a quote is not closed.
+    */
+   static int split(CharSequence text, int from, int to, char delimiter, String[] fields) {
+      int count = 0;
+      int i = from;
+      while (true) {
+         String field;
+         if (i < to && text.charAt(i) == '"') {
+            StringBuilder quoted = new StringBuilder();
+            i++;
+            while (true) {
+               if (i >= to) {
+                  return -1;
+               }
+               char c = text.charAt(i++);
+               if (c == '"') {
+                  if (i < to && text.charAt(i) == '"') {
+                     i++;
+                  } else {
+                     break;
+                  }
+               }
+               quoted.append(c);
+            }
+            field = quoted.toString();
+            // Anything between the closing quote and the delimiter is ignored.
+            while (i < to && text.charAt(i) != delimiter) {
+               i++;
+            }
+         } else {
+            int start = i;
+            while (i < to && text.charAt(i) != delimiter) {
+               i++;
+            }
+            field = text.subSequence(start, i).toString().trim();
+         }
+         if (count < fields.length) {
+            fields[count] = field;
+         }
+         count++;
+         if (i >= to) {
+            return count;
+         }
+         i++;   // past the delimiter
+      }
+   }
+
+   private void reject(Chunk chunk, CharSequence text, int lineStart, int lineEnd, String reason) {
+      this.rowsRejected.increment();
+      if (this.rejectionsLogged.getAndIncrement() < LOGGED_REJECTIONS) {
+         LOGGER.warning("Rejected line in the chunk at byte " + chunk.offset + " (" + reason + "): " +
+                 text.subSequence(lineStart, lineEnd));
+      }
+   }
+
+   private void logProgress(long start, long size) {
+      long loaded = this.rowsLoaded.sum();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOGGER.info(String.format("%d rows loaded, %.0f rows/sec, %.1f%% of the file read",
+              loaded, seconds > 0 ? loaded / seconds : 0.0,
+              size > 0 ? 100.0 * this.bytesRead.get() / size : 100.0));
+   }
+
+   private Connection connect() throws SQLException {
+      return DriverManager.getConnection(this.url, this.user, this.password);
+   }
+
+   /** @return The number of rows inserted so far. */
+   public long getRowsLoaded() {
+      return this.rowsLoaded.sum();
+   }
+
+   /** @return The number of lines that could not be parsed. */
+   public long getRowsRejected() {
+      return this.rowsRejected.sum();
+   }
+}
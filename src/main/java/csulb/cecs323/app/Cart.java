@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.OrderLines;
+import csulb.cecs323.model.Orders;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.BiConsumer;
+
+/**
+ * An order that is still being put together.  The order and its lines are not in the database until
+ * OrderService.placeOrder writes them; only the stock held for them is, under the cart's id.
+ * <p>
+ * The lines are kept in a map keyed by UPC that remembers the order the products were first added in, so
+ * finding, merging and removing a line take constant time however big the cart gets.  The total is kept
+ * up to date as lines change rather than being added up again every time it is shown.
+ * </p>
+ * <p>
+ * A cart belongs to one shopper and is not safe to share between threads.  Many carts can be open at once.
+ * </p>
+ */
+public class Cart {
+   /** Identifies the cart's stock holds, see StockReservations. */
+   private final String id = UUID.randomUUID().toString();
+   /** The order the lines will belong to.  Its order_date is when the cart was opened. */
+   private final Orders order;
+   /** The lines of the order by UPC, in the order they were first added. */
+   private final Map<String, OrderLines> orderLines = new LinkedHashMap<>();
+   /** The cost of everything in the cart, in cents. */
+   private long total;
+   /** Adds one line to total, for recomputeTotal. */
+   private final BiConsumer<String, OrderLines> addToTotal =
+           (UPC, line) -> total += (long) line.getQuantity() * line.getUnit_sale_price();
+
+   /**
+    * @param order      The order that the cart is for.
+    */
+   public Cart(Orders order) {
+      this.order = order;
+   }
+
+   public String getId() {
+      return id;
+   }
+
+   public Orders getOrder() {
+      return order;
+   }
+
+   public Customers getCustomer() {
+      return order.getCustomer();
+   }
+
+   /**
+    * @return     The lines of the order, in the order they were first added.  Cannot be changed through
+    *             this view.
+    */
+   public Collection<OrderLines> getOrderLines() {
+      return Collections.unmodifiableCollection(orderLines.values());
+   }
+
+   public boolean isEmpty() {
+      return orderLines.isEmpty();
+   }
+
+   /** @return The number of different products in the cart. */
+   public int size() {
+      return orderLines.size();
+   }
+
+   /**
+    * Adds order line to the cart. If the product is already in the cart, the quantity of the existing line
+    * goes up instead, and the added units are priced as that line is: a line has one unit price, whatever
+    * the price of the line that was added to it.
+    * @param orderLine        The order line to be added.
+    */
+   public void add(OrderLines orderLine) {
+      OrderLines line = orderLines.putIfAbsent(orderLine.getProduct().getUPC(), orderLine);
+      if (line == null) {
+         line = orderLine;
+      } else {
+         line.setQuantity(line.getQuantity() + orderLine.getQuantity());
+      }
+      total += (long) orderLine.getQuantity() * line.getUnit_sale_price();
+   }
+
+   /**
+    * Changes the quantity of a product in the cart.  A quantity of 0 or less removes the line.
+    * @param UPC              The product to change.
+    * @param quantity         The new quantity.
+    */
+   public void setQuantity(String UPC, int quantity) {
+      OrderLines line = quantity <= 0 ? orderLines.remove(UPC) : orderLines.get(UPC);
+      if (line == null) {
+         return;
+      }
+      int newQuantity = Math.max(quantity, 0);
+      total += (long) (newQuantity - line.getQuantity()) * line.getUnit_sale_price();
+      line.setQuantity(newQuantity);
+   }
+
+   /**
+    * Takes a product out of the cart.
+    * @param UPC              The product to remove.
+    */
+   public void remove(String UPC) {
+      setQuantity(UPC, 0);
+   }
+
+   /** Empties the cart. */
+   public void clear() {
+      orderLines.clear();
+      total = 0;
+   }
+
+   /**
+    * Finds how many units of a product are already in the cart.
+    * @param UPC              The product to be looked for.
+    * @return                 The quantity of the product in the cart, 0 if it is not in the cart.
+    */
+   public int quantityOf(String UPC) {
+      OrderLines line = orderLines.get(UPC);
+      return line != null ? line.getQuantity() : 0;
+   }
+
+   /**
+    * @return     The cost of everything in the cart, in cents.
+    */
+   public long getTotal() {
+      return total;
+   }
+
+   /**
+    * Adds the lines up again from scratch.  getTotal is kept up to date as lines are added and removed, so
+    * this is only needed if a line's quantity or price was changed directly on the OrderLines object.
+    * It walks the map with forEach and addToTotal, which the cart made once, so that it allocates nothing
+    * even where the JIT cannot do away with an iterator.
+    * @return     The cost of everything in the cart, in cents.
+    */
+   public long recomputeTotal() {
+      total = 0;
+      orderLines.forEach(addToTotal);
+      return total;
+   }
+}
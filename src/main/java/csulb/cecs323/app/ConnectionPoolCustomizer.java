@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.config.SessionCustomizer;
+import org.eclipse.persistence.sessions.Session;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Swaps the connection pools that EclipseLink builds from the eclipselink.connection-pool.* properties in
+ * persistence.xml for MeteredConnectionPools with the same settings, and registers each of them with JMX.
+ * It also installs a QueryProfiler, which times every query for Instrumentation.  It is hooked in through
+ * the eclipselink.session.customizer property, which runs before the session logs in, so the pools have not
+ * been started yet.
+ */
+public class ConnectionPoolCustomizer implements SessionCustomizer {
+   private static final Logger LOGGER = Logger.getLogger(ConnectionPoolCustomizer.class.getName());
+
+   /** Every metered pool that has been created, by pool name. */
+   private static final Map<String, MeteredConnectionPool> POOLS = new ConcurrentHashMap<>();
+
+   @Override
+   public void customize(Session session) {
+      if (!(session instanceof ServerSession)) {
+         return;
+      }
+      ServerSession server = (ServerSession) session;
+      for (Map.Entry<String, ConnectionPool> next : server.getConnectionPools().entrySet()) {
+         next.setValue(meter(next.getValue(), server));
+      }
+      ConnectionPool read = server.getReadConnectionPool();
+      // A shared read pool hands the same connection to many threads at once; there is nothing to wait for.
+      if (read != null && read.getClass() == ConnectionPool.class) {
+         server.setReadConnectionPool(meter(read, server));
+      }
+      server.setProfiler(new QueryProfiler());
+   }
+
+   private static MeteredConnectionPool meter(ConnectionPool pool, ServerSession server) {
+      MeteredConnectionPool metered = new MeteredConnectionPool(pool, server);
+      POOLS.put(pool.getName(), metered);
+      register(metered);
+      LOGGER.fine("Metering " + metered);
+      return metered;
+   }
+
+   private static void register(MeteredConnectionPool pool) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         ObjectName name = new ObjectName("csulb.cecs323:type=ConnectionPool,name=" + ObjectName.quote(pool.getName()));
+         // A second factory in the same JVM takes over the name.
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         server.registerMBean(new StandardMBean(pool, ConnectionPoolStatsMBean.class), name);
+      } catch (InstanceAlreadyExistsException e) {
+         LOGGER.fine("Connection pool " + pool.getName() + " is already registered");
+      } catch (JMException e) {
+         LOGGER.log(Level.WARNING, "Could not register connection pool " + pool.getName() + " with JMX", e);
+      }
+   }
+
+   /**
+    * @param name    The name of a pool, such as "default" or "read".
+    * @return        The metered pool with that name, or null if there is none.
+    */
+   public static MeteredConnectionPool getPool(String name) {
+      return POOLS.get(name);
+   }
+
+   /** @return Every metered pool, by name. */
+   public static Map<String, MeteredConnectionPool> getPools() {
+      return POOLS;
+   }
+}
@@ -0,0 +1,47 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+package csulb.cecs323.app;
+
+/**
+ * What MeteredConnectionPool exposes over JMX, under csulb.cecs323:type=ConnectionPool,name=&lt;pool&gt;.
+ * Latencies are in microseconds.
+ */
+public interface ConnectionPoolStatsMBean {
+   /** @return Connections currently handed out. */
+   int getActive();
+
+   /** @return Connections open but not in use. */
+   int getIdle();
+
+   /** @return Threads waiting to be handed a connection. */
+   int getWaiters();
+
+   int getMin();
+
+   int getMax();
+
+   /** @return Connections handed out since the statistics were reset. */
+   long getAcquireCount();
+
+   /** @return Acquisitions that gave up waiting since the statistics were reset. */
+   long getTimeouts();
+
+   double getAcquireMeanMicros();
+
+   double getAcquireP50Micros();
+
+   double getAcquireP99Micros();
+
+   double getAcquireMaxMicros();
+
+   void resetStatistics();
+}
@@ -15,12 +15,9 @@ package csulb.cecs323.app;
 // Import all of the entity classes that we have written for this application.
 import csulb.cecs323.model.*;
 
-import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import javax.persistence.EntityTransaction;
-import javax.persistence.Persistence;
-import java.time.LocalDateTime;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
@@ -43,11 +40,12 @@ import java.util.logging.Logger;
  */
 public class CustomerOrders {
    /**
-    * You will likely need the entityManager in a great many functions throughout your application.
-    * Rather than make this a global variable, we will make it an instance variable within the CustomerOrders
-    * class, and create an instance of CustomerOrders in the main.
+    * All of the real work (finding customers and products, filling the cart, placing the order) is done by
+    * the OrderService.  CustomerOrders is just the console front end for it.  Rather than make this a
+    * global variable, we will make it an instance variable within the CustomerOrders class, and create an
+    * instance of CustomerOrders in the main.
     */
-   private EntityManager entityManager;
+   private final OrderService orderService;
 
    /**
     * The Logger can easily be configured to log to a file, rather than, or in addition to, the console.
@@ -58,45 +56,56 @@ public class CustomerOrders {
     */
    private static final Logger LOGGER = Logger.getLogger(CustomerOrders.class.getName());
 
+   /** How many products selectProduct shows at a time: the page size that the inventory queries expect. */
+   public static final int INVENTORY_PAGE_SIZE = Products.PAGE_SIZE;
+
+   /** How many customers selectCustomer shows at a time: the page size that the searches expect. */
+   public static final int CUSTOMER_PAGE_SIZE = Customers.PAGE_SIZE;
+
    /**
-    * The constructor for the CustomerOrders class.  All that it does is stash the provided EntityManager
+    * The constructor for the CustomerOrders class.  All that it does is stash the provided OrderService
     * for use later in the application.
-    * @param manager    The EntityManager that we will use.
+    * @param orderService     The OrderService that we will use.
     */
-   public CustomerOrders(EntityManager manager) {
-      this.entityManager = manager;
+   public CustomerOrders(OrderService orderService) {
+      this.orderService = orderService;
    }
 
    public static void main(String[] args) {
-      LOGGER.fine("Creating EntityManagerFactory and EntityManager");
-      EntityManagerFactory factory = Persistence.createEntityManagerFactory("CustomerOrders");
-      EntityManager manager = factory.createEntityManager();
-      // Create an instance of CustomerOrders and store our new EntityManager as an instance variable.
-      CustomerOrders customerOrders = new CustomerOrders(manager);
-
-      LOGGER.fine("Begin of Transaction");
-      EntityTransaction tx = manager.getTransaction();
+      LOGGER.fine("Creating EntityManagerFactory and OrderService");
+      EntityManagerFactory factory = Startup.createEntityManagerFactory();
+      OrderService orderService = new OrderService(factory, Runtime.getRuntime().availableProcessors(),
+              new StockReservations(factory, OrderService.HOLD_TTL_SECONDS, OrderService.HOLD_SWEEP_SECONDS,
+                      TimeUnit.SECONDS),
+              Startup.getJournalDirectory(), Startup.isJournalSynced());
+      // Create an instance of CustomerOrders and store our new OrderService as an instance variable.
+      CustomerOrders customerOrders = new CustomerOrders(orderService);
 
-      tx.begin();
       // List of Products that I want to persist.  I could just as easily done this with the seed-data.sql
       List <Products> products = new ArrayList<Products>(Arrays.asList(
-            new Products("076174517163", "16 oz. hickory hammer", "Stanely Tools", "1", 9.97, 50),
-            new Products("000000000001", "16 oz. spatula", "Waterfall Tools", "3", 3.50, 50),
-            new Products("076174533211", "16 oz. bolts", "Hardware Place", "10", 4.20, 50),
-            new Products("022222222222", "16 oz. anvil", "Drop Stuff", "2", 100.10, 50)
+            new Products("076174517163", "16 oz. hickory hammer", "Stanely Tools", "1", 997, 50),
+            new Products("000000000001", "16 oz. spatula", "Waterfall Tools", "3", 350, 50),
+            new Products("076174533211", "16 oz. bolts", "Hardware Place", "10", 420, 50),
+            new Products("022222222222", "16 oz. anvil", "Drop Stuff", "2", 10010, 50)
       ));
 
       // Create the list of owners in the database.
       List<Customers> customers = new ArrayList<Customers>(Arrays.asList(
-            new Customers("Shirley", "Cho", "555-555-5555", "hello st", "91770"),
-            new Customers("Shi", "C", "555-555-5554", "hello st", "91770"),
-            new Customers("Shirl", "Ch", "555-555-5553", "hello st", "91770"),
-            new Customers("Shelly", "Choo", "555-555-5552", "hello st", "91770")
+            new Customers("Cho", "Shirley", "hello st", "91770", "555-555-5555"),
+            new Customers("C", "Shi", "hello st", "91770", "555-555-5554"),
+            new Customers("Ch", "Shirl", "hello st", "91770", "555-555-5553"),
+            new Customers("Choo", "Shelly", "hello st", "91770", "555-555-5552")
       ));
 
-      customerOrders.createEntity (products);
-      customerOrders.createEntity(customers);
-      tx.commit();
+      // A production database keeps its data between runs, so only a freshly created one gets the samples.
+      if (!Startup.isProduction()) {
+         orderService.createEntityBatched(products, OrderService.DEFAULT_CHUNK_SIZE);
+         orderService.createEntityBatched(customers, OrderService.DEFAULT_CHUNK_SIZE);
+      }
+
+      // Serving the first inventory page fills the product cache and ends the startup clock.
+      orderService.getInventoryPage(null, INVENTORY_PAGE_SIZE);
+      Startup.logReady("the first inventory page");
 
       Scanner in = new Scanner(System.in);
 
@@ -105,33 +114,34 @@ public class CustomerOrders {
       int terminate = in.nextInt();
 
       if(terminate == 0) {
-         List<Products> inventory = customerOrders.getInventory();
-         List<OrderLines> orderLines = new ArrayList<OrderLines>();
-
          // Ask for customer identity and product identity
          Customers customer = customerOrders.selectCustomer(in);
 
          // Starting order
          System.out.println("Starting your order: ");
-         Orders order = customerOrders.getOrderTime(customer);
+         Cart cart = orderService.openCart(customer);
          boolean productsGo = true;
 
          while (productsGo) {
             // Print order lines
-            if(!orderLines.isEmpty()){
+            if(!cart.isEmpty()){
                System.out.println("Shopping Cart: ");
-               customerOrders.displayOrderLines(orderLines);
+               customerOrders.displayOrderLines(cart);
             }
 
             // Select product
-            Products productForOrder = customerOrders.selectProduct(in, inventory);
+            Products productForOrder = customerOrders.selectProduct(in);
+            if (productForOrder == null) {
+               break;
+            }
 
             // Get quantity
             System.out.println("Enter Quantity: ");
             int quantity = in.nextInt();
 
-            // Validate quantity
-            if (!customerOrders.checkInStock(productForOrder.getUPC(), quantity)) {
+            // Validate quantity, counting what is already in the cart
+            if (!orderService.checkInStock(productForOrder.getUPC(),
+                    quantity + cart.quantityOf(productForOrder.getUPC()))) {
                // Display Choices
                System.out.println("0: Want All");
                System.out.println("1: Want None");
@@ -144,10 +154,8 @@ public class CustomerOrders {
                   //want all
                   case 0: {
                      System.out.println("I'm putting in all...");
-                     quantity = productForOrder.getUnits_in_stock();
-
-                     // Add order line to list of order lines
-                     customerOrders.addOrderLine(orderLines, new OrderLines(order, productForOrder, quantity, productForOrder.getUnit_list_price()));
+                     // Holds as much of the quantity as nobody else has
+                     customerOrders.addToCart(cart, productForOrder.getUPC(), quantity);
                      break;
                   }
                   //want none
@@ -163,7 +171,7 @@ public class CustomerOrders {
                   }
                }
             } else {
-               customerOrders.addOrderLine(orderLines, new OrderLines(order, productForOrder, quantity, productForOrder.getUnit_list_price()));
+               customerOrders.addToCart(cart, productForOrder.getUPC(), quantity);
             }
 
             System.out.println("Order another product? 0(no) 1(yes)");
@@ -175,15 +183,11 @@ public class CustomerOrders {
             }
          }//end of asking for products
 
-         double totalOrder = 0.0;
-
          // Tally up the order
-         for(OrderLines orderLine : orderLines){
-            totalOrder += orderLine.getQuantity() * orderLine.getUnit_sale_price();
-         }
+         long totalOrder = cart.getTotal();
 
-         System.out.println("Here is your current order total: $" + totalOrder);
-         customerOrders.displayOrderLines(orderLines);
+         System.out.println("Here is your current order total: $" + Money.format(totalOrder));
+         customerOrders.displayOrderLines(cart);
          System.out.println("Do you want to (0)Place order/ (1)Abort?");
          //Emily parts
          //If abort remember to add this statement in to reset the total for the other customer
@@ -201,217 +205,175 @@ public class CustomerOrders {
          if(response == 1)
          {
             System.out.println("Order not placed");
-            //abort transaction
-            customerOrders.entityManager.clear();
+            //abort the order
+            orderService.abort(cart);
             System.out.println("Your cart is empty: ");
          } else {
-            System.out.println("Order is placed");
-            System.out.println("Here is your cart");
-
-            customerOrders.displayOrderLines(orderLines);
-
-            tx.begin();
-            customerOrders.updateInventory(products);
-
-            customerOrders.entityManager.persist(order);
-
-            customerOrders.createEntity(orderLines);
+            // The cart's stock is held, but a hold that expired may have been sold to someone else meanwhile.
+            for (InventoryEngine.FillResult result : orderService.placeOrder(cart)) {
+               if (!result.isComplete()) {
+                  System.out.println("Only " + result.getFilled() + " of " + result.getRequested() +
+                          " units of " + result.getUPC() + " were still in stock");
+               }
+            }
 
-            tx.commit();
+            if (cart.isEmpty()) {
+               System.out.println("Order not placed, none of it is in stock anymore");
+            } else {
+               System.out.println("Order is placed");
+               System.out.println("Here is your cart");
+               customerOrders.displayOrderLines(cart);
+            }
          }
       }//end of that if
-   } // End of the main method
 
-   /**
-    * Create and persist a list of objects to the database.
-    * @param entities   The list of entities to persist.  These can be any object that has been
-    *                   properly annotated in JPA and marked as "persistable."  I specifically
-    *                   used a Java generic so that I did not have to write this over and over.
-    */
-   public <E> void createEntity(List <E> entities) {
-      for (E next : entities) {
-         //LOGGER.info("Persisting: " + next);
-         // Use the CustomerOrders entityManager instance variable to get our EntityManager.
-         this.entityManager.persist(next);
-      }
-   } // End of createEntity member method
+      orderService.close();
+      factory.close();
+      Startup.dumpStatistics();
+   } // End of the main method
 
    /**
-    * This is the product selection menu in which a product entity is chosen and returned.
+    * This is the product selection menu in which a product entity is chosen and returned.  The in-stock
+    * products are shown one page at a time, in UPC order, so the whole catalog is never read at once.  The
+    * pages are read as summaries; only the product that is chosen is read as an entity.
     * @param scanner        Scanner object being imported in method
-    * @param inventory      The list of products
-    * @return               The product object that matches
+    * @return               The product object that matches, or null if nothing is in stock.
     */
-   public Products selectProduct (Scanner scanner, List<Products> inventory)
+   public Products selectProduct (Scanner scanner)
    {
-      System.out.printf("%-10s%-30s%-10s%-15s%n", "Choice", "Products", "Price", "Quantity");
-      for (int i  = 0; i < inventory.size(); i++)
-      {
-         Products product = inventory.get(i);
-         System.out.printf("%-10d%-30s$%-10.2f%-15d%n",
-                 i,
-                 product.getProd_name(),
-                 product.getUnit_list_price(),
-                 product.getUnits_in_stock());
+      List<ProductSummary> page = this.orderService.getInventorySummaryPage(null, INVENTORY_PAGE_SIZE);
+      if (page.isEmpty()) {
+         System.out.println("Sorry, nothing is in stock");
+         return null;
       }
 
-      System.out.println("Select number");
-
-      int prodNum = scanner.nextInt();
-
-      while(prodNum < 0 || prodNum >= inventory.size()) {
-         System.out.println("Invalid Number. Please input valid option");
-         prodNum = scanner.nextInt();
-      }
+      while (true) {
+         System.out.printf("%-10s%-30s%-10s%-15s%n", "Choice", "Products", "Price", "Quantity");
+         for (int i  = 0; i < page.size(); i++)
+         {
+            ProductSummary product = page.get(i);
+            System.out.printf("%-10d%-30s$%-10s%-15d%n",
+                    i,
+                    product.getProd_name(),
+                    Money.format(product.getUnit_list_price()),
+                    product.getUnits_available());
+         }
 
-      return getProduct(inventory.get(prodNum).getUPC());
-   }// End of the getProduct method
+         System.out.println("Select number, or -1 for more products");
 
-   /**
-    * Gets product using UPC and returns it.
-    * @param UPC     Identifying string of the product
-    * @return        The product that matches the input UPC.
-    * */
-   public Products getProduct(String UPC)
-   {
-      return this.entityManager.createNamedQuery("ReturnProduct", Products.class).setParameter(1, UPC).getSingleResult();
-   }
+         int prodNum = scanner.nextInt();
 
-   /**
-    * Gets the inventory as it is from the database.
-    * @return        Product list from the database.
-    * */
-   public List<Products> getInventory(){
-      return this.entityManager.createNamedQuery("GetInventory", Products.class).getResultList();
-   }
+         while(prodNum < -1 || prodNum >= page.size()) {
+            System.out.println("Invalid Number. Please input valid option");
+            prodNum = scanner.nextInt();
+         }
 
-   /**
-    * Compare the number of units the product has to the user requested quantity
-    * @param UPC           Product to find the units it has.
-    * @param quantity      The quantity the user requests.
-    * @return              True if there are enough units, false if not.
-    */
-   public boolean checkInStock (String UPC, int quantity)
-   {
-      // Gets the product
-      Products products = this.entityManager.createNamedQuery("ReturnProduct",
-              Products.class).setParameter(1, UPC).getSingleResult();
+         if (prodNum >= 0) {
+            return this.orderService.getProduct(page.get(prodNum).getUPC());
+         }
 
-      return quantity <= products.getUnits_in_stock();
-   }// End of the checkInStock method
+         // Pick up after the last product shown, going back to the start once we run off the end.
+         page = this.orderService.getInventorySummaryPage(page.get(page.size() - 1).getUPC(),
+                 INVENTORY_PAGE_SIZE);
+         if (page.isEmpty()) {
+            page = this.orderService.getInventorySummaryPage(null, INVENTORY_PAGE_SIZE);
+         }
+      }
+   }// End of the selectProduct method
 
    /**
-    * This is the select customer menu which returns a customer entity.
+    * This is the select customer menu which returns a customer entity.  The customer is looked up by phone
+    * number or by name, and the matches are shown a page at a time, as summaries.  Only the customer that
+    * is chosen is read as an entity.
     * @param scanner       Scanner object that is passed in.
     * @return              Customer entity that the user chose.
     */
    public Customers selectCustomer(Scanner scanner)
    {
-      // Query for all customers
-      List<Customers> customers = this.entityManager.createNamedQuery("ReturnCustomers",
-              Customers.class).getResultList();
-
-      System.out.println("Customers:");
-      for (int i  = 0; i < customers.size(); i++)
-      {
-         System.out.println(i + " " + customers.get(i));
-      }
+      while (true) {
+         System.out.println("Hi: Who are you? Find yourself by (0)Phone (1)Last name (2)Last and first name");
+         int searchBy = scanner.nextInt();
+         while (searchBy < 0 || searchBy > 2) {
+            System.out.println("Invalid Number. Please input valid option");
+            searchBy = scanner.nextInt();
+         }
 
-      System.out.println("Hi: Who are you: Select number");
+         String phone = null, lastName = null, firstName = null;
+         if (searchBy == 0) {
+            System.out.println("Phone number:");
+            phone = scanner.next();
+         } else {
+            System.out.println(searchBy == 1 ? "Last name, or the start of it:" : "Last name:");
+            lastName = scanner.next();
+            if (searchBy == 2) {
+               System.out.println("First name:");
+               firstName = scanner.next();
+            }
+         }
 
-      int custNum = scanner.nextInt();
+         CustomerSummary after = null;
+         while (true) {
+            List<CustomerSummary> customers = searchBy == 0 ? this.orderService.findCustomersByPhone(phone, after, CUSTOMER_PAGE_SIZE)
+                    : searchBy == 1 ? this.orderService.findCustomersByLastNamePrefix(lastName, after, CUSTOMER_PAGE_SIZE)
+                    : this.orderService.findCustomersByName(lastName, firstName, after, CUSTOMER_PAGE_SIZE);
+            if (customers.isEmpty()) {
+               System.out.println(after == null ? "No customers found" : "No more customers found");
+               break;
+            }
 
-      while(custNum < 0 || custNum >= customers.size()) {
-         System.out.println("Invalid Number. Please input valid customer number");
-         custNum = scanner.nextInt();
-      }
+            System.out.println("Customers:");
+            for (int i  = 0; i < customers.size(); i++)
+            {
+               System.out.println(i + " " + customers.get(i));
+            }
 
-      return getCustomer(customers.get(custNum).getCustomer_id());
-   }
+            System.out.println("Select number, -1 for more customers or -2 to search again");
 
-   /**
-    * Gets the customer entity from the database.
-    * @param custNum       Identifying number for the customer
-    * @return              Customer entity from the database.
-    */
-   public Customers getCustomer(long custNum)
-   {
-      return this.entityManager.createNamedQuery("GetCustomer", Customers.class)
-              .setParameter(1, custNum).getSingleResult();
-   }
+            int custNum = scanner.nextInt();
 
-   /**
-    * Returns order to be started with the sold_by inputted by default.
-    * @param cust       Customer to be associated with the order.
-    * @return           Order entity to be used with order lines.
-    */
-   public Orders getOrderTime(Customers cust)
-   {
-      return new Orders(cust,LocalDateTime.now(),"Shirley");
-   }
+            while(custNum < -2 || custNum >= customers.size()) {
+               System.out.println("Invalid Number. Please input valid customer number");
+               custNum = scanner.nextInt();
+            }
 
-   /**
-    * Adds order line to list of order lines. It does a check whether the product for the order line is
-    * already in the list of order lines.
-    * @param orderLines       The list of order lines which order line could be added to.
-    * @param orderLine        The order line to be evaluated.
-    */
-   public void addOrderLine(List<OrderLines> orderLines, OrderLines orderLine){
-      int position = isInOrder(orderLines, orderLine.getProduct().getUPC());
-      if(position >= 0){
-         OrderLines line = orderLines.get(position);
-         line.setQuantity(line.getQuantity() + orderLine.getQuantity());
-      } else {
-         orderLines.add(orderLine);
+            if (custNum >= 0) {
+               return this.orderService.getCustomer(customers.get(custNum).getCustomer_id());
+            } else if (custNum == -2) {
+               break;
+            }
+            after = customers.get(customers.size() - 1);
+         }
       }
-
-      Products orderLineProduct = orderLine.getProduct();
-
-      orderLineProduct.setUnits_in_stock(orderLineProduct.getUnits_in_stock() - orderLine.getQuantity());
    }
 
+
    /**
-    * Finds the position of the product in the order lines list.
-    * @param orderlines       The list of order lines to be iterated through.
-    * @param UPC              The search UPC to be looked for.
-    * @return                 A non-negative number if the product is already in list. -1 if it is not.
+    * Puts a product in the cart, holding the stock for it, and says so if not all of it could be held.
+    * @param cart             The cart to add to.
+    * @param UPC              The product to add.
+    * @param quantity         How many units the customer wants.
     */
-   public int isInOrder(List<OrderLines> orderlines, String UPC){
-      int i = 0;
-      for (OrderLines orderline : orderlines){
-         if(Objects.equals(orderline.getProduct().getUPC(), UPC)){
-            return i;
-         }
-
-         i++;
+   public void addToCart(Cart cart, String UPC, int quantity) {
+      InventoryEngine.FillResult held = this.orderService.addLine(cart, UPC, quantity);
+      if (!held.isComplete()) {
+         System.out.println("Only " + held.getFilled() + " of " + held.getRequested() +
+                 " units could be held for you; the rest are sold or in other carts");
       }
-
-      return -1;
    }
 
    /**
-    * Displays the order lines with total cost at the bottom.
-    * @param orderLines       The list of order lines to be displayed.
+    * Displays the order lines with total cost at the bottom.  The cart keeps its own running total.
+    * @param cart             The cart whose order lines are to be displayed.
     */
-   public void displayOrderLines(List<OrderLines> orderLines){
-      double total = 0;
+   public void displayOrderLines(Cart cart){
       System.out.printf("%-25s%-10s%-20s%-10s%n", "Product", "Quantity", "Price Each", "Subtotal");
-      for (OrderLines orderLine : orderLines){
-         System.out.printf("%-25s%-10d$%-19.2f$%-10.2f%n", orderLine.getProduct().getProd_name(),
+      for (OrderLines orderLine : cart.getOrderLines()){
+         System.out.printf("%-25s%-10d$%-19s$%-10s%n", orderLine.getProduct().getProd_name(),
                  orderLine.getQuantity(),
-                 orderLine.getUnit_sale_price(),
-                 orderLine.getUnit_sale_price() * orderLine.getQuantity());
-         total += orderLine.getQuantity() * orderLine.getUnit_sale_price();
+                 Money.format(orderLine.getUnit_sale_price()),
+                 Money.format(orderLine.getUnit_sale_price() * orderLine.getQuantity()));
       }
 
-      System.out.printf("%nTotal%51s%1.2f%n%n", "$", total);
-   }
-
-   public void updateInventory(List<Products> inventory){
-      for(Products product : inventory){
-         this.entityManager.createNamedQuery("UpdateInventory", Products.class)
-                 .setParameter(1, product.getUnits_in_stock())
-                 .setParameter(2, product.getUPC());
-      }
+      System.out.printf("%nTotal%51s%s%n%n", "$", Money.format(cart.getTotal()));
    }
 } // End of CustomerOrders class
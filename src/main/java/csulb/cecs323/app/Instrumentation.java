@@ -0,0 +1,181 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Latency statistics for every query the persistence unit runs and every business operation of
+ * OrderService, published over JMX and written to a file on request.
+ * <p>
+ * Queries are timed by QueryProfiler, which ConnectionPoolCustomizer installs in the EclipseLink session,
+ * and are named by the query's name, which EclipseLink also gives the queries it builds itself (readCustomers
+ * for EntityManager.find of a customer, say), or else by the kind of query and its entity.  Operations are
+ * timed by OrderService and OrderWriter and named after their methods.  Each has a LatencyStats of its own, registered as csulb.cecs323:type=Query,name=&lt;query&gt;
+ * or csulb.cecs323:type=Operation,name=&lt;operation&gt;; csulb.cecs323:type=Instrumentation turns the
+ * timing off and on, resets it and dumps it.
+ * </p>
+ * <p>
+ * Timing is on unless -Dcustomerorders.instrumentation=false is given.
+ * </p>
+ */
+public final class Instrumentation {
+   private static final Logger LOGGER = Logger.getLogger(Instrumentation.class.getName());
+
+   /** The system property that turns timing off at startup. */
+   public static final String ENABLED_PROPERTY = "customerorders.instrumentation";
+
+   public static final String QUERY = "Query";
+   public static final String OPERATION = "Operation";
+
+   /** Every LatencyStats, by kind and then name, so that a dump comes out in order. */
+   private static final Map<String, LatencyStats> STATS = new ConcurrentSkipListMap<>();
+
+   private static volatile boolean enabled =
+           Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true").trim());
+
+   static {
+      register("csulb.cecs323:type=Instrumentation",
+              new StandardMBean(new Control(), InstrumentationMBean.class, false));
+   }
+
+   private Instrumentation() {}
+
+   /**
+    * @param name    The name of a query.
+    * @return        Its statistics, created and published the first time they are asked for.
+    */
+   public static LatencyStats query(String name) {
+      return stats(QUERY, name, 1);
+   }
+
+   /**
+    * @param name    The name of a business operation.
+    * @return        Its statistics, created and published the first time they are asked for.
+    */
+   public static LatencyStats operation(String name) {
+      return stats(OPERATION, name, 1);
+   }
+
+   /**
+    * @param name          The name of a business operation that is too cheap to time every call of.
+    * @param sampleEvery   LatencyStats.start times one call in this many.  Only used the first time the
+    *                      operation's statistics are asked for.
+    * @return              Its statistics, created and published the first time they are asked for.
+    */
+   public static LatencyStats operation(String name, int sampleEvery) {
+      return stats(OPERATION, name, sampleEvery);
+   }
+
+   /** @return True if queries and operations are being timed. */
+   public static boolean isEnabled() {
+      return enabled;
+   }
+
+   /** @param on     Whether to time queries and operations.  What has been recorded is kept either way. */
+   public static void setEnabled(boolean on) {
+      enabled = on;
+   }
+
+   /** @return The statistics of every query and operation, queries first, each by name. */
+   public static Collection<LatencyStats> getStats() {
+      return new ArrayList<>(STATS.values());
+   }
+
+   /** Forgets the statistics of every query and operation. */
+   public static void resetStatistics() {
+      for (LatencyStats stats : STATS.values()) {
+         stats.resetStatistics();
+      }
+   }
+
+   /**
+    * Writes the statistics of every query and operation to a file, one line each, replacing what was in it.
+    * Latencies are in microseconds.
+    * @param file    The file.
+    */
+   public static void dump(Path file) throws IOException {
+      try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file))) {
+         out.printf("# Latency statistics at %s; times in microseconds%n", LocalDateTime.now());
+         out.printf("%-10s %-40s %10s %8s %10s %10s %10s %10s %10s%n",
+                 "kind", "name", "count", "errors", "mean", "p50", "p99", "p99.9", "max");
+         for (LatencyStats stats : STATS.values()) {
+            out.printf("%-10s %-40s %10d %8d %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    stats.getKind(), stats.getName(), stats.getCount(), stats.getErrors(), stats.getMeanMicros(),
+                    stats.getP50Micros(), stats.getP99Micros(), stats.getP999Micros(), stats.getMaxMicros());
+         }
+      }
+   }
+
+   private static LatencyStats stats(String kind, String name, int sampleEvery) {
+      LatencyStats stats = STATS.get(kind + ":" + name);
+      return stats != null ? stats : STATS.computeIfAbsent(kind + ":" + name, key -> {
+         LatencyStats created = new LatencyStats(kind, name, sampleEvery);
+         register("csulb.cecs323:type=" + kind + ",name=" + ObjectName.quote(name),
+                 new StandardMBean(created, LatencyStatsMBean.class, false));
+         return created;
+      });
+   }
+
+   private static void register(String objectName, StandardMBean bean) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         ObjectName name = new ObjectName(objectName);
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         server.registerMBean(bean, name);
+      } catch (JMException e) {
+         LOGGER.log(Level.WARNING, "Could not register " + objectName + " with JMX", e);
+      }
+   }
+
+   /** The JMX view of the class. */
+   private static class Control implements InstrumentationMBean {
+      @Override
+      public boolean isEnabled() {
+         return Instrumentation.isEnabled();
+      }
+
+      @Override
+      public void setEnabled(boolean on) {
+         Instrumentation.setEnabled(on);
+      }
+
+      @Override
+      public void dump(String file) throws IOException {
+         Instrumentation.dump(Paths.get(file));
+      }
+
+      @Override
+      public void resetStatistics() {
+         Instrumentation.resetStatistics();
+      }
+   }
+}
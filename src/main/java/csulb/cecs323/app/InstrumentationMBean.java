@@ -0,0 +1,35 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.io.IOException;
+
+/**
+ * What Instrumentation exposes over JMX, under csulb.cecs323:type=Instrumentation.
+ */
+public interface InstrumentationMBean {
+   /** @return True if queries and operations are being timed. */
+   boolean isEnabled();
+
+   /** @param enabled  Whether to time queries and operations.  What has been recorded is kept either way. */
+   void setEnabled(boolean enabled);
+
+   /**
+    * Writes the statistics of every query and operation to a file, replacing what was in it.
+    * @param file    The path of the file.
+    */
+   void dump(String file) throws IOException;
+
+   /** Forgets the statistics of every query and operation. */
+   void resetStatistics();
+}
@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/**
+ * Takes stock out of inventory for the lines of an order, and holds it for open carts.
+ * <p>
+ * Each reservation or hold is one conditional UPDATE that only succeeds while enough units are left, so the
+ * check and the decrement happen atomically in the database.  Two buyers racing for the last units
+ * cannot both succeed, and nothing is read into memory, changed and written back.  The update takes a
+ * row lock that is held until the caller's transaction ends, so all of the methods here must be called
+ * inside the transaction that persists the order.
+ * </p>
+ */
+public class InventoryEngine {
+   /** The EntityManager whose transaction the reservations take part in. */
+   private final EntityManager entityManager;
+
+   /**
+    * The outcome of reserving stock for one product.
+    */
+   public static class FillResult {
+      /** The product that stock was reserved for. */
+      private final String UPC;
+      /** How many units the order asked for. */
+      private final int requested;
+      /** How many units were actually taken out of stock. */
+      private final int filled;
+
+      public FillResult(String UPC, int requested, int filled) {
+         this.UPC = UPC;
+         this.requested = requested;
+         this.filled = filled;
+      }
+
+      public String getUPC() {
+         return UPC;
+      }
+
+      public int getRequested() {
+         return requested;
+      }
+
+      public int getFilled() {
+         return filled;
+      }
+
+      /** @return True if every requested unit was reserved. */
+      public boolean isComplete() {
+         return filled == requested;
+      }
+
+      @Override
+      public String toString() {
+         return "UPC: " + this.UPC + ", Requested: " + this.requested + ", Filled: " + this.filled;
+      }
+   }
+
+   /**
+    * @param manager    The EntityManager whose transaction the reservations belong to.
+    */
+   public InventoryEngine(EntityManager manager) {
+      this.entityManager = manager;
+   }
+
+   /**
+    * Takes quantity units of the product out of stock, but only if that many are on hand and not held.
+    * @param UPC           The product to reserve.
+    * @param quantity      The number of units wanted.
+    * @return              True if the units were reserved, false if there was not enough stock or quantity
+    *                      was not positive.  A negative quantity would put stock back.
+    */
+   public boolean reserve(String UPC, int quantity) {
+      return quantity > 0 && updateStock("ReserveStock", UPC, quantity, UPC, quantity);
+   }
+
+   /**
+    * The "want all" path: reserves quantity units if they are on hand, otherwise whatever is left.
+    * If another buyer takes stock between reading the level and reserving it, the read is retried.
+    * @param UPC           The product to reserve.
+    * @param quantity      The number of units wanted.
+    * @return              How many of the units could be reserved.
+    */
+   public FillResult reserveUpTo(String UPC, int quantity) {
+      if (quantity <= 0) {
+         return new FillResult(UPC, quantity, 0);
+      }
+      if (reserve(UPC, quantity)) {
+         return new FillResult(UPC, quantity, quantity);
+      }
+      while (true) {
+         int available = Math.min(getStockOnHand(UPC), quantity);
+         if (available <= 0) {
+            return new FillResult(UPC, quantity, 0);
+         }
+         if (reserve(UPC, available)) {
+            return new FillResult(UPC, quantity, available);
+         }
+      }
+   }
+
+   /**
+    * Holds quantity units of the product for a cart, but only if that many are on hand and not held.
+    * The units stay in stock but nobody else can order or hold them until release or takeHeld.
+    * @param UPC           The product to hold.
+    * @param quantity      The number of units wanted.
+    * @return              True if the units were held, false if there was not enough stock or quantity was
+    *                      not positive.
+    */
+   public boolean hold(String UPC, int quantity) {
+      return quantity > 0 && updateStock("HoldStock", UPC, quantity, UPC, quantity);
+   }
+
+   /**
+    * Like reserveUpTo, but holds the units instead of taking them.
+    * @param UPC           The product to hold.
+    * @param quantity      The number of units wanted.
+    * @return              How many of the units could be held.
+    */
+   public FillResult holdUpTo(String UPC, int quantity) {
+      if (quantity <= 0) {
+         return new FillResult(UPC, quantity, 0);
+      }
+      if (hold(UPC, quantity)) {
+         return new FillResult(UPC, quantity, quantity);
+      }
+      while (true) {
+         int available = Math.min(getStockOnHand(UPC), quantity);
+         if (available <= 0) {
+            return new FillResult(UPC, quantity, 0);
+         }
+         if (hold(UPC, available)) {
+            return new FillResult(UPC, quantity, available);
+         }
+      }
+   }
+
+   /**
+    * Gives held units back, so that others can order or hold them again.
+    * @param UPC           The product that was held.
+    * @param quantity      The number of units that were held.
+    */
+   public void release(String UPC, int quantity) {
+      updateStock("ReleaseStock", UPC, quantity, UPC);
+   }
+
+   /**
+    * Turns a hold into a sale: taken units leave stock and the whole hold is given up.
+    * @param UPC           The product that was held.
+    * @param taken         The number of units ordered.  No more than held.
+    * @param held          The number of units that were held.
+    */
+   public void takeHeld(String UPC, int taken, int held) {
+      updateStock("TakeHeldStock", UPC, taken, held, UPC);
+   }
+
+   /**
+    * Runs one of the stock UPDATEs on PRODUCTS.
+    * @param queryName     The named query.
+    * @param UPC           The product it updates.
+    * @param parameters    Its positional parameters, in order.
+    * @return              True if the product's row was updated.
+    */
+   private boolean updateStock(String queryName, String UPC, Object... parameters) {
+      Query update = this.entityManager.createNamedQuery(queryName);
+      for (int i = 0; i < parameters.length; i++) {
+         update.setParameter(i + 1, parameters[i]);
+      }
+      if (update.executeUpdate() == 1) {
+         // The UPDATE went around EclipseLink, so make sure that no cached copy outlives it.
+         this.entityManager.getEntityManagerFactory().getCache().evict(Products.class, UPC);
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Reads the stock level straight from the database.
+    * @param UPC           The product to look up.
+    * @return              The units on hand for the product that no cart is holding.
+    */
+   public int getStockOnHand(String UPC) {
+      return this.entityManager.createNamedQuery("StockOnHand", Integer.class)
+              .setParameter("upc", UPC).getSingleResult();
+   }
+}
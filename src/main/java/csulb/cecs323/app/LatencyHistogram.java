@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds, in the style of HdrHistogram.
+ * <p>
+ * Each power of two is split into eight buckets, so any recorded value is reported to within 12.5%, and
+ * the whole range of a long fits in under 500 counters.  Recording is a couple of shifts and one atomic
+ * increment, cheap enough to do on every call.
+ * </p>
+ */
+public class LatencyHistogram {
+   /** Each power of two is split into 2^SUB_BUCKET_BITS buckets. */
+   private static final int SUB_BUCKET_BITS = 3;
+   private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+   private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final LongAdder count = new LongAdder();
+   private final LongAdder sum = new LongAdder();
+   private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+   /**
+    * @param nanos      The latency to record.  Negative values are recorded as 0.
+    */
+   public void record(long nanos) {
+      long value = Math.max(nanos, 0);
+      this.counts.incrementAndGet(bucketOf(value));
+      this.count.increment();
+      this.sum.add(value);
+      this.max.accumulate(value);
+   }
+
+   /**
+    * Records the time since start.
+    * @param start      A value of System.nanoTime() taken when the operation started.
+    */
+   public void recordSince(long start) {
+      record(System.nanoTime() - start);
+   }
+
+   /** @return The number of values recorded. */
+   public long getCount() {
+      return this.count.sum();
+   }
+
+   /** @return The largest value recorded, in nanoseconds. */
+   public long getMax() {
+      return this.max.get();
+   }
+
+   /** @return The mean of the values recorded, in nanoseconds. */
+   public double getMean() {
+      long n = getCount();
+      return n == 0 ? 0.0 : (double) this.sum.sum() / n;
+   }
+
+   /**
+    * @param percentile    Between 0 and 100.
+    * @return              A value that at least that percentage of the recorded values are no larger than,
+    *                      in nanoseconds.  0 if nothing has been recorded.
+    */
+   public long getPercentile(double percentile) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         total += this.counts.get(i);
+      }
+      if (total == 0) {
+         return 0;
+      }
+      long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += this.counts.get(i);
+         if (seen >= rank) {
+            return Math.min(highestValueIn(i), getMax());
+         }
+      }
+      return getMax();
+   }
+
+   /** Forgets everything recorded so far. */
+   public void reset() {
+      for (int i = 0; i < BUCKETS; i++) {
+         this.counts.set(i, 0);
+      }
+      this.count.reset();
+      this.sum.reset();
+      this.max.reset();
+   }
+
+   private static int bucketOf(long value) {
+      if (value < SUB_BUCKETS) {
+         return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+      return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+   }
+
+   private static long lowestValueIn(int bucket) {
+      if (bucket < SUB_BUCKETS) {
+         return bucket;
+      }
+      int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+      long subBucket = bucket % SUB_BUCKETS;
+      return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+   }
+
+   private static long highestValueIn(int bucket) {
+      return bucket + 1 < BUCKETS ? lowestValueIn(bucket + 1) - 1 : Long.MAX_VALUE;
+   }
+
+   @Override
+   public String toString() {
+      return String.format("count=%d mean=%.1fus p50=%.1fus p99=%.1fus p999=%.1fus max=%.1fus",
+              getCount(), getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(99) / 1e3,
+              getPercentile(99.9) / 1e3, getMax() / 1e3);
+   }
+}
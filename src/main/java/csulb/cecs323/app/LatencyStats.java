@@ -0,0 +1,159 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The latencies and errors of one query or business operation.  Get one from Instrumentation, which
+ * publishes it over JMX.
+ * <p>
+ * Take start() (or System.nanoTime()) before the call and pass it to recordSince afterwards, in a finally
+ * block so that calls that throw are counted too.  Recording costs two clock reads and a few atomic
+ * increments, and nothing at all while Instrumentation is turned off.
+ * </p>
+ * <p>
+ * For a call so cheap that the clock reads are a large part of it, the statistics can sample: start then
+ * reads the clock for one call in sampleEvery, picked at random, and the latencies are those of the calls
+ * it picked.  Every call is still counted, with its errors.
+ * </p>
+ */
+public class LatencyStats implements LatencyStatsMBean {
+   /** What start returns for a call that is counted but not timed. */
+   public static final long UNTIMED = Long.MIN_VALUE;
+
+   private final String kind;
+   private final String name;
+   /** start times one call in this many. */
+   private final int sampleEvery;
+   private final LatencyHistogram latency = new LatencyHistogram();
+   private final LongAdder calls = new LongAdder();
+   private final LongAdder errors = new LongAdder();
+
+   /**
+    * @param kind          What is being timed, Instrumentation.QUERY or Instrumentation.OPERATION.
+    * @param name          The name of the query or operation.
+    * @param sampleEvery   start times one call in this many; 1 to time every call.
+    */
+   LatencyStats(String kind, String name, int sampleEvery) {
+      if (sampleEvery <= 0) {
+         throw new IllegalArgumentException("sampleEvery must be positive: " + sampleEvery);
+      }
+      this.kind = kind;
+      this.name = name;
+      this.sampleEvery = sampleEvery;
+   }
+
+   public String getKind() {
+      return this.kind;
+   }
+
+   public String getName() {
+      return this.name;
+   }
+
+   /** @return One call in this many is timed by start. */
+   public int getSampleEvery() {
+      return this.sampleEvery;
+   }
+
+   /** @return The histogram of latencies, in nanoseconds, of the calls that were timed. */
+   public LatencyHistogram getLatency() {
+      return this.latency;
+   }
+
+   /**
+    * @return     System.nanoTime() if this call is to be timed, or UNTIMED if it is only to be counted,
+    *             because it was not sampled or Instrumentation is turned off.  Pass it to recordSince.
+    */
+   public long start() {
+      if (!Instrumentation.isEnabled() ||
+              (this.sampleEvery > 1 && ThreadLocalRandom.current().nextInt(this.sampleEvery) != 0)) {
+         return UNTIMED;
+      }
+      return System.nanoTime();
+   }
+
+   /**
+    * Records one call, unless Instrumentation is turned off.
+    * @param start      What start returned when the call started, or a value of System.nanoTime().
+    * @param failed     Whether the call threw.
+    */
+   public void recordSince(long start, boolean failed) {
+      if (!Instrumentation.isEnabled()) {
+         return;
+      }
+      this.calls.increment();
+      if (start != UNTIMED) {
+         this.latency.recordSince(start);
+      }
+      if (failed) {
+         this.errors.increment();
+      }
+   }
+
+   @Override
+   public long getCount() {
+      return this.calls.sum();
+   }
+
+   @Override
+   public long getErrors() {
+      return this.errors.sum();
+   }
+
+   @Override
+   public double getErrorRate() {
+      long count = getCount();
+      return count == 0 ? 0.0 : (double) getErrors() / count;
+   }
+
+   @Override
+   public double getMeanMicros() {
+      return this.latency.getMean() / 1e3;
+   }
+
+   @Override
+   public double getP50Micros() {
+      return this.latency.getPercentile(50) / 1e3;
+   }
+
+   @Override
+   public double getP99Micros() {
+      return this.latency.getPercentile(99) / 1e3;
+   }
+
+   @Override
+   public double getP999Micros() {
+      return this.latency.getPercentile(99.9) / 1e3;
+   }
+
+   @Override
+   public double getMaxMicros() {
+      return this.latency.getMax() / 1e3;
+   }
+
+   @Override
+   public void resetStatistics() {
+      this.latency.reset();
+      this.calls.reset();
+      this.errors.reset();
+   }
+
+   @Override
+   public String toString() {
+      return this.kind + " " + this.name + ": calls=" + getCount() + " errors=" + getErrors() + " timed " +
+              this.latency;
+   }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+/**
+ * What LatencyStats exposes over JMX, under csulb.cecs323:type=Query,name=&lt;query&gt; for a query and
+ * csulb.cecs323:type=Operation,name=&lt;operation&gt; for a business operation.  Latencies are in
+ * microseconds and cover failed calls as well as those that succeeded; for an operation that is sampled they
+ * are of the calls that were timed, while the counts are of every call.
+ */
+public interface LatencyStatsMBean {
+   /** @return Calls since the statistics were reset. */
+   long getCount();
+
+   /** @return Calls that threw since the statistics were reset. */
+   long getErrors();
+
+   /** @return The fraction of calls that threw, between 0 and 1. */
+   double getErrorRate();
+
+   double getMeanMicros();
+
+   double getP50Micros();
+
+   double getP99Micros();
+
+   double getP999Micros();
+
+   double getMaxMicros();
+
+   void resetStatistics();
+}
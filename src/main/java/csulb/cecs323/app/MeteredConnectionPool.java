@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.exceptions.ConcurrencyException;
+import org.eclipse.persistence.internal.databaseaccess.Accessor;
+import org.eclipse.persistence.sessions.server.ConnectionPool;
+import org.eclipse.persistence.sessions.server.ServerSession;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An EclipseLink connection pool that keeps track of how it is being used: how many connections are in
+ * use or idle, how many threads are waiting for one, and how long it takes to get one.  These are the
+ * numbers that show whether the pool has become the bottleneck.  ConnectionPoolCustomizer puts one of
+ * these in place of each pool that EclipseLink builds from persistence.xml.
+ */
+public class MeteredConnectionPool extends ConnectionPool implements ConnectionPoolStatsMBean {
+   /** How long it took acquireConnection to hand over a connection, waits included. */
+   private final LatencyHistogram acquireLatency = new LatencyHistogram();
+   /** Threads currently inside acquireConnection. */
+   private final AtomicInteger waiters = new AtomicInteger();
+   /** Acquisitions that gave up after the pool's wait timeout. */
+   private final LongAdder timeouts = new LongAdder();
+
+   /**
+    * Copies the configuration of a pool that EclipseLink built.
+    * @param pool       The pool to take the place of.  It must not have been started yet.
+    * @param owner      The session that the pool belongs to.
+    */
+   public MeteredConnectionPool(ConnectionPool pool, ServerSession owner) {
+      super(pool.getName(), pool.getLogin(), pool.getInitialNumberOfConnections(),
+              pool.getMinNumberOfConnections(), pool.getMaxNumberOfConnections(), owner);
+      setWaitTimeout(pool.getWaitTimeout());
+      setFailoverConnectionPools(pool.getFailoverConnectionPools());
+   }
+
+   /**
+    * Hands over a connection, waiting for one to be released if the pool is at its maximum.  EclipseLink's
+    * own pool waits for ever, checking again every wait timeout, so the wait is done here instead: once the
+    * wait timeout has passed the caller is given a WaitTimeoutException.  A wait timeout of 0 or less waits
+    * for ever.
+    * @throws WaitTimeoutException if no connection was free within the wait timeout.  Only these count as
+    *                              timeouts.
+    * @throws ConcurrencyException if the thread was interrupted while it waited.
+    */
+   @Override
+   public Accessor acquireConnection() throws ConcurrencyException {
+      long start = System.nanoTime();
+      this.waiters.incrementAndGet();
+      try {
+         synchronized (this) {
+            awaitConnection(start);
+            return super.acquireConnection();
+         }
+      } finally {
+         this.waiters.decrementAndGet();
+         this.acquireLatency.recordSince(start);
+      }
+   }
+
+   /**
+    * Waits until a connection is free or another may be built.  The caller must hold the pool's lock, which
+    * releaseConnection takes to notify a waiter.
+    * @param start      When the caller started waiting, from System.nanoTime.
+    */
+   private void awaitConnection(long start) {
+      long timeout = TimeUnit.MILLISECONDS.toNanos(getWaitTimeout());
+      while (getConnectionsAvailable().isEmpty() && getConnectionsUsed().size() >= getMaxNumberOfConnections()) {
+         long remaining = timeout - (System.nanoTime() - start);
+         if (timeout > 0 && remaining <= 0) {
+            this.timeouts.increment();
+            throw new WaitTimeoutException(this, getWaitTimeout());
+         }
+         try {
+            wait(timeout > 0 ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining)) : 0);
+         } catch (InterruptedException e) {
+            throw ConcurrencyException.waitFailureOnClientSession(e);
+         }
+      }
+   }
+
+   /** @return The histogram of acquisition latencies, for callers that want more than the MBean shows. */
+   public LatencyHistogram getAcquireLatency() {
+      return this.acquireLatency;
+   }
+
+   @Override
+   public synchronized int getActive() {
+      return getConnectionsUsed().size();
+   }
+
+   @Override
+   public synchronized int getIdle() {
+      return getConnectionsAvailable().size();
+   }
+
+   @Override
+   public int getWaiters() {
+      return this.waiters.get();
+   }
+
+   @Override
+   public int getMin() {
+      return getMinNumberOfConnections();
+   }
+
+   @Override
+   public int getMax() {
+      return getMaxNumberOfConnections();
+   }
+
+   @Override
+   public long getAcquireCount() {
+      return this.acquireLatency.getCount();
+   }
+
+   @Override
+   public long getTimeouts() {
+      return this.timeouts.sum();
+   }
+
+   @Override
+   public double getAcquireMeanMicros() {
+      return this.acquireLatency.getMean() / 1e3;
+   }
+
+   @Override
+   public double getAcquireP50Micros() {
+      return this.acquireLatency.getPercentile(50) / 1e3;
+   }
+
+   @Override
+   public double getAcquireP99Micros() {
+      return this.acquireLatency.getPercentile(99) / 1e3;
+   }
+
+   @Override
+   public double getAcquireMaxMicros() {
+      return this.acquireLatency.getMax() / 1e3;
+   }
+
+   @Override
+   public void resetStatistics() {
+      this.acquireLatency.reset();
+      this.timeouts.reset();
+   }
+
+   /** Thrown by acquireConnection when no connection was free within the pool's wait timeout. */
+   public static class WaitTimeoutException extends ConcurrencyException {
+      private static final long serialVersionUID = 1L;
+
+      WaitTimeoutException(ConnectionPool pool, int waitTimeout) {
+         super("No connection in pool " + pool.getName() + " was free within " + waitTimeout + " ms");
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "Pool " + getName() + "- Active: " + getActive() + ", Idle: " + getIdle() + ", Waiters: " +
+              getWaiters() + ", Timeouts: " + getTimeouts() + ", Acquire: " + this.acquireLatency;
+   }
+}
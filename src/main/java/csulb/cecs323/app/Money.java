@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+/**
+ * Amounts of money are kept as a long number of US cents everywhere: in the entities, in the database and
+ * in cart totals.  Whole cents add up exactly, which doubles do not, and adding longs needs no objects.
+ * Dollars and cents only appear when an amount is shown to someone.
+ */
+public final class Money {
+   private Money() {}
+
+   /**
+    * @param cents      An amount in cents.
+    * @return           The amount in dollars, with two decimal places and no currency sign, e.g. "1234.05".
+    */
+   public static String format(long cents) {
+      StringBuilder text = new StringBuilder(24);
+      if (cents < 0) {
+         text.append('-');
+      }
+      // Negating Long.MIN_VALUE overflows, so work with the magnitude of each part instead.
+      long dollars = Math.abs(cents / 100);
+      int remainder = (int) Math.abs(cents % 100);
+      text.append(dollars).append('.');
+      if (remainder < 10) {
+         text.append('0');
+      }
+      return text.append(remainder).toString();
+   }
+
+   /**
+    * Reads an amount in dollars without going through a double, so "9.97" is exactly 997 cents.
+    * @param dollars    Digits with an optional sign and at most two decimal places, e.g. "12", "12.5", "-0.99".
+    * @return           The amount in cents.
+    * @throws NumberFormatException if the text is not an amount in dollars, or is too large for a long.
+    */
+   public static long parse(CharSequence dollars) {
+      try {
+         return parseCents(dollars);
+      } catch (ArithmeticException e) {
+         NumberFormatException tooLarge = new NumberFormatException(
+                 "Not an amount in dollars: \"" + dollars + "\" is too large");
+         tooLarge.initCause(e);
+         throw tooLarge;
+      }
+   }
+
+   /** parse, except that an amount too large for a long throws the ArithmeticException of the overflow. */
+   private static long parseCents(CharSequence dollars) {
+      int length = dollars.length();
+      int i = 0;
+      boolean negative = false;
+      if (length > 0 && (dollars.charAt(0) == '-' || dollars.charAt(0) == '+')) {
+         negative = dollars.charAt(0) == '-';
+         i++;
+      }
+      long cents = 0;
+      int digits = 0;
+      int decimals = -1;
+      for (; i < length; i++) {
+         char c = dollars.charAt(i);
+         if (c == '.' && decimals < 0) {
+            decimals = 0;
+         } else if (c >= '0' && c <= '9' && decimals < 2) {
+            cents = Math.addExact(Math.multiplyExact(cents, 10), c - '0');
+            digits++;
+            if (decimals >= 0) {
+               decimals++;
+            }
+         } else {
+            throw new NumberFormatException("Not an amount in dollars: \"" + dollars + "\"");
+         }
+      }
+      if (digits == 0) {
+         throw new NumberFormatException("Not an amount in dollars: \"" + dollars + "\"");
+      }
+      // Scale up whatever decimal places were left off: "12" and "12." are 1200, "12.5" is 1250.
+      for (int scale = Math.max(decimals, 0); scale < 2; scale++) {
+         cents = Math.multiplyExact(cents, 10);
+      }
+      return negative ? -cents : cents;
+   }
+}
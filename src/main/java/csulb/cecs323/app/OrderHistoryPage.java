@@ -0,0 +1,135 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.OrderLines;
+import csulb.cecs323.model.Orders;
+
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a customer's past orders, newest first, each with its lines and their products.
+ * Returned by OrderService.getOrderHistory.
+ */
+public class OrderHistoryPage {
+   /**
+    * A past order and what was on it.
+    */
+   public static class Entry {
+      private final Orders order;
+      /** The lines of the order in UPC order, with their products filled in. */
+      private final List<OrderLines> lines;
+
+      public Entry(Orders order, List<OrderLines> lines) {
+         this.order = order;
+         this.lines = Collections.unmodifiableList(lines);
+      }
+
+      public Orders getOrder() {
+         return order;
+      }
+
+      public List<OrderLines> getLines() {
+         return lines;
+      }
+
+      /** @return What the order cost, in cents, at the prices it was sold at. */
+      public long getTotal() {
+         long total = 0;
+         for (OrderLines line : lines) {
+            total += (long) line.getQuantity() * line.getUnit_sale_price();
+         }
+         return total;
+      }
+
+      @Override
+      public String toString() {
+         return "Order date: " + this.order.getOrder_date() + ", Lines: " + this.lines.size() +
+                 ", Total: $" + Money.format(getTotal());
+      }
+   }
+
+   /**
+    * A place in a customer's order history, which is sorted by order_date and then order_id, newest first.
+    * A page holds the orders that come after its position.
+    */
+   public static class Position {
+      /** Before every order, so the first page of a history starts here.  Derby dates end at year 9999. */
+      public static final Position NEWEST = new Position(LocalDateTime.of(9999, 12, 31, 0, 0), Long.MAX_VALUE);
+
+      private final LocalDateTime orderDate;
+      private final long orderId;
+
+      private Position(LocalDateTime orderDate, long orderId) {
+         this.orderDate = orderDate;
+         this.orderId = orderId;
+      }
+
+      /**
+       * @param order      An order in the history.
+       * @return           The position just after the order, where the orders older than it start.
+       */
+      public static Position after(Orders order) {
+         return new Position(order.getOrder_date(), order.getOrder_id());
+      }
+
+      /**
+       * @param date       A date and time.
+       * @return           The position of the first order placed before date.
+       */
+      public static Position before(LocalDateTime date) {
+         return new Position(date, Long.MIN_VALUE);
+      }
+
+      public LocalDateTime getOrderDate() {
+         return orderDate;
+      }
+
+      public long getOrderId() {
+         return orderId;
+      }
+   }
+
+   private final List<Entry> orders;
+   /** Where the next page starts, or null if this is the last page. */
+   private final Position nextBefore;
+
+   /**
+    * @param orders        The orders on this page, newest first.
+    * @param nextBefore    The position after the oldest order on this page if there are older orders, or null.
+    */
+   public OrderHistoryPage(List<Entry> orders, Position nextBefore) {
+      this.orders = Collections.unmodifiableList(orders);
+      this.nextBefore = nextBefore;
+   }
+
+   /** @return The orders on this page, newest first. */
+   public List<Entry> getOrders() {
+      return orders;
+   }
+
+   /** @return True if the customer has older orders than the ones on this page. */
+   public boolean hasMore() {
+      return nextBefore != null;
+   }
+
+   /**
+    * @return     What to pass to OrderService.getOrderHistory as before to get the next page, or null if this
+    *             is the last page.
+    */
+   public Position getNextBefore() {
+      return nextBefore;
+   }
+}
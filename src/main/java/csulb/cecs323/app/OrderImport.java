@@ -0,0 +1,663 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Orders;
+
+import javax.persistence.EntityManagerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Places the orders in an order file, such as a partner's feed, without anyone at the console.
+ * <p>
+ * Each line of the file is one order line: customer_id, UPC, quantity and, optionally, unit_price in
+ * dollars (the product's list price if it is left out).  Consecutive lines for the same customer make up one
+ * order; a line for the same product twice in one order adds to its quantity, unless that would come to more
+ * than an int holds, and then the line is rejected.  Fields are separated by commas and may be quoted as in
+ * BulkLoader.  A first line that starts with customer_id is taken as a header, and blank lines and lines that
+ * start with # are skipped.
+ * </p>
+ * <p>
+ * The file is read as a stream, and each order goes to one of a pool of workers chosen by its customer, so
+ * a customer's orders are all placed by the same worker, in file order, and no two workers write orders for
+ * the same customer.  A worker places its orders a batch at a time, in one transaction on a JDBC connection
+ * of its own.  Stock is taken the way InventoryEngine takes it, only if it is neither sold nor held, but
+ * once per product for the whole batch, in UPC order, so that two workers can never deadlock over products.
+ * What each product has left is shared out among the batch's orders in file order.  An order is accepted if
+ * all of it is filled, partially filled if some of it is, and rejected, with nothing written, if none of it
+ * is or its customer does not exist.  Lines that cannot be parsed are rejected on their own.
+ * </p>
+ * <p>
+ * Every order ends up in the results file, one line each, as first line number, customer_id, ACCEPTED,
+ * PARTIAL or REJECTED, order_id, units requested, units filled and what was short or why it was rejected.
+ * Results come out as batches commit, not in file order.  Orders are written around EclipseLink, as
+ * BulkLoader's rows are, so do not import while the application is running against the same tables.
+ * </p>
+ * Usage: OrderImport orders-file results-file [threads [batchSize]]
+ */
+public class OrderImport {
+   private static final Logger LOGGER = Logger.getLogger(OrderImport.class.getName());
+
+   /** The number of orders in each transaction. */
+   public static final int DEFAULT_BATCH_SIZE = 500;
+
+   /** How many batches may be waiting for each worker before the reader waits for them to catch up. */
+   private static final int QUEUED_BATCHES_PER_WORKER = 4;
+
+   /** How many times a batch that the database refuses is tried before the import stops. */
+   private static final int ATTEMPTS = 3;
+
+   /** How often, in seconds, progress is logged. */
+   private static final long PROGRESS_SECONDS = 2;
+
+   /** Only this many bad lines are logged; the rest are just counted. */
+   private static final int LOGGED_REJECTIONS = 10;
+
+   /** The name of the first column, which is how a header line is recognised. */
+   private static final String HEADER = "customer_id";
+
+   /** How an order came out. */
+   public enum Status { ACCEPTED, PARTIAL, REJECTED }
+
+   /** One product of an order, and how much of it was filled. */
+   private static class Line {
+      private final String upc;
+      private int quantity;
+      /** Whether the line has a price of its own.  If not, it is sold at the product's list price. */
+      private final boolean priced;
+      /** The price each in cents, if the line is priced. */
+      private final long unitPrice;
+      private int filled;
+
+      private Line(String upc, int quantity, boolean priced, long unitPrice) {
+         this.upc = upc;
+         this.quantity = quantity;
+         this.priced = priced;
+         this.unitPrice = unitPrice;
+      }
+   }
+
+   /** One order from the file, and how it came out. */
+   private static class Order {
+      /** The number of the order's first line in the file, counting from 1. */
+      private final long lineNumber;
+      private final long customerId;
+      private final List<Line> lines = new ArrayList<>();
+      private Status status;
+      private long orderId;
+      private String detail = "";
+
+      private Order(long lineNumber, long customerId) {
+         this.lineNumber = lineNumber;
+         this.customerId = customerId;
+      }
+
+      /**
+       * Adds a line to the order, or its quantity to the order's line for the same product.
+       * @return  False if the product's quantity would be more than an int holds, in which case nothing is
+       *          added.
+       */
+      private boolean add(String upc, int quantity, boolean priced, long unitPrice) {
+         for (Line line : this.lines) {
+            if (line.upc.equals(upc)) {
+               if (line.quantity > Integer.MAX_VALUE - quantity) {
+                  return false;
+               }
+               line.quantity += quantity;
+               return true;
+            }
+         }
+         this.lines.add(new Line(upc, quantity, priced, unitPrice));
+         return true;
+      }
+
+      private Order rejected(String reason) {
+         this.status = Status.REJECTED;
+         this.detail = reason;
+         return this;
+      }
+   }
+
+   /** Tells a worker that there are no more batches. */
+   private static final List<Order> END = new ArrayList<>();
+
+   private final String url;
+   private final String user;
+   private final String password;
+   private final int threads;
+   private final int batchSize;
+
+   /** List prices in cents by UPC, read once each, with -1 for a UPC that is not a product. */
+   private final Map<String, Long> listPrices = new ConcurrentHashMap<>();
+
+   private final LongAdder accepted = new LongAdder();
+   private final LongAdder partial = new LongAdder();
+   private final LongAdder rejected = new LongAdder();
+   private final AtomicInteger rejectionsLogged = new AtomicInteger();
+
+   private BufferedWriter results;
+
+   /**
+    * @param url        The JDBC URL of the database.
+    * @param user       The database user.
+    * @param password   The database user's password.
+    * @param threads    The number of workers, and so of database connections, to place orders with.
+    * @param batchSize  The number of orders in each transaction.
+    */
+   public OrderImport(String url, String user, String password, int threads, int batchSize) {
+      if (threads <= 0) {
+         throw new IllegalArgumentException("threads must be positive: " + threads);
+      }
+      if (batchSize <= 0) {
+         throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+      }
+      this.url = url;
+      this.user = user;
+      this.password = password;
+      this.threads = threads;
+      this.batchSize = batchSize;
+   }
+
+   public static void main(String[] args) throws Exception {
+      if (args.length < 2) {
+         System.err.println("Usage: OrderImport orders-file results-file [threads [batchSize]]");
+         System.exit(2);
+      }
+      Path orders = Paths.get(args[0]);
+      Path results = Paths.get(args[1]);
+      int threads = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+      int batchSize = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_BATCH_SIZE;
+
+      // Opening the persistence unit creates the schema, if the profile says to, and tells us where the database is.
+      EntityManagerFactory factory = Startup.createEntityManagerFactory();
+      try {
+         Map<String, Object> properties = factory.getProperties();
+         new OrderImport((String) properties.get("javax.persistence.jdbc.url"),
+                 (String) properties.get("javax.persistence.jdbc.user"),
+                 (String) properties.get("javax.persistence.jdbc.password"),
+                 threads, batchSize).importOrders(orders, results);
+      } finally {
+         factory.close();
+      }
+   }
+
+   /**
+    * Places every order in the file.
+    * @param orders     The order file.
+    * @param results    Where to write how each order came out.  Replaced if it exists.
+    * @return           The number of orders read, including rejected ones.
+    * @throws IOException   if a file cannot be read or written.
+    * @throws SQLException  if the database refuses a batch every time it is tried.  The batches before it
+    *                       stay committed, and are in the results file.
+    */
+   public long importOrders(Path orders, Path results) throws IOException, SQLException, InterruptedException {
+      long start = System.nanoTime();
+      List<BlockingQueue<List<Order>>> queues = new ArrayList<>(this.threads);
+      ExecutorService workers = Executors.newFixedThreadPool(this.threads);
+      ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+      List<Future<?>> done = new ArrayList<>();
+
+      try (BufferedReader in = Files.newBufferedReader(orders);
+           BufferedWriter out = Files.newBufferedWriter(results);
+           BulkLoader.IdAllocator ids = new BulkLoader.IdAllocator(connect(), Orders.ID_SEQUENCE,
+                   this.batchSize)) {
+         this.results = out;
+         out.write("line,customer_id,status,order_id,units_requested,units_filled,detail");
+         out.newLine();
+         progress.scheduleAtFixedRate(() -> logProgress(start), PROGRESS_SECONDS, PROGRESS_SECONDS,
+                 TimeUnit.SECONDS);
+         for (int i = 0; i < this.threads; i++) {
+            BlockingQueue<List<Order>> queue = new ArrayBlockingQueue<>(QUEUED_BATCHES_PER_WORKER);
+            queues.add(queue);
+            done.add(workers.submit(() -> {
+               work(queue, ids);
+               return null;
+            }));
+         }
+
+         try {
+            read(in, queues, done);
+         } finally {
+            // Let every worker finish what is queued and stop, whether or not the reading went well.
+            for (BlockingQueue<List<Order>> queue : queues) {
+               while (!queue.offer(END, 1, TimeUnit.SECONDS)) {
+                  if (allDone(done)) {
+                     break;
+                  }
+               }
+            }
+         }
+         for (Future<?> result : done) {
+            try {
+               result.get();
+            } catch (ExecutionException e) {
+               Throwable cause = e.getCause();
+               if (cause instanceof SQLException) {
+                  throw (SQLException) cause;
+               }
+               if (cause instanceof UncheckedIOException) {
+                  throw ((UncheckedIOException) cause).getCause();
+               }
+               throw new IllegalStateException("An import worker failed", cause);
+            }
+         }
+      } finally {
+         progress.shutdownNow();
+         workers.shutdownNow();
+      }
+
+      long read = getOrdersAccepted() + getOrdersPartial() + getOrdersRejected();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOGGER.info(String.format("Imported %d orders in %.3f s (%.0f orders/sec): %d accepted, %d partially " +
+                      "filled, %d rejected", read, seconds, seconds > 0 ? read / seconds : 0.0,
+              getOrdersAccepted(), getOrdersPartial(), getOrdersRejected()));
+      return read;
+   }
+
+   /**
+    * Reads the file, groups its lines into orders and hands the orders out to the workers by customer, a
+    * batch at a time.
+    * @param in         The order file.
+    * @param queues     Each worker's queue of batches.
+    * @param done       The workers, which are checked so that the reader stops if they all have.
+    */
+   private void read(BufferedReader in, List<BlockingQueue<List<Order>>> queues, List<Future<?>> done)
+           throws IOException, InterruptedException {
+      List<List<Order>> batches = new ArrayList<>(queues.size());
+      for (int i = 0; i < queues.size(); i++) {
+         batches.add(new ArrayList<>(this.batchSize));
+      }
+      String[] fields = new String[4];
+      Order order = null;
+      long lineNumber = 0;
+      String text;
+      while ((text = in.readLine()) != null) {
+         lineNumber++;
+         String trimmed = text.trim();
+         if (trimmed.isEmpty() || trimmed.startsWith("#") ||
+                 (lineNumber == 1 && trimmed.regionMatches(true, 0, HEADER, 0, HEADER.length()))) {
+            continue;
+         }
+         int count = BulkLoader.split(text, 0, text.length(), ',', fields);
+         String reason = null;
+         long customerId = 0;
+         int quantity = 0;
+         boolean priced = count == 4 && !fields[3].isEmpty();
+         long unitPrice = 0;
+         if (count < 3 || count > 4) {
+            reason = count < 0 ? "unclosed quote" : "expected 3 or 4 fields but found " + count;
+         } else {
+            try {
+               customerId = Long.parseLong(fields[0]);
+               quantity = Integer.parseInt(fields[2]);
+               if (priced) {
+                  unitPrice = Money.parse(fields[3]);
+               }
+               if (quantity <= 0 || unitPrice < 0) {
+                  reason = "quantity must be positive and unit_price not negative";
+               }
+            } catch (NumberFormatException e) {
+               reason = e.getMessage();
+            }
+         }
+         if (reason != null) {
+            rejectLine(lineNumber, text, reason);
+            continue;
+         }
+
+         if (order == null || order.customerId != customerId) {
+            if (order != null) {
+               dispatch(order, batches, queues, done);
+            }
+            order = new Order(lineNumber, customerId);
+         }
+         if (!order.add(fields[1], quantity, priced, unitPrice)) {
+            rejectLine(lineNumber, text, "the order's quantity of " + fields[1] + " is too large");
+         }
+      }
+      if (order != null) {
+         dispatch(order, batches, queues, done);
+      }
+      for (int i = 0; i < queues.size(); i++) {
+         if (!batches.get(i).isEmpty()) {
+            hand(batches.get(i), queues.get(i), done);
+         }
+      }
+   }
+
+   /** Adds an order to its worker's batch, and queues the batch for the worker once it is full. */
+   private void dispatch(Order order, List<List<Order>> batches, List<BlockingQueue<List<Order>>> queues,
+                         List<Future<?>> done) throws InterruptedException {
+      int worker = Math.floorMod(Long.hashCode(order.customerId), queues.size());
+      List<Order> batch = batches.get(worker);
+      batch.add(order);
+      if (batch.size() == this.batchSize) {
+         hand(batch, queues.get(worker), done);
+         batches.set(worker, new ArrayList<>(this.batchSize));
+      }
+   }
+
+   private static void hand(List<Order> batch, BlockingQueue<List<Order>> queue, List<Future<?>> done)
+           throws InterruptedException {
+      while (!queue.offer(batch, 1, TimeUnit.SECONDS)) {
+         if (allDone(done)) {
+            throw new IllegalStateException("Every import worker has stopped");
+         }
+      }
+   }
+
+   private static boolean allDone(List<Future<?>> results) {
+      for (Future<?> result : results) {
+         if (!result.isDone()) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   /**
+    * One worker: places batches of orders until it is told to stop.
+    * @param queue      Where the batches come from.
+    * @param ids        Where order ids come from.
+    */
+   private void work(BlockingQueue<List<Order>> queue, BulkLoader.IdAllocator ids)
+           throws SQLException, InterruptedException {
+      try (Connection connection = connect();
+           Statements statements = new Statements(connection)) {
+         connection.setAutoCommit(false);
+         // This worker's customers, since no other worker gets them.
+         Map<Long, Boolean> customers = new HashMap<>();
+         BulkLoader.IdBlock block = new BulkLoader.IdBlock(1, 0);
+
+         for (List<Order> batch = queue.take(); batch != END; batch = queue.take()) {
+            for (int attempt = 1; ; attempt++) {
+               try {
+                  block = place(batch, statements, customers, ids, block);
+                  connection.commit();
+                  break;
+               } catch (SQLException e) {
+                  connection.rollback();
+                  if (attempt == ATTEMPTS) {
+                     throw e;
+                  }
+                  LOGGER.log(Level.WARNING, "Retrying a batch of " + batch.size() + " orders", e);
+               }
+            }
+            report(batch);
+         }
+      } catch (SQLException e) {
+         LOGGER.severe("Import failed: " + e.getMessage());
+         throw e;
+      }
+   }
+
+   /** The statements a worker runs, prepared once. */
+   private static class Statements implements AutoCloseable {
+      private final PreparedStatement customer;
+      private final PreparedStatement listPrice;
+      private final PreparedStatement available;
+      private final PreparedStatement reserve;
+      private final PreparedStatement insertOrder;
+      private final PreparedStatement insertLine;
+
+      private Statements(Connection connection) throws SQLException {
+         this.customer = connection.prepareStatement("SELECT 1 FROM CUSTOMERS WHERE CUSTOMER_ID = ?");
+         this.listPrice = connection.prepareStatement("SELECT UNIT_LIST_PRICE FROM PRODUCTS WHERE UPC = ?");
+         // The same check and decrement as the ReserveStock and StockOnHand named queries.
+         this.available = connection.prepareStatement(
+                 "SELECT UNITS_IN_STOCK - UNITS_HELD FROM PRODUCTS WHERE UPC = ?");
+         this.reserve = connection.prepareStatement("UPDATE PRODUCTS SET UNITS_IN_STOCK = UNITS_IN_STOCK - ? " +
+                 "WHERE UPC = ? AND UNITS_IN_STOCK - UNITS_HELD >= ?");
+         this.insertOrder = connection.prepareStatement(
+                 "INSERT INTO ORDERS (ORDER_ID, CUSTOMER_ID, ORDER_DATE, SOLD_BY) VALUES (?, ?, ?, ?)");
+         this.insertLine = connection.prepareStatement(
+                 "INSERT INTO ORDERLINES (ORDER_ID, PRODUCT_UPC, QUANTITY, UNIT_SALE_PRICE) VALUES (?, ?, ?, ?)");
+      }
+
+      @Override
+      public void close() throws SQLException {
+         for (PreparedStatement statement : new PreparedStatement[] {this.customer, this.listPrice,
+                 this.available, this.reserve, this.insertOrder, this.insertLine}) {
+            statement.close();
+         }
+      }
+   }
+
+   /**
+    * Places one batch of orders in the worker's transaction, which the caller commits.  Can be called again
+    * for the same batch after a rollback.
+    * @param batch         The orders.
+    * @param statements    The worker's statements.
+    * @param customers     Whether each of the worker's customers exists, as far as it has looked.
+    * @param ids           Where order ids come from.
+    * @param block         The order ids the worker has left.
+    * @return              The order ids the worker has left afterwards.
+    */
+   private BulkLoader.IdBlock place(List<Order> batch, Statements statements, Map<Long, Boolean> customers,
+                                    BulkLoader.IdAllocator ids, BulkLoader.IdBlock block) throws SQLException {
+      // The lines of every order whose customer exists, by product, in file order, with the products in
+      // UPC order so that the stock is always locked in the same order.
+      Map<String, List<Line>> byProduct = new TreeMap<>();
+      for (Order order : batch) {
+         order.status = null;
+         order.detail = "";
+         Boolean exists = customers.get(order.customerId);
+         if (exists == null) {
+            statements.customer.setLong(1, order.customerId);
+            try (ResultSet found = statements.customer.executeQuery()) {
+               exists = found.next();
+            }
+            customers.put(order.customerId, exists);
+         }
+         if (!exists) {
+            order.rejected("no such customer");
+            continue;
+         }
+         for (Line line : order.lines) {
+            line.filled = 0;
+            if (listPrice(line.upc, statements) >= 0) {
+               byProduct.computeIfAbsent(line.upc, upc -> new ArrayList<>()).add(line);
+            }
+         }
+      }
+
+      for (Map.Entry<String, List<Line>> product : byProduct.entrySet()) {
+         // The lines may add up to more than an int, but not to more than the stock can hold.
+         long wanted = 0;
+         for (Line line : product.getValue()) {
+            wanted += line.quantity;
+         }
+         int left = reserveUpTo(product.getKey(), (int) Math.min(wanted, Integer.MAX_VALUE), statements);
+         for (Line line : product.getValue()) {
+            line.filled = Math.min(line.quantity, left);
+            left -= line.filled;
+         }
+      }
+
+      Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+      for (Order order : batch) {
+         if (order.status == Status.REJECTED) {
+            continue;
+         }
+         long filled = 0;
+         StringBuilder shortLines = new StringBuilder();
+         for (Line line : order.lines) {
+            filled += line.filled;
+            if (line.filled < line.quantity) {
+               shortLines.append(shortLines.length() == 0 ? "" : "; ").append(line.upc).append(' ')
+                       .append(listPrice(line.upc, statements) < 0 ? "is not a product"
+                               : line.filled + " of " + line.quantity);
+            }
+         }
+         if (filled == 0) {
+            order.rejected(shortLines.toString());
+            continue;
+         }
+         if (block.isEmpty()) {
+            block = ids.allocate();
+         }
+         order.orderId = block.next();
+         order.status = shortLines.length() == 0 ? Status.ACCEPTED : Status.PARTIAL;
+         order.detail = shortLines.toString();
+         statements.insertOrder.setLong(1, order.orderId);
+         statements.insertOrder.setLong(2, order.customerId);
+         statements.insertOrder.setTimestamp(3, now);
+         statements.insertOrder.setString(4, OrderService.DEFAULT_SOLD_BY);
+         statements.insertOrder.addBatch();
+         for (Line line : order.lines) {
+            if (line.filled > 0) {
+               statements.insertLine.setLong(1, order.orderId);
+               statements.insertLine.setString(2, line.upc);
+               statements.insertLine.setInt(3, line.filled);
+               statements.insertLine.setLong(4, line.priced ? line.unitPrice : listPrice(line.upc, statements));
+               statements.insertLine.addBatch();
+            }
+         }
+      }
+      statements.insertOrder.executeBatch();
+      statements.insertLine.executeBatch();
+      return block;
+   }
+
+   /**
+    * Takes up to quantity units of a product out of stock, as InventoryEngine.reserveUpTo does.
+    * @return     How many units were taken.
+    */
+   private static int reserveUpTo(String upc, int quantity, Statements statements) throws SQLException {
+      int wanted = quantity;
+      while (wanted > 0) {
+         statements.reserve.setInt(1, wanted);
+         statements.reserve.setString(2, upc);
+         statements.reserve.setInt(3, wanted);
+         if (statements.reserve.executeUpdate() == 1) {
+            return wanted;
+         }
+         statements.available.setString(1, upc);
+         try (ResultSet available = statements.available.executeQuery()) {
+            wanted = available.next() ? Math.min(available.getInt(1), quantity) : 0;
+         }
+      }
+      return 0;
+   }
+
+   /** @return The list price of a product in cents, or -1 if there is no such product. */
+   private long listPrice(String upc, Statements statements) throws SQLException {
+      Long price = this.listPrices.get(upc);
+      if (price == null) {
+         statements.listPrice.setString(1, upc);
+         try (ResultSet found = statements.listPrice.executeQuery()) {
+            price = found.next() ? found.getLong(1) : -1L;
+         }
+         this.listPrices.put(upc, price);
+      }
+      return price;
+   }
+
+   /** Writes how each order of a committed batch came out. */
+   private void report(List<Order> batch) {
+      StringBuilder text = new StringBuilder();
+      for (Order order : batch) {
+         long requested = 0;
+         long filled = 0;
+         for (Line line : order.lines) {
+            requested += line.quantity;
+            filled += line.filled;
+         }
+         text.append(order.lineNumber).append(',').append(order.customerId).append(',').append(order.status)
+                 .append(',').append(order.status == Status.REJECTED ? "" : Long.toString(order.orderId))
+                 .append(',').append(requested).append(',').append(filled).append(',')
+                 .append(quote(order.detail)).append(System.lineSeparator());
+         (order.status == Status.ACCEPTED ? this.accepted
+                 : order.status == Status.PARTIAL ? this.partial : this.rejected).increment();
+      }
+      write(text);
+   }
+
+   private void rejectLine(long lineNumber, String text, String reason) {
+      this.rejected.increment();
+      if (this.rejectionsLogged.getAndIncrement() < LOGGED_REJECTIONS) {
+         LOGGER.warning("Rejected line " + lineNumber + " (" + reason + "): " + text);
+      }
+      write(lineNumber + ",," + Status.REJECTED + ",,,," + quote(reason) + System.lineSeparator());
+   }
+
+   private synchronized void write(CharSequence text) {
+      try {
+         this.results.append(text);
+      } catch (IOException e) {
+         throw new UncheckedIOException(e);
+      }
+   }
+
+   private static String quote(String field) {
+      return field.indexOf(',') < 0 && field.indexOf('"') < 0 ? field : '"' + field.replace("\"", "\"\"") + '"';
+   }
+
+   private void logProgress(long start) {
+      long placed = getOrdersAccepted() + getOrdersPartial() + getOrdersRejected();
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOGGER.info(String.format("%d orders imported, %.0f orders/sec", placed,
+              seconds > 0 ? placed / seconds : 0.0));
+   }
+
+   private Connection connect() throws SQLException {
+      return DriverManager.getConnection(this.url, this.user, this.password);
+   }
+
+   /** @return The number of orders filled in full so far. */
+   public long getOrdersAccepted() {
+      return this.accepted.sum();
+   }
+
+   /** @return The number of orders only partly filled so far. */
+   public long getOrdersPartial() {
+      return this.partial.sum();
+   }
+
+   /** @return The number of orders, and lines that could not be parsed, rejected so far. */
+   public long getOrdersRejected() {
+      return this.rejected.sum();
+   }
+}
@@ -0,0 +1,477 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of placed orders that have not been written to the database yet.
+ * <p>
+ * The log is a directory of files of a fixed size, each mapped into memory, so appending an order is a copy
+ * into the page cache rather than a system call.  Every record has a sequence number, one more than the
+ * record before it, and a CRC-32, so a record that was only partly written when the machine went down is
+ * recognised and the log ends there.  A new file is started whenever the journal is opened, and whenever
+ * the current one is full; a file is deleted once every order in it is in the database.  Orders that could
+ * not be written at all are copied to a file of their own, the dead letters, which is kept until someone
+ * deals with them.
+ * </p>
+ * <p>
+ * A record is safe from the JVM crashing as soon as append returns, because the page cache belongs to the
+ * operating system.  To be safe from the machine crashing too, open the journal with sync on: append then
+ * waits for the file to be forced to disk, which costs about as much as a database commit.
+ * </p>
+ * <p>
+ * The journal is safe to use from many threads at once.
+ * </p>
+ */
+public class OrderJournal implements AutoCloseable {
+   private static final Logger LOGGER = Logger.getLogger(OrderJournal.class.getName());
+
+   /** The size of each file of the journal, if nothing else is given. */
+   public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+   /** The bytes before each record's payload: its length, its CRC-32 and its sequence number. */
+   private static final int HEADER = 4 + 4 + 8;
+
+   private static final String PREFIX = "orders-";
+   private static final String SUFFIX = ".journal";
+
+   /** The file of orders that the order writer could not write, which is never deleted. */
+   private static final String DEAD_LETTERS = "dead-letters.journal";
+
+   private final Path directory;
+   private final int segmentSize;
+   private final boolean sync;
+
+   /** The journal's files by the sequence number of their first record.  The last is the one appended to. */
+   private final TreeMap<Long, Path> segments = new TreeMap<>();
+
+   /** The records that were in the journal when it was opened and are not in the database, oldest first. */
+   private final List<Entry> recovered;
+
+   /** The file being appended to, or null once the journal is closed. */
+   private MappedByteBuffer current;
+
+   private long nextSequence;
+
+   /**
+    * One placed order, as much of it as is needed to write it to the database later.
+    */
+   public static final class Entry {
+      private long sequence;
+      private final String cartId;
+      private final long customerId;
+      private final LocalDateTime orderDate;
+      private final String soldBy;
+      private final List<Line> lines;
+
+      /**
+       * @param cartId        The cart the order was placed from, whose stock holds it takes.
+       * @param customerId    The customer who placed it.
+       * @param orderDate     When the cart was opened.
+       * @param soldBy        The sales person.
+       * @param lines         The lines of the order, in UPC order.
+       */
+      public Entry(String cartId, long customerId, LocalDateTime orderDate, String soldBy, List<Line> lines) {
+         this.cartId = cartId;
+         this.customerId = customerId;
+         this.orderDate = orderDate;
+         this.soldBy = soldBy;
+         this.lines = Collections.unmodifiableList(new ArrayList<>(lines));
+      }
+
+      /** @return The entry's place in the journal, or 0 if it has not been appended. */
+      public long getSequence() {
+         return sequence;
+      }
+
+      public String getCartId() {
+         return cartId;
+      }
+
+      public long getCustomerId() {
+         return customerId;
+      }
+
+      public LocalDateTime getOrderDate() {
+         return orderDate;
+      }
+
+      public String getSoldBy() {
+         return soldBy;
+      }
+
+      public List<Line> getLines() {
+         return lines;
+      }
+
+      @Override
+      public String toString() {
+         return "Journal entry " + sequence + ": cart " + cartId + ", customer " + customerId + ", " + lines;
+      }
+   }
+
+   /** One line of a journalled order. */
+   public static final class Line {
+      private final String UPC;
+      private final int quantity;
+      private final long unitSalePrice;
+
+      /**
+       * @param UPC           The product.
+       * @param quantity      How many units were ordered.
+       * @param unitSalePrice What each unit was sold for, in cents.
+       */
+      public Line(String UPC, int quantity, long unitSalePrice) {
+         this.UPC = UPC;
+         this.quantity = quantity;
+         this.unitSalePrice = unitSalePrice;
+      }
+
+      public String getUPC() {
+         return UPC;
+      }
+
+      public int getQuantity() {
+         return quantity;
+      }
+
+      public long getUnitSalePrice() {
+         return unitSalePrice;
+      }
+
+      @Override
+      public String toString() {
+         return quantity + " x " + UPC + " @ " + unitSalePrice;
+      }
+   }
+
+   /**
+    * Opens the journal in a directory, creating it if need be, and reads back the orders in it that are not
+    * in the database yet.  Appends go to a new file.
+    * @param directory        Where the journal's files are.  Only one journal may use a directory at a time.
+    * @param appliedSequence  The sequence number of the last order known to be in the database.
+    * @param segmentSize      The size of each file.  It must be bigger than the biggest order.
+    * @param sync             Whether append waits for the record to be forced to disk.
+    * @throws IOException if the directory cannot be read or a file cannot be created.
+    */
+   public OrderJournal(Path directory, long appliedSequence, int segmentSize, boolean sync) throws IOException {
+      if (segmentSize <= HEADER) {
+         throw new IllegalArgumentException("segmentSize is too small: " + segmentSize);
+      }
+      this.directory = directory.toAbsolutePath().normalize();
+      this.segmentSize = segmentSize;
+      this.sync = sync;
+      Files.createDirectories(this.directory);
+      try (DirectoryStream<Path> files = Files.newDirectoryStream(this.directory, PREFIX + "*" + SUFFIX)) {
+         for (Path file : files) {
+            String name = file.getFileName().toString();
+            try {
+               this.segments.put(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())),
+                       file);
+            } catch (NumberFormatException e) {
+               LOGGER.warning("Ignoring " + file + ", which is not a journal file");
+            }
+         }
+      }
+      this.recovered = Collections.unmodifiableList(recover(appliedSequence));
+      // A file named for the next record has nothing in it but perhaps a damaged record, so start it again.
+      Path unused = this.segments.remove(this.nextSequence);
+      if (unused != null) {
+         Files.delete(unused);
+      }
+      roll();
+      release(appliedSequence);
+   }
+
+   /** @return The absolute path of the journal's directory. */
+   public Path getDirectory() {
+      return this.directory;
+   }
+
+   /** @return The orders that were in the journal when it was opened and are not in the database, oldest first. */
+   public List<Entry> getRecovered() {
+      return this.recovered;
+   }
+
+   /** @return The sequence number of the last record appended, or of the last one recovered. */
+   public synchronized long getLastSequence() {
+      return this.nextSequence - 1;
+   }
+
+   /**
+    * Adds an order to the end of the journal and gives it the next sequence number.
+    * @param entry      The order.
+    * @return           Its sequence number, which is also set on the entry.
+    * @throws IllegalStateException if the journal has been closed.
+    * @throws IllegalArgumentException if the order is too big for a journal file.
+    * @throws UncheckedIOException if a new file is needed and cannot be created, or the order cannot be forced
+    *                              to disk.  Either way it is not in the journal.
+    */
+   public synchronized long append(Entry entry) {
+      if (this.current == null) {
+         throw new IllegalStateException("The order journal is closed");
+      }
+      byte[] payload = encode(entry);
+      int size = HEADER + payload.length;
+      if (size > this.segmentSize) {
+         throw new IllegalArgumentException("An order of " + size + " bytes does not fit in the journal's files");
+      }
+      if (size > this.current.remaining()) {
+         try {
+            roll();
+         } catch (IOException e) {
+            throw new UncheckedIOException("Could not start a new journal file", e);
+         }
+      }
+      long sequence = this.nextSequence++;
+      int start = this.current.position();
+      this.current.putLong(start + 8, sequence);
+      ByteBuffer body = this.current.duplicate();
+      body.position(start + HEADER);
+      body.put(payload);
+      CRC32 crc = new CRC32();
+      body.flip().position(start + 8);
+      crc.update(body);
+      this.current.putInt(start + 4, (int) crc.getValue());
+      // The length goes in last: until it is there, the record reads as the end of the log.
+      this.current.putInt(start, payload.length);
+      this.current.position(start + size);
+      if (this.sync) {
+         try {
+            this.current.force();
+         } catch (UncheckedIOException e) {
+            // Take the record back, so that it is not written from the journal as well as by the caller.
+            this.current.putInt(start, 0);
+            this.current.position(start);
+            this.nextSequence--;
+            throw e;
+         }
+      }
+      entry.sequence = sequence;
+      return sequence;
+   }
+
+   /**
+    * Deletes the files whose orders are all in the database.  The file being appended to is kept, so that
+    * the sequence numbers carry on from where they were when the journal is opened again.
+    * @param appliedSequence  The sequence number of the last order known to be in the database.
+    */
+   public synchronized void release(long appliedSequence) {
+      while (this.segments.size() > 1) {
+         Map.Entry<Long, Path> oldest = this.segments.firstEntry();
+         if (this.segments.higherKey(oldest.getKey()) > appliedSequence + 1) {
+            return;
+         }
+         try {
+            Files.deleteIfExists(oldest.getValue());
+         } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete the journal file " + oldest.getValue(), e);
+            return;
+         }
+         this.segments.remove(oldest.getKey());
+      }
+   }
+
+   /**
+    * Copies an order that cannot be written to the database to the dead-letter file, in the same format as
+    * the journal's other files, and forces it to disk.  The order keeps its sequence number.
+    * @param entry      The order, as appended.
+    * @throws IOException if the file cannot be written.
+    */
+   public synchronized void deadLetter(Entry entry) throws IOException {
+      byte[] payload = encode(entry);
+      ByteBuffer record = ByteBuffer.allocate(HEADER + payload.length);
+      record.putInt(payload.length).putInt(0).putLong(entry.sequence).put(payload);
+      CRC32 crc = new CRC32();
+      crc.update(record.array(), 8, record.capacity() - 8);
+      record.putInt(4, (int) crc.getValue()).flip();
+      try (FileChannel channel = FileChannel.open(this.directory.resolve(DEAD_LETTERS), StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+         while (record.hasRemaining()) {
+            channel.write(record);
+         }
+         channel.force(false);
+      }
+   }
+
+   /**
+    * @return           The orders in the dead-letter file, oldest first.  A damaged record ends the list.
+    * @throws IOException if the file cannot be read.
+    */
+   public synchronized List<Entry> getDeadLetters() throws IOException {
+      Path file = this.directory.resolve(DEAD_LETTERS);
+      List<Entry> entries = new ArrayList<>();
+      if (!Files.exists(file)) {
+         return entries;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+      int position = 0;
+      while (position + HEADER <= buffer.limit()) {
+         int length = buffer.getInt(position);
+         if (length <= 0 || length > buffer.limit() - position - HEADER) {
+            break;
+         }
+         CRC32 crc = new CRC32();
+         crc.update(buffer.array(), position + 8, length + 8);
+         if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+            LOGGER.warning("The dead letters in " + file + " end with a damaged record at " + position);
+            break;
+         }
+         Entry entry = decode(Arrays.copyOfRange(buffer.array(), position + HEADER, position + HEADER + length));
+         entry.sequence = buffer.getLong(position + 8);
+         entries.add(entry);
+         position += HEADER + length;
+      }
+      return entries;
+   }
+
+   /**
+    * Forces what has been appended to disk.  The files stay mapped until the garbage collector frees them;
+    * Java has no way to unmap them sooner.
+    */
+   @Override
+   public synchronized void close() {
+      if (this.current != null) {
+         this.current.force();
+         this.current = null;
+      }
+   }
+
+   /** Starts a new file, named by the sequence number of the first record that will go in it. */
+   private void roll() throws IOException {
+      Path file = this.directory.resolve(String.format("%s%020d%s", PREFIX, this.nextSequence, SUFFIX));
+      try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+              StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+         // Mapping past the end makes the file that long, filled with zeros, which read as the end of the log.
+         this.current = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+      }
+      if (this.sync) {
+         this.current.force();
+      }
+      this.segments.put(this.nextSequence, file);
+   }
+
+   /**
+    * Reads the records of every file, oldest first, up to the first one that is incomplete or damaged, and
+    * sets the next sequence number to follow on from the last one.
+    * @param appliedSequence  Records up to this one are in the database and are not returned.
+    * @return                 The records after appliedSequence.
+    */
+   private List<Entry> recover(long appliedSequence) throws IOException {
+      List<Entry> entries = new ArrayList<>();
+      long expected = this.segments.isEmpty() ? appliedSequence + 1 : this.segments.firstKey();
+      for (Map.Entry<Long, Path> segment : this.segments.entrySet()) {
+         if (segment.getKey() != expected) {
+            LOGGER.warning(String.format("The order journal has no records %d to %d; they are lost",
+                    expected, segment.getKey() - 1));
+            expected = segment.getKey();
+         }
+         MappedByteBuffer buffer;
+         try (FileChannel channel = FileChannel.open(segment.getValue(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         }
+         int position = 0;
+         while (position + HEADER <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || length > buffer.limit() - position - HEADER) {
+               break;
+            }
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + 8).limit(position + HEADER + length);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != buffer.getInt(position + 4) || buffer.getLong(position + 8) != expected) {
+               LOGGER.warning("The order journal ends with a damaged record at " + position + " of " +
+                       segment.getValue() + "; it was not acknowledged and is ignored");
+               break;
+            }
+            if (expected > appliedSequence) {
+               byte[] payload = new byte[length];
+               body.position(position + HEADER);
+               body.get(payload);
+               Entry entry = decode(payload);
+               entry.sequence = expected;
+               entries.add(entry);
+            }
+            expected++;
+            position += HEADER + length;
+         }
+      }
+      this.nextSequence = Math.max(expected, appliedSequence + 1);
+      if (!entries.isEmpty()) {
+         LOGGER.info("The order journal in " + this.directory + " has " + entries.size() +
+                 " orders that are not in the database yet");
+      }
+      return entries;
+   }
+
+   private static byte[] encode(Entry entry) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 32 * entry.lines.size());
+      try (DataOutputStream out = new DataOutputStream(bytes)) {
+         out.writeUTF(entry.cartId);
+         out.writeLong(entry.customerId);
+         out.writeLong(entry.orderDate.toEpochSecond(ZoneOffset.UTC));
+         out.writeInt(entry.orderDate.getNano());
+         out.writeUTF(entry.soldBy);
+         out.writeInt(entry.lines.size());
+         for (Line line : entry.lines) {
+            out.writeUTF(line.UPC);
+            out.writeInt(line.quantity);
+            out.writeLong(line.unitSalePrice);
+         }
+      } catch (IOException e) {
+         // A ByteArrayOutputStream does not throw.
+         throw new UncheckedIOException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   private static Entry decode(byte[] payload) throws IOException {
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+         String cartId = in.readUTF();
+         long customerId = in.readLong();
+         LocalDateTime orderDate = LocalDateTime.ofEpochSecond(in.readLong(), in.readInt(), ZoneOffset.UTC);
+         String soldBy = in.readUTF();
+         int count = in.readInt();
+         List<Line> lines = new ArrayList<>(count);
+         for (int i = 0; i < count; i++) {
+            lines.add(new Line(in.readUTF(), in.readInt(), in.readLong()));
+         }
+         return new Entry(cartId, customerId, orderDate, soldBy, lines);
+      }
+   }
+}
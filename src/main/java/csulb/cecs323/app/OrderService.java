@@ -0,0 +1,945 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.CustomerSummary;
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.OrderLines;
+import csulb.cecs323.model.Orders;
+import csulb.cecs323.model.ProductSummary;
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.NoResultException;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+import org.eclipse.persistence.jpa.JpaCache;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.eclipse.persistence.sessions.SessionEventListener;
+import org.eclipse.persistence.sessions.changesets.ObjectChangeSet;
+import org.eclipse.persistence.sessions.changesets.UnitOfWorkChangeSet;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The business side of taking customer orders: finding customers and products, filling carts and placing
+ * orders.  It has no user interface of its own; CustomerOrders is the console front end.
+ * <p>
+ * The service is safe to use from many threads at once.  Every call works in an EntityManager of its own,
+ * through a UnitOfWork, that is closed before the call returns however it ends, so nothing is shared
+ * between orders except the EntityManagerFactory and the product cache, and no persistence context grows
+ * with the life of the service.  Entities handed back are detached.  A transaction that fails on a deadlock
+ * or a lock timeout is run again.  Work can be run on the service's own bounded pool of threads with submit.
+ * </p>
+ * <p>
+ * Placing an order normally writes it to the database before returning.  Given a directory for an
+ * OrderJournal, the service runs in write-behind mode instead: an order whose stock is all held is
+ * appended to the journal and acknowledged at once, and an OrderWriter writes it to the database in a
+ * batch with others.  Orders in the journal that had not been written when the JVM last stopped are
+ * written when the service starts.
+ * </p>
+ * <p>
+ * Each public business operation, and the commit of each order placed synchronously, is timed in the
+ * Instrumentation statistics under its method name.
+ * </p>
+ */
+public class OrderService implements AutoCloseable {
+   private static final Logger LOGGER = Logger.getLogger(OrderService.class.getName());
+
+   /**
+    * How many entities createEntityBatched persists before it flushes them to the database and clears
+    * the persistence context.  Keep this in step with eclipselink.jdbc.batch-writing.size in
+    * persistence.xml so that each flush goes out as a single JDBC batch.
+    */
+   public static final int DEFAULT_CHUNK_SIZE = 1000;
+
+   /** The most products that the product cache will hold. */
+   public static final int PRODUCT_CACHE_SIZE = 10_000;
+
+   /** How long, in seconds, a product may stay in the product cache before it is read again. */
+   public static final long PRODUCT_CACHE_TTL_SECONDS = 300;
+
+   /** How long, in seconds, stock stays held for a cart that nothing more has been added to. */
+   public static final long HOLD_TTL_SECONDS = 15 * 60;
+
+   /** How often, in seconds, expired holds are given back. */
+   public static final long HOLD_SWEEP_SECONDS = 30;
+
+   /**
+    * How long, in hours, the holds of an order acknowledged from the journal are kept for the order writer.
+    * The writer is never more than OrderWriter.BACKLOG_LIMIT orders behind, which is minutes, not hours; the
+    * rest is for a JVM that goes down and is not started again straight away, so that the journal can still
+    * take the holds when it is replayed.
+    */
+   public static final long JOURNALLED_HOLD_HOURS = 24;
+
+   /** How many tasks may wait for each worker thread before submit makes the caller run the task itself. */
+   private static final int QUEUED_TASKS_PER_THREAD = 64;
+
+   /** The name that orders are sold by when nobody else is given. */
+   public static final String DEFAULT_SOLD_BY = "Shirley";
+
+   /**
+    * The operations that are usually answered from a cache, getProduct and getCustomer, take well under a
+    * microsecond, so two clock reads are a large part of them.  Their latency is timed on one call in this
+    * many; every call is still counted.
+    */
+   private static final int CACHED_OPERATION_SAMPLING = 16;
+
+   // The business operations timed for Instrumentation, by method.
+   private static final LatencyStats GET_PRODUCT =
+           Instrumentation.operation("getProduct", CACHED_OPERATION_SAMPLING);
+   private static final LatencyStats GET_INVENTORY = Instrumentation.operation("getInventory");
+   private static final LatencyStats GET_INVENTORY_PAGE = Instrumentation.operation("getInventoryPage");
+   private static final LatencyStats GET_INVENTORY_SUMMARY_PAGE =
+           Instrumentation.operation("getInventorySummaryPage");
+   private static final LatencyStats GET_CUSTOMER =
+           Instrumentation.operation("getCustomer", CACHED_OPERATION_SAMPLING);
+   private static final LatencyStats FIND_CUSTOMERS_BY_PHONE = Instrumentation.operation("findCustomersByPhone");
+   private static final LatencyStats FIND_CUSTOMERS_BY_LAST_NAME_PREFIX =
+           Instrumentation.operation("findCustomersByLastNamePrefix");
+   private static final LatencyStats FIND_CUSTOMERS_BY_NAME = Instrumentation.operation("findCustomersByName");
+   private static final LatencyStats ADD_LINE = Instrumentation.operation("addLine");
+   private static final LatencyStats ABORT = Instrumentation.operation("abort");
+   private static final LatencyStats PLACE_ORDER = Instrumentation.operation("placeOrder");
+   private static final LatencyStats GET_ORDER_SUMMARIES = Instrumentation.operation("getOrderSummaries");
+   private static final LatencyStats GET_ORDER_HISTORY = Instrumentation.operation("getOrderHistory");
+   private static final LatencyStats GET_CART_LINES = Instrumentation.operation("getCartLines");
+   private static final LatencyStats GET_ORDER_DETAIL = Instrumentation.operation("getOrderDetail");
+   private static final LatencyStats COMMIT_ORDER = Instrumentation.operation("commitOrder");
+
+   private final EntityManagerFactory factory;
+
+   /** Gives each call its own EntityManager, and runs its transaction with retries. */
+   private final UnitOfWork unitOfWork;
+
+   /**
+    * Products that have already been read, keyed by UPC, so that the menus and stock checks do not run
+    * the ReturnProduct query over and over for the same product.
+    */
+   private final ProductCache productCache;
+
+   /** Invalidates the product cache for products changed in other JVMs, see onRemoteChanges. */
+   private final SessionEventListener remoteChanges = new SessionEventAdapter() {
+      @Override
+      public void postDistributedMergeUnitOfWorkChangeSet(SessionEvent event) {
+         onRemoteChanges((UnitOfWorkChangeSet) event.getProperty("UnitOfWorkChangeSet"));
+      }
+   };
+
+   /** Runs submitted work. */
+   private final ExecutorService executor;
+
+   /** The stock held for open carts. */
+   private final StockReservations reservations;
+
+   /** Writes journalled orders to the database, or null if orders are placed synchronously. */
+   private final OrderWriter writer;
+
+   /**
+    * @param factory    Where the service gets its EntityManagers from.
+    * @param threads    The number of threads that submitted work runs on.
+    */
+   public OrderService(EntityManagerFactory factory, int threads) {
+      this(factory, threads,
+              new StockReservations(factory, HOLD_TTL_SECONDS, HOLD_SWEEP_SECONDS, TimeUnit.SECONDS));
+   }
+
+   /**
+    * @param factory       Where the service gets its EntityManagers from.
+    * @param threads       The number of threads that submitted work runs on.
+    * @param reservations  Holds stock for the service's carts.  Closed with the service.
+    */
+   public OrderService(EntityManagerFactory factory, int threads, StockReservations reservations) {
+      this(factory, threads, reservations, null, false);
+   }
+
+   /**
+    * @param factory       Where the service gets its EntityManagers from.
+    * @param threads       The number of threads that submitted work runs on.
+    * @param reservations  Holds stock for the service's carts.  Its sweeper is started once the journal has
+    *                      been replayed, and it is closed with the service.
+    * @param journal       The directory of the order journal, or null to place orders synchronously.  Orders
+    *                      left in it from the last run are written before this returns.
+    * @param syncJournal   Whether placing an order waits for its journal record to be forced to disk, so that
+    *                      it survives the machine crashing and not only the JVM.
+    * @throws UncheckedIOException if the journal cannot be opened.
+    */
+   public OrderService(EntityManagerFactory factory, int threads, StockReservations reservations, Path journal,
+                       boolean syncJournal) {
+      this.factory = factory;
+      this.unitOfWork = new UnitOfWork(factory);
+      this.reservations = reservations;
+      this.productCache = new ProductCache(this::loadProduct,
+              PRODUCT_CACHE_SIZE, PRODUCT_CACHE_TTL_SECONDS, TimeUnit.SECONDS);
+      JpaHelper.getServerSession(factory).getEventManager().addListener(this.remoteChanges);
+      // A full queue slows the submitter down rather than letting the backlog grow without limit.
+      this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(threads * QUEUED_TASKS_PER_THREAD),
+              new ThreadPoolExecutor.CallerRunsPolicy());
+      try {
+         this.writer = journal == null ? null : new OrderWriter(this, factory, journal, syncJournal);
+      } catch (IOException e) {
+         throw new UncheckedIOException("Could not open the order journal in " + journal, e);
+      }
+      // Only now that the journal has been replayed, so that no hold a journalled order needs is swept first.
+      reservations.start();
+   }
+
+   /**
+    * Runs work on the service's thread pool.
+    * @param work       What to run.  Typically a few calls to this service, such as placing one order.
+    * @return           The eventual result of the work.
+    */
+   public <T> CompletableFuture<T> submit(Callable<T> work) {
+      return CompletableFuture.supplyAsync(() -> {
+         try {
+            return work.call();
+         } catch (RuntimeException e) {
+            throw e;
+         } catch (Exception e) {
+            throw new CompletionException(e);
+         }
+      }, this.executor);
+   }
+
+   /**
+    * Stops the thread pool once the work already submitted has finished, then the order writer once every
+    * journalled order is written, and then the hold sweeper.
+    */
+   @Override
+   public void close() {
+      this.executor.shutdown();
+      try {
+         this.executor.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (this.writer != null) {
+         this.writer.close();
+      }
+      this.reservations.close();
+      JpaHelper.getServerSession(this.factory).getEventManager().removeListener(this.remoteChanges);
+   }
+
+   /** @return The stock held for open carts, and its statistics. */
+   public StockReservations getReservations() {
+      return this.reservations;
+   }
+
+   /**
+    * Create and persist a list of objects to the database, in one transaction.  The transaction is not
+    * retried: persisting gives the caller's entities their ids and attaches them to it, so after a failure
+    * they are not fit to persist again, and the caller should make them afresh.
+    * @param entities   The list of entities to persist.  These can be any object that has been
+    *                   properly annotated in JPA and marked as "persistable."
+    */
+   public <E> void createEntity(List <E> entities) {
+      this.unitOfWork.inTransactionOnce(manager -> {
+         for (E next : entities) {
+            manager.persist(next);
+         }
+         return null;
+      });
+   }
+
+   /**
+    * Bulk version of createEntity for large loads.  The entities are persisted in chunks: after every
+    * chunkSize entities the persistence context is flushed, which EclipseLink sends as one JDBC batch,
+    * and then cleared so that the flushed entities can be garbage collected.  Heap use therefore depends
+    * on the chunk size rather than on the size of the list.  Everything is written in one transaction,
+    * which, as with createEntity, is not retried.
+    * The heap in use is sampled before each flush, for the peak, and after each clear, for what the load
+    * keeps; both are logged with the rate.
+    * @param entities   The list of entities to persist.
+    * @param chunkSize  The number of entities to persist between flushes.
+    */
+   public <E> void createEntityBatched(List <E> entities, int chunkSize) {
+      if (chunkSize <= 0) {
+         throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+      }
+      MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+      long start = System.nanoTime();
+      int count = entities.size();
+
+      // {the most before a flush, the most after a clear}
+      long[] heap = this.unitOfWork.inTransactionOnce(manager -> {
+         long[] used = {memory.getHeapMemoryUsage().getUsed(), 0};
+         int persisted = 0;
+         for (E next : entities) {
+            manager.persist(next);
+            if (++persisted % chunkSize == 0) {
+               used[0] = Math.max(used[0], memory.getHeapMemoryUsage().getUsed());
+               manager.flush();
+               manager.clear();
+               used[1] = Math.max(used[1], memory.getHeapMemoryUsage().getUsed());
+            }
+         }
+         // Pick up the last partial chunk.
+         used[0] = Math.max(used[0], memory.getHeapMemoryUsage().getUsed());
+         return used;
+      });
+
+      double seconds = (System.nanoTime() - start) / 1e9;
+      LOGGER.info(String.format("Persisted %d rows in %.3f s (%.0f rows/sec), peak heap %d KB, " +
+                      "%d KB after clearing", count, seconds, seconds > 0 ? count / seconds : 0.0,
+              heap[0] / 1024, heap[1] / 1024));
+   }
+
+   /**
+    * Drops from the product cache the products that another JVM has changed.  With cache coordination on,
+    * EclipseLink merges what each JVM commits into the shared caches of the others, and that is when this
+    * runs, so the product cache is no staler than the shared cache it reads from.  Without coordination
+    * nothing arrives, and only the time to live bounds how stale another JVM's changes leave it.
+    * @param changes       The changes committed in the other JVM, as they were merged here.
+    */
+   private void onRemoteChanges(UnitOfWorkChangeSet changes) {
+      if (changes == null) {
+         return;
+      }
+      for (Object change : changes.getAllChangeSets().keySet()) {
+         invalidateIfProduct((ObjectChangeSet) change);
+      }
+      for (Object change : changes.getDeletedObjects().keySet()) {
+         invalidateIfProduct((ObjectChangeSet) change);
+      }
+   }
+
+   private void invalidateIfProduct(ObjectChangeSet change) {
+      if (Products.class.getName().equals(change.getClassName())) {
+         this.productCache.invalidate((String) change.getId());
+      }
+   }
+
+   /**
+    * Gets product using UPC and returns it.  The product cache is checked first.
+    * @param UPC     Identifying string of the product
+    * @return        The product that matches the input UPC.
+    * */
+   public Products getProduct(String UPC) {
+      return timed(GET_PRODUCT, () -> this.productCache.get(UPC));
+   }
+
+   /**
+    * Reads a product for the product cache.  It comes from EclipseLink's shared cache if it is there, and
+    * from the database if not.  Stock changes evict the product from the shared cache on every JVM, so the
+    * shared copy is never older than the last order placed through the application.
+    * @param UPC     Identifying string of the product
+    * @return        The product that matches the input UPC.
+    * @throws NoResultException if there is no such product.
+    */
+   private Products loadProduct(String UPC) {
+      return this.unitOfWork.read(manager -> {
+         Products product = manager.find(Products.class, UPC);
+         if (product == null) {
+            throw new NoResultException("There is no product with UPC " + UPC);
+         }
+         return product;
+      });
+   }
+
+   /**
+    * Gets the inventory as it is from the database.
+    * @return        Product list from the database.
+    * */
+   public List<Products> getInventory() {
+      return timed(GET_INVENTORY, () -> {
+         long stamp = this.productCache.stamp();
+         return this.unitOfWork.read(manager -> {
+            List<Products> inventory = manager.createNamedQuery("GetInventory", Products.class).getResultList();
+            this.productCache.putAll(inventory, stamp);
+            return inventory;
+         });
+      });
+   }
+
+   /**
+    * Gets one page of the in-stock products, in UPC order.  Rather than skipping over the earlier pages,
+    * the query starts right after the last UPC of the previous page, so every page costs the same no matter
+    * how deep into the catalog it is.
+    * @param afterUPC      The last UPC of the previous page, or null for the first page.
+    * @param pageSize      The most products to return.
+    * @return              The page of products.  Empty once there are no more.
+    * */
+   public List<Products> getInventoryPage(String afterUPC, int pageSize) {
+      return timed(GET_INVENTORY_PAGE, () -> {
+         long stamp = this.productCache.stamp();
+         return this.unitOfWork.read(manager -> {
+            List<Products> page = manager.createNamedQuery("GetInventoryPage", Products.class)
+                    .setParameter("afterUPC", afterUPC == null ? "" : afterUPC)
+                    .setMaxResults(pageSize)
+                    .getResultList();
+            this.productCache.putAll(page, stamp);
+            return page;
+         });
+      });
+   }
+
+   /**
+    * Gets one page of the in-stock products for the product menu, in UPC order and by keyset like
+    * getInventoryPage.  The products come back as ProductSummary objects with only what the menu shows,
+    * which are not entities, so they are not cached, change tracked or added to the product cache.
+    * @param afterUPC      The last UPC of the previous page, or null for the first page.
+    * @param pageSize      The most products to return.
+    * @return              The page of products.  Empty once there are no more.
+    * */
+   public List<ProductSummary> getInventorySummaryPage(String afterUPC, int pageSize) {
+      return timed(GET_INVENTORY_SUMMARY_PAGE, () -> {
+         return this.unitOfWork.read(manager -> {
+            return manager.createNamedQuery("GetInventorySummaryPage", ProductSummary.class)
+                    .setParameter("afterUPC", afterUPC == null ? "" : afterUPC)
+                    .setMaxResults(pageSize)
+                    .getResultList();
+         });
+      });
+   }
+
+   /**
+    * Runs action on every in-stock product, in UPC order, without building a list of the whole inventory.
+    * The products are read a page at a time and are read-only: they are not added to the persistence
+    * context or the product cache, so memory use does not grow with the size of the catalog.  The action
+    * must not change them.
+    * @param pageSize      How many products to read from the database at a time.
+    * @param action        What to do with each product.
+    * @return              The number of products visited.
+    * */
+   public long forEachInStock(int pageSize, Consumer<Products> action) {
+      return this.unitOfWork.read(manager -> {
+         long count = 0;
+         String afterUPC = "";
+         while (true) {
+            List<Products> page = manager.createNamedQuery("GetInventoryPage", Products.class)
+                    .setParameter("afterUPC", afterUPC)
+                    .setMaxResults(pageSize)
+                    .setHint(QueryHints.READ_ONLY, HintValues.TRUE)
+                    .getResultList();
+            for (Products product : page) {
+               action.accept(product);
+            }
+            count += page.size();
+            if (page.size() < pageSize) {
+               return count;
+            }
+            afterUPC = page.get(page.size() - 1).getUPC();
+         }
+      });
+   }
+
+   /**
+    * Compare the number of units the product has, less those held for carts, to the user requested
+    * quantity.  This is only advice for the menus: addLine is what holds the stock.  Because of that, the
+    * stock level is allowed to come from the product cache.
+    * @param UPC           Product to find the units it has.
+    * @param quantity      The quantity the user requests.
+    * @return              True if there are enough units, false if not.
+    */
+   public boolean checkInStock(String UPC, int quantity) {
+      return quantity <= getProduct(UPC).getUnits_available();
+   }
+
+   /**
+    * Gets the customer entity, from EclipseLink's shared cache if it is there and from the database if not.
+    * @param custNum       Identifying number for the customer
+    * @return              Customer entity.
+    * @throws NoResultException if there is no such customer.
+    */
+   public Customers getCustomer(long custNum) {
+      return timed(GET_CUSTOMER, () -> {
+         return this.unitOfWork.read(manager -> {
+            Customers customer = manager.find(Customers.class, custNum);
+            if (customer == null) {
+               throw new NoResultException("There is no customer with id " + custNum);
+            }
+            return customer;
+         });
+      });
+   }
+
+   /**
+    * Finds the customers with the given phone number.
+    * @param phone         The phone number, exactly as it was entered for the customer.
+    * @param after         The last customer of the previous page, or null for the first page.
+    * @param pageSize      The most customers to return.
+    * @return              The matching customers, ordered by name.  Summaries: get the customer to order for
+    *                      with getCustomer.  Empty once there are no more.
+    */
+   public List<CustomerSummary> findCustomersByPhone(String phone, CustomerSummary after, int pageSize) {
+      return timed(FIND_CUSTOMERS_BY_PHONE, () -> {
+         return this.unitOfWork.read(manager -> {
+            return manager.createNamedQuery("FindCustomersByPhone", CustomerSummary.class)
+                    .setParameter("phone", phone)
+                    .setParameter("afterLast", after == null ? "" : after.getLast_name())
+                    .setParameter("afterFirst", after == null ? "" : after.getFirst_name())
+                    .setParameter("afterId", after == null ? Long.MIN_VALUE : after.getCustomer_id())
+                    .setMaxResults(pageSize)
+                    .getResultList();
+         });
+      });
+   }
+
+   /**
+    * Finds the customers whose last name starts with the given prefix.  The prefix is turned into a range
+    * on last_name, which the name index can seek to, rather than a LIKE pattern, and each page after the
+    * first seeks straight to where the previous one ended.
+    * @param prefix        The start of the last name.  Case sensitive.
+    * @param after         The last customer of the previous page, or null for the first page.
+    * @param pageSize      The most customers to return.
+    * @return              The matching customers, ordered by name.  Summaries, as above.
+    */
+   public List<CustomerSummary> findCustomersByLastNamePrefix(String prefix, CustomerSummary after, int pageSize) {
+      return timed(FIND_CUSTOMERS_BY_LAST_NAME_PREFIX, () -> {
+         return this.unitOfWork.read(manager -> {
+            return manager.createNamedQuery("FindCustomersByLastNamePrefix", CustomerSummary.class)
+                    .setParameter("afterLast", after == null ? prefix : after.getLast_name())
+                    .setParameter("prefixEnd", prefix + Character.MAX_VALUE)
+                    .setParameter("afterFirst", after == null ? "" : after.getFirst_name())
+                    .setParameter("afterId", after == null ? Long.MIN_VALUE : after.getCustomer_id())
+                    .setMaxResults(pageSize)
+                    .getResultList();
+         });
+      });
+   }
+
+   /**
+    * Finds the customers with the given last and first name.
+    * @param lastName      The customer's last name.
+    * @param firstName     The customer's first name.
+    * @param after         The last customer of the previous page, or null for the first page.
+    * @param pageSize      The most customers to return.
+    * @return              The matching customers, ordered by phone number.  Summaries, as above.
+    */
+   public List<CustomerSummary> findCustomersByName(String lastName, String firstName, CustomerSummary after,
+                                                    int pageSize) {
+      return timed(FIND_CUSTOMERS_BY_NAME, () -> {
+         return this.unitOfWork.read(manager -> {
+            return manager.createNamedQuery("FindCustomersByName", CustomerSummary.class)
+                    .setParameter("lastName", lastName)
+                    .setParameter("firstName", firstName)
+                    .setParameter("afterPhone", after == null ? "" : after.getPhone())
+                    .setParameter("afterId", after == null ? Long.MIN_VALUE : after.getCustomer_id())
+                    .setMaxResults(pageSize)
+                    .getResultList();
+         });
+      });
+   }
+
+   /**
+    * Does some work and records how long it took, and whether it threw, in the statistics for its operation.
+    * @param stats         The statistics of the operation.
+    * @param work          The work of the operation.
+    * @return              What the work returned.
+    */
+   private static <T> T timed(LatencyStats stats, Supplier<T> work) {
+      long start = stats.start();
+      boolean failed = true;
+      try {
+         T result = work.get();
+         failed = false;
+         return result;
+      } finally {
+         stats.recordSince(start, failed);
+      }
+   }
+
+   /**
+    * Does some work that returns nothing and records how long it took in the statistics for its operation.
+    * @param stats         The statistics of the operation.
+    * @param work          The work of the operation.
+    */
+   private static void timed(LatencyStats stats, Runnable work) {
+      timed(stats, () -> {
+         work.run();
+         return null;
+      });
+   }
+
+   /**
+    * Starts a new order for a customer.  The order is dated now and sold by the default sales person.
+    * @param customer      Customer to be associated with the order.
+    * @return              An empty cart for the order.
+    */
+   public Cart openCart(Customers customer) {
+      return new Cart(new Orders(customer, LocalDateTime.now(), DEFAULT_SOLD_BY));
+   }
+
+   /**
+    * Holds stock for the cart and puts what could be held in it, at the product's list price.  The hold
+    * lasts until the order is placed or aborted, or until nothing has been added to the cart for
+    * HOLD_TTL_SECONDS.
+    * @param cart          The cart to add to.
+    * @param UPC           The product to add.
+    * @param quantity      How many units to add.
+    * @return              How many of the units could be held and added.  Fewer than asked for if someone
+    *                      else has the rest.
+    */
+   public InventoryEngine.FillResult addLine(Cart cart, String UPC, int quantity) {
+      return timed(ADD_LINE, () -> {
+         InventoryEngine.FillResult held = this.reservations.hold(cart.getId(), UPC, quantity);
+         // The units held for this product have changed.
+         this.productCache.invalidate(UPC);
+         if (held.getFilled() > 0) {
+            Products product = getProduct(UPC);
+            cart.add(new OrderLines(cart.getOrder(), product, held.getFilled(), product.getUnit_list_price()));
+         }
+         return held;
+      });
+   }
+
+   /**
+    * Throws away an order that will not be placed, and gives back the stock held for it.
+    * @param cart          The cart to empty.
+    */
+   public void abort(Cart cart) {
+      timed(ABORT, () -> {
+         this.reservations.release(cart.getId());
+         cart.clear();
+      });
+   }
+
+   /**
+    * Persists the order and its lines and takes the ordered units out of stock, all in one transaction.
+    * Units held for the cart are taken first.  If a hold has expired, or a line asks for more than was
+    * held, the rest is filled as far as the stock that nobody holds allows.  Once the order is written, the
+    * cart is updated to match: a line that could only be partly filled has its quantity lowered, and a line
+    * that could not be filled at all is removed.  If nothing could be filled, no order is written and the
+    * cart ends up empty.  Once placed, the cart's order has the order_id it was given.
+    * <p>
+    * With an order journal, an order whose every line is covered by the cart's holds is only appended to
+    * the journal and acknowledged in full; the OrderWriter writes it to the database shortly after, and
+    * the cart's order has no order_id.  Before the order is appended its holds are pinned in the database for
+    * JOURNALLED_HOLD_HOURS, so that the sweeper cannot give them back before the writer takes them.  An order
+    * whose holds cannot all be pinned or that the journal cannot take, and anything else, is placed as above.
+    * </p>
+    * @param cart          The order being placed.
+    * @return              How much of each line could be filled.
+    */
+   public List<InventoryEngine.FillResult> placeOrder(Cart cart) {
+      return timed(PLACE_ORDER, () -> {
+         OrderJournal.Entry entry = journalEntry(cart);
+         if (this.writer != null && this.writer.isAccepting()) {
+            Map<String, Integer> units = unitsOf(entry);
+            if (this.reservations.holdsAll(cart.getId(), units) &&
+                    this.reservations.pin(cart.getId(), units, JOURNALLED_HOLD_HOURS, TimeUnit.HOURS)) {
+               try {
+                  this.writer.append(entry);
+                  List<InventoryEngine.FillResult> results = new ArrayList<>(entry.getLines().size());
+                  for (OrderJournal.Line line : entry.getLines()) {
+                     results.add(new InventoryEngine.FillResult(line.getUPC(), line.getQuantity(),
+                             line.getQuantity()));
+                  }
+                  return results;
+               } catch (IllegalStateException e) {
+                  // The writer closed or stopped meanwhile.  The pinned holds are still the cart's to take.
+                  LOGGER.log(Level.FINE, "Placing " + cart.getId() + " synchronously", e);
+               } catch (IllegalArgumentException | UncheckedIOException e) {
+                  // The journal could not take the order, say because the disk is full; it is not in the
+                  // journal, so it is placed here instead, and takes its pinned holds.
+                  LOGGER.log(Level.WARNING, "Could not journal " + cart.getId() + "; placing it synchronously", e);
+               }
+            }
+         }
+
+         WrittenOrder written = this.unitOfWork.inTransaction(COMMIT_ORDER, manager -> {
+            WrittenOrder attempt = writeOrders(manager, Collections.singletonList(entry)).get(0);
+            if (attempt.order == null) {
+               // Nothing could be filled, so there is nothing to commit.
+               manager.getTransaction().setRollbackOnly();
+            }
+            return attempt;
+         });
+         if (written.order != null) {
+            // So that the caller can find the order again.
+            cart.getOrder().setOrder_id(written.order.getOrder_id());
+         }
+
+         finishOrder(cart.getId(), written);
+         for (InventoryEngine.FillResult result : written.results) {
+            cart.setQuantity(result.getUPC(), result.getFilled());
+         }
+         LOGGER.fine(this.productCache.toString());
+         return written.results;
+      });
+   }
+
+   /** @return The writer of the order journal, or null if orders are placed synchronously. */
+   public OrderWriter getOrderWriter() {
+      return this.writer;
+   }
+
+   /**
+    * What writeOrders did with one order.
+    */
+   static final class WrittenOrder {
+      /** How much of each line was filled, in the order of the lines. */
+      private final List<InventoryEngine.FillResult> results;
+      /** What StockReservations.take returned for each line, for StockReservations.placed. */
+      private final List<InventoryEngine.FillResult> taken = new ArrayList<>();
+      /** The order as persisted, or null if nothing could be filled and so it was not. */
+      private Orders order;
+
+      private WrittenOrder(int lines) {
+         this.results = new ArrayList<>(Collections.nCopies(lines, null));
+      }
+
+      List<InventoryEngine.FillResult> getResults() {
+         return results;
+      }
+
+      /** @return True if every line was filled in full. */
+      boolean isComplete() {
+         for (InventoryEngine.FillResult result : results) {
+            if (!result.isComplete()) {
+               return false;
+            }
+         }
+         return true;
+      }
+   }
+
+   /**
+    * Takes the stock for some orders and persists those that got any, in the caller's transaction.  Units
+    * held for each order's cart are taken first, and the rest filled from the stock nobody holds.  The
+    * products are locked in UPC order across all of the orders, whichever order they are in, so that two
+    * transactions that write orders cannot deadlock over them.  Once the transaction commits, call
+    * finishOrder for each order.
+    * @param manager       The EntityManager of the transaction.
+    * @param entries       The orders.
+    * @return              What was done with each order, in the same order.
+    */
+   List<WrittenOrder> writeOrders(EntityManager manager, List<OrderJournal.Entry> entries) {
+      InventoryEngine inventory = new InventoryEngine(manager);
+      List<WrittenOrder> written = new ArrayList<>(entries.size());
+      // Every line of every order, as {order, line}.
+      List<int[]> lines = new ArrayList<>();
+      for (int i = 0; i < entries.size(); i++) {
+         written.add(new WrittenOrder(entries.get(i).getLines().size()));
+         for (int j = 0; j < entries.get(i).getLines().size(); j++) {
+            lines.add(new int[] {i, j});
+         }
+      }
+      lines.sort(Comparator.comparing(at -> entries.get(at[0]).getLines().get(at[1]).getUPC()));
+
+      for (int[] at : lines) {
+         OrderJournal.Entry entry = entries.get(at[0]);
+         OrderJournal.Line line = entry.getLines().get(at[1]);
+         WrittenOrder order = written.get(at[0]);
+         InventoryEngine.FillResult held = this.reservations.take(manager, inventory, entry.getCartId(),
+                 line.getUPC(), line.getQuantity());
+         order.taken.add(held);
+         int filled = held.getFilled();
+         if (filled < line.getQuantity()) {
+            filled += inventory.reserveUpTo(line.getUPC(), line.getQuantity() - filled).getFilled();
+         }
+         order.results.set(at[1], new InventoryEngine.FillResult(line.getUPC(), line.getQuantity(), filled));
+      }
+
+      for (int i = 0; i < entries.size(); i++) {
+         OrderJournal.Entry entry = entries.get(i);
+         WrittenOrder order = written.get(i);
+         for (int j = 0; j < entry.getLines().size(); j++) {
+            int filled = order.results.get(j).getFilled();
+            if (filled == 0) {
+               continue;
+            }
+            if (order.order == null) {
+               order.order = new Orders(manager.find(Customers.class, entry.getCustomerId()),
+                       entry.getOrderDate(), entry.getSoldBy());
+               manager.persist(order.order);
+            }
+            OrderJournal.Line line = entry.getLines().get(j);
+            manager.persist(new OrderLines(order.order, manager.find(Products.class, line.getUPC()), filled,
+                    line.getUnitSalePrice()));
+         }
+      }
+      return written;
+   }
+
+   /**
+    * Brings the stock holds and the caches up to date once an order written by writeOrders has committed,
+    * or has been rolled back because nothing could be filled.
+    * @param cartId        The cart the order was placed from.
+    * @param written       What writeOrders returned for the order.
+    */
+   void finishOrder(String cartId, WrittenOrder written) {
+      if (written.order != null) {
+         this.reservations.placed(cartId, written.taken);
+      } else {
+         // Nothing could be filled, so the cart held nothing that the order could use either.
+         this.reservations.release(cartId);
+      }
+
+      JpaCache sharedCache = this.factory.getCache().unwrap(JpaCache.class);
+      for (InventoryEngine.FillResult result : written.results) {
+         // The stock level we have cached for this product is out of date now.
+         this.productCache.invalidate(result.getUPC());
+         // InventoryEngine only evicted the product here.  Now that the new stock level is committed, tell
+         // the other JVMs too; before the commit they could have read the old level straight back.
+         if (result.getFilled() > 0 && written.order != null) {
+            sharedCache.evict(Products.class, result.getUPC(), true);
+         }
+      }
+   }
+
+   /** @return The cart as a journal entry, with its lines in UPC order. */
+   private static OrderJournal.Entry journalEntry(Cart cart) {
+      List<OrderJournal.Line> lines = new ArrayList<>(cart.size());
+      for (OrderLines line : cart.getOrderLines()) {
+         lines.add(new OrderJournal.Line(line.getProduct().getUPC(), line.getQuantity(), line.getUnit_sale_price()));
+      }
+      lines.sort(Comparator.comparing(OrderJournal.Line::getUPC));
+      Orders order = cart.getOrder();
+      return new OrderJournal.Entry(cart.getId(), order.getCustomer().getCustomer_id(), order.getOrder_date(),
+              order.getSold_by(), lines);
+   }
+
+   /** @return The units of each product an order is for, by UPC. */
+   private static Map<String, Integer> unitsOf(OrderJournal.Entry entry) {
+      Map<String, Integer> units = new HashMap<>();
+      for (OrderJournal.Line line : entry.getLines()) {
+         units.merge(line.getUPC(), line.getQuantity(), Integer::sum);
+      }
+      return units;
+   }
+
+   /**
+    * Reads the orders that a customer has placed, with the customer filled in.  One SELECT, however many
+    * orders there are.
+    * @param customerId    The customer whose orders are wanted.
+    * @return              The customer's orders, newest first.
+    */
+   public List<Orders> getOrderSummaries(long customerId) {
+      return timed(GET_ORDER_SUMMARIES, () -> {
+         return this.unitOfWork.read(manager -> {
+            return manager.createNamedQuery("OrderSummary", Orders.class)
+                    .setParameter("customerId", customerId)
+                    .getResultList();
+         });
+      });
+   }
+
+   /**
+    * Reads one page of a customer's order history, newest first, with every order's lines and their
+    * products.  It takes two SELECTs however big the page is: one for the orders, and one for the lines
+    * of all of them, which are looked up by order id in the ORDERLINES primary key.
+    * @param customerId    The customer whose orders are wanted.
+    * @param before        Only orders after this position are returned.  Null for the newest orders, or
+    *                      getNextBefore of the previous page for the next one.
+    * @param pageSize      The most orders to return.
+    * @return              The page of orders.
+    */
+   public OrderHistoryPage getOrderHistory(long customerId, OrderHistoryPage.Position before, int pageSize) {
+      return timed(GET_ORDER_HISTORY, () -> {
+         if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive: " + pageSize);
+         }
+         return this.unitOfWork.read(manager -> {
+            OrderHistoryPage.Position from = before == null ? OrderHistoryPage.Position.NEWEST : before;
+            // Read one extra order to find out whether there is another page.
+            List<Orders> orders = manager.createNamedQuery("OrderHistoryPage", Orders.class)
+                    .setParameter("customerId", customerId)
+                    .setParameter("beforeDate", from.getOrderDate())
+                    .setParameter("beforeId", from.getOrderId())
+                    .setMaxResults(pageSize + 1)
+                    .getResultList();
+            boolean hasMore = orders.size() > pageSize;
+            if (hasMore) {
+               orders = orders.subList(0, pageSize);
+            }
+            if (orders.isEmpty()) {
+               return new OrderHistoryPage(new ArrayList<>(), null);
+            }
+
+            List<Long> orderIds = new ArrayList<>(orders.size());
+            for (Orders order : orders) {
+               orderIds.add(order.getOrder_id());
+            }
+            List<OrderLines> lines = manager.createNamedQuery("OrderHistoryLines", OrderLines.class)
+                    .setParameter("orderIds", orderIds)
+                    .getResultList();
+
+            // Both lists are newest first, so the lines can be handed out to the orders in one pass.
+            List<OrderHistoryPage.Entry> entries = new ArrayList<>(orders.size());
+            int next = 0;
+            for (Orders order : orders) {
+               int first = next;
+               while (next < lines.size() && lines.get(next).getOrder() == order) {
+                  next++;
+               }
+               entries.add(new OrderHistoryPage.Entry(order, new ArrayList<>(lines.subList(first, next))));
+            }
+            return new OrderHistoryPage(entries,
+                    hasMore ? OrderHistoryPage.Position.after(orders.get(orders.size() - 1)) : null);
+         });
+      });
+   }
+
+   /**
+    * Reads the lines of a placed order for display as a cart, with each line's product filled in but not
+    * its order.  One SELECT, however many lines there are.
+    * @param orderId       The order.
+    * @return              The lines of the order, in UPC order.
+    */
+   public List<OrderLines> getCartLines(long orderId) {
+      return timed(GET_CART_LINES, () -> getOrderLines("OrderLinesForCart", orderId));
+   }
+
+   /**
+    * Reads the lines of a placed order with everything filled in: the order, the customer who placed it
+    * and each line's product.  One SELECT, however many lines there are.
+    * @param orderId       The order.
+    * @return              The lines of the order, in UPC order.
+    */
+   public List<OrderLines> getOrderDetail(long orderId) {
+      return timed(GET_ORDER_DETAIL, () -> getOrderLines("OrderLinesDetail", orderId));
+   }
+
+   /**
+    * Runs one of the OrderLines fetch plan queries.
+    * @param queryName     The named query, which says which associations are fetched with the lines.
+    * @param orderId       The order.
+    * @return              The lines of the order.
+    */
+   private List<OrderLines> getOrderLines(String queryName, long orderId) {
+      return this.unitOfWork.read(manager -> {
+         return manager.createNamedQuery(queryName, OrderLines.class)
+                 .setParameter("orderId", orderId)
+                 .getResultList();
+      });
+   }
+}
@@ -0,0 +1,429 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.JournalCheckpoints;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.persistence.EntityManagerFactory;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the orders in an OrderJournal to the database behind the backs of the shoppers who placed them.
+ * <p>
+ * OrderService appends an order to the journal and hands it over here; a single background thread takes
+ * the orders in the order they were appended and writes up to BATCH_SIZE of them in one transaction, so a
+ * busy service commits once per batch rather than once per order.  The same transaction moves the
+ * journal's checkpoint, a row of JOURNALCHECKPOINTS, on to the last order of the batch.  When the writer
+ * is opened it writes whatever the journal has past the checkpoint before anything new, so the orders
+ * acknowledged before a crash are written once, however often the JVM goes down.
+ * </p>
+ * <p>
+ * Each transaction runs in a UnitOfWork, which runs it again if it fails on a deadlock or a lock timeout.
+ * If a batch still fails, its orders are tried again one at a time, so one bad order cannot hold up the
+ * rest.  An order that fails on its own was still acknowledged, so before the writer moves past it, it is
+ * copied to the journal's dead letters and forced to disk, to be put right and entered by hand, and its cart's
+ * holds are given back, so that its stock is not tied up until their pin runs out.  The dead-lettered orders
+ * are counted over JMX, under csulb.cecs323:type=OrderWriter.  If it cannot be copied either, the writer
+ * stops where it is: the checkpoint stays before that order, append fails, so that OrderService places orders
+ * synchronously, and the order and everything after it are tried again when the writer is next opened.
+ * </p>
+ * <p>
+ * At most BACKLOG_LIMIT orders may wait to be written.  Past that, appending waits for the writer, so a
+ * service that takes orders faster than the database can write them slows down to the database's pace
+ * rather than running out of memory.
+ * </p>
+ */
+public class OrderWriter implements OrderWriterMBean, AutoCloseable {
+   private static final Logger LOGGER = Logger.getLogger(OrderWriter.class.getName());
+
+   /** The writer whose statistics are published over JMX: the one opened last. */
+   private static final AtomicReference<OrderWriter> PUBLISHED = new AtomicReference<>();
+
+   /** The most orders written in one transaction. */
+   public static final int BATCH_SIZE = 500;
+
+   /** The most orders that may be waiting to be written before append waits too. */
+   public static final int BACKLOG_LIMIT = 10_000;
+
+   /** The transactions that write a batch of journalled orders, timed whether they write one order or many. */
+   private static final LatencyStats WRITE_BATCH = Instrumentation.operation("writeJournalBatch");
+
+   private final OrderService orderService;
+   private final UnitOfWork unitOfWork;
+   private final OrderJournal journal;
+
+   /** The journal's row of JOURNALCHECKPOINTS. */
+   private final String checkpointName;
+
+   /** The orders appended and not yet written, in sequence order. */
+   private final BlockingQueue<OrderJournal.Entry> backlog = new LinkedBlockingQueue<>();
+
+   /** Room in the backlog.  Taken before an order is appended and given back once it is written. */
+   private final Semaphore room = new Semaphore(BACKLOG_LIMIT);
+
+   /** Held while an order is appended and queued, so that the queue stays in sequence order. */
+   private final Object appendLock = new Object();
+
+   private final Thread thread;
+
+   /** False once close has been called.  Only changed while holding appendLock. */
+   private volatile boolean running = true;
+
+   /** Set if an order could be neither written nor dead-lettered, after which nothing more is written. */
+   private volatile boolean stopped;
+
+   /** The sequence number of the last order that has been written or skipped.  Guarded by this. */
+   private long handledSequence;
+
+   private final AtomicLong writtenOrders = new AtomicLong();
+   private final AtomicLong batches = new AtomicLong();
+   private final AtomicLong shortOrders = new AtomicLong();
+   private final AtomicLong deadLetteredOrders = new AtomicLong();
+
+   /**
+    * Opens the journal, writes the orders in it that are not in the database yet, and starts the writer.
+    * @param orderService     The service whose orders these are.  It does the writing.
+    * @param factory          Where the orders are written.
+    * @param directory        The journal's directory.
+    * @param sync             Whether appending an order waits for it to be forced to disk.
+    * @throws IOException if the journal cannot be opened.
+    */
+   OrderWriter(OrderService orderService, EntityManagerFactory factory, Path directory, boolean sync)
+           throws IOException {
+      this.orderService = orderService;
+      this.unitOfWork = new UnitOfWork(factory);
+      this.checkpointName = directory.toAbsolutePath().normalize().toString();
+      this.handledSequence = readCheckpoint();
+      this.journal = new OrderJournal(directory, this.handledSequence, OrderJournal.DEFAULT_SEGMENT_SIZE, sync);
+
+      List<OrderJournal.Entry> recovered = this.journal.getRecovered();
+      for (int i = 0; i < recovered.size() && !this.stopped; i += BATCH_SIZE) {
+         write(recovered.subList(i, Math.min(i + BATCH_SIZE, recovered.size())));
+      }
+      if (!recovered.isEmpty() && !this.stopped) {
+         LOGGER.info("Replayed " + recovered.size() + " orders from the order journal");
+      }
+      synchronized (this) {
+         if (!this.stopped) {
+            this.handledSequence = this.journal.getLastSequence();
+         }
+      }
+
+      this.thread = new Thread(this::run, "order-journal-writer");
+      this.thread.setDaemon(true);
+      this.thread.start();
+      publish(this);
+   }
+
+   /**
+    * Appends an order to the journal and queues it to be written.  Once this returns the order will be
+    * written even if the JVM crashes.
+    * @param entry      The order.
+    * @return           Its sequence number in the journal.
+    * @throws IllegalStateException if the writer has been closed or has stopped.
+    * @throws IllegalArgumentException if the order is too big for the journal.
+    * @throws java.io.UncheckedIOException if the journal could not take the order.
+    */
+   long append(OrderJournal.Entry entry) {
+      this.room.acquireUninterruptibly();
+      synchronized (this.appendLock) {
+         if (!isAccepting()) {
+            this.room.release();
+            throw new IllegalStateException(this.running ? "The order writer has stopped"
+                    : "The order writer is closed");
+         }
+         long sequence;
+         try {
+            sequence = this.journal.append(entry);
+         } catch (RuntimeException e) {
+            this.room.release();
+            throw e;
+         }
+         this.backlog.add(entry);
+         return sequence;
+      }
+   }
+
+   /**
+    * Waits for every order appended so far to be written.
+    * @param timeout    The longest to wait.
+    * @param unit       The unit of timeout.
+    * @return           True if they were all written, false if the time ran out or the writer stopped first.
+    */
+   public boolean awaitWritten(long timeout, TimeUnit unit) throws InterruptedException {
+      long target = this.journal.getLastSequence();
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      synchronized (this) {
+         while (this.handledSequence < target) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0 || this.stopped) {
+               return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+         }
+      }
+      return true;
+   }
+
+   /**
+    * Stops taking orders, writes the ones already taken and closes the journal.
+    */
+   @Override
+   public void close() {
+      synchronized (this.appendLock) {
+         this.running = false;
+      }
+      try {
+         this.thread.join(TimeUnit.MINUTES.toMillis(1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (this.thread.isAlive() || this.stopped) {
+         LOGGER.warning(this.backlog.size() + " orders were not written before the order writer was closed; " +
+                 "they will be written from the journal the next time it is opened");
+      }
+      this.journal.close();
+      if (PUBLISHED.compareAndSet(this, null)) {
+         publish(null);
+      }
+   }
+
+   /** @return False once the writer has been closed or has stopped, after which append fails. */
+   @Override
+   public boolean isAccepting() {
+      return this.running && !this.stopped;
+   }
+
+   /** @return The journal the orders are appended to. */
+   public OrderJournal getJournal() {
+      return this.journal;
+   }
+
+   @Override
+   public int getBacklog() {
+      return this.backlog.size();
+   }
+
+   @Override
+   public long getWrittenOrders() {
+      return this.writtenOrders.get();
+   }
+
+   @Override
+   public long getBatches() {
+      return this.batches.get();
+   }
+
+   @Override
+   public long getShortOrders() {
+      return this.shortOrders.get();
+   }
+
+   @Override
+   public long getDeadLetteredOrders() {
+      return this.deadLetteredOrders.get();
+   }
+
+   /** The writer thread: takes whatever has been queued, up to a batch, and writes it. */
+   private void run() {
+      List<OrderJournal.Entry> batch = new ArrayList<>(BATCH_SIZE);
+      while (true) {
+         OrderJournal.Entry first;
+         try {
+            first = this.backlog.poll(100, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            // Nothing interrupts the writer but the JVM going down; the journal still has the backlog.
+            return;
+         }
+         if (first == null) {
+            if (!this.running) {
+               return;
+            }
+            continue;
+         }
+         batch.add(first);
+         this.backlog.drainTo(batch, BATCH_SIZE - 1);
+         write(batch);
+         if (this.stopped) {
+            // What is left of the backlog is in the journal, and is written the next time it is opened.
+            return;
+         }
+         this.room.release(batch.size());
+         batch.clear();
+      }
+   }
+
+   /** Writes a batch of orders in one transaction, or one at a time if that fails. */
+   private void write(List<OrderJournal.Entry> batch) {
+      try {
+         writeTogether(batch);
+      } catch (RuntimeException e) {
+         LOGGER.log(Level.WARNING, "Could not write " + batch.size() + " orders in one transaction; " +
+                 "writing them one at a time", e);
+         for (OrderJournal.Entry entry : batch) {
+            if (!writeAlone(entry)) {
+               return;
+            }
+         }
+      }
+   }
+
+   /**
+    * Writes one order, or dead-letters it and gives back its cart's holds if it cannot.
+    * @return     False if it could be neither, and so the writer has stopped.
+    */
+   private boolean writeAlone(OrderJournal.Entry entry) {
+      try {
+         writeTogether(Collections.singletonList(entry));
+         return true;
+      } catch (RuntimeException e) {
+         try {
+            this.journal.deadLetter(entry);
+         } catch (IOException deadLetterFailure) {
+            e.addSuppressed(deadLetterFailure);
+            LOGGER.log(Level.SEVERE, "Could not write " + entry + " nor add it to the dead letters; the order " +
+                    "writer has stopped, and will try again from this order when it is next opened", e);
+            stop();
+            return false;
+         }
+         LOGGER.log(Level.SEVERE, "Could not write " + entry + "; it is in the dead letters of " +
+                 this.journal.getDirectory(), e);
+         this.deadLetteredOrders.incrementAndGet();
+         releaseHolds(entry);
+         handled(entry.getSequence());
+         return true;
+      }
+   }
+
+   /**
+    * Gives back the holds of a dead-lettered order's cart, which were pinned for the writer to take.  If that
+    * fails too, as it will if the database is what the order failed on, they are given back when the pin runs out.
+    */
+   private void releaseHolds(OrderJournal.Entry entry) {
+      try {
+         this.orderService.getReservations().release(entry.getCartId());
+      } catch (RuntimeException e) {
+         LOGGER.log(Level.WARNING, "Could not give back the holds of dead-lettered " + entry + "; they are " +
+                 "given back when their pin runs out", e);
+      }
+   }
+
+   /** Stops writing for good, and wakes anyone waiting for room or for orders to be written. */
+   private synchronized void stop() {
+      this.stopped = true;
+      // Those waiting for room find the writer stopped and give it straight back.
+      this.room.release(BACKLOG_LIMIT);
+      notifyAll();
+   }
+
+   /**
+    * Writes orders and moves the checkpoint on to the last of them, all in one transaction.  Orders that are
+    * already behind the checkpoint are left out, so an order is never written twice.
+    * @param entries    The orders, in sequence order.
+    */
+   private void writeTogether(List<OrderJournal.Entry> entries) {
+      List<OrderJournal.Entry> unwritten = new ArrayList<>(entries.size());
+      List<OrderService.WrittenOrder> written;
+      long last = entries.get(entries.size() - 1).getSequence();
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+         written = this.unitOfWork.inTransaction(manager -> {
+            // Decided again on each attempt, from the checkpoint as it is then.
+            unwritten.clear();
+            JournalCheckpoints checkpoint = manager.find(JournalCheckpoints.class, this.checkpointName);
+            if (checkpoint == null) {
+               checkpoint = new JournalCheckpoints(this.checkpointName, 0);
+               manager.persist(checkpoint);
+            }
+            for (OrderJournal.Entry entry : entries) {
+               if (entry.getSequence() > checkpoint.getApplied_sequence()) {
+                  unwritten.add(entry);
+               }
+            }
+            List<OrderService.WrittenOrder> attempt = this.orderService.writeOrders(manager, unwritten);
+            checkpoint.setApplied_sequence(Math.max(last, checkpoint.getApplied_sequence()));
+            return attempt;
+         });
+         failed = false;
+      } finally {
+         WRITE_BATCH.recordSince(start, failed);
+      }
+
+      for (int i = 0; i < unwritten.size(); i++) {
+         OrderJournal.Entry entry = unwritten.get(i);
+         OrderService.WrittenOrder order = written.get(i);
+         this.orderService.finishOrder(entry.getCartId(), order);
+         if (!order.isComplete()) {
+            this.shortOrders.incrementAndGet();
+            LOGGER.warning(entry + " was acknowledged, but only " + order.getResults() + " could be filled");
+         }
+      }
+      this.writtenOrders.addAndGet(unwritten.size());
+      this.batches.incrementAndGet();
+      this.journal.release(last);
+      handled(last);
+   }
+
+   /** Records that the orders up to sequence have been dealt with, and wakes anyone waiting for them. */
+   private synchronized void handled(long sequence) {
+      this.handledSequence = Math.max(this.handledSequence, sequence);
+      notifyAll();
+   }
+
+   /**
+    * Publishes a writer's statistics over JMX.  A second writer in the same JVM takes over the name.
+    * @param writer  The writer, or null to take the name down.
+    */
+   private static synchronized void publish(OrderWriter writer) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         ObjectName name = new ObjectName("csulb.cecs323:type=OrderWriter");
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         if (writer != null) {
+            server.registerMBean(new StandardMBean(writer, OrderWriterMBean.class), name);
+            PUBLISHED.set(writer);
+         }
+      } catch (JMException e) {
+         LOGGER.log(Level.WARNING, "Could not register the order writer with JMX", e);
+      }
+   }
+
+   /** @return The sequence number of the last order the database has, 0 if it has none from this journal. */
+   private long readCheckpoint() {
+      return this.unitOfWork.read(manager -> {
+         JournalCheckpoints checkpoint = manager.find(JournalCheckpoints.class, this.checkpointName);
+         return checkpoint == null ? 0L : checkpoint.getApplied_sequence();
+      });
+   }
+}
@@ -0,0 +1,37 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+/**
+ * What OrderWriter exposes over JMX, under csulb.cecs323:type=OrderWriter.  The counts are since the writer
+ * was opened.
+ */
+public interface OrderWriterMBean {
+   /** @return False once the writer has been closed or has stopped, after which orders are placed synchronously. */
+   boolean isAccepting();
+
+   /** @return The orders waiting to be written. */
+   int getBacklog();
+
+   /** @return The orders written, including those replayed from the journal. */
+   long getWrittenOrders();
+
+   /** @return The transactions that orders were written in. */
+   long getBatches();
+
+   /** @return Orders that were written with fewer units than were acknowledged, because a hold ran out first. */
+   long getShortOrders();
+
+   /** @return Orders that could not be written at all and were dead-lettered, to be entered by hand. */
+   long getDeadLetteredOrders();
+}
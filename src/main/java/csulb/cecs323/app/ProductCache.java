@@ -0,0 +1,276 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Products;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A bounded, read-through cache of products keyed by UPC.
+ * <p>
+ * Products are read far more often than they change, so most lookups can be answered without going to
+ * the database.  An entry is dropped when it is older than the time to live, when the cache grows past
+ * its maximum size (oldest entries first), or when invalidate is called after a change to the product is
+ * committed.  The cache is safe to use from several threads.
+ * </p>
+ * <p>
+ * The cache only knows of the changes it is told of.  OrderService invalidates it for its own orders, and
+ * for products that other JVMs change once cache coordination brings the change to this JVM's shared
+ * cache.  A change made around EclipseLink, or in another JVM without coordination, is only seen once the
+ * product's time to live runs out.
+ * </p>
+ * <p>
+ * A product read from the database just before it changed must not be cached once the change has been
+ * invalidated, or the old stock would be served for the whole time to live.  So every read is stamped with
+ * the count of invalidations when it started (see stamp), and invalidate leaves a marker with the new count
+ * in place of the product.  A read is only cached over a marker, or over another read, that is no newer
+ * than it is.  Markers are dropped with the products, for age or size, and dropping an entry raises a floor
+ * to its stamp, below which no read is cached, so that a read that started before a dropped marker cannot
+ * take its place.  The floor covers every product, which costs at worst a few reads that were under way
+ * going uncached; a floor per product would have to be kept for every product ever invalidated.
+ * </p>
+ */
+public class ProductCache {
+   /** A cached product, along with when it was loaded, or the marker of an invalidated one. */
+   private static class Entry {
+      /** The product, or null if it has been invalidated. */
+      private final Products product;
+      private final long loadedAt;
+      /** The stamp of the read that loaded the product, or of the invalidation. */
+      private final long stamp;
+
+      private Entry(Products product, long loadedAt, long stamp) {
+         this.product = product;
+         this.loadedAt = loadedAt;
+         this.stamp = stamp;
+      }
+   }
+
+   /** When the cache overflows it is trimmed to this fraction of its maximum size, so trims are rare. */
+   private static final double TRIM_TO = 0.9;
+
+   private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+   /**
+    * Reads a product from the database on a miss.  If there is no such product it may return null or throw,
+    * as OrderService's does with NoResultException; either way nothing is cached and the caller gets the
+    * null or the exception.
+    */
+   private final Function<String, Products> loader;
+   private final int maximumSize;
+   private final long timeToLiveNanos;
+
+   /** How many invalidations there have been.  Reads are stamped with it. */
+   private final AtomicLong invalidations = new AtomicLong();
+   /**
+    * Reads stamped before this are not cached.  It is raised by invalidateAll, and to the stamp of every
+    * entry that is dropped, before it is dropped.
+    */
+   private final AtomicLong floor = new AtomicLong();
+
+   /** Held by the thread that is trimming. */
+   private final ReentrantLock trimming = new ReentrantLock();
+
+   private final LongAdder hits = new LongAdder();
+   private final LongAdder misses = new LongAdder();
+   private final LongAdder evictions = new LongAdder();
+
+   /**
+    * @param loader           Reads a product from the database when it is not in the cache.  It may return
+    *                         null or throw if there is no such product.
+    * @param maximumSize      The most products that the cache will hold.
+    * @param timeToLive       How long a product may stay in the cache before it is read again.
+    * @param unit             The unit of timeToLive.
+    */
+   public ProductCache(Function<String, Products> loader, int maximumSize, long timeToLive, TimeUnit unit) {
+      if (maximumSize <= 0) {
+         throw new IllegalArgumentException("maximumSize must be positive: " + maximumSize);
+      }
+      this.loader = loader;
+      this.maximumSize = maximumSize;
+      this.timeToLiveNanos = unit.toNanos(timeToLive);
+   }
+
+   /**
+    * Returns the product with the given UPC, reading it from the database if it is not cached.
+    * @param UPC     Identifying string of the product
+    * @return        The product, or null if the loader returned null for it.
+    */
+   public Products get(String UPC) {
+      Entry entry = this.entries.get(UPC);
+      if (entry != null && entry.product != null) {
+         if (!isExpired(entry, System.nanoTime())) {
+            this.hits.increment();
+            return entry.product;
+         }
+         evict(UPC, entry);
+      }
+      this.misses.increment();
+      long stamp = stamp();
+      Products product = this.loader.apply(UPC);
+      if (product != null) {
+         put(product, stamp);
+      }
+      return product;
+   }
+
+   /**
+    * @return     The stamp to give products that are about to be read some other way, such as in the
+    *             inventory listing.  Take it before the read starts and pass it to put or putAll.
+    */
+   public long stamp() {
+      return this.invalidations.get();
+   }
+
+   /**
+    * Adds a product that was read some other way, unless it has been invalidated since the read started.
+    * @param product    The product to cache.
+    * @param stamp      What stamp returned before the product was read.
+    */
+   public void put(Products product, long stamp) {
+      if (stamp < this.floor.get()) {
+         return;
+      }
+      Entry loaded = new Entry(product, System.nanoTime(), stamp);
+      // Keep whichever is newer: an invalidation or a read that started after this one began wins.
+      this.entries.merge(product.getUPC(), loaded,
+              (current, next) -> current.stamp > next.stamp ? current : next);
+      if (stamp < this.floor.get()) {
+         // An entry was dropped while this was being added, maybe the marker it would have lost to.  The
+         // floor is raised before an entry is dropped, so seeing it low here means the merge saw the marker.
+         this.entries.remove(product.getUPC(), loaded);
+         return;
+      }
+      if (this.entries.size() > this.maximumSize) {
+         trim();
+      }
+   }
+
+   /**
+    * Adds every product in the collection, unless it has been invalidated since the read started.
+    * @param products   The products to cache.
+    * @param stamp      What stamp returned before the products were read.
+    */
+   public void putAll(Collection<Products> products, long stamp) {
+      for (Products product : products) {
+         put(product, stamp);
+      }
+   }
+
+   /**
+    * Drops a product so that the next lookup reads it from the database again, and so that no read that
+    * started before now caches it.  Call this once a change to the stock or the price of the product has
+    * been committed.
+    * @param UPC     Identifying string of the product
+    */
+   public void invalidate(String UPC) {
+      this.entries.put(UPC, new Entry(null, System.nanoTime(), this.invalidations.incrementAndGet()));
+      if (this.entries.size() > this.maximumSize) {
+         trim();
+      }
+   }
+
+   /** Drops every product, and keeps reads that started before now from caching any. */
+   public void invalidateAll() {
+      raiseFloor(this.invalidations.incrementAndGet());
+      this.entries.clear();
+   }
+
+   /**
+    * Drops the expired entries and then, if the cache is still too big, the oldest ones.
+    * Only one thread trims at a time; the others carry on without waiting.
+    */
+   private void trim() {
+      if (!this.trimming.tryLock()) {
+         return;
+      }
+      try {
+         trimLocked();
+      } finally {
+         this.trimming.unlock();
+      }
+   }
+
+   private void trimLocked() {
+      if (this.entries.size() <= this.maximumSize) {
+         return;
+      }
+      long now = System.nanoTime();
+      List<Map.Entry<String, Entry>> live = new ArrayList<>(this.entries.size());
+      for (Map.Entry<String, Entry> next : this.entries.entrySet()) {
+         if (isExpired(next.getValue(), now)) {
+            evict(next.getKey(), next.getValue());
+         } else {
+            live.add(next);
+         }
+      }
+
+      int excess = live.size() - (int) (this.maximumSize * TRIM_TO);
+      if (excess > 0) {
+         live.sort((a, b) -> Long.compare(a.getValue().loadedAt, b.getValue().loadedAt));
+         for (int i = 0; i < excess; i++) {
+            evict(live.get(i).getKey(), live.get(i).getValue());
+         }
+      }
+   }
+
+   private void evict(String UPC, Entry entry) {
+      raiseFloor(entry.stamp);
+      if (this.entries.remove(UPC, entry)) {
+         this.evictions.increment();
+      }
+   }
+
+   private void raiseFloor(long stamp) {
+      this.floor.accumulateAndGet(stamp, Math::max);
+   }
+
+   private boolean isExpired(Entry entry, long now) {
+      return now - entry.loadedAt > this.timeToLiveNanos;
+   }
+
+   /** @return The number of lookups that were answered from the cache. */
+   public long getHits() {
+      return this.hits.sum();
+   }
+
+   /** @return The number of lookups that had to go to the database. */
+   public long getMisses() {
+      return this.misses.sum();
+   }
+
+   /** @return The number of entries dropped for age or size.  Invalidations are not counted. */
+   public long getEvictions() {
+      return this.evictions.sum();
+   }
+
+   /** @return The number of products currently cached, with the markers of recently invalidated ones. */
+   public int size() {
+      return this.entries.size();
+   }
+
+   @Override
+   public String toString() {
+      return "ProductCache- Size: " + size() + ", Hits: " + getHits() + ", Misses: " + getMisses() +
+              ", Evictions: " + getEvictions();
+   }
+}
@@ -0,0 +1,106 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.sessions.AbstractRecord;
+import org.eclipse.persistence.internal.sessions.AbstractSession;
+import org.eclipse.persistence.queries.DatabaseQuery;
+import org.eclipse.persistence.queries.ReadObjectQuery;
+import org.eclipse.persistence.sessions.Record;
+import org.eclipse.persistence.sessions.SessionProfiler;
+import org.eclipse.persistence.sessions.SessionProfilerAdapter;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An EclipseLink profiler that times the queries the session runs into Instrumentation's statistics for
+ * them.  A query that runs others, such as a find that loads a relationship, counts their time as well as
+ * its own.
+ * <p>
+ * A find whose object is already in the cache is not timed.  It is answered in about the time that the
+ * clock reads and the recording would take, so timing it would nearly double what it costs; the OrderService
+ * operation that ran it is timed anyway.  Finds that go to the database, and every other query, whether it
+ * is answered from the cache or not, are timed.
+ * </p>
+ * <p>
+ * EclipseLink calls the profiler for the rest of its work too; those calls are left as the adapter's
+ * no-ops, and the profile weight is kept at NORMAL so that they stay few.
+ * </p>
+ */
+public class QueryProfiler extends SessionProfilerAdapter {
+   /** Statistics of the named queries, by name, so that finding them costs no string building. */
+   private final Map<String, LatencyStats> named = new ConcurrentHashMap<>();
+
+   /** Statistics of the queries without a name, by the kind of query and then its entity. */
+   private final Map<Class<?>, Map<Class<?>, LatencyStats>> unnamed = new ConcurrentHashMap<>();
+
+   @Override
+   public Object profileExecutionOfQuery(DatabaseQuery query, Record row, AbstractSession session) {
+      if (!Instrumentation.isEnabled() || isCachedFind(query, session)) {
+         return session.internalExecuteQuery(query, (AbstractRecord) row);
+      }
+      LatencyStats stats = statsOf(query);
+      long start = System.nanoTime();
+      boolean failed = true;
+      try {
+         Object result = session.internalExecuteQuery(query, (AbstractRecord) row);
+         failed = false;
+         return result;
+      } finally {
+         stats.recordSince(start, failed);
+      }
+   }
+
+   @Override
+   public int getProfileWeight() {
+      return SessionProfiler.NORMAL;
+   }
+
+   /**
+    * @return     True if the query reads one object by its primary key, as a find does, and the object is in
+    *             the cache that the query will look in, so that the query will not go to the database.
+    */
+   private static boolean isCachedFind(DatabaseQuery query, AbstractSession session) {
+      if (!query.isReadObjectQuery()) {
+         return false;
+      }
+      ReadObjectQuery read = (ReadObjectQuery) query;
+      Object id = read.getSelectionId();
+      ClassDescriptor descriptor = read.getDescriptor();
+      if (id == null || descriptor == null || read.shouldRefreshIdentityMapResult() || read.isLockQuery() ||
+              descriptor.shouldDisableCacheHits()) {
+         return false;
+      }
+      return session.getParentIdentityMapSession(descriptor, false, true).getIdentityMapAccessorInstance()
+              .containsObjectInIdentityMap(id, descriptor.getJavaClass(), descriptor);
+   }
+
+   private LatencyStats statsOf(DatabaseQuery query) {
+      String name = query.getName();
+      if (name != null && !name.isEmpty()) {
+         LatencyStats stats = this.named.get(name);
+         return stats != null ? stats : this.named.computeIfAbsent(name, Instrumentation::query);
+      }
+      Class<?> entity = query.getReferenceClass() != null ? query.getReferenceClass() : Void.class;
+      Map<Class<?>, LatencyStats> byEntity = this.unnamed.get(query.getClass());
+      if (byEntity == null) {
+         byEntity = this.unnamed.computeIfAbsent(query.getClass(), kind -> new ConcurrentHashMap<>());
+      }
+      LatencyStats stats = byEntity.get(entity);
+      return stats != null ? stats : byEntity.computeIfAbsent(entity, type ->
+              Instrumentation.query(query.getClass().getSimpleName() +
+                      (type == Void.class ? "" : " " + type.getSimpleName())));
+   }
+}
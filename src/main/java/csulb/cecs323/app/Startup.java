@@ -0,0 +1,314 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Persistence;
+
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.descriptors.ClassDescriptor;
+import org.eclipse.persistence.internal.helper.DatabaseField;
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.eclipse.persistence.sequencing.Sequence;
+import org.eclipse.persistence.sequencing.TableSequence;
+import org.eclipse.persistence.sessions.server.Server;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Opens the CustomerOrders persistence unit for the profile that the application is being run in.
+ * <p>
+ * The development profile, the default, uses persistence.xml as it is: every launch drops the tables,
+ * creates them again and loads the sample data.  The production profile, chosen with
+ * -Dcustomerorders.profile=production, keeps the data that is already in the database.  The schema is not
+ * generated; it is checked against the entities instead, so that a missing table or column is reported at
+ * startup rather than by the first query that needs it.  The entity classes are expected to have been
+ * woven by the Maven build, so EclipseLink does not look for a weaving agent.
+ * </p>
+ * <p>
+ * In either profile, javax.persistence.* and eclipselink.* system properties override the settings in
+ * persistence.xml and in the profile.
+ * </p>
+ * <p>
+ * Several JVMs can share one database and keep their shared caches in step by turning on RMI cache
+ * coordination with eclipselink.cache.coordination.* system properties (see the README).  EclipseLink
+ * expects an RMI registry at the eclipselink.cache.coordination.rmi.url of each JVM, so one is started here
+ * if there is not one already.
+ * </p>
+ * <p>
+ * In the production profile, -Dcustomerorders.journal=DIRECTORY turns on write-behind ordering with an
+ * order journal in that directory, and -Dcustomerorders.journal.sync=true makes each order wait for its
+ * journal record to reach the disk.
+ * </p>
+ * <p>
+ * In either profile, -Dcustomerorders.stats.file=FILE writes the Instrumentation statistics to that file
+ * when the application ends.
+ * </p>
+ */
+public final class Startup {
+   private static final Logger LOGGER = Logger.getLogger(Startup.class.getName());
+
+   /** The system property that chooses the profile. */
+   public static final String PROFILE_PROPERTY = "customerorders.profile";
+
+   public static final String DEVELOPMENT = "development";
+   public static final String PRODUCTION = "production";
+
+   /** The system property that turns on write-behind ordering.  It names the directory of the order journal. */
+   public static final String JOURNAL_PROPERTY = "customerorders.journal";
+
+   /** The system property that makes placing an order wait for its journal record to be forced to disk. */
+   public static final String JOURNAL_SYNC_PROPERTY = "customerorders.journal.sync";
+
+   /** The system property naming the file that the latency statistics are written to when the application ends. */
+   public static final String STATS_FILE_PROPERTY = "customerorders.stats.file";
+
+   /** The name of the persistence unit in persistence.xml. */
+   public static final String PERSISTENCE_UNIT = "CustomerOrders";
+
+   /** Whether logReady has been called yet. */
+   private static final AtomicBoolean READY = new AtomicBoolean();
+
+   /** The RMI registry started for cache coordination, held so that it lives as long as the JVM. */
+   private static Registry registry;
+
+   private Startup() {}
+
+   /** @return The profile the application is running in, development unless the system property says otherwise. */
+   public static String getProfile() {
+      return System.getProperty(PROFILE_PROPERTY, DEVELOPMENT).trim().toLowerCase(Locale.ROOT);
+   }
+
+   /** @return True if the application is running against a database whose data must be kept. */
+   public static boolean isProduction() {
+      return PRODUCTION.equals(getProfile());
+   }
+
+   /**
+    * @return     The directory of the order journal, or null to place orders synchronously.  The journal is
+    *             only used in the production profile: the development profile drops the tables it would
+    *             replay its orders into.
+    */
+   public static Path getJournalDirectory() {
+      String directory = System.getProperty(JOURNAL_PROPERTY);
+      if (directory == null || directory.trim().isEmpty()) {
+         return null;
+      }
+      if (!isProduction()) {
+         LOGGER.warning("Ignoring " + JOURNAL_PROPERTY + " in the " + getProfile() + " profile; orders are " +
+                 "placed synchronously");
+         return null;
+      }
+      return Paths.get(directory.trim());
+   }
+
+   /** @return True if placing an order should wait for its journal record to be forced to disk. */
+   public static boolean isJournalSynced() {
+      return Boolean.getBoolean(JOURNAL_SYNC_PROPERTY);
+   }
+
+   /**
+    * Writes the Instrumentation statistics to the file named by the system property, if there is one.  A
+    * file that cannot be written is logged rather than thrown, so that it does not hide how the run went.
+    */
+   public static void dumpStatistics() {
+      String file = System.getProperty(STATS_FILE_PROPERTY);
+      if (file == null || file.trim().isEmpty()) {
+         return;
+      }
+      try {
+         Instrumentation.dump(Paths.get(file.trim()));
+         LOGGER.info("Wrote the latency statistics to " + file.trim());
+      } catch (IOException e) {
+         LOGGER.log(Level.WARNING, "Could not write the latency statistics to " + file.trim(), e);
+      }
+   }
+
+   /**
+    * @return     The properties that override persistence.xml: the profile's settings, then any
+    *             javax.persistence.* or eclipselink.* system properties.
+    */
+   public static Map<String, Object> getOverrides() {
+      Map<String, Object> overrides = new HashMap<>();
+      if (isProduction()) {
+         overrides.put(PersistenceUnitProperties.SCHEMA_GENERATION_DATABASE_ACTION,
+                 PersistenceUnitProperties.SCHEMA_GENERATION_NONE_ACTION);
+         overrides.put(PersistenceUnitProperties.WEAVING, "static");
+      }
+      for (String name : System.getProperties().stringPropertyNames()) {
+         if (name.startsWith("javax.persistence.") || name.startsWith("eclipselink.")) {
+            overrides.put(name, System.getProperty(name));
+         }
+      }
+      return overrides;
+   }
+
+   /**
+    * Opens the persistence unit and deploys it straight away, rather than at the first query, so that any
+    * problem with the database shows up here.  In the production profile the schema is validated.
+    * @return     The EntityManagerFactory for the persistence unit.
+    * @throws IllegalStateException  if the schema does not have the tables and columns the entities need.
+    */
+   public static EntityManagerFactory createEntityManagerFactory() {
+      long start = System.nanoTime();
+      Map<String, Object> overrides = getOverrides();
+      startRmiRegistry(overrides);
+      EntityManagerFactory factory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, overrides);
+      try {
+         EntityManager manager = factory.createEntityManager();
+         try {
+            if (isProduction()) {
+               List<String> problems = validateSchema(manager);
+               if (!problems.isEmpty()) {
+                  throw new IllegalStateException("The database schema does not match the entities: " +
+                          String.join("; ", problems));
+               }
+            }
+         } finally {
+            manager.close();
+         }
+      } catch (RuntimeException e) {
+         factory.close();
+         throw e;
+      }
+      LOGGER.info(String.format("Persistence unit ready in %d ms (%s profile)",
+              (System.nanoTime() - start) / 1_000_000, getProfile()));
+      return factory;
+   }
+
+   /**
+    * Starts an RMI registry on the port of eclipselink.cache.coordination.rmi.url, if RMI cache coordination
+    * is on and is using RMI as its naming service.  If something is already listening there, such as a
+    * registry shared by several JVMs on the host, it is used instead.
+    * @param overrides  The properties the persistence unit is being opened with.
+    */
+   private static synchronized void startRmiRegistry(Map<String, Object> overrides) {
+      Object url = overrides.get(PersistenceUnitProperties.COORDINATION_RMI_URL);
+      if (registry != null || url == null ||
+              !"rmi".equals(overrides.get(PersistenceUnitProperties.COORDINATION_PROTOCOL)) ||
+              !"rmi".equals(overrides.get(PersistenceUnitProperties.COORDINATION_NAMING_SERVICE))) {
+         return;
+      }
+      int port = URI.create(url.toString()).getPort();
+      try {
+         registry = LocateRegistry.createRegistry(port < 0 ? Registry.REGISTRY_PORT : port);
+         LOGGER.info("Started an RMI registry for cache coordination at " + url);
+      } catch (RemoteException e) {
+         LOGGER.info("Using the RMI registry that is already at " + url + " for cache coordination");
+      }
+   }
+
+   /**
+    * Checks that every table and column that the entities and their table sequences map to is in the
+    * database.  Column types are not checked.
+    * @param manager    An EntityManager of the persistence unit to check.
+    * @return           A description of each missing table or column.  Empty if nothing is missing.
+    */
+   public static List<String> validateSchema(EntityManager manager) {
+      Server session = JpaHelper.getServerSession(manager.getEntityManagerFactory());
+      Map<String, Set<String>> expected = new TreeMap<>();
+      for (ClassDescriptor descriptor : session.getDescriptors().values()) {
+         if (descriptor.isAggregateDescriptor()) {
+            continue;
+         }
+         for (DatabaseField field : descriptor.getFields()) {
+            expected.computeIfAbsent(field.getTableName().toUpperCase(Locale.ROOT), table -> new TreeSet<>())
+                    .add(field.getName().toUpperCase(Locale.ROOT));
+         }
+      }
+      // getSequences is a raw Map, so its values are cast one by one rather than copied unchecked.
+      List<Sequence> sequences = new ArrayList<>();
+      for (Object sequence : session.getDatasourcePlatform().getSequences().values()) {
+         sequences.add((Sequence) sequence);
+      }
+      sequences.add(session.getDatasourcePlatform().getDefaultSequence());
+      for (Sequence sequence : sequences) {
+         // The default sequence has no table when every entity names a generator of its own.
+         if (sequence instanceof TableSequence && !((TableSequence) sequence).getTableName().isEmpty()) {
+            TableSequence table = (TableSequence) sequence;
+            Set<String> columns = expected.computeIfAbsent(table.getTableName().toUpperCase(Locale.ROOT),
+                    name -> new TreeSet<>());
+            columns.add(table.getNameFieldName().toUpperCase(Locale.ROOT));
+            columns.add(table.getCounterFieldName().toUpperCase(Locale.ROOT));
+         }
+      }
+
+      List<String> problems = new ArrayList<>();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         // EclipseLink only hands out its connection inside a transaction.
+         tx.begin();
+         DatabaseMetaData metaData = manager.unwrap(Connection.class).getMetaData();
+         for (Map.Entry<String, Set<String>> table : expected.entrySet()) {
+            Set<String> actual = new TreeSet<>();
+            try (ResultSet columns = metaData.getColumns(null, null, table.getKey(), null)) {
+               while (columns.next()) {
+                  actual.add(columns.getString("COLUMN_NAME").toUpperCase(Locale.ROOT));
+               }
+            }
+            if (actual.isEmpty()) {
+               problems.add("table " + table.getKey() + " is missing");
+               continue;
+            }
+            for (String column : table.getValue()) {
+               if (!actual.contains(column)) {
+                  problems.add("column " + table.getKey() + "." + column + " is missing");
+               }
+            }
+         }
+      } catch (SQLException e) {
+         throw new IllegalStateException("Could not read the database schema", e);
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+      }
+      return problems;
+   }
+
+   /**
+    * Logs how long it has been since the JVM started, the first time it is called.  The application calls
+    * this once it has served its first request, so the log shows the full startup cost.
+    * @param what    What has just been served, for the log message.
+    */
+   public static void logReady(String what) {
+      if (READY.compareAndSet(false, true)) {
+         LOGGER.info(String.format("Served %s %d ms after JVM start (%s profile)",
+                 what, ManagementFactory.getRuntimeMXBean().getUptime(), getProfile()));
+      }
+   }
+}
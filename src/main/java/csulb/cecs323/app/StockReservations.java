@@ -0,0 +1,525 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Products;
+import csulb.cecs323.model.Reservations;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Holds stock for open carts, so that what a shopper has put in a cart is still there when the order is
+ * placed.
+ * <p>
+ * A hold is counted against the product in PRODUCTS.units_held by the same kind of conditional UPDATE that
+ * InventoryEngine takes stock with, so two carts, or a cart and an order, cannot both have the last units,
+ * whichever JVM they are in.  Each hold is also a row of RESERVATIONS that says which cart has it and when
+ * it runs out.  A hold ends in one of three ways, each of which deletes the row and gives the units back
+ * in the same transaction: the order is placed and the units are taken out of stock (take), the cart is
+ * aborted (release), or the hold expires and a background sweeper gives it back.  Only the transaction
+ * that deletes the row gives the units back, so a hold is never released twice when these race.
+ * </p>
+ * <p>
+ * Holding more for a cart renews all of its holds, so the time to live counts from the cart's last
+ * activity.  The sweeper reads the expired rows through their index, so it also frees the holds of carts
+ * in JVMs that went away.  JVMs that share a database should have their clocks in step.
+ * </p>
+ * <p>
+ * The carts of this JVM and what they hold are also kept in memory, for the statistics published over JMX
+ * under csulb.cecs323:type=StockReservations.  The database is what decides.
+ * </p>
+ */
+public class StockReservations implements StockReservationsMBean, AutoCloseable {
+   private static final Logger LOGGER = Logger.getLogger(StockReservations.class.getName());
+
+   /** How many expired holds the sweeper reads at a time. */
+   private static final int SWEEP_BATCH = 500;
+
+   /** The instance whose statistics are published over JMX: the one created last. */
+   private static final AtomicReference<StockReservations> PUBLISHED = new AtomicReference<>();
+
+   /** Gives each hold, release and sweep its own EntityManager, and runs its transaction with retries. */
+   private final UnitOfWork unitOfWork;
+
+   /** How long a hold lasts after its cart last held something, in milliseconds. */
+   private final long timeToLiveMillis;
+
+   /** The carts of this JVM that hold stock, by cart id. */
+   private final ConcurrentHashMap<String, CartHolds> carts = new ConcurrentHashMap<>();
+
+   private final AtomicLong heldUnits = new AtomicLong();
+   private final AtomicLong holdCount = new AtomicLong();
+   private final AtomicLong shortHolds = new AtomicLong();
+   private final AtomicLong convertedUnits = new AtomicLong();
+   private final AtomicLong releasedUnits = new AtomicLong();
+   private final AtomicLong expiredUnits = new AtomicLong();
+
+   /** How often the sweeper runs, in milliseconds. */
+   private final long sweepIntervalMillis;
+   private final ScheduledExecutorService sweeper;
+   private final AtomicBoolean started = new AtomicBoolean();
+   /** Set by close, so that a sweep in progress stops after the batch it is on. */
+   private volatile boolean closed;
+
+   /**
+    * What one cart holds.  Only changed inside ConcurrentHashMap.compute on the cart's id.
+    */
+   private static class CartHolds {
+      /** Units held by UPC. */
+      private final Map<String, Integer> units = new HashMap<>();
+      /** When the holds run out, as written to RESERVATIONS. */
+      private LocalDateTime expires;
+
+      private int total() {
+         int total = 0;
+         for (int quantity : units.values()) {
+            total += quantity;
+         }
+         return total;
+      }
+   }
+
+   /**
+    * The sweeper does not run until start is called, so that whoever owns the holds, such as the order writer
+    * replaying its journal, can take the ones it needs before any is given back.
+    * @param factory       Where the holds are kept.
+    * @param timeToLive    How long a hold lasts after its cart last held something.
+    * @param sweepInterval How often expired holds are given back.  A hold can outlive its time by this much.
+    * @param unit          The unit of timeToLive and sweepInterval.
+    */
+   public StockReservations(EntityManagerFactory factory, long timeToLive, long sweepInterval, TimeUnit unit) {
+      if (timeToLive <= 0 || sweepInterval <= 0) {
+         throw new IllegalArgumentException("timeToLive and sweepInterval must be positive");
+      }
+      this.unitOfWork = new UnitOfWork(factory);
+      this.timeToLiveMillis = unit.toMillis(timeToLive);
+      this.sweepIntervalMillis = unit.toMillis(sweepInterval);
+      this.sweeper = Executors.newSingleThreadScheduledExecutor(task -> {
+         Thread thread = new Thread(task, "stock-reservation-sweeper");
+         thread.setDaemon(true);
+         return thread;
+      });
+      publish(this);
+   }
+
+   /**
+    * Starts the sweeper.  It runs straight away, to give back holds that ran out while nothing was running,
+    * and then every sweepInterval.  OrderService calls this once it is ready.  Calling it again does nothing.
+    */
+   public void start() {
+      if (this.started.compareAndSet(false, true)) {
+         this.sweeper.scheduleWithFixedDelay(this::sweepQuietly, 0, this.sweepIntervalMillis, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Holds up to quantity units of a product for a cart, as many as are on hand and not already held, and
+    * renews the cart's other holds.  Holding a product that the cart already holds adds to the hold.
+    * @param cartId        The cart, see Cart.getId.
+    * @param UPC           The product to hold.
+    * @param quantity      How many more units the cart wants.
+    * @return              How many of the units are now held.
+    */
+   public InventoryEngine.FillResult hold(String cartId, String UPC, int quantity) {
+      if (quantity <= 0) {
+         return new InventoryEngine.FillResult(UPC, quantity, 0);
+      }
+      LocalDateTime expires = LocalDateTime.now().plus(this.timeToLiveMillis, ChronoUnit.MILLIS);
+      InventoryEngine.FillResult result = this.unitOfWork.inTransaction(manager -> {
+         manager.createNamedQuery("RenewReservations")
+                 .setParameter("expires", expires)
+                 .setParameter("cartId", cartId)
+                 .executeUpdate();
+         InventoryEngine.FillResult held = new InventoryEngine(manager).holdUpTo(UPC, quantity);
+         if (held.getFilled() > 0) {
+            int added = manager.createNamedQuery("AddToReservation")
+                    .setParameter("quantity", held.getFilled())
+                    .setParameter("cartId", cartId)
+                    .setParameter("upc", UPC)
+                    .executeUpdate();
+            if (added == 0) {
+               manager.persist(new Reservations(cartId, UPC, held.getFilled(), expires));
+            }
+         }
+         return held;
+      });
+
+      this.holdCount.incrementAndGet();
+      if (!result.isComplete()) {
+         this.shortHolds.incrementAndGet();
+      }
+      int filled = result.getFilled();
+      this.carts.compute(cartId, (id, holds) -> {
+         if (holds == null) {
+            holds = new CartHolds();
+         }
+         holds.expires = expires;
+         if (filled > 0) {
+            holds.units.merge(UPC, filled, Integer::sum);
+            this.heldUnits.addAndGet(filled);
+         }
+         return holds;
+      });
+      return result;
+   }
+
+   /**
+    * Gives back everything a cart holds.
+    * @param cartId        The cart, see Cart.getId.
+    */
+   public void release(String cartId) {
+      int released = this.unitOfWork.inTransaction(manager -> {
+         int units = 0;
+         InventoryEngine inventory = new InventoryEngine(manager);
+         List<Object[]> holds = manager.createNamedQuery("CartReservations", Object[].class)
+                 .setParameter("cartId", cartId)
+                 .getResultList();
+         for (Object[] hold : holds) {
+            String UPC = (String) hold[0];
+            int quantity = ((Number) hold[1]).intValue();
+            if (delete(manager, cartId, UPC) == 1) {
+               inventory.release(UPC, quantity);
+               units += quantity;
+            }
+         }
+         return units;
+      });
+      this.releasedUnits.addAndGet(released);
+      forget(cartId);
+   }
+
+   /**
+    * Ends a cart's hold on a product by taking up to wanted units of it out of stock.  Anything held over
+    * what is wanted is given back.  This runs in the caller's transaction, which must be the one that
+    * persists the order; once it commits, call placed.
+    * @param manager       The EntityManager of the transaction.
+    * @param inventory     The InventoryEngine of the same transaction.
+    * @param cartId        The cart, see Cart.getId.
+    * @param UPC           The product.
+    * @param wanted        How many units the order is for.
+    * @return              The units that were held as the requested count, and how many of them were taken
+    *                      as the filled count.  Both are 0 if the cart held none, for instance because its
+    *                      hold expired and was swept; the caller must find the units elsewhere.
+    */
+   public InventoryEngine.FillResult take(EntityManager manager, InventoryEngine inventory, String cartId,
+                                          String UPC, int wanted) {
+      List<Integer> held = manager.createNamedQuery("HeldQuantity", Integer.class)
+              .setParameter("cartId", cartId)
+              .setParameter("upc", UPC)
+              .getResultList();
+      if (held.isEmpty() || delete(manager, cartId, UPC) == 0) {
+         return new InventoryEngine.FillResult(UPC, 0, 0);
+      }
+      int units = held.get(0);
+      int taken = Math.min(units, Math.max(wanted, 0));
+      inventory.takeHeld(UPC, taken, units);
+      return new InventoryEngine.FillResult(UPC, units, taken);
+   }
+
+   /**
+    * Records the holds that an order took, once the order has committed, and gives back anything else the
+    * cart still holds.
+    * @param cartId        The cart, see Cart.getId.
+    * @param taken         What take returned for each line of the order.
+    */
+   public void placed(String cartId, List<InventoryEngine.FillResult> taken) {
+      int converted = 0;
+      int released = 0;
+      for (InventoryEngine.FillResult result : taken) {
+         converted += result.getFilled();
+         released += result.getRequested() - result.getFilled();
+      }
+      this.convertedUnits.addAndGet(converted);
+      this.releasedUnits.addAndGet(released);
+      CartHolds left = forget(cartId);
+      if (left == null) {
+         return;
+      }
+      Set<String> ended = new HashSet<>();
+      for (InventoryEngine.FillResult result : taken) {
+         ended.add(result.getUPC());
+      }
+      // The shopper took something out of the cart that was still held.
+      if (!ended.containsAll(left.units.keySet())) {
+         release(cartId);
+      }
+   }
+
+   /**
+    * Checks, from memory, whether a cart of this JVM holds enough of every product for an order and its
+    * holds have not run out.  The sweeper could still give the holds back before the order takes them, unless
+    * they are pinned.
+    * @param cartId        The cart, see Cart.getId.
+    * @param units         The units of each product the order is for, by UPC.
+    * @return              True if the cart holds them all.
+    */
+   public boolean holdsAll(String cartId, Map<String, Integer> units) {
+      LocalDateTime now = LocalDateTime.now();
+      boolean[] holds = {false};
+      this.carts.computeIfPresent(cartId, (id, cart) -> {
+         boolean enough = cart.expires.isAfter(now);
+         for (Map.Entry<String, Integer> wanted : units.entrySet()) {
+            enough &= cart.units.getOrDefault(wanted.getKey(), 0) >= wanted.getValue();
+         }
+         holds[0] = enough;
+         return cart;
+      });
+      return holds[0];
+   }
+
+   /**
+    * Keeps a cart's holds on an order's products from being swept until the order writer has taken them,
+    * by moving their expiry on to timeToLive from now, in one transaction.  Nothing is pinned unless every
+    * product is held in the database, unexpired, for at least the units the order is for.  Holding more for
+    * the cart afterwards would renew the holds to the usual time to live again, so call this only once the
+    * cart is finished with.
+    * @param cartId        The cart, see Cart.getId.
+    * @param units         The units of each product the order is for, by UPC.
+    * @param timeToLive    How long the holds are to last.  It should be well past how long the writer can
+    *                      fall behind.
+    * @param unit          The unit of timeToLive.
+    * @return              True if every hold was pinned, false if none was.
+    */
+   public boolean pin(String cartId, Map<String, Integer> units, long timeToLive, TimeUnit unit) {
+      LocalDateTime now = LocalDateTime.now();
+      LocalDateTime expires = now.plus(unit.toMillis(timeToLive), ChronoUnit.MILLIS);
+      boolean pinned = this.unitOfWork.inTransaction(manager -> {
+         for (Map.Entry<String, Integer> wanted : units.entrySet()) {
+            int updated = manager.createNamedQuery("PinReservation")
+                    .setParameter("expires", expires)
+                    .setParameter("cartId", cartId)
+                    .setParameter("upc", wanted.getKey())
+                    .setParameter("quantity", wanted.getValue())
+                    .setParameter("now", now)
+                    .executeUpdate();
+            if (updated == 0) {
+               manager.getTransaction().setRollbackOnly();
+               return false;
+            }
+         }
+         return true;
+      });
+      if (pinned) {
+         this.carts.computeIfPresent(cartId, (id, holds) -> {
+            holds.expires = expires;
+            return holds;
+         });
+      }
+      return pinned;
+   }
+
+   /**
+    * Gives back every hold that has expired, in any JVM.  The sweeper calls this; it is public so that a
+    * sweep can be forced.
+    * @return              The number of units given back.
+    */
+   public long sweep() {
+      LocalDateTime now = LocalDateTime.now();
+      long swept = 0;
+      List<Object[]> expired;
+      do {
+         expired = this.unitOfWork.read(manager -> manager.createNamedQuery("ExpiredReservations", Object[].class)
+                 .setParameter("now", now)
+                 .setMaxResults(SWEEP_BATCH)
+                 .getResultList());
+         for (Object[] hold : expired) {
+            swept += releaseExpired((String) hold[0], (String) hold[1], ((Number) hold[2]).intValue(), now);
+         }
+         // Rows that were renewed or taken meanwhile are left alone, and no longer match, so this ends.
+      } while (expired.size() == SWEEP_BATCH && !this.closed);
+
+      // Carts of this JVM whose holds ran out, whichever JVM's sweeper gave them back.
+      for (String cartId : this.carts.keySet()) {
+         this.carts.computeIfPresent(cartId, (id, holds) -> {
+            if (holds.expires.isAfter(now)) {
+               return holds;
+            }
+            this.heldUnits.addAndGet(-holds.total());
+            return null;
+         });
+      }
+      this.expiredUnits.addAndGet(swept);
+      if (swept > 0) {
+         LOGGER.fine("Gave back " + swept + " units of expired holds");
+      }
+      return swept;
+   }
+
+   /**
+    * Stops the sweeper.  A sweep that is under way finishes the batch it is on: interrupting it instead would
+    * make embedded Derby close the connection under it.  Holds that are left are given back when they expire
+    * by any JVM's sweeper.
+    */
+   @Override
+   public void close() {
+      this.closed = true;
+      this.sweeper.shutdown();
+      try {
+         this.sweeper.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      if (PUBLISHED.compareAndSet(this, null)) {
+         publish(null);
+      }
+   }
+
+   @Override
+   public int getOpenCarts() {
+      return this.carts.size();
+   }
+
+   @Override
+   public long getHeldUnits() {
+      return this.heldUnits.get();
+   }
+
+   @Override
+   public long getHoldCount() {
+      return this.holdCount.get();
+   }
+
+   @Override
+   public long getShortHolds() {
+      return this.shortHolds.get();
+   }
+
+   @Override
+   public long getConvertedUnits() {
+      return this.convertedUnits.get();
+   }
+
+   @Override
+   public long getReleasedUnits() {
+      return this.releasedUnits.get();
+   }
+
+   @Override
+   public long getExpiredUnits() {
+      return this.expiredUnits.get();
+   }
+
+   @Override
+   public int getHeld(String UPC) {
+      return readProduct(UPC).getUnits_held();
+   }
+
+   @Override
+   public int getAvailable(String UPC) {
+      return readProduct(UPC).getUnits_available();
+   }
+
+   /** Reads a product from the database, not from the cache, whose copy may be older than the last hold. */
+   private Products readProduct(String UPC) {
+      return this.unitOfWork.read(manager ->
+              manager.find(Products.class, UPC, Collections.singletonMap(QueryHints.REFRESH, HintValues.TRUE)));
+   }
+
+   /**
+    * Deletes one hold in the caller's transaction.
+    * @return     1 if this transaction deleted it and so must give its units back, 0 if it was already gone.
+    */
+   private static int delete(EntityManager manager, String cartId, String UPC) {
+      return manager.createNamedQuery("DeleteReservation")
+              .setParameter("cartId", cartId)
+              .setParameter("upc", UPC)
+              .executeUpdate();
+   }
+
+   /**
+    * Gives back one expired hold in a transaction of its own, unless it has been renewed or ended since it
+    * was read.
+    * @return     The units given back.
+    */
+   private int releaseExpired(String cartId, String UPC, int quantity, LocalDateTime now) {
+      return this.unitOfWork.inTransaction(manager -> {
+         int deleted = manager.createNamedQuery("DeleteExpiredReservation")
+                 .setParameter("cartId", cartId)
+                 .setParameter("upc", UPC)
+                 .setParameter("now", now)
+                 .executeUpdate();
+         if (deleted == 1) {
+            new InventoryEngine(manager).release(UPC, quantity);
+         }
+         return deleted == 1 ? quantity : 0;
+      });
+   }
+
+   /** Runs a sweep for the sweeper thread, which would stop for good if a sweep threw. */
+   private void sweepQuietly() {
+      try {
+         sweep();
+      } catch (RuntimeException e) {
+         LOGGER.log(Level.WARNING, "Could not give back expired stock holds", e);
+      }
+   }
+
+   /**
+    * Drops a cart from the in-memory statistics.
+    * @return     What the cart held, or null if it held nothing.
+    */
+   private CartHolds forget(String cartId) {
+      CartHolds holds = this.carts.remove(cartId);
+      if (holds != null) {
+         this.heldUnits.addAndGet(-holds.total());
+      }
+      return holds;
+   }
+
+   /**
+    * Publishes an instance's statistics over JMX.  A second instance in the same JVM takes over the name.
+    * @param reservations  The instance, or null to take the name down.
+    */
+   private static synchronized void publish(StockReservations reservations) {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      try {
+         ObjectName name = new ObjectName("csulb.cecs323:type=StockReservations");
+         if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+         }
+         if (reservations != null) {
+            server.registerMBean(new StandardMBean(reservations, StockReservationsMBean.class), name);
+            PUBLISHED.set(reservations);
+         }
+      } catch (JMException e) {
+         LOGGER.log(Level.WARNING, "Could not register the stock reservations with JMX", e);
+      }
+   }
+}
@@ -0,0 +1,52 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+/**
+ * What StockReservations exposes over JMX, under csulb.cecs323:type=StockReservations.  The counts are for
+ * the carts of this JVM; getHeld and getAvailable read the database, so they cover every JVM.
+ */
+public interface StockReservationsMBean {
+   /** @return Carts holding stock. */
+   int getOpenCarts();
+
+   /** @return Units held for the open carts. */
+   long getHeldUnits();
+
+   /** @return Calls to hold since the service started. */
+   long getHoldCount();
+
+   /** @return Holds that got fewer units than were asked for. */
+   long getShortHolds();
+
+   /** @return Held units that were ordered. */
+   long getConvertedUnits();
+
+   /** @return Held units given back because the cart was aborted, or ordered fewer than it held. */
+   long getReleasedUnits();
+
+   /** @return Held units given back by the sweeper because the cart let them expire, in any JVM. */
+   long getExpiredUnits();
+
+   /**
+    * @param UPC     A product.
+    * @return        Its units held for open carts.
+    */
+   int getHeld(String UPC);
+
+   /**
+    * @param UPC     A product.
+    * @return        Its units on hand that are not held.
+    */
+   int getAvailable(String UPC);
+}
@@ -0,0 +1,236 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PessimisticLockException;
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs a piece of work in an EntityManager of its own, which is closed when the work is done however it
+ * ends, so that nothing the work read or wrote outlives it in a persistence context.  Entities that the work
+ * returns are detached.
+ * <p>
+ * Work in a transaction is committed if it returns and rolled back if it throws or marks the transaction
+ * rollback only.  If it fails in a way that running it again could fix (a deadlock, a lock timeout, an
+ * optimistic lock failure or a transient connection problem), it is run again from the start in a new
+ * EntityManager, after a short randomised wait, up to ATTEMPTS times in all.  Work in a transaction may
+ * therefore run more than once, and must not change anything outside its EntityManager; do that with what
+ * it returns, once it has committed.  Work that cannot help it, such as persisting entities that the caller
+ * made, runs in inTransactionOnce, which is never retried.
+ * </p>
+ * <p>
+ * The counts of EntityManagers open, attempts retried and work that failed are kept for the whole JVM.
+ * </p>
+ */
+public final class UnitOfWork {
+   private static final Logger LOGGER = Logger.getLogger(UnitOfWork.class.getName());
+
+   /** How many times work in a transaction is run before a transient failure is given up on. */
+   public static final int ATTEMPTS = 3;
+
+   /** The wait before the first retry.  It doubles with each one after, and is randomised by half. */
+   public static final long BACKOFF_MILLIS = 20;
+
+   private static final AtomicLong OPEN = new AtomicLong();
+   private static final AtomicLong RETRIES = new AtomicLong();
+   private static final AtomicLong FAILURES = new AtomicLong();
+
+   private final EntityManagerFactory factory;
+
+   /**
+    * @param factory    Where the EntityManagers come from.
+    */
+   public UnitOfWork(EntityManagerFactory factory) {
+      this.factory = factory;
+   }
+
+   /**
+    * Runs work that only reads, outside of a transaction.  Reads are not retried.
+    * @param work       The work, given the EntityManager to use.
+    * @return           What the work returned.
+    */
+   public <T> T read(Function<EntityManager, T> work) {
+      EntityManager manager = open();
+      try {
+         return work.apply(manager);
+      } finally {
+         close(manager);
+      }
+   }
+
+   /**
+    * Runs work in a transaction and commits it, retrying transient failures.
+    * @param work       The work, given the EntityManager of the transaction.
+    * @return           What the work returned on the attempt that committed.
+    */
+   public <T> T inTransaction(Function<EntityManager, T> work) {
+      return inTransaction(null, work);
+   }
+
+   /**
+    * Runs work that returns nothing in a transaction and commits it, retrying transient failures.  It has a
+    * name of its own so that a lambda that could be either this or a Function is never ambiguous.
+    * @param work       The work, given the EntityManager of the transaction.
+    */
+   public void runInTransaction(Consumer<EntityManager> work) {
+      inTransaction(null, manager -> {
+         work.accept(manager);
+         return null;
+      });
+   }
+
+   /**
+    * Runs work in a transaction and commits it, once.  A transient failure is thrown like any other, for the
+    * caller to deal with; use this for work that changes things outside its EntityManager.
+    * @param work       The work, given the EntityManager of the transaction.
+    * @return           What the work returned.
+    */
+   public <T> T inTransactionOnce(Function<EntityManager, T> work) {
+      try {
+         return attempt(null, work);
+      } catch (RuntimeException e) {
+         FAILURES.incrementAndGet();
+         throw e;
+      }
+   }
+
+   /**
+    * Runs work in a transaction and commits it, retrying transient failures, and records how long each
+    * commit took.
+    * @param commits    The statistics to record commits in, or null.
+    * @param work       The work, given the EntityManager of the transaction.
+    * @return           What the work returned on the attempt that committed.
+    */
+   public <T> T inTransaction(LatencyStats commits, Function<EntityManager, T> work) {
+      for (int attempt = 1; ; attempt++) {
+         try {
+            return attempt(commits, work);
+         } catch (RuntimeException e) {
+            if (attempt == ATTEMPTS || !isTransient(e)) {
+               FAILURES.incrementAndGet();
+               throw e;
+            }
+            RETRIES.incrementAndGet();
+            LOGGER.log(Level.FINE, "Retrying after a transient failure, attempt " + attempt, e);
+            backOff(attempt);
+         }
+      }
+   }
+
+   private <T> T attempt(LatencyStats commits, Function<EntityManager, T> work) {
+      EntityManager manager = open();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         T result = work.apply(manager);
+         if (tx.getRollbackOnly()) {
+            tx.rollback();
+         } else if (commits != null) {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+               tx.commit();
+               failed = false;
+            } finally {
+               commits.recordSince(start, failed);
+            }
+         } else {
+            tx.commit();
+         }
+         return result;
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         close(manager);
+      }
+   }
+
+   private EntityManager open() {
+      EntityManager manager = this.factory.createEntityManager();
+      OPEN.incrementAndGet();
+      return manager;
+   }
+
+   private static void close(EntityManager manager) {
+      OPEN.decrementAndGet();
+      manager.close();
+   }
+
+   /**
+    * Waits before a retry, so that the transactions that collided do not collide again straight away.
+    * @param attempt    The attempt that failed, from 1.
+    */
+   private static void backOff(int attempt) {
+      long wait = BACKOFF_MILLIS << (attempt - 1);
+      try {
+         Thread.sleep(wait / 2 + ThreadLocalRandom.current().nextLong(wait / 2 + 1));
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted before retrying", e);
+      }
+   }
+
+   /**
+    * Decides whether running the work again could succeed.
+    * @param failure    What the work, or its commit, threw.
+    * @return           True for lock conflicts and for SQL errors that Derby or the driver say are
+    *                   transient: SQLState class 40 (transaction rollback, which is how Derby reports a
+    *                   deadlock or a lock timeout) or a SQLTransientException.
+    */
+   static boolean isTransient(Throwable failure) {
+      for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+         if (cause instanceof OptimisticLockException || cause instanceof PessimisticLockException ||
+                 cause instanceof LockTimeoutException || cause instanceof SQLTransientException) {
+            return true;
+         }
+         if (cause instanceof SQLException) {
+            String state = ((SQLException) cause).getSQLState();
+            if (state != null && state.startsWith("40")) {
+               return true;
+            }
+         }
+         if (cause.getCause() == cause) {
+            break;
+         }
+      }
+      return false;
+   }
+
+   /** @return The EntityManagers that units of work have open now, in the whole JVM. */
+   public static long getOpenEntityManagers() {
+      return OPEN.get();
+   }
+
+   /** @return How many times work has been run again after a transient failure. */
+   public static long getRetries() {
+      return RETRIES.get();
+   }
+
+   /** @return How many units of work have failed for good, transient or not. */
+   public static long getFailures() {
+      return FAILURES.get();
+   }
+}
@@ -0,0 +1,56 @@
+package csulb.cecs323.model;
+
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/**
+ * What the customer search shows of a customer.  Like ProductSummary, it is filled in by a
+ * constructor expression (the FindCustomersBy queries), so it is never cached, registered
+ * with the persistence context or change tracked.  To order for the customer, get the
+ * Customers entity by its id.
+ */
+public final class CustomerSummary {
+    private final long customer_id;
+    private final String last_name;
+    private final String first_name;
+    private final String phone;
+
+    public CustomerSummary(long customer_id, String last_name, String first_name, String phone) {
+        this.customer_id = customer_id;
+        this.last_name = last_name;
+        this.first_name = first_name;
+        this.phone = phone;
+    }
+
+    public long getCustomer_id() {
+        return customer_id;
+    }
+
+    public String getLast_name() {
+        return last_name;
+    }
+
+    public String getFirst_name() {
+        return first_name;
+    }
+
+    public String getPhone() {
+        return phone;
+    }
+
+    /** The same as Customers.toString, so that the search menu looks the same. */
+    @Override
+    public String toString () {
+        return "Customer- ID: " + this.customer_id + ", Name: " + this.last_name +
+                ", " + this.first_name;
+    }
+}
@@ -1,7 +1,12 @@
 package csulb.cecs323.model;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheCoordinationType;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.QueryHints;
+
 import javax.persistence.*;
-import java.util.Objects;
 /*
  * Licensed under the Academic Free License (AFL 3.0).
  *     http://opensource.org/licenses/AFL-3.0
@@ -14,30 +19,97 @@ import java.util.Objects;
  *
  */
 
-@NamedNativeQuery(
-        name="ReturnCustomers",
-        query = "SELECT * " +
-                "FROM   CUSTOMERS ",
-        resultClass = Customers.class
+// JPQL, like the lookups on Products: parsed once, with named columns and bound parameters.
+@NamedQuery(
+        name = "ReturnCustomers",
+        query = "SELECT c " +
+                "FROM   Customers c"
+)
+
+@NamedQuery(
+        name = "GetCustomer",
+        query = "SELECT c " +
+                "FROM   Customers c " +
+                "WHERE  c.customer_id = :customerId",
+        hints = @QueryHint(name = QueryHints.CACHE_USAGE, value = CacheUsage.CheckCacheByExactPrimaryKey)
+)
+
+// The customer searches.  Each one is backed by one of the indexes declared on the table.
+// They are read a page at a time, so they are prepared with a page size, PAGE_SIZE, as
+// GetInventoryPage is.  Like it, each page starts right after the last customer of the
+// one before, by its sort key, rather than skipping over the earlier ones, so a page
+// deep into the matches costs what the first one does.  The first page starts after
+// empty names and Long.MIN_VALUE.
+// They return CustomerSummary objects, which are all that the search menu needs, so
+// that browsing through pages of customers does not fill the cache with entities.
+@NamedQuery(
+        name = "FindCustomersByPhone",
+        query = "SELECT NEW csulb.cecs323.model.CustomerSummary(" +
+                "           c.customer_id, c.last_name, c.first_name, c.phone) " +
+                "FROM   Customers c " +
+                "WHERE  c.phone = :phone AND c.last_name >= :afterLast AND " +
+                "       (c.last_name > :afterLast OR c.first_name > :afterFirst OR " +
+                "        (c.first_name = :afterFirst AND c.customer_id > :afterId)) " +
+                "ORDER BY c.last_name, c.first_name, c.customer_id",
+        hints = @QueryHint(name = QueryHints.JDBC_MAX_ROWS, value = "" + Customers.PAGE_SIZE)
 )
 
-@NamedNativeQuery(
-        name="GetCustomer",
-        query = "SELECT * " +
-                "FROM CUSTOMERS " +
-                "WHERE customer_id = ?",
-        resultClass = Customers.class
+// A last name prefix, written as a range so that the name index can be used.  The
+// range starts at the last name the previous page ended on, or at the prefix.
+@NamedQuery(
+        name = "FindCustomersByLastNamePrefix",
+        query = "SELECT NEW csulb.cecs323.model.CustomerSummary(" +
+                "           c.customer_id, c.last_name, c.first_name, c.phone) " +
+                "FROM   Customers c " +
+                "WHERE  c.last_name >= :afterLast AND c.last_name < :prefixEnd AND " +
+                "       (c.last_name > :afterLast OR c.first_name > :afterFirst OR " +
+                "        (c.first_name = :afterFirst AND c.customer_id > :afterId)) " +
+                "ORDER BY c.last_name, c.first_name, c.customer_id",
+        hints = @QueryHint(name = QueryHints.JDBC_MAX_ROWS, value = "" + Customers.PAGE_SIZE)
+)
+
+@NamedQuery(
+        name = "FindCustomersByName",
+        query = "SELECT NEW csulb.cecs323.model.CustomerSummary(" +
+                "           c.customer_id, c.last_name, c.first_name, c.phone) " +
+                "FROM   Customers c " +
+                "WHERE  c.last_name = :lastName AND c.first_name = :firstName AND " +
+                "       c.phone >= :afterPhone AND (c.phone > :afterPhone OR c.customer_id > :afterId) " +
+                "ORDER BY c.phone, c.customer_id",
+        hints = @QueryHint(name = QueryHints.JDBC_MAX_ROWS, value = "" + Customers.PAGE_SIZE)
 )
 
 @Entity
 // I could have avoided uniqueConstraints and just done
 // one constraint, but this was more fun.
+// The unique constraint leads with first_name, so it cannot help a search by last
+// name or by phone; those get indexes of their own.  The name index ends with
+// customer_id so that it is already in the order the searches page through.
 @Table( uniqueConstraints = {@UniqueConstraint(columnNames =
-        {"first_name", "last_name", "phone"})})
+        {"first_name", "last_name", "phone"})},
+        indexes = {
+                @Index(name = "CUSTOMERS_LAST_FIRST", columnList = "last_name, first_name, customer_id"),
+                @Index(name = "CUSTOMERS_PHONE", columnList = "phone")})
+// Customers are read on every order but rarely change, so other JVMs are sent the
+// changes and keep their copies warm instead of reading them again.
+@Cache(type = CacheType.SOFT_WEAK, size = 10000, expiry = 30 * 60 * 1000,
+        coordinationType = CacheCoordinationType.SEND_OBJECT_CHANGES)
 /** A person, who has, or might, order products from us. */
 public class Customers {
+    /** The row in the SEQUENCE table that customer ids are allocated from. */
+    public static final String ID_SEQUENCE = "CUSTOMER_ID";
+
+    /** How many customers a page of a search has, which is what the searches are prepared for. */
+    public static final int PAGE_SIZE = 20;
+
+    /** How many customer ids EclipseLink reserves at a time, like Orders.ID_BLOCK_SIZE. */
+    public static final int ID_BLOCK_SIZE = 1000;
+
     @Id
-    @GeneratedValue(strategy=GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "customer_ids")
+    @TableGenerator(name = "customer_ids", table = "SEQUENCE", pkColumnName = "SEQ_NAME",
+            valueColumnName = "SEQ_COUNT", pkColumnValue = ID_SEQUENCE,
+            allocationSize = ID_BLOCK_SIZE)
     /** Surrogate key for customer.  We don't want to
      migrate last name, first name, & phone all over the place.
      */
@@ -121,14 +193,21 @@ public class Customers {
         return "Customer- ID: " + this.customer_id + ", Name: " + this.last_name +
                 ", " + this.first_name;
     }
+    // A customer is who its id says it is, so that the copies of one customer read in
+    // different EntityManagers, or from the shared cache, are equal and hash alike.
     @Override
     public boolean equals (Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof Customers)) {
+            return false;
+        }
         Customers customer = (Customers) o;
-        return this.getCustomer_id() == customer.getCustomer_id();
+        return this.getCustomer_id() != 0 && this.getCustomer_id() == customer.getCustomer_id();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(this.getCustomer_id(), this.getLast_name(), this.getFirst_name());
+        return Long.hashCode(this.getCustomer_id());
     }
 }
@@ -0,0 +1,64 @@
+package csulb.cecs323.model;
+
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.config.CacheIsolationType;
+
+import javax.persistence.*;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/*
+How far the orders in one order journal have been written to the database.
+The row is updated in the same transaction as the orders it covers, so after
+a crash the orders in the journal past applied_sequence are exactly the ones
+still to be written, and replaying the journal never writes an order twice.
+ */
+
+@Entity
+// Read once at startup and then only written by the journal's own writer, which
+// must always see the committed value.
+@Cache(isolation = CacheIsolationType.ISOLATED)
+/** The checkpoint of one order journal. */
+public class JournalCheckpoints {
+    @Id
+    @Column(nullable = false, length = 512)
+    /** The journal, by the absolute path of its directory. */
+    private String journal;
+
+    @Column(nullable = false)
+    /** The sequence number of the last order written to the database. */
+    private long applied_sequence;
+
+    public JournalCheckpoints() {}
+
+    public JournalCheckpoints(String journal, long applied_sequence) {
+        this.journal = journal;
+        this.applied_sequence = applied_sequence;
+    }
+
+    public String getJournal() {
+        return journal;
+    }
+
+    public long getApplied_sequence() {
+        return applied_sequence;
+    }
+
+    public void setApplied_sequence(long applied_sequence) {
+        this.applied_sequence = applied_sequence;
+    }
+
+    @Override
+    public String toString () {
+        return "Journal: " + this.journal + ", Applied through: " + this.applied_sequence;
+    }
+}
@@ -1,5 +1,10 @@
 package csulb.cecs323.model;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheCoordinationType;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.config.QueryHints;
+
 import javax.persistence.*;
 import java.util.Objects;
 /*
@@ -28,16 +33,57 @@ that mean that you would have to explicitly declare the
 association class the way that we are doing here.  It seems to
 me that would be the case.
  */
+// The lines of one order are read with one of the fetch plans below, so that the
+// associations they need come back in the same SELECT instead of one SELECT per line.
+
+// Cart display: product name and price for each line.
+@NamedQuery(
+        name = "OrderLinesForCart",
+        query = "SELECT ol " +
+                "FROM   OrderLines ol JOIN FETCH ol.product " +
+                "WHERE  ol.order.order_id = :orderId " +
+                "ORDER BY ol.product.UPC"
+)
+
+// Full order detail: the order, who placed it and every product on it.  JPQL cannot
+// JOIN FETCH through a JOIN FETCH, so the order's customer is added with a hint.
+@NamedQuery(
+        name = "OrderLinesDetail",
+        query = "SELECT ol " +
+                "FROM   OrderLines ol JOIN FETCH ol.order JOIN FETCH ol.product " +
+                "WHERE  ol.order.order_id = :orderId " +
+                "ORDER BY ol.product.UPC",
+        hints = @QueryHint(name = QueryHints.FETCH, value = "ol.order.customer")
+)
+
+// Order history: the lines of the orders read by OrderHistoryPage, in the same order as
+// those orders.  Reading them by order id is one SELECT for the whole page.
+@NamedQuery(
+        name = "OrderHistoryLines",
+        query = "SELECT ol " +
+                "FROM   OrderLines ol JOIN FETCH ol.order JOIN FETCH ol.product " +
+                "WHERE  ol.order.order_id IN :orderIds " +
+                "ORDER BY ol.order.order_date DESC, ol.order.order_id DESC, ol.product.UPC"
+)
+
 @Entity
 @IdClass(Order_lines_pk.class)
+// The primary key leads with order_id, so it finds the lines of an order.  This index
+// finds the orders of a product.
+@Table(indexes = @Index(name = "ORDERLINES_PRODUCT", columnList = "product_upc"))
+// Cached like Orders, with room for a few lines of each.
+@Cache(type = CacheType.SOFT_WEAK, size = 5000, expiry = 10 * 60 * 1000,
+        coordinationType = CacheCoordinationType.INVALIDATE_CHANGED_OBJECTS)
 /** The occurrence of a single Product within a single Order */
 public class OrderLines {
     @Id
-    @ManyToOne
+    // Both associations are lazy; the named queries above say what to fetch with the lines.
+    @ManyToOne(fetch = FetchType.LAZY)
+    @JoinColumn(name = "order_id", referencedColumnName = "order_id")
     /** The order that this line belongs to. */
     private Orders order;
     @Id
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     /** The product ordered in this line item of the order. */
     private Products product;
     @Column(nullable=false)
@@ -49,9 +95,9 @@ public class OrderLines {
     @Column(nullable = false)
     /** The price of this item FOR THIS ORDER.  The customer might
      have scored a discount from the unit_list_price for this
-     product that is only in effect for this sale.
+     product that is only in effect for this sale.  In US cents.
      */
-    private double unit_sale_price;
+    private long unit_sale_price;
 
     public Orders getOrder() {
         return order;
@@ -77,17 +123,17 @@ public class OrderLines {
         this.quantity = quantity;
     }
 
-    public double getUnit_sale_price() {
+    public long getUnit_sale_price() {
         return unit_sale_price;
     }
 
-    public void setUnit_sale_price(double unit_sale_price) {
+    public void setUnit_sale_price(long unit_sale_price) {
         this.unit_sale_price = unit_sale_price;
     }
 
     public OrderLines(){}
 
-    public OrderLines(Orders orders, Products products, int quantity, double unit_sale_price){
+    public OrderLines(Orders orders, Products products, int quantity, long unit_sale_price){
         this.order = orders;
         this.product = products;
         this.quantity = quantity;
@@ -99,9 +145,10 @@ public class OrderLines {
         return  "Order: " + this.getOrder() +
                 ", Product: " + this.getProduct() +
                 ", Quantity: " + this.getQuantity() +
-                ", Unit Sale Price: " + this.getUnit_sale_price();
+                ", Unit Sale Price in cents: " + this.getUnit_sale_price();
     }
 
+    @Override
     public boolean equals (Object o) {
         boolean results = false;
         if (this == o) {
@@ -110,13 +157,15 @@ public class OrderLines {
             results = false;
         } else {
             OrderLines ol = (OrderLines) o;
+            // Products are compared by UPC: the two lines may hold different copies of one product.
             results = this.getOrder().equals (ol.getOrder()) &&
-                    this.getProduct() == ol.getProduct();
+                    this.getProduct().getUPC().equals(ol.getProduct().getUPC());
         }
         return results;
     }
 
-    public int hasCode () {
-        return Objects.hash(this.getOrder(), this.getProduct());
+    @Override
+    public int hashCode () {
+        return Objects.hash(this.getOrder(), this.getProduct().getUPC());
     }
 }
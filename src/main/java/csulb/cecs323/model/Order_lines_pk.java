@@ -23,25 +23,22 @@ public class Order_lines_pk implements Serializable {
     @Id
     @Column(nullable = false)
     /*
-    This makes perfect sense when you think about it, but it
-    takes getting used to.  The parent Orders class has an
-    Orders_pk class as its primary key, so that's what migrates
-    in to this PK class.  We do not have to worry about the
-    customer_id that comes down from Customers since that is
-    encapsulated in the Orders_pk object.
+    The parent Orders class has a single long surrogate as its
+    primary key, so that is all that migrates in to this PK
+    class.  The customer_id and order_date stay in ORDERS.
      */
     /** The order containing the given product */
-    private Orders_pk order;
+    private long order;
     @Id
     @Column(nullable = false, length = 30)
     /** One product within this one order */
     private String product;
 
-    public Orders_pk getOrder() {
+    public long getOrder() {
         return order;
     }
 
-    public void setOrder(Orders_pk order) {
+    public void setOrder(long order) {
         this.order = order;
     }
 
@@ -62,8 +59,8 @@ public class Order_lines_pk implements Serializable {
             results = false;
         } else {
             Order_lines_pk olpk = (Order_lines_pk) o;
-            results = this.getOrder().equals (olpk.getOrder()) &&
-                    this.getProduct() == olpk.getProduct();
+            results = this.getOrder() == olpk.getOrder() &&
+                    Objects.equals(this.getProduct(), olpk.getProduct());
         }
         return results;
     }
@@ -1,8 +1,11 @@
 package csulb.cecs323.model;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheCoordinationType;
+import org.eclipse.persistence.annotations.CacheType;
+
 import javax.persistence.*;
 import java.time.LocalDateTime;
-import java.util.Objects;
 /*
  * Licensed under the Academic Free License (AFL 3.0).
  *     http://opensource.org/licenses/AFL-3.0
@@ -15,25 +18,74 @@ import java.util.Objects;
  *
  */
 
+// Order summary: the orders of one customer, newest first, with the customer fetched in
+// the same SELECT rather than one at a time as each order's customer is touched.
+@NamedQuery(
+        name = "OrderSummary",
+        query = "SELECT o " +
+                "FROM   Orders o JOIN FETCH o.customer " +
+                "WHERE  o.customer.customer_id = :customerId " +
+                "ORDER BY o.order_date DESC, o.order_id DESC"
+)
+
+// Order history: one page of a customer's orders, newest first, starting after the
+// last order of the previous page.  Two orders can have the same order_date, so the
+// position is the order_date and order_id of that order.  The first condition on
+// order_date is redundant, but gives the index somewhere to start.
+@NamedQuery(
+        name = "OrderHistoryPage",
+        query = "SELECT o " +
+                "FROM   Orders o JOIN FETCH o.customer " +
+                "WHERE  o.customer.customer_id = :customerId AND o.order_date <= :beforeDate AND " +
+                "       (o.order_date < :beforeDate OR o.order_id < :beforeId) " +
+                "ORDER BY o.order_date DESC, o.order_id DESC"
+)
+
 @Entity
-@IdClass(Orders_pk.class)
+// The primary key is order_id, so finding one customer's orders needs an index of its
+// own.  This one is already sorted newest first for the order history.
+@Table(indexes = @Index(name = "ORDERS_CUSTOMER_DATE",
+        columnList = "customer_id, order_date DESC, order_id DESC"))
+// Orders are written once and read back a few times soon after, so only the recent ones
+// are kept.  New orders are not sent to other JVMs; only a changed one is dropped there.
+@Cache(type = CacheType.SOFT_WEAK, size = 1000, expiry = 10 * 60 * 1000,
+        coordinationType = CacheCoordinationType.INVALIDATE_CHANGED_OBJECTS)
 /**
  A request by a Customer for a collection of one or more
  Products.  The Order includes a quantity of each Product
  within the order.
  */
 public class Orders {
+    /** The row in the SEQUENCE table that order ids are allocated from. */
+    public static final String ID_SEQUENCE = "ORDER_ID";
+
+    /**
+     * How many order ids EclipseLink reserves at a time.  Each JVM takes a block of its
+     * own, so placing orders only touches the SEQUENCE table once per block, and a batch
+     * of orders as big as the JDBC batch size needs one trip at most.
+     */
+    public static final int ID_BLOCK_SIZE = 1000;
+
     @Id
-    @ManyToOne
+    @GeneratedValue(strategy = GenerationType.TABLE, generator = "order_ids")
+    @TableGenerator(name = "order_ids", table = "SEQUENCE", pkColumnName = "SEQ_NAME",
+            valueColumnName = "SEQ_COUNT", pkColumnValue = ID_SEQUENCE,
+            allocationSize = ID_BLOCK_SIZE)
+    /** Surrogate key for the order.  It is all that OrderLines has to carry to
+     refer to its order, where the customer and order_date used to be.
+     */
+    private long order_id;
+    // Lazy, so that loading orders does not load every customer too.  Use OrderSummary
+    // when the customer is wanted.  Lazy loading of a to-one needs the classes to be woven.
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
     // I could easily have left the @JoinColumn annotation out
     @JoinColumn(name="customer_id",
-            referencedColumnName = "customer_id")
+            referencedColumnName = "customer_id", nullable = false)
     /** The individual placing the order */
     private Customers customer;
-    @Id
     @Column(nullable=false)
-    /** When they placed it.  This allows us to distinguish
-     one order from another by the same customer.
+    /** When they placed it.  No longer part of the key, so one
+     customer can place two orders in the same clock tick.
      */
     private LocalDateTime order_date;
     // make this just a string for now.  Perhaps recast Customer to "Person" and make soldby
@@ -51,6 +103,14 @@ public class Orders {
         this.sold_by = sold_by;
     }
 
+    public long getOrder_id() {
+        return order_id;
+    }
+
+    public void setOrder_id(long order_id) {
+        this.order_id = order_id;
+    }
+
     public Customers getCustomer() {
         return customer;
     }
@@ -77,19 +137,27 @@ public class Orders {
 
     @Override
     public String toString () {
-        return "Order: Placed by: " + this.getCustomer() + ", On: " + this.getOrder_date() +
+        return "Order: " + this.getOrder_id() + ", Placed by: " + this.getCustomer() + ", On: " + this.getOrder_date() +
                 ", Sold by: " + this.getSold_by();
     }
 
+    // An order is equal to another copy of itself once it has an order_id.  Until then
+    // (a cart that has not been placed) it is only equal to itself.  The hash cannot follow
+    // order_id, which changes when the order is persisted while it (or one of its lines) may
+    // already sit in a hashed collection, so every order shares one hash.
     @Override
     public boolean equals (Object o) {
+        if (this == o) {
+            return true;
+        } else if (!(o instanceof Orders)) {
+            return false;
+        }
         Orders order = (Orders) o;
-        return (this.getCustomer().equals(order.getCustomer()) &&
-                this.getOrder_date() == order.getOrder_date());
+        return this.getOrder_id() != 0 && this.getOrder_id() == order.getOrder_id();
     }
 
     @Override
     public int hashCode () {
-        return Objects.hash(this.getOrder_date(), this.getCustomer());
+        return Orders.class.hashCode();
     }
 }
@@ -0,0 +1,57 @@
+package csulb.cecs323.model;
+
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/**
+ * What the product menu shows of a product.  It is filled in by the GetInventorySummaryPage
+ * constructor expression, so it is not an entity: EclipseLink does not cache it, register it
+ * with the persistence context or track changes to it, and it cannot be changed anyway.
+ * To order the product, get the Products entity by its UPC.
+ */
+public final class ProductSummary {
+    private final String UPC;
+    private final String prod_name;
+    /** Price in US cents. */
+    private final long unit_list_price;
+    /** The units on hand that no open cart is holding. */
+    private final int units_available;
+
+    public ProductSummary(String UPC, String prod_name, long unit_list_price, int units_available) {
+        this.UPC = UPC;
+        this.prod_name = prod_name;
+        this.unit_list_price = unit_list_price;
+        this.units_available = units_available;
+    }
+
+    public String getUPC() {
+        return UPC;
+    }
+
+    public String getProd_name() {
+        return prod_name;
+    }
+
+    public long getUnit_list_price() {
+        return unit_list_price;
+    }
+
+    public int getUnits_available() {
+        return units_available;
+    }
+
+    @Override
+    public String toString () {
+        return "Product- UPC: " + this.UPC + ", Name: " + this.prod_name + ", Price in cents: " +
+                this.unit_list_price + " QTY available: " + this.units_available;
+    }
+}
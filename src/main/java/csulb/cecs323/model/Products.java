@@ -1,5 +1,12 @@
 package csulb.cecs323.model;
 
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.annotations.CacheCoordinationType;
+import org.eclipse.persistence.annotations.CacheType;
+import org.eclipse.persistence.config.CacheUsage;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
 import javax.persistence.*;
 /*
  * Licensed under the Academic Free License (AFL 3.0).
@@ -13,44 +20,114 @@ import javax.persistence.*;
  *
  */
 
-@NamedNativeQuery(
-        name="ReturnProduct",
-        query = "SELECT * " +
-                "FROM   products " +
-                "WHERE  UPC = ? ",
-        resultClass = Products.class
+// The lookups are JPQL, so EclipseLink parses each one once, when the persistence unit
+// is deployed, and names the columns it maps rather than SELECT *.  The parameters are
+// bound, so the SQL is the same on every call and the statement cache can reuse it.
+// Finding one product by its UPC can be answered from the shared cache.
+@NamedQuery(
+        name = "ReturnProduct",
+        query = "SELECT p " +
+                "FROM   Products p " +
+                "WHERE  p.UPC = :upc",
+        hints = @QueryHint(name = QueryHints.CACHE_USAGE, value = CacheUsage.CheckCacheByExactPrimaryKey)
+)
+
+// A range rather than NOT ... = 0, so that the optimizer can treat it as a start key.
+@NamedQuery(
+        name = "GetInventory",
+        query = "SELECT p " +
+                "FROM   Products p " +
+                "WHERE  p.units_in_stock > 0"
 )
 
+// Keyset pagination: each page starts after the last UPC of the one before, which
+// the primary key index can seek to directly.  The query is always read a page at a
+// time, so it is prepared with a page size, PAGE_SIZE; its SQL then ends in OFFSET ?
+// FETCH NEXT ? ROWS, and a call for a page of another size only binds other values
+// instead of making EclipseLink write the SQL again.
+@NamedQuery(
+        name = "GetInventoryPage",
+        query = "SELECT p " +
+                "FROM   Products p " +
+                "WHERE  p.units_in_stock > 0 AND p.UPC > :afterUPC " +
+                "ORDER BY p.UPC",
+        hints = @QueryHint(name = QueryHints.JDBC_MAX_ROWS, value = "" + Products.PAGE_SIZE)
+)
+
+// The same page for the product menu, as ProductSummary objects rather than entities:
+// only the columns the menu shows, and nothing for the persistence context to track.
+// The arithmetic in the select list needs the same hint as StockOnHand below.
+@NamedQuery(
+        name = "GetInventorySummaryPage",
+        query = "SELECT NEW csulb.cecs323.model.ProductSummary(" +
+                "           p.UPC, p.prod_name, p.unit_list_price, p.units_in_stock - p.units_held) " +
+                "FROM   Products p " +
+                "WHERE  p.units_in_stock > 0 AND p.UPC > :afterUPC " +
+                "ORDER BY p.UPC",
+        hints = {@QueryHint(name = QueryHints.JDBC_MAX_ROWS, value = "" + Products.PAGE_SIZE),
+                @QueryHint(name = QueryHints.BIND_PARAMETERS, value = HintValues.TRUE)}
+)
+
+// Stock is only available if no open cart is holding it.  EclipseLink stops binding
+// parameters on Derby when the select list has arithmetic in it, so the UPC would be
+// written into the SQL and Derby would compile it again for every product.
+@NamedQuery(
+        name = "StockOnHand",
+        query = "SELECT p.units_in_stock - p.units_held " +
+                "FROM   Products p " +
+                "WHERE  p.UPC = :upc",
+        hints = @QueryHint(name = QueryHints.BIND_PARAMETERS, value = HintValues.TRUE)
+)
+
+// The stock UPDATEs stay native.  A JPQL bulk UPDATE would invalidate every cached
+// product, where these evict only the one that they changed (see InventoryEngine).
+
+// Decrements the stock only if enough is left that no cart is holding.  The check and
+// the decrement are one statement, so concurrent orders cannot oversell the product.
 @NamedNativeQuery(
-        name="GetInventory",
-        query = "SELECT * " +
-                "FROM   PRODUCTS " +
-                "WHERE NOT units_in_stock = 0"
-        ,
-        resultClass = Products.class
+        name = "ReserveStock",
+        query = "UPDATE products " +
+                "SET    units_in_stock = units_in_stock - ? " +
+                "WHERE  UPC = ? AND units_in_stock - units_held >= ? "
 )
 
+// Holds stock for a cart, in the same way: only if that much is neither sold nor held.
 @NamedNativeQuery(
-        name="CheckInStock",
-        query = "SELECT * " +
-                "FROM   PRODUCTS " +
-                "WHERE  UPC = ? AND units_in_stock >= ? ",
-        resultClass = Products.class
+        name = "HoldStock",
+        query = "UPDATE products " +
+                "SET    units_held = units_held + ? " +
+                "WHERE  UPC = ? AND units_in_stock - units_held >= ? "
 )
 
-@SqlResultSetMapping(name = "updateResult", columns = {@ColumnResult(name = "count")})
+@NamedNativeQuery(
+        name = "ReleaseStock",
+        query = "UPDATE products " +
+                "SET    units_held = units_held - ? " +
+                "WHERE  UPC = ? "
+)
 
+// Turns a hold into a sale: the units ordered leave stock, and the whole hold is given
+// up, in case the cart ordered fewer than it held.
 @NamedNativeQuery(
-        name = "UpdateInventory",
+        name = "TakeHeldStock",
         query = "UPDATE products " +
-                "SET units_in_stock = ?" +
-                "WHERE UPC = ? ",
-        resultSetMapping = "updateResult"
+                "SET    units_in_stock = units_in_stock - ?, units_held = units_held - ? " +
+                "WHERE  UPC = ? "
 )
 
 /** Something that we stock, that the customer can order. */
 @Entity
+// The whole catalog fits.  Stock is taken and held with UPDATEs that go around the cache,
+// so the product is evicted after them.  The expiry covers anything
+// else that changes products without going through JPA, such as BulkLoader.  Other JVMs
+// are told to drop a changed product rather than sent the change, since a product that
+// is changing stock is likely to change again before it is read there.
+@Cache(type = CacheType.SOFT_WEAK, size = 10000, expiry = 5 * 60 * 1000,
+        coordinationType = CacheCoordinationType.INVALIDATE_CHANGED_OBJECTS)
 public class Products {
+    /** How many products a page of the inventory has, which is what the page queries are prepared for. */
+    public static final int PAGE_SIZE = 20;
+
     @Id
     @Column(nullable = false, length = 30)
     /** The Product Universal Product Code */
@@ -69,14 +146,18 @@ public class Products {
     private String model;
 
     @Column(nullable = false)
-    /** Price in US $ */
-    private double unit_list_price;
+    /** Price in US cents.  Money is kept in whole cents so that totals add up exactly. */
+    private long unit_list_price;
 
     @Column(nullable = false)
     /** The quantity of this item that we have on hand. */
     private int units_in_stock;
 
-    public Products(String UPC, String prod_name, String mfgr, String model, double unit_list_price, int units_in_stock) {
+    @Column(nullable = false)
+    /** How many of the units on hand are held for open carts, see Reservations. */
+    private int units_held;
+
+    public Products(String UPC, String prod_name, String mfgr, String model, long unit_list_price, int units_in_stock) {
         this.UPC = UPC;
         this.prod_name = prod_name;
         this.mfgr = mfgr;
@@ -119,11 +200,11 @@ public class Products {
         this.model = model;
     }
 
-    public double getUnit_list_price() {
+    public long getUnit_list_price() {
         return unit_list_price;
     }
 
-    public void setUnit_list_price(double unit_list_price) {
+    public void setUnit_list_price(long unit_list_price) {
         this.unit_list_price = unit_list_price;
     }
 
@@ -135,9 +216,22 @@ public class Products {
         this.units_in_stock = units_in_stock;
     }
 
+    public int getUnits_held() {
+        return units_held;
+    }
+
+    public void setUnits_held(int units_held) {
+        this.units_held = units_held;
+    }
+
+    /** @return The units on hand that no open cart is holding. */
+    public int getUnits_available() {
+        return units_in_stock - units_held;
+    }
+
     @Override
     public String toString () {
-        return "Product- UPC: " + this.UPC + ", Name: " + this.prod_name + ", Price: " + this.unit_list_price
-                + " QTY on hand: " + this.units_in_stock;
+        return "Product- UPC: " + this.UPC + ", Name: " + this.prod_name + ", Price in cents: " + this.unit_list_price
+                + " QTY on hand: " + this.units_in_stock + " QTY held: " + this.units_held;
     }
 }
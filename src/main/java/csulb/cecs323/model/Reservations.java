@@ -0,0 +1,177 @@
+package csulb.cecs323.model;
+
+import org.eclipse.persistence.annotations.Cache;
+import org.eclipse.persistence.config.CacheIsolationType;
+import org.eclipse.persistence.config.HintValues;
+import org.eclipse.persistence.config.QueryHints;
+
+import javax.persistence.*;
+import java.time.LocalDateTime;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/*
+A hold on some units of a product for a cart that has not been ordered yet.
+The units are also counted in PRODUCTS.units_held, which is what keeps other
+carts and orders from taking them; this table records who holds them and
+until when, so that they can be given back.  Whoever deletes a row gives its
+units back, which is what keeps a hold from being released twice when the
+sweeper and the cart's own abort or order race for it.
+ */
+
+// Renewing the holds of a cart whenever it holds something more keeps an active
+// cart's stock for as long as the shopper keeps adding to it.
+@NamedQuery(
+        name = "RenewReservations",
+        query = "UPDATE Reservations r " +
+                "SET    r.expires = :expires " +
+                "WHERE  r.cart_id = :cartId"
+)
+
+// EclipseLink writes the parameters of an arithmetic SET into the SQL as literals
+// unless told to bind them, which would make Derby compile it again for every cart.
+@NamedQuery(
+        name = "AddToReservation",
+        query = "UPDATE Reservations r " +
+                "SET    r.quantity = r.quantity + :quantity " +
+                "WHERE  r.cart_id = :cartId AND r.UPC = :upc",
+        hints = @QueryHint(name = QueryHints.BIND_PARAMETERS, value = HintValues.TRUE)
+)
+
+// Pins a hold that an order has been acknowledged against, so that the sweeper
+// leaves it for the order writer.  It only matches a hold that is still live and
+// big enough, so a hold that was swept meanwhile is not brought back.
+@NamedQuery(
+        name = "PinReservation",
+        query = "UPDATE Reservations r " +
+                "SET    r.expires = :expires " +
+                "WHERE  r.cart_id = :cartId AND r.UPC = :upc " +
+                "AND    r.quantity >= :quantity AND r.expires > :now"
+)
+
+@NamedQuery(
+        name = "CartReservations",
+        query = "SELECT r.UPC, r.quantity " +
+                "FROM   Reservations r " +
+                "WHERE  r.cart_id = :cartId " +
+                "ORDER BY r.UPC"
+)
+
+@NamedQuery(
+        name = "HeldQuantity",
+        query = "SELECT r.quantity " +
+                "FROM   Reservations r " +
+                "WHERE  r.cart_id = :cartId AND r.UPC = :upc"
+)
+
+@NamedQuery(
+        name = "DeleteReservation",
+        query = "DELETE FROM Reservations r " +
+                "WHERE  r.cart_id = :cartId AND r.UPC = :upc"
+)
+
+// The sweeper's delete only matches a hold that is still expired, so a hold that
+// was renewed after the sweeper read it is left alone.
+@NamedQuery(
+        name = "DeleteExpiredReservation",
+        query = "DELETE FROM Reservations r " +
+                "WHERE  r.cart_id = :cartId AND r.UPC = :upc AND r.expires < :now"
+)
+
+// Finds the holds to sweep, soonest expired first, through the expiry index.
+@NamedQuery(
+        name = "ExpiredReservations",
+        query = "SELECT r.cart_id, r.UPC, r.quantity " +
+                "FROM   Reservations r " +
+                "WHERE  r.expires < :now " +
+                "ORDER BY r.expires"
+)
+
+@Entity
+@IdClass(Reservations_pk.class)
+@Table(indexes = @Index(name = "RESERVATIONS_EXPIRES", columnList = "expires"))
+// Holds are written and deleted with bulk statements, so a cached copy would only
+// ever be out of date.
+@Cache(isolation = CacheIsolationType.ISOLATED)
+/** Units of one product held for one open cart. */
+public class Reservations {
+    @Id
+    @Column(nullable = false, length = 36)
+    /** The cart holding the stock, see Cart.getId */
+    private String cart_id;
+
+    @Id
+    @Column(name = "product_upc", nullable = false, length = 30)
+    /** The product being held */
+    private String UPC;
+
+    @ManyToOne(fetch = FetchType.LAZY, optional = false)
+    @JoinColumn(name = "product_upc", referencedColumnName = "UPC",
+            insertable = false, updatable = false)
+    /*
+    Only here for the foreign key.  The UPC above is what the
+    holds are read and written by, so that none of the queries
+    has to join PRODUCTS.
+     */
+    private Products product;
+
+    @Column(nullable = false)
+    /** How many units are held. */
+    private int quantity;
+
+    @Column(nullable = false)
+    /** When the hold runs out if the cart does nothing more. */
+    private LocalDateTime expires;
+
+    public Reservations() {}
+
+    public Reservations(String cart_id, String UPC, int quantity, LocalDateTime expires) {
+        this.cart_id = cart_id;
+        this.UPC = UPC;
+        this.quantity = quantity;
+        this.expires = expires;
+    }
+
+    public String getCart_id() {
+        return cart_id;
+    }
+
+    public String getUPC() {
+        return UPC;
+    }
+
+    public Products getProduct() {
+        return product;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public void setQuantity(int quantity) {
+        this.quantity = quantity;
+    }
+
+    public LocalDateTime getExpires() {
+        return expires;
+    }
+
+    public void setExpires(LocalDateTime expires) {
+        this.expires = expires;
+    }
+
+    @Override
+    public String toString () {
+        return "Cart: " + this.cart_id + ", UPC: " + this.UPC + ", Quantity held: " + this.quantity +
+                ", Expires: " + this.expires;
+    }
+}
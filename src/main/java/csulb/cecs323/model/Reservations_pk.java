@@ -0,0 +1,67 @@
+package csulb.cecs323.model;
+
+import java.io.Serializable;
+import java.util.Objects;
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+/**
+ * The primary key class for the Reservations class.
+ */
+public class Reservations_pk implements Serializable {
+    /** The cart holding the stock */
+    private String cart_id;
+    /** The product being held */
+    private String UPC;
+
+    public Reservations_pk() {}
+
+    public Reservations_pk(String cart_id, String UPC) {
+        this.cart_id = cart_id;
+        this.UPC = UPC;
+    }
+
+    public String getCart_id() {
+        return cart_id;
+    }
+
+    public void setCart_id(String cart_id) {
+        this.cart_id = cart_id;
+    }
+
+    public String getUPC() {
+        return UPC;
+    }
+
+    public void setUPC(String UPC) {
+        this.UPC = UPC;
+    }
+
+    @Override
+    public boolean equals (Object o) {
+        boolean results = false;
+        if (this == o) {
+            results = true;
+        } else if (o == null || getClass() != o.getClass()) {
+            results = false;
+        } else {
+            Reservations_pk rpk = (Reservations_pk) o;
+            results = Objects.equals(this.getCart_id(), rpk.getCart_id()) &&
+                    Objects.equals(this.getUPC(), rpk.getUPC());
+        }
+        return results;
+    }
+    @Override
+    public int hashCode () {
+        return Objects.hash (this.getCart_id(), this.getUPC());
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.Products;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.function.Consumer;
+
+/**
+ * One of the JVMs that CacheCoordinationTest starts.  It opens the persistence unit the way the application
+ * does, with the cache coordination settings it is given as system properties, and then runs commands read
+ * from standard input, one per line, answering each with one line on standard output:
+ * <pre>
+ *    product UPC                      ok price stock statements
+ *    cached UPC                       ok price stock
+ *    customer ID                      ok last_name statements
+ *    reprice UPC CENTS                ok
+ *    rename ID LAST_NAME              ok
+ *    order CUSTOMER_ID UPC QUANTITY   ok filled
+ *    quit
+ * </pre>
+ * The reads go through EntityManager.find, so statements, the number of SQL statements the read took, is 0
+ * when the entity came from the shared cache.  cached reads through OrderService.getProduct, and so through
+ * its product cache, instead.  Anything that fails is answered with "error" and a message.
+ */
+class CacheCoordinationProbe {
+   public static void main(String[] args) throws Exception {
+      EntityManagerFactory factory = Startup.createEntityManagerFactory();
+      StatementCounter counter = StatementCounter.install(factory);
+      OrderService orderService = new OrderService(factory, 1);
+      BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+      System.out.println("ready");
+      String line;
+      while ((line = in.readLine()) != null && !line.equals("quit")) {
+         String[] words = line.trim().split(" ");
+         try {
+            System.out.println("ok" + run(factory, counter, orderService, words));
+         } catch (RuntimeException e) {
+            System.out.println("error " + e);
+         }
+      }
+      orderService.close();
+      factory.close();
+   }
+
+   /** @return What to answer after "ok", starting with a space if there is anything. */
+   private static String run(EntityManagerFactory factory, StatementCounter counter, OrderService orderService,
+                             String[] words) {
+      long before = counter.getCount();
+      switch (words[0]) {
+         case "product": {
+            Products product = read(factory, Products.class, words[1]);
+            return " " + product.getUnit_list_price() + " " + product.getUnits_in_stock() + " " +
+                    (counter.getCount() - before);
+         }
+         case "cached": {
+            Products product = orderService.getProduct(words[1]);
+            return " " + product.getUnit_list_price() + " " + product.getUnits_in_stock();
+         }
+         case "customer": {
+            Customers customer = read(factory, Customers.class, Long.parseLong(words[1]));
+            return " " + customer.getLast_name() + " " + (counter.getCount() - before);
+         }
+         case "reprice":
+            change(factory, Products.class, words[1],
+                    product -> product.setUnit_list_price(Long.parseLong(words[2])));
+            return "";
+         case "rename":
+            change(factory, Customers.class, Long.parseLong(words[1]),
+                    customer -> customer.setLast_name(words[2]));
+            return "";
+         case "order": {
+            Cart cart = orderService.openCart(orderService.getCustomer(Long.parseLong(words[1])));
+            orderService.addLine(cart, words[2], Integer.parseInt(words[3]));
+            return " " + orderService.placeOrder(cart).get(0).getFilled();
+         }
+         default:
+            throw new IllegalArgumentException("Unknown command " + words[0]);
+      }
+   }
+
+   private static <T> T read(EntityManagerFactory factory, Class<T> type, Object id) {
+      EntityManager manager = factory.createEntityManager();
+      try {
+         return manager.find(type, id);
+      } finally {
+         manager.close();
+      }
+   }
+
+   private static <T> void change(EntityManagerFactory factory, Class<T> type, Object id, Consumer<T> change) {
+      EntityManager manager = factory.createEntityManager();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         change.accept(manager.find(type, id));
+         tx.commit();
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         manager.close();
+      }
+   }
+}
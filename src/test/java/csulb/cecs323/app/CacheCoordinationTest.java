@@ -0,0 +1,297 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.apache.derby.drda.NetworkServerControl;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+/**
+ * Checks that a change committed in one JVM reaches the shared caches of the others.  It starts a Derby
+ * network server, seeds a database on it and launches three JVMs running CacheCoordinationProbe against it
+ * with RMI cache coordination on, then, in order:
+ * <ol>
+ *    <li>has every JVM cache a product and a customer, and checks that reading them again takes no SQL, and
+ *    puts the product in each JVM's OrderService product cache;</li>
+ *    <li>reprices the product in the first JVM: the others must drop it, from their product caches too,
+ *    and read the new price;</li>
+ *    <li>renames the customer in the first JVM: the others must be sent the new name, so it takes no SQL;</li>
+ *    <li>orders the product in the second JVM, which changes stock with an UPDATE that goes around the
+ *    cache: the others must drop it, from their product caches too, and read the new stock level.</li>
+ * </ol>
+ * The RMI discovery finds the other JVMs by multicast, so the loopback interface must allow multicast.  The
+ * logs of each JVM are left in target/cache-coordination-test.
+ */
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+class CacheCoordinationTest {
+   private static final Path DIRECTORY = Paths.get("target", "cache-coordination-test").toAbsolutePath();
+
+   private static final int JVMS = 3;
+
+   /** How long a change may take to reach the other JVMs.  Propagation is asynchronous. */
+   private static final long PROPAGATION_MILLIS = 10_000;
+
+   private static final int PRODUCTS = 10;
+   private static final int CUSTOMERS = 10;
+
+   private static final String UPC = TestDatabase.upc(PRODUCTS / 2);
+   private static final long CUSTOMER_ID = 1;
+
+   private static NetworkServerControl server;
+   private static final List<Probe> PROBES = new ArrayList<>();
+
+   @BeforeAll
+   static void startJvms() throws Exception {
+      if (Files.exists(DIRECTORY)) {
+         try (Stream<Path> paths = Files.walk(DIRECTORY)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+         }
+      }
+      Files.createDirectories(DIRECTORY);
+      int derbyPort = freePort();
+      server = new NetworkServerControl(InetAddress.getLoopbackAddress(), derbyPort);
+      server.start(new PrintWriter(Files.newBufferedWriter(DIRECTORY.resolve("derby-server.log"))));
+      waitForServer(server);
+      // Derby in this JVM may already have started with another derby.system.home, so give the full path.
+      String url = "jdbc:derby://localhost:" + derbyPort + "/" + DIRECTORY.resolve("CustomerOrders");
+      seed(url);
+      // A channel of our own, so that nothing else on the network joins in.
+      String channel = "CacheCoordinationTest-" + UUID.randomUUID();
+      for (int i = 0; i < JVMS; i++) {
+         PROBES.add(new Probe(i, url, channel));
+      }
+      for (Probe probe : PROBES) {
+         probe.awaitReady();
+      }
+      // Give RMI discovery time to announce every JVM to the others.
+      Thread.sleep(3_000);
+   }
+
+   @AfterAll
+   static void stopJvms() throws Exception {
+      for (Probe probe : PROBES) {
+         probe.close();
+      }
+      if (server != null) {
+         server.shutdown();
+      }
+   }
+
+   @Test
+   @Order(1)
+   void readsAreCached() throws IOException {
+      for (Probe probe : PROBES) {
+         probe.ask("product " + UPC);
+         probe.ask("customer " + CUSTOMER_ID);
+         assertEquals(0, statements(probe.ask("product " + UPC)), probe + " statements to read a cached product");
+         assertEquals(0, statements(probe.ask("customer " + CUSTOMER_ID)),
+                 probe + " statements to read a cached customer");
+         probe.ask("cached " + UPC);
+      }
+   }
+
+   @Test
+   @Order(2)
+   void repricedProductIsDroppedEverywhere() throws IOException, InterruptedException {
+      long newPrice = TestDatabase.product(PRODUCTS / 2).getUnit_list_price() + 100;
+      PROBES.get(0).ask("reprice " + UPC + " " + newPrice);
+      for (Probe probe : PROBES) {
+         assertNotNull(await(probe, "product " + UPC, answer -> Long.parseLong(answer[1]) == newPrice),
+                 probe + " never saw the new price");
+      }
+      for (Probe probe : PROBES.subList(1, JVMS)) {
+         assertNotNull(await(probe, "cached " + UPC, answer -> Long.parseLong(answer[1]) == newPrice),
+                 probe + " product cache never had the new price");
+      }
+   }
+
+   @Test
+   @Order(3)
+   void renamedCustomerIsSentEverywhere() throws IOException, InterruptedException {
+      PROBES.get(0).ask("rename " + CUSTOMER_ID + " Renamed");
+      for (Probe probe : PROBES.subList(1, JVMS)) {
+         String[] customer = await(probe, "customer " + CUSTOMER_ID, answer -> answer[1].equals("Renamed"));
+         assertNotNull(customer, probe + " never saw the new name");
+         assertEquals(0, statements(customer), probe + " read the new name rather than being sent it");
+      }
+   }
+
+   @Test
+   @Order(4)
+   void orderedStockIsDroppedEverywhere() throws IOException, InterruptedException {
+      int stock = Integer.parseInt(PROBES.get(0).ask("product " + UPC)[2]);
+      PROBES.get(1).ask("order " + CUSTOMER_ID + " " + UPC + " 5");
+      for (Probe probe : PROBES) {
+         assertNotNull(await(probe, "product " + UPC, answer -> Integer.parseInt(answer[2]) == stock - 5),
+                 probe + " never saw the new stock");
+         assertNotNull(await(probe, "cached " + UPC, answer -> Integer.parseInt(answer[2]) == stock - 5),
+                 probe + " product cache never had the new stock");
+      }
+   }
+
+   /**
+    * Asks a probe the same thing until the answer is what is expected or PROPAGATION_MILLIS have gone by.
+    * @return     The answer that was expected, or null if it never came.
+    */
+   private static String[] await(Probe probe, String command, Predicate<String[]> expected)
+           throws IOException, InterruptedException {
+      long deadline = System.currentTimeMillis() + PROPAGATION_MILLIS;
+      while (true) {
+         String[] answer = probe.ask(command);
+         if (expected.test(answer)) {
+            return answer;
+         }
+         if (System.currentTimeMillis() > deadline) {
+            return null;
+         }
+         Thread.sleep(50);
+      }
+   }
+
+   /** @return How many SQL statements the read that gave this answer took. */
+   private static long statements(String[] answer) {
+      return Long.parseLong(answer[answer.length - 1]);
+   }
+
+   /** Creates the tables on the network server and loads a few products and customers. */
+   private static void seed(String url) {
+      Map<String, String> properties = new HashMap<>();
+      properties.put("javax.persistence.jdbc.driver", "org.apache.derby.jdbc.ClientDriver");
+      properties.put("javax.persistence.jdbc.url", url + ";create=true");
+      properties.put("eclipselink.logging.level", "OFF");
+      EntityManagerFactory factory = Persistence.createEntityManagerFactory(Startup.PERSISTENCE_UNIT, properties);
+      OrderService orderService = new OrderService(factory, 1);
+      try {
+         TestDatabase.seed(orderService, PRODUCTS, CUSTOMERS);
+      } finally {
+         orderService.close();
+         factory.close();
+      }
+   }
+
+   private static void waitForServer(NetworkServerControl server) throws Exception {
+      for (int attempt = 0; ; attempt++) {
+         try {
+            server.ping();
+            return;
+         } catch (Exception e) {
+            if (attempt == 50) {
+               throw e;
+            }
+            Thread.sleep(100);
+         }
+      }
+   }
+
+   private static int freePort() throws IOException {
+      try (ServerSocket socket = new ServerSocket(0)) {
+         return socket.getLocalPort();
+      }
+   }
+
+   /**
+    * A JVM running CacheCoordinationProbe in the production profile, so that it keeps the seeded data.
+    */
+   private static class Probe {
+      private final int number;
+      private final Process process;
+      private final PrintWriter commands;
+      private final BufferedReader answers;
+
+      Probe(int number, String url, String channel) throws IOException {
+         this.number = number;
+         List<String> command = new ArrayList<>();
+         command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+         command.add("-D" + Startup.PROFILE_PROPERTY + "=" + Startup.PRODUCTION);
+         command.add("-Djavax.persistence.jdbc.driver=org.apache.derby.jdbc.ClientDriver");
+         command.add("-Djavax.persistence.jdbc.url=" + url);
+         command.add("-Declipselink.logging.level=WARNING");
+         // EclipseLink logs to standard output by default, which is where the answers go.
+         command.add("-Declipselink.logging.file=" + DIRECTORY.resolve("probe-" + number + "-eclipselink.log"));
+         command.add("-Declipselink.cache.coordination.protocol=rmi");
+         command.add("-Declipselink.cache.coordination.naming-service=rmi");
+         command.add("-Declipselink.cache.coordination.rmi.url=rmi://localhost:" + freePort());
+         command.add("-Declipselink.cache.coordination.channel=" + channel);
+         command.add("-cp");
+         command.add(System.getProperty("java.class.path"));
+         command.add(CacheCoordinationProbe.class.getName());
+         this.process = new ProcessBuilder(command)
+                 .directory(DIRECTORY.toFile())
+                 .redirectError(DIRECTORY.resolve("probe-" + number + ".log").toFile())
+                 .start();
+         this.commands = new PrintWriter(this.process.getOutputStream(), true);
+         this.answers = new BufferedReader(new InputStreamReader(this.process.getInputStream()));
+      }
+
+      void awaitReady() throws IOException {
+         String line = this.answers.readLine();
+         if (!"ready".equals(line)) {
+            throw new IllegalStateException(this + " did not start: " + line);
+         }
+      }
+
+      /**
+       * @return     The probe's answer split into words, with "ok" first.
+       * @throws IllegalStateException if the probe answered with an error.
+       */
+      String[] ask(String command) throws IOException {
+         this.commands.println(command);
+         String line = this.answers.readLine();
+         if (line == null || !line.startsWith("ok")) {
+            throw new IllegalStateException(this + " could not do \"" + command + "\": " + line);
+         }
+         return line.split(" ");
+      }
+
+      void close() throws InterruptedException {
+         this.commands.println("quit");
+         if (!this.process.waitFor(30, TimeUnit.SECONDS)) {
+            this.process.destroyForcibly();
+         }
+      }
+
+      @Override
+      public String toString() {
+         return "JVM " + this.number;
+      }
+   }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Products;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that OrderService.createEntityBatched writes every entity, whether or not the chunk size divides
+ * the load, and that a load which fails part way through leaves nothing behind, since it is one transaction
+ * however many chunks it is flushed in.  BatchedPersistFootprint, in the benchmarks, reports the heap the
+ * chunks keep.
+ */
+class CreateEntityBatchedTest {
+   private static final String DATABASE = "create-entity-batched-test";
+
+   private static final int PRODUCTS = 2_500;
+
+   private EntityManagerFactory factory;
+   private OrderService orderService;
+
+   @BeforeEach
+   void setUp() {
+      this.factory = TestDatabase.create(DATABASE);
+      this.orderService = new OrderService(this.factory, 1);
+   }
+
+   @AfterEach
+   void tearDown() {
+      this.orderService.close();
+      TestDatabase.drop(this.factory, DATABASE);
+   }
+
+   @ParameterizedTest(name = "chunks of {0}")
+   @ValueSource(ints = {1, 7, 1_000, PRODUCTS, 10_000})
+   void everyEntityIsWritten(int chunkSize) {
+      this.orderService.createEntityBatched(products(), chunkSize);
+
+      assertEquals(PRODUCTS, countProducts());
+      for (int i : new int[] {0, PRODUCTS / 2, PRODUCTS - 1}) {
+         assertEquals(TestDatabase.product(i).getProd_name(),
+                 this.orderService.getProduct(TestDatabase.upc(i)).getProd_name());
+      }
+   }
+
+   @Test
+   void failedLoadLeavesNothing() {
+      List<Products> products = products();
+      // The same UPC again, in the last chunk, long after the first chunks have been flushed.
+      products.add(TestDatabase.product(0));
+      assertThrows(RuntimeException.class, () -> this.orderService.createEntityBatched(products, 1_000));
+
+      assertEquals(0, countProducts());
+   }
+
+   @Test
+   void chunkSizeMustBePositive() {
+      assertThrows(IllegalArgumentException.class,
+              () -> this.orderService.createEntityBatched(Collections.emptyList(), 0));
+   }
+
+   private static List<Products> products() {
+      List<Products> products = new ArrayList<>(PRODUCTS + 1);
+      for (int i = 0; i < PRODUCTS; i++) {
+         products.add(TestDatabase.product(i));
+      }
+      return products;
+   }
+
+   private long countProducts() {
+      return new UnitOfWork(this.factory).read(manager -> ((Number) manager
+              .createNativeQuery("SELECT COUNT(*) FROM PRODUCTS").getSingleResult()).longValue());
+   }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Customers;
+import csulb.cecs323.model.OrderLines;
+import csulb.cecs323.model.Orders;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the fetch plans for N+1 behaviour: reading the cart display, the order summaries and the full order
+ * detail, and touching every association each one is meant to fetch, must take exactly one SQL statement,
+ * both for an order of one line and for one of LINES lines.  The shared cache is emptied before each read
+ * so that nothing can be answered from it.  FetchPlanBenchmark times the same reads.
+ */
+class FetchPlanTest {
+   private static final String DATABASE = "fetch-plan-test";
+
+   /** The number of lines on the large orders, and the number of orders the customer places. */
+   private static final int LINES = 50;
+
+   private static EntityManagerFactory factory;
+   private static OrderService orderService;
+   private static StatementCounter counter;
+   private static long customerId;
+   /** The order_id of the one-line order. */
+   private static long smallOrder;
+   /** The order_id of an order of LINES lines. */
+   private static long largeOrder;
+
+   @BeforeAll
+   static void placeOrders() {
+      factory = TestDatabase.create(DATABASE);
+      orderService = new OrderService(factory, 1);
+      TestDatabase.seed(orderService, LINES, 1);
+      customerId = orderService.findCustomersByLastNamePrefix("Last0", null, 1).get(0).getCustomer_id();
+      Customers customer = orderService.getCustomer(customerId);
+
+      LocalDateTime start = LocalDateTime.of(2021, 1, 1, 12, 0);
+      for (int i = 0; i < LINES; i++) {
+         Cart cart = new Cart(new Orders(customer, start.plusMinutes(i), OrderService.DEFAULT_SOLD_BY));
+         // The first order has one line, the rest have them all.
+         for (int line = 0; line <= (i == 0 ? 0 : LINES - 1); line++) {
+            orderService.addLine(cart, TestDatabase.upc(line), 1);
+         }
+         orderService.placeOrder(cart);
+         if (i == 0) {
+            smallOrder = cart.getOrder().getOrder_id();
+         }
+         largeOrder = cart.getOrder().getOrder_id();
+      }
+      counter = StatementCounter.install(factory);
+   }
+
+   @AfterAll
+   static void dropDatabase() {
+      orderService.close();
+      TestDatabase.drop(factory, DATABASE);
+   }
+
+   @Test
+   void cartDisplayTakesOneStatement() {
+      assertOneStatement(() -> orderService.getCartLines(smallOrder), FetchPlanTest::touchCart);
+      assertOneStatement(() -> orderService.getCartLines(largeOrder), FetchPlanTest::touchCart);
+   }
+
+   @Test
+   void orderDetailTakesOneStatement() {
+      assertOneStatement(() -> orderService.getOrderDetail(smallOrder), FetchPlanTest::touchDetail);
+      assertOneStatement(() -> orderService.getOrderDetail(largeOrder), FetchPlanTest::touchDetail);
+   }
+
+   @Test
+   void orderSummariesTakeOneStatement() {
+      assertOneStatement(() -> orderService.getOrderSummaries(customerId).subList(0, 1),
+              FetchPlanTest::touchSummary);
+      assertOneStatement(() -> orderService.getOrderSummaries(customerId), FetchPlanTest::touchSummary);
+   }
+
+   /**
+    * Checks that reading a result and touching it takes exactly one statement.
+    * @param read       Reads the result.
+    * @param touch      Uses everything the read is meant to have fetched.
+    */
+   private static <T> void assertOneStatement(Supplier<List<T>> read, Consumer<List<T>> touch) {
+      factory.getCache().evictAll();
+      long before = counter.getCount();
+      List<T> result = read.get();
+      touch.accept(result);
+      assertEquals(1, counter.getCount() - before, "statements to read and touch " + result.size() + " rows");
+   }
+
+   /** Uses everything the cart display is meant to fetch. */
+   private static void touchCart(List<OrderLines> lines) {
+      for (OrderLines line : lines) {
+         line.getProduct().getProd_name();
+      }
+   }
+
+   /** Uses everything the order detail is meant to fetch. */
+   private static void touchDetail(List<OrderLines> lines) {
+      for (OrderLines line : lines) {
+         line.getProduct().getProd_name();
+         line.getOrder().getCustomer().getLast_name();
+      }
+   }
+
+   /** Uses everything the order summaries are meant to fetch. */
+   private static void touchSummary(List<Orders> orders) {
+      for (Orders order : orders) {
+         order.getCustomer().getLast_name();
+      }
+   }
+}
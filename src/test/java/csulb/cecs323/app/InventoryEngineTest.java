@@ -0,0 +1,172 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Races buyers for a small catalog through InventoryEngine and checks that no product is oversold.  Each
+ * buyer runs transactions of one to three products, taken in UPC order as OrderService takes them; half of
+ * the transactions want all of each line or none of it (reserve) and half take what is left (reserveUpTo).
+ * There is more demand than stock, so the products sell out while buyers are still after them.  Afterwards
+ * each product's stock must be down by exactly what the buyers were given, never below nothing, and every
+ * product that a reserveUpTo came up short on must be sold out.
+ */
+class InventoryEngineTest {
+   private static final String DATABASE = "inventory-engine-test";
+
+   private static final int PRODUCTS = 20;
+   private static final int STOCK = 500;
+   private static final int TRANSACTIONS = 2000;
+
+   private EntityManagerFactory factory;
+   private UnitOfWork unitOfWork;
+
+   /** Units given to buyers, by product number. */
+   private final AtomicLongArray taken = new AtomicLongArray(PRODUCTS);
+   /** Products that a reserveUpTo came up short on, by product number. */
+   private final AtomicLongArray ranShort = new AtomicLongArray(PRODUCTS);
+   /** Lines that were given something they should not have been. */
+   private final LongAdder wrongFills = new LongAdder();
+
+   @BeforeEach
+   void setUp() {
+      this.factory = TestDatabase.create(DATABASE);
+      this.unitOfWork = new UnitOfWork(this.factory);
+      OrderService orderService = new OrderService(this.factory, 1);
+      TestDatabase.seed(orderService, PRODUCTS, 1);
+      orderService.close();
+      this.unitOfWork.runInTransaction(manager -> {
+         manager.createNativeQuery("UPDATE PRODUCTS SET UNITS_IN_STOCK = " + STOCK).executeUpdate();
+      });
+      this.factory.getCache().evictAll();
+   }
+
+   @AfterEach
+   void tearDown() {
+      TestDatabase.drop(this.factory, DATABASE);
+   }
+
+   @ParameterizedTest(name = "{0} buyers")
+   @ValueSource(ints = {1, 8, 64})
+   void buyersNeverOversell(int buyers) throws Exception {
+      ExecutorService pool = Executors.newFixedThreadPool(buyers);
+      List<Future<?>> work = new ArrayList<>(buyers);
+      for (int b = 0; b < buyers; b++) {
+         int buyer = b;
+         int share = TRANSACTIONS / buyers + (buyer < TRANSACTIONS % buyers ? 1 : 0);
+         work.add(pool.submit(() -> buy(buyer, share)));
+      }
+      for (Future<?> done : work) {
+         done.get();
+      }
+      pool.shutdown();
+      assertTrue(pool.awaitTermination(1, TimeUnit.MINUTES));
+
+      long sold = 0;
+      for (int i = 0; i < PRODUCTS; i++) {
+         long left = stockOf(i);
+         sold += this.taken.get(i);
+         assertEquals(STOCK - this.taken.get(i), left, "stock left of product " + i);
+         assertTrue(left >= 0, "product " + i + " was oversold");
+         assertTrue(this.ranShort.get(i) == 0 || left == 0,
+                 "product " + i + " ran short with reserveUpTo but has stock left");
+      }
+      assertEquals(0, this.wrongFills.sum(), "lines given the wrong amount");
+      assertEquals((long) PRODUCTS * STOCK, sold, "units sold");
+   }
+
+   @Test
+   void nonPositiveQuantitiesTakeNothing() {
+      String upc = TestDatabase.upc(0);
+      this.unitOfWork.runInTransaction(manager -> {
+         InventoryEngine inventory = new InventoryEngine(manager);
+         assertFalse(inventory.reserve(upc, 0));
+         assertFalse(inventory.reserve(upc, -3));
+         assertEquals(0, inventory.reserveUpTo(upc, -3).getFilled());
+      });
+      assertEquals(STOCK, stockOf(0));
+   }
+
+   /** Runs one buyer's transactions. */
+   private void buy(int buyer, int transactions) {
+      Random random = new Random(buyer);
+      for (int t = 0; t < transactions; t++) {
+         TreeSet<Integer> products = new TreeSet<>();
+         int lines = 1 + random.nextInt(3);
+         while (products.size() < lines) {
+            products.add(random.nextInt(PRODUCTS));
+         }
+         boolean wantAll = random.nextBoolean();
+         // Now and then a line asks for a negative quantity, which must not put stock back.
+         int[] wanted = new int[lines];
+         for (int i = 0; i < lines; i++) {
+            wanted[i] = random.nextInt(50) == 0 ? -1 - random.nextInt(5) : 1 + random.nextInt(8);
+         }
+
+         int[] filled = this.unitOfWork.inTransaction(manager -> {
+            InventoryEngine inventory = new InventoryEngine(manager);
+            int[] got = new int[lines];
+            int i = 0;
+            for (int product : products) {
+               String upc = TestDatabase.upc(product);
+               got[i] = wantAll
+                       ? (inventory.reserve(upc, wanted[i]) ? wanted[i] : 0)
+                       : inventory.reserveUpTo(upc, wanted[i]).getFilled();
+               i++;
+            }
+            return got;
+         });
+
+         int i = 0;
+         for (int product : products) {
+            if (filled[i] < 0 || (wanted[i] <= 0 && filled[i] != 0) || filled[i] > Math.max(wanted[i], 0) ||
+                    (wantAll && filled[i] != 0 && filled[i] != wanted[i])) {
+               this.wrongFills.increment();
+            }
+            if (!wantAll && wanted[i] > 0 && filled[i] < wanted[i]) {
+               this.ranShort.incrementAndGet(product);
+            }
+            this.taken.addAndGet(product, filled[i]);
+            i++;
+         }
+      }
+   }
+
+   private long stockOf(int product) {
+      return this.unitOfWork.read(manager -> ((Number) manager
+              .createNativeQuery("SELECT UNITS_IN_STOCK FROM PRODUCTS WHERE UPC = ?")
+              .setParameter(1, TestDatabase.upc(product))
+              .getSingleResult()).longValue());
+   }
+}
@@ -0,0 +1,83 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that Money reads and shows amounts exactly, up to the largest amount a long holds, and that text
+ * which is not an amount in dollars, or is too large, is turned down with a NumberFormatException.
+ */
+class MoneyTest {
+   @ParameterizedTest
+   @CsvSource({
+           "0, 0",
+           "12, 1200",
+           "12., 1200",
+           "12.5, 1250",
+           "9.97, 997",
+           "0.01, 1",
+           ".99, 99",
+           "+3.10, 310",
+           "-0.99, -99",
+           "-1234.05, -123405",
+           "92233720368547758.07, 9223372036854775807",
+           "-92233720368547758.07, -9223372036854775807"
+   })
+   void parsesDollarsToCents(String dollars, long cents) {
+      assertEquals(cents, Money.parse(dollars));
+   }
+
+   @ParameterizedTest
+   @ValueSource(strings = {"", "-", "+", ".", "-.", "1.234", "1.2.3", "1,000", "$5", " 5", "5 ", "1e3", "--1"})
+   void refusesTextThatIsNotDollars(String dollars) {
+      assertThrows(NumberFormatException.class, () -> Money.parse(dollars));
+   }
+
+   @ParameterizedTest
+   @ValueSource(strings = {"92233720368547758.08", "-92233720368547758.09", "92233720368547759",
+           "99999999999999999999"})
+   void refusesAmountsTooLargeForALong(String dollars) {
+      NumberFormatException e = assertThrows(NumberFormatException.class, () -> Money.parse(dollars));
+      assertEquals(ArithmeticException.class, e.getCause().getClass());
+   }
+
+   @ParameterizedTest
+   @CsvSource({
+           "0, 0.00",
+           "5, 0.05",
+           "99, 0.99",
+           "1250, 12.50",
+           "123405, 1234.05",
+           "-5, -0.05",
+           "-123405, -1234.05",
+           "9223372036854775807, 92233720368547758.07",
+           "-9223372036854775808, -92233720368547758.08"
+   })
+   void formatsCentsAsDollars(long cents, String dollars) {
+      assertEquals(dollars, Money.format(cents));
+   }
+
+   @Test
+   void formattedAmountsParseBack() {
+      for (long cents : new long[] {0, 1, -1, 10, 997, -123405, Long.MAX_VALUE, -Long.MAX_VALUE}) {
+         assertEquals(cents, Money.parse(Money.format(cents)));
+      }
+   }
+}
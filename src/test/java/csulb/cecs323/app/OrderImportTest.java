@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+import javax.persistence.EntityManagerFactory;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Imports a generated order file with OrderImport and checks the outcome.  The products numbered below
+ * SHORT_PRODUCTS have little stock, so orders for them run short; a few orders are for customers or
+ * products that do not exist, and a few lines cannot be parsed or have a negative price.  Afterwards every
+ * order and bad line must be in the results file once, the placed orders and the units they were filled
+ * with must be exactly what is in ORDERS and ORDERLINES, each product's stock must be down by exactly what
+ * was ordered of it, and no line may have been sold at a negative price.  OrderImportThroughput, in the
+ * benchmarks, times the same import on a bigger file.
+ */
+class OrderImportTest {
+   private static final String DATABASE = "order-import-test";
+
+   private static final int ORDERS = 20_000;
+   private static final int PRODUCTS = 1_000;
+   private static final int CUSTOMERS = 5_000;
+
+   /** The products numbered below this have only SHORT_STOCK units, so that orders for them run short. */
+   private static final int SHORT_PRODUCTS = 100;
+   private static final int SHORT_STOCK = 20;
+
+   @TempDir
+   Path directory;
+
+   private EntityManagerFactory factory;
+   private UnitOfWork unitOfWork;
+
+   @BeforeEach
+   void setUp() {
+      this.factory = TestDatabase.create(DATABASE);
+      this.unitOfWork = new UnitOfWork(this.factory);
+      OrderService orderService = new OrderService(this.factory, 1);
+      TestDatabase.seed(orderService, PRODUCTS, CUSTOMERS);
+      orderService.close();
+      this.unitOfWork.runInTransaction(manager -> {
+         manager.createNativeQuery("UPDATE PRODUCTS SET UNITS_IN_STOCK = " + SHORT_STOCK + " WHERE UPC < '" +
+                 TestDatabase.upc(SHORT_PRODUCTS) + "'").executeUpdate();
+      });
+   }
+
+   @AfterEach
+   void tearDown() {
+      TestDatabase.drop(this.factory, DATABASE);
+   }
+
+   @ParameterizedTest(name = "{0} workers, batches of {1}")
+   @CsvSource({"1, 500", "4, 500", "4, 7"})
+   void ordersArePlacedAsReported(int threads, int batchSize) throws Exception {
+      Path file = this.directory.resolve("orders.csv");
+      long negativePrices = write(file, count("SELECT MIN(CUSTOMER_ID) FROM CUSTOMERS"));
+      Path results = this.directory.resolve("results.csv");
+      OrderImport importer = new OrderImport("jdbc:derby:memory:" + DATABASE, null, null, threads, batchSize);
+      long read = importer.importOrders(file, results);
+
+      long reported = 0;
+      long placed = 0;
+      long filled = 0;
+      long rejectedPrices = 0;
+      try (BufferedReader in = Files.newBufferedReader(results)) {
+         in.readLine();
+         String line;
+         while ((line = in.readLine()) != null) {
+            String[] fields = line.split(",", -1);
+            reported++;
+            if (!fields[2].equals(OrderImport.Status.REJECTED.name())) {
+               placed++;
+               filled += Long.parseLong(fields[5]);
+            } else if (fields[6].contains("unit_price")) {
+               rejectedPrices++;
+            }
+         }
+      }
+      assertEquals(read, reported, "orders in the results");
+      assertEquals(read, importer.getOrdersAccepted() + importer.getOrdersPartial() + importer.getOrdersRejected(),
+              "orders accepted, partially filled and rejected");
+      assertEquals(placed, count("SELECT COUNT(*) FROM ORDERS"), "orders placed");
+      assertEquals(filled, count("SELECT COALESCE(SUM(QUANTITY), 0) FROM ORDERLINES"), "units filled");
+      assertEquals(0, count("SELECT COUNT(*) FROM PRODUCTS P WHERE " +
+              "CASE WHEN P.UPC < '" + TestDatabase.upc(SHORT_PRODUCTS) + "' THEN " + SHORT_STOCK +
+              " ELSE " + TestDatabase.STOCK + " END - P.UNITS_IN_STOCK <> " +
+              "(SELECT COALESCE(SUM(L.QUANTITY), 0) FROM ORDERLINES L WHERE L.PRODUCT_UPC = P.UPC)"),
+              "products whose stock is not down by exactly what was ordered");
+      assertEquals(0, count("SELECT COUNT(*) FROM PRODUCTS WHERE UNITS_IN_STOCK < 0"), "products oversold");
+      assertTrue(importer.getOrdersPartial() > 0, "no order was partially filled");
+      assertTrue(negativePrices > 0, "the file has no negative prices");
+      assertEquals(negativePrices, rejectedPrices, "lines with a negative price rejected");
+      assertEquals(0, count("SELECT COUNT(*) FROM ORDERLINES WHERE UNIT_SALE_PRICE < 0"),
+              "lines sold at a negative price");
+   }
+
+   /**
+    * Writes an order file.  One order in a thousand is for a customer that does not exist, one line in a
+    * thousand is for a product that does not exist, and one in a thousand cannot be parsed or has a price
+    * of -0.01, which must be rejected rather than taken for the list price.
+    * @return     The number of lines with a price of -0.01.
+    */
+   private static long write(Path file, long firstCustomerId) throws IOException {
+      Random random = new Random(42);
+      long negativePrices = 0;
+      try (BufferedWriter out = Files.newBufferedWriter(file)) {
+         out.write("customer_id,UPC,quantity,unit_price");
+         out.newLine();
+         for (int i = 0; i < ORDERS; i++) {
+            long customerId = random.nextInt(1000) == 0 ? -1 : firstCustomerId + random.nextInt(CUSTOMERS);
+            int count = 1 + random.nextInt(4);
+            for (int j = 0; j < count; j++) {
+               String upc = random.nextInt(1000) == 0 ? "NOSUCHUPC"
+                       : TestDatabase.upc(random.nextInt(10) == 0 ? random.nextInt(SHORT_PRODUCTS)
+                               : random.nextInt(PRODUCTS));
+               String price = random.nextBoolean() ? "" : "," + (1 + random.nextInt(100)) + ".99";
+               out.write(customerId + "," + upc + "," + (1 + random.nextInt(5)) + price);
+               out.newLine();
+               if (random.nextInt(1000) == 0) {
+                  boolean unparsable = random.nextBoolean();
+                  out.write(customerId + (unparsable ? ",not a quantity" : "," + upc + ",1,-0.01"));
+                  out.newLine();
+                  negativePrices += unparsable ? 0 : 1;
+               }
+            }
+         }
+      }
+      return negativePrices;
+   }
+
+   private long count(String sql) {
+      return this.unitOfWork.read(manager -> ((Number) manager.createNativeQuery(sql).getSingleResult()).longValue());
+   }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the JVMs that OrderJournalTest starts and then crashes.  It opens the persistence unit and the
+ * order journal the way the application does, from system properties, which writes whatever the journal
+ * had left over, and answers "ready" with how many orders that was.  Then it places one order for each of
+ * a range of customers on many threads, answering "ack", the customer id and the UPC and units filled of
+ * each line as each order is acknowledged, and halts the JVM on the spot after the given number of them.
+ * The arguments are:
+ * <pre>
+ *    FIRST_CUSTOMER_ID CUSTOMERS PRODUCTS HALT_AFTER
+ * </pre>
+ */
+class OrderJournalProbe {
+   private static final int THREADS = 16;
+
+   public static void main(String[] args) throws Exception {
+      long firstCustomerId = Long.parseLong(args[0]);
+      int customers = Integer.parseInt(args[1]);
+      int products = Integer.parseInt(args[2]);
+      int haltAfter = Integer.parseInt(args[3]);
+
+      EntityManagerFactory factory = Startup.createEntityManagerFactory();
+      OrderService orderService = new OrderService(factory, THREADS,
+              new StockReservations(factory, OrderService.HOLD_TTL_SECONDS, OrderService.HOLD_SWEEP_SECONDS,
+                      TimeUnit.SECONDS),
+              Startup.getJournalDirectory(), Startup.isJournalSynced());
+      System.out.println("ready " + orderService.getOrderWriter().getWrittenOrders());
+
+      AtomicInteger acknowledged = new AtomicInteger();
+      for (int i = 0; i < customers; i++) {
+         long customerId = firstCustomerId + i;
+         orderService.submit(() -> {
+            Random random = new Random(customerId);
+            Cart cart = orderService.openCart(orderService.getCustomer(customerId));
+            int lines = 1 + random.nextInt(3);
+            for (int j = 0; j < lines; j++) {
+               orderService.addLine(cart, TestDatabase.upc(random.nextInt(products)), 1 + random.nextInt(3));
+            }
+            StringBuilder answer = new StringBuilder("ack ").append(customerId);
+            for (InventoryEngine.FillResult result : orderService.placeOrder(cart)) {
+               answer.append(' ').append(result.getUPC()).append(' ').append(result.getFilled());
+            }
+            // Halting while holding the lock on System.out, so that no other answer is cut off half way.
+            synchronized (System.out) {
+               System.out.println(answer);
+               if (acknowledged.incrementAndGet() == haltAfter) {
+                  System.out.flush();
+                  Runtime.getRuntime().halt(0);
+               }
+            }
+            return null;
+         });
+      }
+      // Only here if haltAfter was more than customers.
+      orderService.close();
+      factory.close();
+   }
+}
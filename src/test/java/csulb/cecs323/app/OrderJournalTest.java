@@ -0,0 +1,262 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that an order acknowledged through the order journal is written to the database exactly once,
+ * however the JVM that took it goes down, and that an order the writer cannot write is dead-lettered and
+ * gives its stock back.  The databases, the journals and the logs of each JVM are left in
+ * target/order-journal-test.
+ */
+class OrderJournalTest {
+   private static final Path DIRECTORY = Paths.get("target", "order-journal-test").toAbsolutePath();
+
+   private static final int PRODUCTS = 50;
+
+   /** How many orders each crashing JVM is sent, one per customer. */
+   private static final int ORDERS_PER_JVM = 3_000;
+
+   /** How many of them each JVM acknowledges before it halts.  The rest may or may not be in the journal. */
+   private static final int HALT_AFTER = 2_500;
+
+   private static final int JVMS = 2;
+
+   @BeforeAll
+   static void emptyDirectory() throws IOException {
+      TestDatabase.dropDirectory(DIRECTORY);
+      Files.createDirectories(DIRECTORY);
+   }
+
+   /**
+    * Seeds a database on disk and then, twice, starts a JVM running OrderJournalProbe, which places orders
+    * in write-behind mode and halts without warning part way through.  The second JVM finds the first one's
+    * unwritten orders in the journal; this JVM opens the journal last and writes what the second one left.
+    * Then every acknowledged order must be in the database once, with the units it was acknowledged for,
+    * each product's stock must be down by exactly the units in the orders and its held units must be those
+    * of the holds still in RESERVATIONS, and opening the journal once more must write nothing.
+    */
+   @Test
+   void everyAcknowledgedOrderIsWrittenOnce() throws IOException, InterruptedException {
+      Path directory = DIRECTORY.resolve("crash");
+      Path journal = directory.resolve("journal");
+      Files.createDirectories(directory);
+      long firstCustomerId;
+      EntityManagerFactory factory = TestDatabase.createOnDisk(directory);
+      try {
+         OrderService orderService = new OrderService(factory, 1);
+         TestDatabase.seed(orderService, PRODUCTS, JVMS * ORDERS_PER_JVM);
+         orderService.close();
+         firstCustomerId = ((Number) query(factory, "SELECT MIN(CUSTOMER_ID) FROM CUSTOMERS").get(0)[0]).longValue();
+      } finally {
+         TestDatabase.closeOnDisk(factory, directory);
+      }
+
+      Map<Long, Integer> acknowledged = new HashMap<>();
+      List<Long> replayed = new ArrayList<>();
+      for (int i = 0; i < JVMS; i++) {
+         crash(directory, i, firstCustomerId + (long) i * ORDERS_PER_JVM, acknowledged, replayed);
+      }
+
+      factory = open(directory);
+      try {
+         replayed.add(openJournal(factory, journal));
+         assertTrue(replayed.stream().allMatch(count -> count > 0), "orders replayed after each crash: " + replayed);
+         assertEquals(0, openJournal(factory, journal), "orders written on opening the journal again");
+
+         Map<Long, long[]> written = new HashMap<>();
+         for (Object[] row : query(factory, "SELECT O.CUSTOMER_ID, COUNT(DISTINCT O.ORDER_ID), SUM(L.QUANTITY) " +
+                 "FROM ORDERS O JOIN ORDERLINES L ON L.ORDER_ID = O.ORDER_ID GROUP BY O.CUSTOMER_ID")) {
+            written.put(((Number) row[0]).longValue(),
+                    new long[] {((Number) row[1]).longValue(), ((Number) row[2]).longValue()});
+         }
+         for (Map.Entry<Long, Integer> order : acknowledged.entrySet()) {
+            long[] found = written.get(order.getKey());
+            assertNotNull(found, "the acknowledged order of customer " + order.getKey() + " was not written");
+            assertEquals(order.getValue().longValue(), found[1], "units in the order of customer " + order.getKey());
+         }
+         // Each customer was only sent one order.
+         for (Map.Entry<Long, long[]> found : written.entrySet()) {
+            assertEquals(1, found.getValue()[0], "orders written for customer " + found.getKey());
+         }
+         assertTrue(query(factory,
+                 "SELECT P.UPC FROM PRODUCTS P WHERE " + TestDatabase.STOCK + " - P.UNITS_IN_STOCK <> " +
+                 "(SELECT COALESCE(SUM(L.QUANTITY), 0) FROM ORDERLINES L WHERE L.PRODUCT_UPC = P.UPC)").isEmpty(),
+                 "some products' stock is not down by exactly what was ordered");
+         assertTrue(query(factory,
+                 "SELECT P.UPC FROM PRODUCTS P WHERE P.UNITS_HELD <> " +
+                 "(SELECT COALESCE(SUM(R.QUANTITY), 0) FROM RESERVATIONS R WHERE R.PRODUCT_UPC = P.UPC)").isEmpty(),
+                 "some products' held units are not those of the holds left");
+      } finally {
+         TestDatabase.closeOnDisk(factory, directory);
+      }
+   }
+
+   /**
+    * Places an order in write-behind mode for a customer who is deleted before it is written.  The writer
+    * cannot write it, so it must be in the journal's dead letters, counted over JMX, and its holds must have
+    * been given back rather than left pinned.
+    */
+   @Test
+   void unwritableOrderIsDeadLettered() throws Exception {
+      String database = "order-journal-test";
+      EntityManagerFactory factory = TestDatabase.create(database);
+      UnitOfWork unitOfWork = new UnitOfWork(factory);
+      OrderService orderService = new OrderService(factory, 1,
+              new StockReservations(factory, OrderService.HOLD_TTL_SECONDS, OrderService.HOLD_SWEEP_SECONDS,
+                      TimeUnit.SECONDS),
+              DIRECTORY.resolve("dead-letter"), false);
+      try {
+         TestDatabase.seed(orderService, PRODUCTS, 1);
+         long customerId = orderService.findCustomersByLastNamePrefix("Last0", null, 1).get(0).getCustomer_id();
+         Cart cart = orderService.openCart(orderService.getCustomer(customerId));
+         orderService.addLine(cart, TestDatabase.upc(0), 3);
+         unitOfWork.runInTransaction(manager -> {
+            manager.createNativeQuery("DELETE FROM CUSTOMERS WHERE CUSTOMER_ID = ?")
+                    .setParameter(1, customerId).executeUpdate();
+         });
+
+         assertEquals(3, orderService.placeOrder(cart).get(0).getFilled());
+         OrderWriter writer = orderService.getOrderWriter();
+         assertTrue(writer.awaitWritten(30, TimeUnit.SECONDS), "the writer did not get past the order");
+
+         assertEquals(1, writer.getDeadLetteredOrders());
+         assertEquals(1L, ManagementFactory.getPlatformMBeanServer()
+                 .getAttribute(new ObjectName("csulb.cecs323:type=OrderWriter"), "DeadLetteredOrders"));
+         List<OrderJournal.Entry> deadLetters = writer.getJournal().getDeadLetters();
+         assertEquals(1, deadLetters.size());
+         assertEquals(cart.getId(), deadLetters.get(0).getCartId());
+
+         assertEquals(0, orderService.getReservations().getHeldUnits(), "units left held in memory");
+         assertEquals(0, ((Number) query(factory, "SELECT COUNT(*) FROM RESERVATIONS").get(0)[0]).longValue(),
+                 "reservations left");
+         assertEquals(0, ((Number) query(factory, "SELECT UNITS_HELD FROM PRODUCTS WHERE UPC = '" +
+                 TestDatabase.upc(0) + "'").get(0)[0]).longValue(), "units of the product left held");
+      } finally {
+         orderService.close();
+         TestDatabase.drop(factory, database);
+      }
+   }
+
+   /**
+    * Runs a probe JVM until it halts, recording the orders it acknowledged.
+    * @param directory        Where the database and the journal are, and where its logs go.
+    * @param number           Which JVM this is, for its log.
+    * @param firstCustomerId  The first of the customers it places orders for.
+    * @param acknowledged     Gets the units each acknowledged order was filled with, by customer id.
+    * @param replayed         Gets how many orders the JVM found in the journal and wrote when it started.
+    */
+   private static void crash(Path directory, int number, long firstCustomerId, Map<Long, Integer> acknowledged,
+                             List<Long> replayed) throws IOException, InterruptedException {
+      List<String> command = new ArrayList<>();
+      command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+      command.add("-D" + Startup.PROFILE_PROPERTY + "=" + Startup.PRODUCTION);
+      command.add("-D" + Startup.JOURNAL_PROPERTY + "=" + directory.resolve("journal"));
+      command.add("-Djavax.persistence.jdbc.url=" + TestDatabase.url(directory));
+      command.add("-Declipselink.logging.level=WARNING");
+      // EclipseLink logs to standard output by default, which is where the answers go.
+      command.add("-Declipselink.logging.file=" + directory.resolve("probe-" + number + "-eclipselink.log"));
+      command.add("-cp");
+      command.add(System.getProperty("java.class.path"));
+      command.add(OrderJournalProbe.class.getName());
+      command.add(Long.toString(firstCustomerId));
+      command.add(Integer.toString(ORDERS_PER_JVM));
+      command.add(Integer.toString(PRODUCTS));
+      command.add(Integer.toString(HALT_AFTER));
+      Process process = new ProcessBuilder(command)
+              .directory(directory.toFile())
+              .redirectError(directory.resolve("probe-" + number + ".log").toFile())
+              .start();
+
+      int count = 0;
+      try (BufferedReader answers = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+         String line;
+         while ((line = answers.readLine()) != null) {
+            String[] words = line.split(" ");
+            if (words[0].equals("ready")) {
+               if (number > 0) {
+                  replayed.add(Long.parseLong(words[1]));
+               }
+            } else if (words[0].equals("ack")) {
+               int units = 0;
+               for (int i = 3; i < words.length; i += 2) {
+                  units += Integer.parseInt(words[i]);
+               }
+               acknowledged.put(Long.parseLong(words[1]), units);
+               count++;
+            }
+         }
+      }
+      process.waitFor();
+      assertEquals(HALT_AFTER, count, "orders JVM " + number + " acknowledged; see its log in " + directory);
+   }
+
+   /**
+    * Opens the order journal and closes it again, which writes whatever is in it that the database lacks.
+    * @return     How many orders that was.
+    */
+   private static long openJournal(EntityManagerFactory factory, Path journal) {
+      OrderService orderService = new OrderService(factory, 1,
+              new StockReservations(factory, OrderService.HOLD_TTL_SECONDS, OrderService.HOLD_SWEEP_SECONDS,
+                      TimeUnit.SECONDS),
+              journal, false);
+      long written = orderService.getOrderWriter().getWrittenOrders();
+      orderService.close();
+      return written;
+   }
+
+   /** Opens the database the probes used, keeping its data. */
+   private static EntityManagerFactory open(Path directory) {
+      Map<String, String> properties = new HashMap<>();
+      properties.put("javax.persistence.jdbc.url", TestDatabase.url(directory));
+      properties.put("javax.persistence.schema-generation.database.action", "none");
+      properties.put("eclipselink.logging.level", "OFF");
+      return Persistence.createEntityManagerFactory(Startup.PERSISTENCE_UNIT, properties);
+   }
+
+   private static List<Object[]> query(EntityManagerFactory factory, String sql) {
+      EntityManager manager = factory.createEntityManager();
+      try {
+         List<Object[]> rows = new ArrayList<>();
+         for (Object row : manager.createNativeQuery(sql).getResultList()) {
+            rows.add(row instanceof Object[] ? (Object[]) row : new Object[] {row});
+         }
+         return rows;
+      } finally {
+         manager.close();
+      }
+   }
+}
@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.eclipse.persistence.jpa.JpaHelper;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.Query;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs every named query against a seeded database with Derby's runtime statistics on, and fails if any of
+ * them reads a table with a table scan instead of an index.
+ * <p>
+ * Every named query needs sample parameters in SAMPLES, so a new query cannot go unchecked.  A query that
+ * lists most of a table is expected to scan it; those are named in FULL_LISTINGS with the table they list.
+ * </p>
+ */
+class QueryPlanTest {
+   private static final String DATABASE = "query-plan-test";
+
+   /** Enough rows that the optimizer's costs favour the indexes the way they would in production. */
+   private static final int PRODUCT_COUNT = 10_000;
+   private static final int CUSTOMER_COUNT = 10_000;
+   private static final int ORDERS_PER_CUSTOMER = 3;
+   private static final int LINES_PER_ORDER = 3;
+   private static final LocalDateTime FIRST_ORDER = LocalDateTime.of(2021, 1, 1, 9, 30);
+
+   /** Open carts holding stock, LINES_PER_ORDER products each, half of them expired. */
+   private static final int HOLDING_CARTS = 10_000;
+
+   private static final String[] TABLES = {"PRODUCTS", "CUSTOMERS", "ORDERS", "ORDERLINES", "RESERVATIONS"};
+
+   /** The named queries that change rows rather than read them. */
+   private static final Set<String> UPDATES = new HashSet<>(Arrays.asList("ReserveStock", "HoldStock",
+           "ReleaseStock", "TakeHeldStock", "RenewReservations", "AddToReservation", "DeleteReservation",
+           "DeleteExpiredReservation", "PinReservation"));
+
+   /** Queries that return most of a table, and so should scan it, by name, with the table they list. */
+   private static final Map<String, String> FULL_LISTINGS = new HashMap<>();
+   static {
+      FULL_LISTINGS.put("ReturnCustomers", "CUSTOMERS");
+      // Nearly every product is in stock, so the whole table is the answer.  Menus use GetInventoryPage.
+      FULL_LISTINGS.put("GetInventory", "PRODUCTS");
+   }
+
+   private static final Pattern TABLE_SCAN = Pattern.compile("Table Scan ResultSet for (\\w+)");
+
+   private static EntityManagerFactory factory;
+   private static OrderService orderService;
+
+   /** Sets realistic parameters on each named query. */
+   private static final Map<String, Consumer<Query>> SAMPLES = new HashMap<>();
+
+   @BeforeAll
+   static void seedDatabase() throws SQLException {
+      factory = TestDatabase.create(DATABASE);
+      orderService = new OrderService(factory, 1);
+      TestDatabase.seed(orderService, PRODUCT_COUNT, CUSTOMER_COUNT);
+      long customerId;
+      long orderId;
+      EntityManager manager = factory.createEntityManager();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         Connection connection = manager.unwrap(Connection.class);
+         customerId = TestDatabase.seedOrders(connection, CUSTOMER_COUNT, ORDERS_PER_CUSTOMER,
+                 LINES_PER_ORDER, PRODUCT_COUNT, FIRST_ORDER) + CUSTOMER_COUNT / 2;
+         try (PreparedStatement newest = connection.prepareStatement(
+                 "SELECT MAX(ORDER_ID) FROM ORDERS WHERE CUSTOMER_ID = ?")) {
+            newest.setLong(1, customerId);
+            try (ResultSet result = newest.executeQuery()) {
+               result.next();
+               orderId = result.getLong(1);
+            }
+         }
+         seedReservations(connection);
+         try (Statement statement = connection.createStatement()) {
+            for (String table : TABLES) {
+               statement.execute("CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS('APP', '" + table + "', NULL)");
+            }
+         }
+         tx.commit();
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         manager.close();
+      }
+      addSamples(customerId, orderId);
+   }
+
+   @AfterAll
+   static void dropDatabase() {
+      orderService.close();
+      TestDatabase.drop(factory, DATABASE);
+   }
+
+   /** One test for each named query, checking that it scans no table it should not. */
+   @TestFactory
+   Stream<DynamicTest> namedQueriesUseIndexes() {
+      Set<String> names = new TreeSet<>(JpaHelper.getServerSession(factory).getQueries().keySet());
+      return names.stream().map(name -> DynamicTest.dynamicTest(name, () -> {
+         Consumer<Query> sample = SAMPLES.get(name);
+         assertNotNull(sample, "no sample parameters for " + name + "; add them to QueryPlanTest");
+         String plan = explain(name, sample);
+         Set<String> scans = new HashSet<>();
+         Matcher tableScan = TABLE_SCAN.matcher(plan);
+         while (tableScan.find()) {
+            scans.add(tableScan.group(1));
+         }
+         scans.removeAll(FULL_LISTINGS.containsKey(name)
+                 ? Collections.singleton(FULL_LISTINGS.get(name)) : Collections.emptySet());
+         assertTrue(scans.isEmpty(), () -> name + " scans " + scans + ":\n" + plan);
+      }));
+   }
+
+   private static void addSamples(long customerId, long orderId) {
+      String upc = TestDatabase.upc(PRODUCT_COUNT / 2);
+      LocalDateTime lastOrder = FIRST_ORDER.plusDays(ORDERS_PER_CUSTOMER - 1);
+
+      SAMPLES.put("ReturnProduct", query -> query.setParameter("upc", upc));
+      SAMPLES.put("GetInventory", query -> { });
+      SAMPLES.put("GetInventoryPage", query -> query.setParameter("afterUPC", upc));
+      SAMPLES.put("GetInventorySummaryPage", query -> query.setParameter("afterUPC", upc));
+      SAMPLES.put("StockOnHand", query -> query.setParameter("upc", upc));
+      SAMPLES.put("ReserveStock", query -> query.setParameter(1, 1).setParameter(2, upc).setParameter(3, 1));
+      SAMPLES.put("HoldStock", query -> query.setParameter(1, 1).setParameter(2, upc).setParameter(3, 1));
+      SAMPLES.put("ReleaseStock", query -> query.setParameter(1, 0).setParameter(2, upc));
+      SAMPLES.put("TakeHeldStock", query -> query.setParameter(1, 0).setParameter(2, 0).setParameter(3, upc));
+
+      SAMPLES.put("ReturnCustomers", query -> { });
+      SAMPLES.put("GetCustomer", query -> query.setParameter("customerId", customerId));
+      SAMPLES.put("FindCustomersByPhone", query -> query.setParameter("phone", "562-000-0042")
+              .setParameter("afterLast", "").setParameter("afterFirst", "").setParameter("afterId", Long.MIN_VALUE));
+      SAMPLES.put("FindCustomersByLastNamePrefix", query -> query.setParameter("afterLast", "Last42")
+              .setParameter("prefixEnd", "Last42" + Character.MAX_VALUE)
+              .setParameter("afterFirst", "First420").setParameter("afterId", customerId));
+      SAMPLES.put("FindCustomersByName", query -> query.setParameter("lastName", "Last42")
+              .setParameter("firstName", "First42").setParameter("afterPhone", "").setParameter("afterId", 0L));
+
+      SAMPLES.put("OrderSummary", query -> query.setParameter("customerId", customerId));
+      SAMPLES.put("OrderHistoryPage", query -> query.setParameter("customerId", customerId)
+              .setParameter("beforeDate", lastOrder).setParameter("beforeId", orderId));
+      SAMPLES.put("OrderLinesForCart", query -> query.setParameter("orderId", orderId));
+      SAMPLES.put("OrderLinesDetail", query -> query.setParameter("orderId", orderId));
+      SAMPLES.put("OrderHistoryLines",
+              query -> query.setParameter("orderIds", Arrays.asList(orderId - 1, orderId)));
+
+      String cartId = cartId(HOLDING_CARTS / 2);
+      String heldUPC = TestDatabase.upc(HOLDING_CARTS / 2 % PRODUCT_COUNT);
+      LocalDateTime now = LocalDateTime.now();
+      SAMPLES.put("RenewReservations",
+              query -> query.setParameter("expires", now.plusMinutes(15)).setParameter("cartId", cartId));
+      SAMPLES.put("AddToReservation", query -> query.setParameter("quantity", 1)
+              .setParameter("cartId", cartId).setParameter("upc", heldUPC));
+      SAMPLES.put("PinReservation", query -> query.setParameter("expires", now.plusHours(24))
+              .setParameter("cartId", cartId).setParameter("upc", heldUPC).setParameter("quantity", 1)
+              .setParameter("now", now));
+      SAMPLES.put("CartReservations", query -> query.setParameter("cartId", cartId));
+      SAMPLES.put("HeldQuantity", query -> query.setParameter("cartId", cartId).setParameter("upc", heldUPC));
+      SAMPLES.put("DeleteReservation",
+              query -> query.setParameter("cartId", cartId).setParameter("upc", heldUPC));
+      SAMPLES.put("DeleteExpiredReservation", query -> query.setParameter("cartId", cartId)
+              .setParameter("upc", heldUPC).setParameter("now", now));
+      SAMPLES.put("ExpiredReservations", query -> query.setParameter("now", now).setMaxResults(500));
+   }
+
+   /**
+    * Holds LINES_PER_ORDER products for each of HOLDING_CARTS carts, the first half of them expired.  The
+    * products' units_held are left alone: nothing checked depends on them.
+    */
+   private static void seedReservations(Connection connection) throws SQLException {
+      LocalDateTime now = LocalDateTime.now();
+      try (PreparedStatement insert = connection.prepareStatement(
+              "INSERT INTO RESERVATIONS (CART_ID, PRODUCT_UPC, QUANTITY, EXPIRES) VALUES (?, ?, ?, ?)")) {
+         for (int cart = 0; cart < HOLDING_CARTS; cart++) {
+            for (int line = 0; line < LINES_PER_ORDER; line++) {
+               insert.setString(1, cartId(cart));
+               insert.setString(2, TestDatabase.upc((cart + line) % PRODUCT_COUNT));
+               insert.setInt(3, 1);
+               insert.setTimestamp(4, Timestamp.valueOf(now.plusMinutes(cart < HOLDING_CARTS / 2 ? -1 : 15)));
+               insert.addBatch();
+            }
+            if (cart % 1000 == 999) {
+               insert.executeBatch();
+            }
+         }
+         insert.executeBatch();
+      }
+   }
+
+   private static String cartId(int cart) {
+      return new UUID(0, cart).toString();
+   }
+
+   /**
+    * Runs one named query with runtime statistics on.  Anything it changes is rolled back.
+    * @return     Derby's runtime statistics for the query.
+    */
+   private static String explain(String name, Consumer<Query> sample) throws SQLException {
+      EntityManager manager = factory.createEntityManager();
+      EntityTransaction tx = manager.getTransaction();
+      try {
+         tx.begin();
+         // In a transaction EclipseLink runs everything on this one connection, so the statistics are ours.
+         Connection connection = manager.unwrap(Connection.class);
+         try (Statement statement = connection.createStatement()) {
+            statement.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(1)");
+         }
+         Query query = manager.createNamedQuery(name);
+         sample.accept(query);
+         if (UPDATES.contains(name)) {
+            query.executeUpdate();
+         } else {
+            query.getResultList();
+         }
+         try (Statement statement = connection.createStatement();
+              ResultSet statistics = statement.executeQuery("VALUES SYSCS_UTIL.SYSCS_GET_RUNTIMESTATISTICS()")) {
+            statistics.next();
+            String plan = statistics.getString(1);
+            statement.execute("CALL SYSCS_UTIL.SYSCS_SET_RUNTIMESTATISTICS(0)");
+            return plan;
+         }
+      } finally {
+         if (tx.isActive()) {
+            tx.rollback();
+         }
+         manager.close();
+      }
+   }
+}
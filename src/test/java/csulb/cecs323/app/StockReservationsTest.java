@@ -0,0 +1,168 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs thousands of carts at once against a small, contended catalog with holds that expire after two
+ * seconds, and checks that no stock is lost or sold twice.  A third of the carts are ordered, some of them
+ * only after their holds have expired, a third are aborted and a third are abandoned for the sweeper.
+ * While they run, the products are watched for more units held than are in stock.  Once every hold has
+ * been ordered, given back or swept, each product must be down by exactly what was ordered of it, and
+ * every unit that was held must have ended one of those three ways.
+ */
+class StockReservationsTest {
+   private static final String DATABASE = "stock-reservations-test";
+
+   private static final int CARTS = 5_000;
+   private static final int THREADS = 64;
+   private static final int PRODUCTS = 50;
+   private static final int CUSTOMERS = 100;
+
+   /** Few enough units that carts run short, and abandoned holds keep others from getting stock. */
+   private static final int STOCK = 200;
+
+   private static final long TIME_TO_LIVE_MILLIS = 2_000;
+   private static final long SWEEP_MILLIS = 250;
+
+   private EntityManagerFactory factory;
+   private UnitOfWork unitOfWork;
+   private StockReservations reservations;
+   private OrderService orderService;
+
+   /** Units ordered of each product, by product number. */
+   private final AtomicLongArray ordered = new AtomicLongArray(PRODUCTS);
+   /** Units that addLine held. */
+   private final LongAdder held = new LongAdder();
+   /** Times the watcher saw a product with more held than in stock, or less than nothing of either. */
+   private final LongAdder overdrawn = new LongAdder();
+
+   @BeforeEach
+   void setUp() {
+      this.factory = TestDatabase.create(DATABASE);
+      this.unitOfWork = new UnitOfWork(this.factory);
+      this.reservations = new StockReservations(this.factory, TIME_TO_LIVE_MILLIS, SWEEP_MILLIS,
+              TimeUnit.MILLISECONDS);
+      this.orderService = new OrderService(this.factory, THREADS, this.reservations);
+      TestDatabase.seed(this.orderService, PRODUCTS, CUSTOMERS);
+      this.unitOfWork.runInTransaction(manager -> {
+         manager.createNativeQuery("UPDATE PRODUCTS SET UNITS_IN_STOCK = " + STOCK).executeUpdate();
+      });
+      this.factory.getCache().evictAll();
+   }
+
+   @AfterEach
+   void tearDown() {
+      this.orderService.close();
+      TestDatabase.drop(this.factory, DATABASE);
+   }
+
+   @Test
+   void noStockIsLostOrSoldTwice() throws InterruptedException {
+      AtomicBoolean running = new AtomicBoolean(true);
+      Thread watcher = new Thread(() -> {
+         while (running.get()) {
+            this.overdrawn.add(count("SELECT COUNT(*) FROM PRODUCTS " +
+                    "WHERE UNITS_HELD < 0 OR UNITS_IN_STOCK < 0 OR UNITS_HELD > UNITS_IN_STOCK"));
+            try {
+               Thread.sleep(20);
+            } catch (InterruptedException e) {
+               return;
+            }
+         }
+      }, "overdraft-watcher");
+      watcher.start();
+
+      List<CompletableFuture<Void>> carts = new ArrayList<>(CARTS);
+      for (int i = 0; i < CARTS; i++) {
+         int cart = i;
+         carts.add(this.orderService.submit(() -> {
+            shop(cart);
+            return null;
+         }));
+      }
+      CompletableFuture.allOf(carts.toArray(new CompletableFuture[0])).join();
+
+      // Wait for the abandoned carts to expire and be swept.
+      long deadline = System.currentTimeMillis() + TIME_TO_LIVE_MILLIS + 10_000;
+      while ((count("SELECT COUNT(*) FROM RESERVATIONS") > 0 || this.reservations.getOpenCarts() > 0) &&
+              System.currentTimeMillis() < deadline) {
+         Thread.sleep(SWEEP_MILLIS);
+      }
+      running.set(false);
+      watcher.join();
+
+      assertEquals(0, this.overdrawn.sum(), "times a product was held or sold beyond its stock");
+      assertEquals(0, count("SELECT COUNT(*) FROM RESERVATIONS"), "reservations left");
+      assertEquals(0, count("SELECT COUNT(*) FROM PRODUCTS WHERE UNITS_HELD <> 0"), "products left held");
+      for (int i = 0; i < PRODUCTS; i++) {
+         assertEquals(STOCK - this.ordered.get(i),
+                 count("SELECT UNITS_IN_STOCK FROM PRODUCTS WHERE UPC = '" + TestDatabase.upc(i) + "'"),
+                 "stock left of product " + i);
+      }
+      assertEquals(this.held.sum(), this.reservations.getConvertedUnits() + this.reservations.getReleasedUnits() +
+              this.reservations.getExpiredUnits(), "held units that were ordered, released or expired");
+      assertEquals(0, this.reservations.getOpenCarts(), "carts left open in memory");
+      assertEquals(0, this.reservations.getHeldUnits(), "units left held in memory");
+      assertTrue(this.reservations.getExpiredUnits() > 0, "no hold expired");
+   }
+
+   /** Fills one cart and then orders it, aborts it or walks away from it. */
+   private void shop(int number) throws InterruptedException {
+      Random random = new Random(number);
+      Cart cart = this.orderService.openCart(this.orderService.getCustomer(1 + random.nextInt(CUSTOMERS)));
+      int lines = 1 + random.nextInt(3);
+      for (int i = 0; i < lines; i++) {
+         InventoryEngine.FillResult result = this.orderService.addLine(cart,
+                 TestDatabase.upc(random.nextInt(PRODUCTS)), 1 + random.nextInt(3));
+         this.held.add(result.getFilled());
+      }
+      switch (number % 3) {
+         case 0:
+            if (number % 10 == 0) {
+               // Dawdle, so that some orders are placed after their holds have run out.
+               Thread.sleep(random.nextInt((int) TIME_TO_LIVE_MILLIS * 2));
+            }
+            for (InventoryEngine.FillResult result : this.orderService.placeOrder(cart)) {
+               this.ordered.addAndGet(Integer.parseInt(result.getUPC()), result.getFilled());
+            }
+            break;
+         case 1:
+            this.orderService.abort(cart);
+            break;
+         default:
+            // Abandoned: the sweeper has to give its stock back.
+            break;
+      }
+   }
+
+   private long count(String sql) {
+      return this.unitOfWork.read(manager -> ((Number) manager.createNativeQuery(sql).getSingleResult()).longValue());
+   }
+}
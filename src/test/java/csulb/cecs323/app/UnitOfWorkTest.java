@@ -0,0 +1,238 @@
+/*
+ * Licensed under the Academic Free License (AFL 3.0).
+ *     http://opensource.org/licenses/AFL-3.0
+ *
+ *  This code is distributed to CSULB students in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE, other than educational.
+ *
+ *  2021 David Brown <david.brown@csulb.edu>
+ *
+ */
+
+package csulb.cecs323.app;
+
+import csulb.cecs323.model.Products;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.LockTimeoutException;
+import javax.persistence.OptimisticLockException;
+import javax.persistence.PersistenceException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks that a UnitOfWork runs work again from a fresh EntityManager after a transient failure, and only
+ * then, that it gives up after ATTEMPTS, and that every EntityManager it opens is closed however the work
+ * ends.  A transient failure is simulated by throwing what Derby throws for a deadlock, after the work has
+ * already written, so that a retry which reused the first attempt's persistence context would show.  The
+ * counts that UnitOfWork keeps are for the whole JVM, so each test compares them with what they were before.
+ */
+class UnitOfWorkTest {
+   private static final String DATABASE = "unit-of-work-test";
+
+   private static final int PRODUCTS = 1_000;
+   private static final int CUSTOMERS = 1_000;
+
+   private EntityManagerFactory factory;
+   private UnitOfWork unitOfWork;
+   private long openBefore;
+   private long retriesBefore;
+   private long failuresBefore;
+
+   @BeforeEach
+   void setUp() {
+      this.factory = TestDatabase.create(DATABASE);
+      this.unitOfWork = new UnitOfWork(this.factory);
+      OrderService orderService = new OrderService(this.factory, 1);
+      TestDatabase.seed(orderService, PRODUCTS, CUSTOMERS);
+      orderService.close();
+      this.openBefore = UnitOfWork.getOpenEntityManagers();
+      this.retriesBefore = UnitOfWork.getRetries();
+      this.failuresBefore = UnitOfWork.getFailures();
+   }
+
+   @AfterEach
+   void tearDown() {
+      TestDatabase.drop(this.factory, DATABASE);
+   }
+
+   @Test
+   void deadlockIsRetriedFromAFreshEntityManager() {
+      String upc = TestDatabase.upc(0);
+      List<EntityManager> managers = new ArrayList<>();
+      this.unitOfWork.runInTransaction(manager -> {
+         managers.add(manager);
+         rename(manager, upc, "Renamed " + managers.size());
+         if (managers.size() == 1) {
+            throw deadlock();
+         }
+      });
+
+      assertEquals(2, managers.size(), "attempts");
+      assertNotSame(managers.get(0), managers.get(1));
+      assertFalse(managers.get(0).isOpen(), "the first attempt's EntityManager is still open");
+      assertEquals("Renamed 2", nameOf(upc));
+      assertCounts(0, 1, 0);
+   }
+
+   @Test
+   void otherFailuresAreNotRetried() {
+      String upc = TestDatabase.upc(0);
+      int[] attempts = {0};
+      assertThrows(IllegalStateException.class, () -> this.unitOfWork.runInTransaction(manager -> {
+         attempts[0]++;
+         rename(manager, upc, "Renamed");
+         throw new IllegalStateException("Not transient");
+      }));
+
+      assertEquals(1, attempts[0], "attempts");
+      assertEquals(TestDatabase.product(0).getProd_name(), nameOf(upc), "name after the rollback");
+      assertCounts(0, 0, 1);
+   }
+
+   @Test
+   void transientFailuresAreGivenUpOnAfterEveryAttempt() {
+      int[] attempts = {0};
+      assertThrows(PersistenceException.class, () -> this.unitOfWork.runInTransaction(manager -> {
+         attempts[0]++;
+         throw deadlock();
+      }));
+
+      assertEquals(UnitOfWork.ATTEMPTS, attempts[0], "attempts");
+      assertCounts(0, UnitOfWork.ATTEMPTS - 1, 1);
+   }
+
+   @Test
+   void inTransactionOnceIsNotRetried() {
+      int[] attempts = {0};
+      assertThrows(PersistenceException.class, () -> this.unitOfWork.inTransactionOnce(manager -> {
+         attempts[0]++;
+         throw deadlock();
+      }));
+
+      assertEquals(1, attempts[0], "attempts");
+      assertCounts(0, 0, 1);
+   }
+
+   @Test
+   void readClosesItsEntityManagerWhenTheWorkThrows() {
+      EntityManager[] used = new EntityManager[1];
+      assertThrows(IllegalStateException.class, () -> this.unitOfWork.read(manager -> {
+         used[0] = manager;
+         throw new IllegalStateException("Failed read");
+      }));
+
+      assertFalse(used[0].isOpen(), "the EntityManager is still open");
+      assertCounts(0, 0, 0);
+   }
+
+   @Test
+   void transientFailuresAreRecognised() {
+      assertTrue(UnitOfWork.isTransient(deadlock()));
+      assertTrue(UnitOfWork.isTransient(new PersistenceException(new SQLException("Lock timeout", "40XL1"))));
+      assertTrue(UnitOfWork.isTransient(new OptimisticLockException()));
+      assertTrue(UnitOfWork.isTransient(new LockTimeoutException()));
+      assertTrue(UnitOfWork.isTransient(new PersistenceException(new SQLTransientConnectionException())));
+
+      assertFalse(UnitOfWork.isTransient(new IllegalStateException()));
+      assertFalse(UnitOfWork.isTransient(new PersistenceException(
+              new SQLIntegrityConstraintViolationException("Duplicate key", "23505"))));
+   }
+
+   /**
+    * Runs a mix of OrderService calls, as the console would, with a simulated deadlock now and then, and
+    * checks that every deadlock was retried, that nothing failed for good and that no EntityManager was left
+    * open.  UnitOfWorkSoak, in the benchmarks, runs the same mix for much longer and reports the heap.
+    */
+   @Test
+   void mixedOperationsLeaveNothingOpen() {
+      OrderService orderService = new OrderService(this.factory, 1);
+      Random random = new Random(323);
+      long firstCustomerId = orderService.findCustomersByLastNamePrefix("Last", null, 1).get(0).getCustomer_id();
+      int simulated = 0;
+      try {
+         for (int i = 1; i <= 20_000; i++) {
+            long customerId = firstCustomerId + random.nextInt(CUSTOMERS);
+            String upc = TestDatabase.upc(random.nextInt(PRODUCTS));
+            int kind = random.nextInt(100);
+            if (i % 1_000 == 0) {
+               int[] attempts = {0};
+               this.unitOfWork.runInTransaction(manager -> {
+                  rename(manager, upc, "Renamed");
+                  if (attempts[0]++ == 0) {
+                     throw deadlock();
+                  }
+               });
+               simulated++;
+            } else if (kind < 30) {
+               orderService.getCustomer(customerId);
+            } else if (kind < 60) {
+               orderService.getProduct(upc);
+            } else if (kind < 80) {
+               orderService.checkInStock(upc, 1);
+            } else if (kind < 88) {
+               orderService.getInventorySummaryPage(upc, 20);
+            } else if (kind < 93) {
+               orderService.findCustomersByLastNamePrefix("Last" + random.nextInt(100), null, 20);
+            } else if (kind < 96) {
+               orderService.getOrderHistory(customerId, null, 20);
+            } else {
+               Cart cart = orderService.openCart(orderService.getCustomer(customerId));
+               orderService.addLine(cart, upc, 1 + random.nextInt(3));
+               if (kind < 98) {
+                  orderService.abort(cart);
+               } else {
+                  orderService.placeOrder(cart);
+               }
+            }
+         }
+      } finally {
+         orderService.close();
+      }
+      assertCounts(0, simulated, 0);
+   }
+
+   /**
+    * Checks the JVM's UnitOfWork counts against what they were before the test.
+    * @param open       The EntityManagers that should be open now that were not before.
+    * @param retries    The retries there should have been.
+    * @param failures   The units of work that should have failed for good.
+    */
+   private void assertCounts(long open, long retries, long failures) {
+      assertEquals(open, UnitOfWork.getOpenEntityManagers() - this.openBefore, "EntityManagers left open");
+      assertEquals(retries, UnitOfWork.getRetries() - this.retriesBefore, "retries");
+      assertEquals(failures, UnitOfWork.getFailures() - this.failuresBefore, "failures");
+   }
+
+   /** Changes a product's name and writes the change, so that the transaction has something to undo. */
+   private static void rename(EntityManager manager, String upc, String name) {
+      manager.find(Products.class, upc).setProd_name(name);
+      manager.flush();
+   }
+
+   private String nameOf(String upc) {
+      this.factory.getCache().evictAll();
+      return this.unitOfWork.read(manager -> manager.find(Products.class, upc).getProd_name());
+   }
+
+   /** @return What EclipseLink throws when Derby picks a transaction as the victim of a deadlock. */
+   private static PersistenceException deadlock() {
+      return new PersistenceException(new SQLTransactionRollbackException("Simulated deadlock", "40001"));
+   }
+}